@@ -8,6 +8,8 @@ package org.taverna.server.localworker.remote;
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 
@@ -30,6 +32,30 @@ public interface RemoteDirectory extends RemoteDirectoryEntry {
 	public Collection<RemoteDirectoryEntry> getContents()
 			throws RemoteException, IOException;
 
+	/**
+	 * @return The names of the files (not sub-directories) in this directory,
+	 *         each with when it was last modified. Found in a single call, so
+	 *         that listing a large directory does not need calls per entry.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If anything goes wrong with listing the directory.
+	 */
+	@Nonnull
+	public Map<String, Date> getFileModificationDates() throws RemoteException,
+			IOException;
+
+	/**
+	 * @return The total size, in bytes, of the files in this directory and all
+	 *         its sub-directories. Found in a single call, so that the size of
+	 *         a large tree does not need a call per file.
+	 * @throws RemoteException
+	 *             If anything goes wrong with the communication.
+	 * @throws IOException
+	 *             If anything goes wrong with reading the directory tree.
+	 */
+	public long getTotalSize() throws RemoteException, IOException;
+
 	/**
 	 * Creates a sub-directory of this directory.
 	 * 
@@ -6,19 +6,29 @@
 package org.ogf.usage;
 
 import static java.util.UUID.randomUUID;
+import static javax.xml.stream.XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES;
 
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.dom.DOMSource;
 
 import org.ogf.usage.v1_0.Charge;
@@ -274,12 +284,38 @@ public class JobUsageRecord extends org.ogf.usage.v1_0.UsageRecordType {
 
 	public String marshal() throws JAXBException {
 		StringWriter writer = new StringWriter();
-		JAXBContext.newInstance(getClass()).createMarshaller()
-				.marshal(this, writer);
+		marshal(writer);
 		return writer.toString();
 	}
 
-	private static JAXBContext context;
+	/**
+	 * Write this record as XML.
+	 * 
+	 * @param writer
+	 *            Where to write the record to. Not closed.
+	 * @throws JAXBException
+	 *             If the record can't be serialized.
+	 */
+	public void marshal(Writer writer) throws JAXBException {
+		Marshaller m = marshallers.poll();
+		if (m == null)
+			m = context.createMarshaller();
+		m.marshal(this, writer);
+		marshallers.offer(m);
+	}
+
+	private static final JAXBContext context;
+	/**
+	 * Marshallers and unmarshallers are not thread-safe but are expensive
+	 * enough to be worth reusing, so we keep a few spare ones about. A
+	 * (un)marshaller is only returned to its pool after a successful use.
+	 */
+	private static final int POOL_SIZE = 16;
+	private static final BlockingQueue<Marshaller> marshallers = new ArrayBlockingQueue<>(
+			POOL_SIZE);
+	private static final BlockingQueue<Unmarshaller> unmarshallers = new ArrayBlockingQueue<>(
+			POOL_SIZE);
+	private static final XMLInputFactory xmlInputFactory;
 	static {
 		try {
 			context = JAXBContext.newInstance(JobUsageRecord.class);
@@ -287,17 +323,55 @@ public class JobUsageRecord extends org.ogf.usage.v1_0.UsageRecordType {
 			throw new RuntimeException("failed to handle JAXB annotated class",
 					e);
 		}
+		xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private static Unmarshaller unmarshaller() throws JAXBException {
+		Unmarshaller u = unmarshallers.poll();
+		return u != null ? u : context.createUnmarshaller();
 	}
 
 	public static JobUsageRecord unmarshal(String s) throws JAXBException {
-		return (JobUsageRecord) context.createUnmarshaller().unmarshal(
-				new StringReader(s));
+		return unmarshal(new StringReader(s));
+	}
+
+	/**
+	 * Read a record from XML, streaming it from its source.
+	 * 
+	 * @param reader
+	 *            Where to read the record from. Not closed.
+	 * @return The record.
+	 * @throws JAXBException
+	 *             If the record can't be parsed.
+	 */
+	public static JobUsageRecord unmarshal(Reader reader) throws JAXBException {
+		Unmarshaller u = unmarshaller();
+		XMLStreamReader xsr;
+		try {
+			xsr = xmlInputFactory.createXMLStreamReader(reader);
+		} catch (XMLStreamException e) {
+			throw new JAXBException("failed to start parsing usage record", e);
+		}
+		try {
+			JobUsageRecord ur = (JobUsageRecord) u.unmarshal(xsr);
+			unmarshallers.offer(u);
+			return ur;
+		} finally {
+			try {
+				xsr.close();
+			} catch (XMLStreamException e) {
+				// Ignore; nothing more to read anyway
+			}
+		}
 	}
 
 	public static JobUsageRecord unmarshal(Element elem) throws JAXBException {
-		return context.createUnmarshaller()
-				.unmarshal(new DOMSource(elem), JobUsageRecord.class)
-				.getValue();
+		Unmarshaller u = unmarshaller();
+		JobUsageRecord ur = u.unmarshal(new DOMSource(elem),
+				JobUsageRecord.class).getValue();
+		unmarshallers.offer(u);
+		return ur;
 	}
 
 	// TODO: Add signing support
@@ -117,4 +117,26 @@ public class TestUR {
 		Assert.assertNotSame("", record);
 		//System.out.println(record);
 	}
+
+	static JobUsageRecord sample()
+			throws DatatypeConfigurationException {
+		JobUsageRecord ur = new JobUsageRecord("benchmark");
+		ur.setStatus("Completed");
+		ur.addWallDuration(1000 * 65);
+		ur.addCpuDuration(1000 * 42);
+		ur.addHost("localhost");
+		ur.addUser("alice", "alice");
+		ur.addMemory(123456789).setType("vm");
+		return ur;
+	}
+
+	@Test
+	public void testRoundTrip() throws DatatypeConfigurationException,
+			JAXBException {
+		JobUsageRecord ur = sample();
+		JobUsageRecord ur2 = JobUsageRecord.unmarshal(ur.marshal());
+		Assert.assertEquals(ur.getRecordIdentity().getRecordId(), ur2
+				.getRecordIdentity().getRecordId());
+		Assert.assertEquals(ur.marshal(), ur2.marshal());
+	}
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.ogf.usage;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.datatype.DatatypeConfigurationException;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how many usage records per second can be converted to and from
+ * XML by several threads at once, as when many runs finish together. A JMH
+ * benchmark; it needs the JMH annotation processor, so it is only built and
+ * run with the <tt>benchmark</tt> profile, which runs it through
+ * {@link #throughput()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Threads(4)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UsageRecordBenchmark {
+	private JobUsageRecord record;
+	private String xml;
+
+	@Setup
+	public void setUp() throws DatatypeConfigurationException, JAXBException {
+		record = new JobUsageRecord("benchmark");
+		record.setStatus("Completed");
+		record.addWallDuration(1000 * 65);
+		record.addCpuDuration(1000 * 42);
+		record.addHost("localhost");
+		record.addUser("alice", "alice");
+		record.addMemory(123456789).setType("vm");
+		xml = record.marshal();
+	}
+
+	@Benchmark
+	public String marshal() throws JAXBException {
+		return record.marshal();
+	}
+
+	@Benchmark
+	public JobUsageRecord unmarshal() throws JAXBException {
+		return JobUsageRecord.unmarshal(xml);
+	}
+
+	@Test
+	public void throughput() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				UsageRecordBenchmark.class.getName()).build()).run();
+	}
+}
@@ -51,9 +51,9 @@ public class InteractionFeed implements InteractionFeedREST, FeedBean {
 	@CallCounted
 	@PerfLogged
 	@RolesAllowed({ USER, SELF })
-	public Feed getFeed() throws FilesystemAccessException,
-			NoDirectoryEntryException {
-		return interactionFeed.getRunFeed(run);
+	public Feed getFeed(String before, int limit)
+			throws FilesystemAccessException, NoDirectoryEntryException {
+		return interactionFeed.getRunFeed(run, before, limit);
 	}
 
 	@Override
@@ -104,4 +104,4 @@ public class InteractionFeed implements InteractionFeedREST, FeedBean {
 	public Response entryOptions(String id) {
 		return opt("DELETE");
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
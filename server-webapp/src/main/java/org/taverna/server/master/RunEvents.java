@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.ws.rs.core.Response.ok;
+import static javax.ws.rs.core.Response.status;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static org.apache.cxf.transport.http.AbstractHTTPDestination.HTTP_RESPONSE;
+import static org.taverna.server.master.api.ContentTypes.EVENT_STREAM_TYPE;
+import static org.taverna.server.master.common.Roles.USER;
+import static org.taverna.server.master.utils.RestUtils.opt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.security.RolesAllowed;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.Response;
+
+import org.apache.cxf.continuations.Continuation;
+import org.apache.cxf.continuations.ContinuationProvider;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+import org.springframework.beans.factory.annotation.Required;
+import org.taverna.server.master.api.RunEventsBean;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.notification.RunEventBus;
+import org.taverna.server.master.notification.RunEventBus.RunEvent;
+import org.taverna.server.master.rest.RunEventsREST;
+import org.taverna.server.master.utils.InvocationCounter.CallCounted;
+import org.taverna.server.master.utils.RateLimiter.Permit;
+
+/**
+ * How to connect the events of a run to the webapp. The webapp is deployed
+ * with asynchronous support enabled on the CXF servlet and the security
+ * filters, so CXF can suspend requests and waiting clients hold no thread at
+ * all. A stream of server-sent events stays open across batches of events
+ * until its timeout, written to as each batch arrives.
+ * <p>
+ * If the container cannot suspend requests, this runs in a degraded mode: a
+ * limited number of request threads are held waiting (see
+ * {@link RunEventBus#setMaxBlocking(int)}), a stream ends after its first
+ * events, and clients beyond the limit are answered with <tt>503</tt> and a
+ * <tt>Retry-After</tt> header. They are not given an immediate empty answer,
+ * which they would just repeat straight away.
+ * <p>
+ * The calls are deliberately not performance-logged, as they are expected to
+ * take a long time.
+ *
+ * @author Donal Fellows
+ */
+public class RunEvents implements RunEventsREST, RunEventsBean {
+	/**
+	 * How much longer than the requested timeout the container is asked to
+	 * hold a suspended request, in milliseconds; the bus answers first.
+	 */
+	private static final long GRACE = 30000;
+	/** How long server-sent event clients wait before reconnecting, in ms. */
+	private static final int RECONNECT_DELAY = 1000;
+	/**
+	 * How long clients that could not be held waiting are asked to leave it
+	 * before trying again, in seconds.
+	 */
+	private static final int BUSY_RETRY_AFTER = 5;
+	private RunEventBus bus;
+	private int maxTimeout = 120;
+	private TavernaRun run;
+
+	@Override
+	@Required
+	public void setRunEventBus(RunEventBus bus) {
+		this.bus = bus;
+	}
+
+	/**
+	 * @param maxTimeout
+	 *            The longest that a client may wait, in seconds.
+	 */
+	@Override
+	public void setMaxTimeout(int maxTimeout) {
+		this.maxTimeout = maxTimeout;
+	}
+
+	RunEvents connect(TavernaRun run) {
+		this.run = run;
+		return this;
+	}
+
+	/** How to turn events into a response. */
+	private interface Renderer {
+		Response render(List<Event> events, long latest);
+	}
+
+	@Override
+	@CallCounted
+	@RolesAllowed(USER)
+	public Response getEvents(String since, int timeout) {
+		return await(parse(since), timeout, new Renderer() {
+			@Override
+			public Response render(List<Event> events, long latest) {
+				EventList list = new EventList(latest);
+				list.events.addAll(events);
+				return ok(list).build();
+			}
+		});
+	}
+
+	@Override
+	@CallCounted
+	@RolesAllowed(USER)
+	public Response streamEvents(String lastEventId, String since, int timeout) {
+		long from = parse(lastEventId != null ? lastEventId : since);
+		long wait = SECONDS.toMillis(max(0, min(timeout, maxTimeout)));
+		Message message = currentMessage();
+		ContinuationProvider provider = continuations(message);
+		HttpServletResponse response = (message == null ? null
+				: (HttpServletResponse) message.get(HTTP_RESPONSE));
+		if (provider == null || response == null || wait == 0)
+			// Degraded mode: one batch per connection
+			return await(from, timeout, new Renderer() {
+				@Override
+				public Response render(List<Event> events, long latest) {
+					return endOfStream(serverSentEvents(events, latest));
+				}
+			});
+
+		Continuation continuation = provider.getContinuation();
+		EventStream stream = null;
+		synchronized (continuation) {
+			if (continuation.isNew()) {
+				continuation.suspend(wait + GRACE);
+				releasePermit(message);
+				stream = new EventStream(run, response, continuation,
+						message.getExchange(), currentTimeMillis() + wait);
+			}
+		}
+		if (stream == null)
+			// Resumed by the container rather than the stream; it is over
+			return endOfStream("");
+		stream.start(from);
+		return null;
+	}
+
+	private static String serverSentEvents(List<Event> events, long latest) {
+		StringBuilder sb = new StringBuilder("retry: ").append(
+				RECONNECT_DELAY).append('\n');
+		for (Event e : events)
+			sb.append("id: ").append(e.id).append("\nevent: ").append(e.type)
+					.append("\ndata: ")
+					.append(e.data.replace("\n", "\ndata: ")).append("\n\n");
+		if (events.isEmpty())
+			// Moves the client's Last-Event-ID on
+			sb.append("id: ").append(latest).append("\n\n");
+		return sb.toString();
+	}
+
+	private static Response endOfStream(String text) {
+		return ok(text, EVENT_STREAM_TYPE).header("Cache-Control", "no-cache")
+				.build();
+	}
+
+	/** @return The answer for a client that can't be held waiting just now. */
+	private static Response busy() {
+		return status(SERVICE_UNAVAILABLE).header("Retry-After",
+				BUSY_RETRY_AFTER).build();
+	}
+
+	@Override
+	@CallCounted
+	public Response eventsOptions() {
+		return opt();
+	}
+
+	private static long parse(String id) {
+		if (id == null)
+			return -1;
+		try {
+			return Long.parseLong(id.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static List<Event> convert(List<RunEvent> events) {
+		List<Event> result = new ArrayList<>(events.size());
+		for (RunEvent e : events)
+			result.add(new Event(e.getId(), e.getType(), e.getData()));
+		return result;
+	}
+
+	private Response await(long since, int timeout, final Renderer renderer) {
+		String id = run.getId();
+		long latest = bus.getLatest();
+		if (since < 0)
+			// No cursor; say what the state is now, and where to wait from
+			return renderer.render(
+					singletonList(new Event(latest, RunEventBus.STATUS, run
+							.getStatus().toString())), latest);
+		List<RunEvent> events = bus.eventsSince(id, since);
+		long wait = SECONDS.toMillis(max(0, min(timeout, maxTimeout)));
+		if (!events.isEmpty() || wait == 0)
+			return renderer.render(convert(events), events.isEmpty() ? latest
+					: events.get(events.size() - 1).getId());
+
+		Message message = currentMessage();
+		ContinuationProvider provider = continuations(message);
+		if (provider == null) {
+			/*
+			 * A waiting call does no work, so it should not count against the
+			 * caller's limit of concurrent calls; otherwise a few watchers
+			 * would lock the caller out of everything else.
+			 */
+			releasePermit(message);
+			return block(id, since, wait, renderer);
+		}
+
+		final Continuation continuation = provider.getContinuation();
+		final Exchange exchange = message.getExchange();
+		synchronized (continuation) {
+			if (continuation.isNew()) {
+				continuation.suspend(wait + GRACE);
+				// A suspended call holds no thread either
+				releasePermit(message);
+				RunEventBus.Watcher watcher = new RunEventBus.Watcher() {
+					@Override
+					public void deliver(List<RunEvent> events, long latest) {
+						synchronized (continuation) {
+							// The invoker sends this instead of calling again
+							exchange.put(Response.class,
+									renderer.render(convert(events), latest));
+							continuation.resume();
+						}
+					}
+				};
+				if (!bus.watch(id, since, wait, watcher)) {
+					exchange.put(Response.class, busy());
+					continuation.resume();
+				}
+				return null;
+			}
+		}
+		// Resumed by the container rather than the bus; answer from history
+		events = bus.eventsSince(id, since);
+		return renderer.render(convert(events), events.isEmpty() ? since
+				: events.get(events.size() - 1).getId());
+	}
+
+	/** @return The CXF message being processed by this thread, if any. */
+	Message currentMessage() {
+		return PhaseInterceptorChain.getCurrentMessage();
+	}
+
+	/** @return How to suspend the request, if the container can. */
+	private static ContinuationProvider continuations(Message message) {
+		return (message == null ? null : (ContinuationProvider) message
+				.get(ContinuationProvider.class.getName()));
+	}
+
+	private static void releasePermit(Message message) {
+		Exchange exchange = (message == null ? null : message.getExchange());
+		Permit permit = (exchange == null ? null : exchange.get(Permit.class));
+		if (permit != null)
+			permit.release();
+	}
+
+	private Response block(String id, long since, long wait, Renderer renderer) {
+		List<RunEvent> events;
+		try {
+			events = bus.await(id, since, wait);
+		} catch (InterruptedException e) {
+			events = null;
+		}
+		if (events == null)
+			// Too many threads held already; don't invite an immediate retry
+			return busy();
+		if (events.isEmpty())
+			// Asking again from the same place never misses anything
+			return renderer.render(new ArrayList<Event>(), since);
+		return renderer.render(convert(events), events.get(events.size() - 1)
+				.getId());
+	}
+
+	/**
+	 * A stream of server-sent events, written straight to the suspended
+	 * response as the events arrive. Each batch is followed by watching for
+	 * the next, until the deadline passes, the run is destroyed or the client
+	 * goes away; then the request is resumed so that it can be completed.
+	 */
+	private final class EventStream implements RunEventBus.Watcher {
+		private final TavernaRun run;
+		private final HttpServletResponse response;
+		private final Continuation continuation;
+		private final Exchange exchange;
+		private final long deadline;
+		private boolean finished;
+
+		EventStream(TavernaRun run, HttpServletResponse response,
+				Continuation continuation, Exchange exchange, long deadline) {
+			this.run = run;
+			this.response = response;
+			this.continuation = continuation;
+			this.exchange = exchange;
+			this.deadline = deadline;
+		}
+
+		synchronized void start(long since) {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(EVENT_STREAM_TYPE.toString());
+			response.setHeader("Cache-Control", "no-cache");
+			List<Event> events;
+			long latest;
+			if (since < 0) {
+				// No cursor; say what the state is now, and wait from there
+				latest = bus.getLatest();
+				events = singletonList(new Event(latest, RunEventBus.STATUS,
+						run.getStatus().toString()));
+			} else {
+				List<RunEvent> history = bus.eventsSince(run.getId(), since);
+				events = convert(history);
+				latest = (history.isEmpty() ? since : history.get(
+						history.size() - 1).getId());
+			}
+			if (write(serverSentEvents(events, latest)))
+				watchFrom(latest);
+		}
+
+		@Override
+		public synchronized void deliver(List<RunEvent> events, long latest) {
+			if (finished || !write(serverSentEvents(convert(events), latest)))
+				return;
+			for (RunEvent e : events)
+				if (e.getType().equals(RunEventBus.DESTROYED)) {
+					finish();
+					return;
+				}
+			watchFrom(latest);
+		}
+
+		private void watchFrom(long since) {
+			long remaining = deadline - currentTimeMillis();
+			if (remaining <= 0)
+				finish();
+			else if (!bus.watch(run.getId(), since, remaining, this)) {
+				// Too many waiting; ask the client to hold off reconnecting
+				write("retry: " + SECONDS.toMillis(BUSY_RETRY_AFTER) + "\n\n");
+				finish();
+			}
+		}
+
+		/** @return Whether the client is still there. */
+		private boolean write(String text) {
+			try {
+				ServletOutputStream out = response.getOutputStream();
+				out.write(text.getBytes(UTF_8));
+				out.flush();
+				return true;
+			} catch (IOException | IllegalStateException e) {
+				// The client has gone, or the container gave up on the request
+				finish();
+				return false;
+			}
+		}
+
+		private void finish() {
+			if (finished)
+				return;
+			finished = true;
+			synchronized (continuation) {
+				// The invoker sends this instead of calling again
+				exchange.put(Response.class, endOfStream(""));
+				continuation.resume();
+			}
+		}
+	}
+}
@@ -23,6 +23,7 @@ import java.util.Date;
 
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.UriInfo;
 import javax.xml.bind.JAXBException;
 
@@ -44,6 +45,7 @@ import org.taverna.server.master.exceptions.UnknownRunException;
 import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.interfaces.TavernaSecurityContext;
 import org.taverna.server.master.rest.InteractionFeedREST;
+import org.taverna.server.master.rest.RunEventsREST;
 import org.taverna.server.master.rest.TavernaServerInputREST;
 import org.taverna.server.master.rest.TavernaServerListenersREST;
 import org.taverna.server.master.rest.TavernaServerRunREST;
@@ -63,6 +65,8 @@ abstract class RunREST implements TavernaServerRunREST, RunBean {
 	private TavernaRun run;
 	private TavernaServerSupport support;
 	private ContentsDescriptorBuilder cdBuilder;
+	/** The header giving a queued run's position in the start queue. */
+	static final String QUEUE_POSITION_HEADER = "X-Taverna-Queue-Position";
 
 	@Override
 	@Required
@@ -204,12 +208,17 @@ abstract class RunREST implements TavernaServerRunREST, RunBean {
 		Status newStatus = Status.valueOf(status.trim());
 		support.permitUpdate(run);
 		if (newStatus == Operating && run.getStatus() == Initialized) {
-			if (!support.getAllowStartWorkflowRuns())
+			if (!support.getAcceptStartWorkflowRuns())
 				throw new OverloadedException();
 			String issue = run.setStatus(newStatus);
 			if (issue == null)
 				issue = "starting run...";
-			return status(202).entity(issue).type("text/plain").build();
+			ResponseBuilder rb = status(202).entity(issue).type("text/plain");
+			int position = support.getStartQueuePosition(run);
+			if (position > 0)
+				rb.header("Retry-After", support.getStartRetryDelay(position))
+						.header(QUEUE_POSITION_HEADER, position);
+			return rb.build();
 		}
 		run.setStatus(newStatus); // Ignore the result
 		return ok(run.getStatus().toString()).type("text/plain").build();
@@ -267,6 +276,14 @@ abstract class RunREST implements TavernaServerRunREST, RunBean {
 		return makeInteractionFeed().connect(run);
 	}
 
+	@Override
+	@CallCounted
+	@PerfLogged
+	@RolesAllowed(USER)
+	public RunEventsREST getEvents() {
+		return makeEventsInterface().connect(run);
+	}
+
 	@Override
 	@CallCounted
 	@PerfLogged
@@ -387,6 +404,13 @@ abstract class RunREST implements TavernaServerRunREST, RunBean {
 	 */
 	protected abstract InteractionFeed makeInteractionFeed();
 
+	/**
+	 * Construct a RESTful interface to a run's events.
+	 * 
+	 * @return The handle to the interface, as decorated by Spring.
+	 */
+	protected abstract RunEvents makeEventsInterface();
+
 	@Override
 	@CallCounted
 	public Response runOptions() {
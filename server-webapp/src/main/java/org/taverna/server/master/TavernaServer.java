@@ -519,7 +519,7 @@ public abstract class TavernaServer implements TavernaServerSOAP,
 		TavernaRun w = support.getRun(runName);
 		support.permitUpdate(w);
 		if (s == Status.Operating && w.getStatus() == Status.Initialized) {
-			if (!support.getAllowStartWorkflowRuns())
+			if (!support.getAcceptStartWorkflowRuns())
 				throw new OverloadedException();
 			try {
 				String issue = w.setStatus(s);
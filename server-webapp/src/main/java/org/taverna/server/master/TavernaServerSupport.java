@@ -730,6 +730,7 @@ public class TavernaServerSupport {
 		policy.permitCreate(p, workflow);
 		if (idMapper != null && idMapper.getUsernameForPrincipal(p) == null) {
 			log.error("cannot map principal to local user id");
+			policy.createFailed(p);
 			throw new NoCreateException(
 					"failed to map security token to local user id");
 		}
@@ -749,6 +750,7 @@ public class TavernaServerSupport {
 				webapp.initObsoleteRESTSecurity(c);
 		} catch (Exception e) {
 			log.error("failed to build workflow run worker", e);
+			policy.createFailed(p);
 			throw new NoCreateException("failed to build workflow run worker");
 		}
 
@@ -887,6 +889,34 @@ public class TavernaServerSupport {
 		return runFactory.isAllowingRunsToStart();
 	}
 
+	/**
+	 * @return Whether a request to start a run will be accepted, either to
+	 *         start it now or to queue it until there is capacity for it.
+	 */
+	public boolean getAcceptStartWorkflowRuns() {
+		return runFactory.isAcceptingStartRequests();
+	}
+
+	/**
+	 * @param run
+	 *            The run to look for.
+	 * @return Where the run is in the queue of runs waiting to start, starting
+	 *         at 1, or 0 if it is not queued.
+	 */
+	public int getStartQueuePosition(TavernaRun run) {
+		return runFactory.getStartQueuePosition(run);
+	}
+
+	/**
+	 * @param position
+	 *            The position of a run in the queue of runs waiting to start.
+	 * @return How many seconds to suggest the client wait before checking on
+	 *         the run again.
+	 */
+	public int getStartRetryDelay(int position) {
+		return runFactory.getStartRetryDelay(position);
+	}
+
 	/**
 	 * The list of filenames that logs may occupy.
 	 */
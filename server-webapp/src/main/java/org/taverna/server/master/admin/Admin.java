@@ -7,6 +7,7 @@ package org.taverna.server.master.admin;
 
 import static org.taverna.server.master.admin.Paths.ALLOW_NEW;
 import static org.taverna.server.master.admin.Paths.ARGS;
+import static org.taverna.server.master.admin.Paths.EFFECTIVE_OP_LIMIT;
 import static org.taverna.server.master.admin.Paths.EXEC_WF;
 import static org.taverna.server.master.admin.Paths.EXITCODE;
 import static org.taverna.server.master.admin.Paths.FACTORIES;
@@ -18,10 +19,14 @@ import static org.taverna.server.master.admin.Paths.JAVA;
 import static org.taverna.server.master.admin.Paths.LIFE;
 import static org.taverna.server.master.admin.Paths.LOG_EXN;
 import static org.taverna.server.master.admin.Paths.LOG_WFS;
+import static org.taverna.server.master.admin.Paths.MIN_OP_LIMIT;
 import static org.taverna.server.master.admin.Paths.OPERATING;
 import static org.taverna.server.master.admin.Paths.OP_LIMIT;
 import static org.taverna.server.master.admin.Paths.PASSFILE;
 import static org.taverna.server.master.admin.Paths.PERM_WF;
+import static org.taverna.server.master.admin.Paths.QUOTAS;
+import static org.taverna.server.master.admin.Paths.QUOTA_GROUP;
+import static org.taverna.server.master.admin.Paths.QUOTA_USER;
 import static org.taverna.server.master.admin.Paths.REG_HOST;
 import static org.taverna.server.master.admin.Paths.REG_JAR;
 import static org.taverna.server.master.admin.Paths.REG_POLL;
@@ -34,6 +39,7 @@ import static org.taverna.server.master.admin.Paths.STARTUP;
 import static org.taverna.server.master.admin.Paths.TOTAL_RUNS;
 import static org.taverna.server.master.admin.Paths.URS;
 import static org.taverna.server.master.admin.Paths.UR_FILE;
+import static org.taverna.server.master.admin.Paths.UR_SUMMARY;
 import static org.taverna.server.master.admin.Paths.USER;
 import static org.taverna.server.master.admin.Paths.USERS;
 import static org.taverna.server.master.admin.Types.JSON;
@@ -43,11 +49,13 @@ import static org.taverna.server.master.admin.Types.XML;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import javax.annotation.Nonnull;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.OPTIONS;
 import javax.ws.rs.POST;
@@ -55,6 +63,7 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
@@ -455,6 +464,57 @@ public interface Admin {
 	@Description("What is the maximum number of simultaneous executing runs?")
 	Response optionsOperatingLimit();
 
+	/**
+	 * Get the number of simultaneous executing runs currently permitted, which
+	 * may be below the maximum when the host is busy.
+	 * 
+	 * @return The current effective limit.
+	 */
+	@GET
+	@Path(EFFECTIVE_OP_LIMIT)
+	@Produces(PLAIN)
+	@Description("How many simultaneous executing runs are currently permitted, given how busy the host is?")
+	int getEffectiveOperatingLimit();
+
+	/** What HTTP methods may we use? */
+	@OPTIONS
+	@Path(EFFECTIVE_OP_LIMIT)
+	@Description("How many simultaneous executing runs are currently permitted, given how busy the host is?")
+	Response optionsEffectiveOperatingLimit();
+
+	/**
+	 * Get the lowest that the number of simultaneous executing runs may be
+	 * reduced to when the host is busy.
+	 * 
+	 * @return The current setting.
+	 */
+	@GET
+	@Path(MIN_OP_LIMIT)
+	@Produces(PLAIN)
+	@Description("What is the lowest that the number of simultaneous executing runs may be reduced to when the host is busy?")
+	int getMinimumOperatingLimit();
+
+	/**
+	 * Set the lowest that the number of simultaneous executing runs may be
+	 * reduced to when the host is busy.
+	 * 
+	 * @param minimum
+	 *            What to set it to.
+	 * @return The new setting.
+	 */
+	@PUT
+	@Path(MIN_OP_LIMIT)
+	@Consumes(PLAIN)
+	@Produces(PLAIN)
+	@Description("What is the lowest that the number of simultaneous executing runs may be reduced to when the host is busy?")
+	int setMinimumOperatingLimit(int minimum);
+
+	/** What HTTP methods may we use? */
+	@OPTIONS
+	@Path(MIN_OP_LIMIT)
+	@Description("What is the lowest that the number of simultaneous executing runs may be reduced to when the host is busy?")
+	Response optionsMinimumOperatingLimit();
+
 	/**
 	 * Get the default lifetime of workflow runs.
 	 * 
@@ -819,15 +879,32 @@ public interface Admin {
 	Response optionsFactoryProcessMapping();
 
 	/**
-	 * The property for the list of usage records collected.
+	 * The property for the list of usage records collected. The records are
+	 * returned a page at a time, in the order they were made.
 	 * 
+	 * @param ui
+	 *            About the request, for building the link to the next page.
+	 * @param user
+	 *            Whose records to list; if absent, everyone's.
+	 * @param from
+	 *            The earliest time (ISO 8601) a record may have been made.
+	 * @param to
+	 *            The time (ISO 8601, exclusive) records must have been made
+	 *            before.
+	 * @param offset
+	 *            How many of the matching records to skip.
+	 * @param limit
+	 *            The largest number of records to list.
 	 * @return The property value (read-only).
 	 */
 	@GET
 	@Path(URS)
 	@Produces(XML)
-	@Description("What is the list of usage records that have been collected?")
-	URList usageRecords();
+	@Description("What is the list of usage records that have been collected? Filtered by user and by when they were made (from, inclusive, and to, exclusive, as ISO 8601 times) and listed a page at a time.")
+	URList usageRecords(@Context UriInfo ui, @QueryParam("user") String user,
+			@QueryParam("from") String from, @QueryParam("to") String to,
+			@QueryParam("offset") @DefaultValue("0") int offset,
+			@QueryParam("limit") @DefaultValue("1000") int limit);
 
 	/** What HTTP methods may we use? */
 	@OPTIONS
@@ -835,6 +912,30 @@ public interface Admin {
 	@Description("What is the list of usage records that have been collected?")
 	Response optionsUsageRecords();
 
+	/**
+	 * The property for the daily totals of each user's usage.
+	 * 
+	 * @param user
+	 *            Whose totals to list; if absent, everyone's.
+	 * @param from
+	 *            The start (ISO 8601) of the period to list.
+	 * @param to
+	 *            The end (ISO 8601, exclusive) of the period to list.
+	 * @return The property value (read-only).
+	 */
+	@GET
+	@Path(UR_SUMMARY)
+	@Produces({ XML, JSON })
+	@Description("How much has each user used each day? Filtered by user and by day (from, inclusive, and to, exclusive, as ISO 8601 times).")
+	URSummaryList usageSummary(@QueryParam("user") String user,
+			@QueryParam("from") String from, @QueryParam("to") String to);
+
+	/** What HTTP methods may we use? */
+	@OPTIONS
+	@Path(UR_SUMMARY)
+	@Description("How much has each user used each day?")
+	Response optionsUsageSummary();
+
 	/**
 	 * What are the current list of workflow URIs that may be started? Empty
 	 * means allow any, including user-supplied workflows.
@@ -932,6 +1033,66 @@ public interface Admin {
 	@Description("What do we know about a particular user?")
 	Response optionsUser(@PathParam("id") String username);
 
+	@GET
+	@Path(QUOTAS)
+	@Produces({ XML, JSON })
+	@Description("What users and groups have quotas or own workflow runs?")
+	QuotaList quotas(@Context UriInfo ui);
+
+	/** What HTTP methods may we use? */
+	@OPTIONS
+	@Path(QUOTAS)
+	@Description("What users and groups have quotas or own workflow runs?")
+	Response optionsQuotas();
+
+	@GET
+	@Path(QUOTA_USER)
+	@Produces({ XML, JSON })
+	@Description("What is the quota set for a particular user, what limits are in effect for them, and how much are they using?")
+	QuotaDesc userQuota(@PathParam("id") String username);
+
+	@PUT
+	@Path(QUOTA_USER)
+	@Produces({ XML, JSON })
+	@Consumes(XML)
+	@Description("Set the quota for a particular user. Absent limits are not set for the user specifically.")
+	QuotaDesc setUserQuota(@PathParam("id") String username, QuotaDesc quota);
+
+	@DELETE
+	@Path(QUOTA_USER)
+	@Description("Remove the quota set for a particular user.")
+	Response deleteUserQuota(@PathParam("id") String username);
+
+	/** What HTTP methods may we use? */
+	@OPTIONS
+	@Path(QUOTA_USER)
+	@Description("What is the quota set for a particular user?")
+	Response optionsUserQuota(@PathParam("id") String username);
+
+	@GET
+	@Path(QUOTA_GROUP)
+	@Produces({ XML, JSON })
+	@Description("What is the quota set for each member of a particular group?")
+	QuotaDesc groupQuota(@PathParam("id") String group);
+
+	@PUT
+	@Path(QUOTA_GROUP)
+	@Produces({ XML, JSON })
+	@Consumes(XML)
+	@Description("Set the quota for each member of a particular group. Absent limits are not set by the group.")
+	QuotaDesc setGroupQuota(@PathParam("id") String group, QuotaDesc quota);
+
+	@DELETE
+	@Path(QUOTA_GROUP)
+	@Description("Remove the quota set for a particular group.")
+	Response deleteGroupQuota(@PathParam("id") String group);
+
+	/** What HTTP methods may we use? */
+	@OPTIONS
+	@Path(QUOTA_GROUP)
+	@Description("What is the quota set for each member of a particular group?")
+	Response optionsGroupQuota(@PathParam("id") String group);
+
 	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-
 
 	/**
@@ -966,11 +1127,15 @@ public interface Admin {
 		public Uri lastExitCode;
 		public Uri factoryProcessMapping;
 		public Uri usageRecords;
+		public Uri usageSummary;
 		public Uri users;
 		public Uri operatingLimit;
+		public Uri effectiveOperatingLimit;
+		public Uri minimumOperatingLimit;
 		public Uri operatingCount;
 		public Uri permittedWorkflowURIs;
 		public Uri generateProvenance;
+		public Uri quotas;
 
 		public AdminDescription() {
 		}
@@ -999,11 +1164,15 @@ public interface Admin {
 			lastExitCode = new Uri(ui, EXITCODE);
 			factoryProcessMapping = new Uri(ui, FACTORIES);
 			usageRecords = new Uri(ui, URS);
+			usageSummary = new Uri(ui, UR_SUMMARY);
 			users = new Uri(ui, USERS);
 			operatingLimit = new Uri(ui, OP_LIMIT);
+			effectiveOperatingLimit = new Uri(ui, EFFECTIVE_OP_LIMIT);
+			minimumOperatingLimit = new Uri(ui, MIN_OP_LIMIT);
 			operatingCount = new Uri(ui, OPERATING);
 			permittedWorkflowURIs = new Uri(ui, PERM_WF);
 			generateProvenance = new Uri(ui, GEN_PROV);
+			quotas = new Uri(ui, QUOTAS);
 		}
 	}
 
@@ -1046,6 +1215,54 @@ public interface Admin {
 		public Boolean admin;
 	}
 
+	/**
+	 * A list of the users and groups that quotas can be managed for, as XML.
+	 * 
+	 * @author Donal Fellows
+	 */
+	@XmlRootElement(name = "quotaList")
+	@XmlType(name = "QuotaList")
+	public static class QuotaList {
+		@XmlElement
+		public List<URI> user = new ArrayList<>();
+		@XmlElement
+		public List<URI> group = new ArrayList<>();
+	}
+
+	/**
+	 * The quota for a user or group, as XML. The <tt>max*</tt> fields are the
+	 * limits set for the user or group itself; for a user, the
+	 * <tt>effective*</tt> fields are the limits actually applied (after
+	 * taking groups into account) and the <tt>current*</tt> fields describe
+	 * what the user is using. Only the <tt>max*</tt> fields are read on update.
+	 * 
+	 * @author Donal Fellows
+	 */
+	@XmlRootElement(name = "quotaDesc")
+	@XmlType(name = "QuotaDesc")
+	public static class QuotaDesc {
+		@XmlElement
+		public String name;
+		@XmlElement
+		public Integer maxRuns;
+		@XmlElement
+		public Integer maxOperating;
+		@XmlElement
+		public Long maxDiskBytes;
+		@XmlElement
+		public Integer effectiveMaxRuns;
+		@XmlElement
+		public Integer effectiveMaxOperating;
+		@XmlElement
+		public Long effectiveMaxDiskBytes;
+		@XmlElement
+		public Integer currentRuns;
+		@XmlElement
+		public Integer currentOperating;
+		@XmlElement
+		public Long currentDiskBytes;
+	}
+
 	/**
 	 * A list of usage records, as XML.
 	 * 
@@ -1056,6 +1273,44 @@ public interface Admin {
 	public static class URList {
 		@XmlElement
 		public List<JobUsageRecord> usageRecord;
+		/** Where the next page of records is, if there may be more. */
+		@XmlElement
+		public Uri next;
+	}
+
+	/**
+	 * A list of daily usage totals, as XML.
+	 * 
+	 * @author Donal Fellows
+	 */
+	@XmlRootElement(name = "usageSummaryList")
+	@XmlType(name = "UsageSummaries")
+	public static class URSummaryList {
+		@XmlElement
+		public List<URSummary> summary = new ArrayList<>();
+	}
+
+	/**
+	 * The total usage by one user on one day (in UTC), as XML.
+	 * 
+	 * @author Donal Fellows
+	 */
+	@XmlType(name = "UsageSummary")
+	public static class URSummary {
+		@XmlElement
+		public String user;
+		@XmlElement
+		public Date day;
+		@XmlElement
+		public long jobs;
+		@XmlElement
+		public long wallMillis;
+		@XmlElement
+		public long cpuMillis;
+		@XmlElement
+		public long diskBytes;
+		@XmlElement
+		public long maxMemoryBytes;
 	}
 }
 
@@ -1073,6 +1328,8 @@ interface Paths {
 	static final String REG_JAR = "registryJar";
 	static final String RUN_LIMIT = "runLimit";
 	static final String OP_LIMIT = "operatingLimit";
+	static final String EFFECTIVE_OP_LIMIT = "effectiveOperatingLimit";
+	static final String MIN_OP_LIMIT = "minimumOperatingLimit";
 	static final String LIFE = "defaultLifetime";
 	static final String RUNS = "currentRuns";
 	static final String JAVA = "javaBinary";
@@ -1087,10 +1344,14 @@ interface Paths {
 	static final String EXITCODE = "lastExitCode";
 	static final String FACTORIES = "factoryProcessMapping";
 	static final String URS = "usageRecords";
+	static final String UR_SUMMARY = "usageSummary";
 	static final String PERM_WF = "permittedWorkflowURIs";
 	static final String GEN_PROV = "generateProvenance";
 	static final String USERS = "users";
 	static final String USER = USERS + "/{id}";
+	static final String QUOTAS = "quotas";
+	static final String QUOTA_USER = QUOTAS + "/user/{id}";
+	static final String QUOTA_GROUP = QUOTAS + "/group/{id}";
 }
 
 interface Types {
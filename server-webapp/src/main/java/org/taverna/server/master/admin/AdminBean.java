@@ -9,18 +9,25 @@ import static java.util.Arrays.asList;
 import static java.util.UUID.randomUUID;
 import static javax.ws.rs.core.Response.created;
 import static javax.ws.rs.core.Response.noContent;
+import static javax.ws.rs.core.Response.status;
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
 import static org.taverna.server.master.common.Roles.ADMIN;
 import static org.taverna.server.master.common.Uri.secure;
+import static org.joda.time.format.ISODateTimeFormat.dateTimeParser;
 import static org.taverna.server.master.utils.RestUtils.opt;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
@@ -28,12 +35,16 @@ import javax.ws.rs.core.UriInfo;
 import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Required;
 import org.taverna.server.master.api.ManagementModel;
+import org.taverna.server.master.common.Uri;
 import org.taverna.server.master.exceptions.GeneralFailureException;
 import org.taverna.server.master.factories.ConfigurableRunFactory;
 import org.taverna.server.master.identity.User;
 import org.taverna.server.master.identity.UserStoreAPI;
 import org.taverna.server.master.usage.UsageRecordRecorder;
+import org.taverna.server.master.usage.UsageSummary;
 import org.taverna.server.master.utils.InvocationCounter;
+import org.taverna.server.master.worker.QuotaLimits;
+import org.taverna.server.master.worker.QuotaManager;
 import org.taverna.server.master.worker.RunDBSupport;
 import org.taverna.server.master.worker.WorkerModel;
 
@@ -78,6 +89,11 @@ public class AdminBean implements Admin {
 		localWorker = worker;
 	}
 
+	@Required
+	public void setQuotas(QuotaManager quotas) {
+		this.quotas = quotas;
+	}
+
 	public void setAdminHtmlFile(String filename) {
 		this.adminHtmlFile = filename;
 	}
@@ -99,6 +115,7 @@ public class AdminBean implements Admin {
 	private UsageRecordRecorder usageRecords;
 	private UserStoreAPI userStore;
 	private WorkerModel localWorker;
+	private QuotaManager quotas;
 	private String adminHtmlFile = "/admin.html";
 	private String resourceRoot = "/static/";
 
@@ -600,11 +617,36 @@ public class AdminBean implements Admin {
 
 	// /////////////////////////////////////////////////////
 
+	/** The most usage records listed in one page. */
+	private static final int MAX_UR_PAGE = 1000;
+
+	private static Date parseTime(String name, String value) {
+		if (value == null || value.isEmpty())
+			return null;
+		try {
+			return dateTimeParser().parseDateTime(value).toDate();
+		} catch (IllegalArgumentException e) {
+			throw new WebApplicationException(status(BAD_REQUEST).entity(
+					"bad " + name + " time: " + value).build());
+		}
+	}
+
+	private static String nonEmpty(String value) {
+		return value == null || value.isEmpty() ? null : value;
+	}
+
 	@RolesAllowed(ADMIN)
 	@Override
-	public URList usageRecords() {
+	public URList usageRecords(UriInfo ui, String user, String from,
+			String to, int offset, int limit) {
+		offset = Math.max(0, offset);
+		limit = Math.max(1, Math.min(MAX_UR_PAGE, limit));
 		URList result = new URList();
-		result.usageRecord = usageRecords.getUsageRecords();
+		result.usageRecord = usageRecords.getUsageRecords(nonEmpty(user),
+				parseTime("from", from), parseTime("to", to), offset, limit);
+		if (result.usageRecord.size() == limit)
+			result.next = new Uri(ui.getRequestUriBuilder().replaceQueryParam(
+					"offset", offset + limit));
 		return result;
 	}
 
@@ -614,6 +656,31 @@ public class AdminBean implements Admin {
 		return opt();
 	}
 
+	@RolesAllowed(ADMIN)
+	@Override
+	public URSummaryList usageSummary(String user, String from, String to) {
+		URSummaryList result = new URSummaryList();
+		for (UsageSummary us : usageRecords.getUsageSummaries(nonEmpty(user),
+				parseTime("from", from), parseTime("to", to))) {
+			URSummary s = new URSummary();
+			s.user = us.getUserid();
+			s.day = us.getDay();
+			s.jobs = us.getJobs();
+			s.wallMillis = us.getWallMillis();
+			s.cpuMillis = us.getCpuMillis();
+			s.diskBytes = us.getDiskBytes();
+			s.maxMemoryBytes = us.getMaxMemoryBytes();
+			result.summary.add(s);
+		}
+		return result;
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response optionsUsageSummary() {
+		return opt();
+	}
+
 	// /////////////////////////////////////////////////////
 
 	@RolesAllowed(ADMIN)
@@ -699,6 +766,110 @@ public class AdminBean implements Admin {
 
 	// /////////////////////////////////////////////////////
 
+	@RolesAllowed(ADMIN)
+	@Override
+	public QuotaList quotas(UriInfo ui) {
+		QuotaList ql = new QuotaList();
+		UriBuilder ub = secure(ui).path("user/{id}");
+		Set<String> users = new TreeSet<>(quotas.getUsersWithQuotas());
+		users.addAll(quotas.getActiveUsers());
+		for (String user : users)
+			ql.user.add(ub.build(user));
+		ub = secure(ui).path("group/{id}");
+		for (String group : quotas.getGroupsWithQuotas())
+			ql.group.add(ub.build(group));
+		return ql;
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response optionsQuotas() {
+		return opt();
+	}
+
+	private static QuotaDesc describe(String name, QuotaLimits limits) {
+		QuotaDesc desc = new QuotaDesc();
+		desc.name = name;
+		if (limits != null) {
+			desc.maxRuns = limits.getRuns();
+			desc.maxOperating = limits.getOperating();
+			desc.maxDiskBytes = limits.getDiskBytes();
+		}
+		return desc;
+	}
+
+	private static QuotaLimits limits(QuotaDesc desc) {
+		if (desc == null)
+			throw new IllegalArgumentException("no quota supplied");
+		return new QuotaLimits(desc.maxRuns, desc.maxOperating,
+				desc.maxDiskBytes);
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public QuotaDesc userQuota(String username) {
+		QuotaDesc desc = describe(username, quotas.getUserQuota(username));
+		QuotaLimits effective = quotas.getEffectiveLimits(username);
+		desc.effectiveMaxRuns = effective.getRuns();
+		desc.effectiveMaxOperating = effective.getOperating();
+		desc.effectiveMaxDiskBytes = effective.getDiskBytes();
+		desc.currentRuns = quotas.getRunCount(username);
+		desc.currentOperating = quotas.getOperatingCount(username);
+		desc.currentDiskBytes = quotas.getDiskUsage(username);
+		return desc;
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public QuotaDesc setUserQuota(String username, QuotaDesc quota) {
+		quotas.setUserQuota(username, limits(quota));
+		return userQuota(username);
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response deleteUserQuota(String username) {
+		quotas.setUserQuota(username, null);
+		return noContent().build();
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response optionsUserQuota(String username) {
+		return opt("PUT", "DELETE");
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public QuotaDesc groupQuota(String group) {
+		QuotaLimits limits = quotas.getGroupQuota(group);
+		if (limits == null)
+			throw new WebApplicationException(NOT_FOUND);
+		return describe(group, limits);
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public QuotaDesc setGroupQuota(String group, QuotaDesc quota) {
+		quotas.setGroupQuota(group, limits(quota));
+		return describe(group, quotas.getGroupQuota(group));
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response deleteGroupQuota(String group) {
+		quotas.setGroupQuota(group, null);
+		return noContent().build();
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response optionsGroupQuota(String group) {
+		return opt("PUT", "DELETE");
+	}
+
+	// /////////////////////////////////////////////////////
+
 	@RolesAllowed(ADMIN)
 	@Override
 	public int operatingCount() {
@@ -736,6 +907,41 @@ public class AdminBean implements Admin {
 		return opt("PUT");
 	}
 
+	// /////////////////////////////////////////////////////
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public int getEffectiveOperatingLimit() {
+		return factory.getEffectiveOperatingLimit();
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response optionsEffectiveOperatingLimit() {
+		return opt();
+	}
+
+	// /////////////////////////////////////////////////////
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public int getMinimumOperatingLimit() {
+		return factory.getMinimumOperatingLimit();
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public int setMinimumOperatingLimit(int minimum) {
+		factory.setMinimumOperatingLimit(minimum);
+		return factory.getMinimumOperatingLimit();
+	}
+
+	@RolesAllowed(ADMIN)
+	@Override
+	public Response optionsMinimumOperatingLimit() {
+		return opt("PUT");
+	}
+
 	// /////////////////////////////////////////////////////
 	@RolesAllowed(ADMIN)
 	@Override
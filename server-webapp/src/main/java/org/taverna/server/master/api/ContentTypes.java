@@ -30,6 +30,10 @@ public interface ContentTypes {
 	public static final MediaType BACLAVA_MEDIA_TYPE = new MediaType(
 			"application", "vnd.taverna.baclava+xml");
 
+	/** "text/event-stream" */
+	public static final MediaType EVENT_STREAM_TYPE = new MediaType("text",
+			"event-stream");
+
 	/**
 	 * The media types that we are willing to serve up directories as. Note that
 	 * we <i>only</i> serve directories up as these.
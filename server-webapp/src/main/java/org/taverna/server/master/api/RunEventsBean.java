@@ -0,0 +1,20 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.api;
+
+import org.taverna.server.master.RunEvents;
+import org.taverna.server.master.notification.RunEventBus;
+
+/**
+ * Description of properties supported by {@link RunEvents}.
+ *
+ * @author Donal Fellows
+ */
+public interface RunEventsBean {
+	void setRunEventBus(RunEventBus bus);
+
+	void setMaxTimeout(int maxTimeout);
+}
@@ -7,6 +7,7 @@ package org.taverna.server.master.common;
 
 import static javax.xml.bind.Marshaller.JAXB_ENCODING;
 import static javax.xml.bind.Marshaller.JAXB_FORMATTED_OUTPUT;
+import static javax.xml.stream.XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES;
 import static org.apache.commons.logging.LogFactory.getLog;
 import static org.taverna.server.master.common.Namespaces.T2FLOW;
 
@@ -14,14 +15,15 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Externalizable;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
@@ -33,6 +35,9 @@ import javax.xml.bind.annotation.XmlAnyElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.XmlType;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -54,6 +59,16 @@ public class Workflow implements Serializable,Externalizable {
 
 	private static final JAXBContext context;
 	private final static String ENCODING = "UTF-8"; 
+	/**
+	 * How many spare marshallers and unmarshallers to keep; creating them is
+	 * costly enough to show up when loading many runs from the database.
+	 */
+	private static final int POOL_SIZE = 16;
+	private static final BlockingQueue<Marshaller> marshallers = new ArrayBlockingQueue<>(
+			POOL_SIZE);
+	private static final BlockingQueue<Unmarshaller> unmarshallers = new ArrayBlockingQueue<>(
+			POOL_SIZE);
+	private static final XMLInputFactory xmlInputFactory;
 	static {
 		JAXBContext c = null;
 		try {
@@ -64,36 +79,79 @@ public class Workflow implements Serializable,Externalizable {
 							+ Workflow.class, e);
 		}
 		context = c;
+		xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(IS_SUPPORTING_EXTERNAL_ENTITIES, false);
 	}
 
 	/**
-	 * Instantiate an unmarshaller. Needs to be done per use because of
-	 * thread-safety issues.
+	 * Get an unmarshaller. They are not thread-safe, so each is only used by
+	 * one thread at a time; give it back with {@link #release(Unmarshaller)}
+	 * once it has been used successfully.
 	 */
 	private static Unmarshaller unmarshaller() throws JAXBException {
-		return context.createUnmarshaller();
+		Unmarshaller unmarshaller = unmarshallers.poll();
+		return unmarshaller != null ? unmarshaller : context
+				.createUnmarshaller();
+	}
+
+	private static void release(Unmarshaller unmarshaller) {
+		unmarshallers.offer(unmarshaller);
 	}
 
 	/**
-	 * Instantiate a marshaller. Needs to be done per use because of
-	 * thread-safety issues.
+	 * Get a marshaller. They are not thread-safe, so each is only used by one
+	 * thread at a time; give it back with {@link #release(Marshaller)} once it
+	 * has been used successfully.
 	 */
-	private Marshaller marshaller() throws JAXBException {
-		Marshaller marshaller = context.createMarshaller();
-		marshaller.setProperty(JAXB_ENCODING, ENCODING);
-		marshaller.setProperty(JAXB_FORMATTED_OUTPUT, false);
+	private static Marshaller marshaller() throws JAXBException {
+		Marshaller marshaller = marshallers.poll();
+		if (marshaller == null) {
+			marshaller = context.createMarshaller();
+			marshaller.setProperty(JAXB_ENCODING, ENCODING);
+			marshaller.setProperty(JAXB_FORMATTED_OUTPUT, false);
+		}
 		return marshaller;
 	}
 
+	private static void release(Marshaller marshaller) {
+		marshallers.offer(marshaller);
+	}
+
+	/**
+	 * Parse a workflow document, streaming it from its source rather than
+	 * building an intermediate whole-document tree.
+	 */
+	private static Workflow unmarshal(XMLStreamReader xsr)
+			throws JAXBException {
+		Unmarshaller unmarshaller = unmarshaller();
+		try {
+			Workflow w = (Workflow) unmarshaller.unmarshal(xsr);
+			release(unmarshaller);
+			return w;
+		} finally {
+			try {
+				xsr.close();
+			} catch (XMLStreamException e) {
+				// Ignore; nothing more to read anyway
+			}
+		}
+	}
+
 	public static Workflow unmarshal(String representation)
 			throws JAXBException {
-		StringReader sr = new StringReader(representation);
-		return (Workflow) unmarshaller().unmarshal(sr);
+		try {
+			return unmarshal(xmlInputFactory
+					.createXMLStreamReader(new StringReader(representation)));
+		} catch (XMLStreamException e) {
+			throw new JAXBException("failed to start parsing workflow", e);
+		}
 	}
 
 	public String marshal() throws JAXBException {
 		StringWriter sw = new StringWriter();
-		marshaller().marshal(this, sw);
+		Marshaller marshaller = marshaller();
+		marshaller.marshal(this, sw);
+		release(marshaller);
 		return sw.toString();
 	}
 
@@ -101,16 +159,16 @@ public class Workflow implements Serializable,Externalizable {
 	public void readExternal(ObjectInput in) throws IOException,
 			ClassNotFoundException {
 		try {
-			Unmarshaller unmarshaller = unmarshaller();
 			int len = in.readInt();
 			byte[] bytes = new byte[len];
 			in.readFully(bytes);
-			try (Reader r = new InputStreamReader(new InflaterInputStream(
-					new ByteArrayInputStream(bytes)), ENCODING)) {
-				this.content = ((Workflow) unmarshaller.unmarshal(r)).content;
+			try (InputStream is = new InflaterInputStream(
+					new ByteArrayInputStream(bytes))) {
+				this.content = unmarshal(xmlInputFactory.createXMLStreamReader(
+						is, ENCODING)).content;
 			}
 			return;
-		} catch (JAXBException e) {
+		} catch (JAXBException | XMLStreamException e) {
 			throw new IOException("failed to unmarshal", e);
 		} catch (ClassCastException e) {
 			throw new IOException("bizarre result of unmarshalling", e);
@@ -122,10 +180,10 @@ public class Workflow implements Serializable,Externalizable {
 		try {
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			Marshaller marshaller = marshaller();
-			try (OutputStreamWriter w = new OutputStreamWriter(
-					new DeflaterOutputStream(baos), ENCODING)) {
-				marshaller.marshal(this, w);
+			try (OutputStream os = new DeflaterOutputStream(baos)) {
+				marshaller.marshal(this, os);
 			}
+			release(marshaller);
 			byte[] bytes = baos.toByteArray();
 			out.writeInt(bytes.length);
 			out.write(bytes);
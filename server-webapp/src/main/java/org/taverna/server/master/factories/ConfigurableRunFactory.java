@@ -113,6 +113,18 @@ public interface ConfigurableRunFactory extends RunFactory {
 	/** How many runs can be operating at once? Getter */
 	int getOperatingLimit();
 
+	/**
+	 * How many runs can be operating at once right now, given how busy the
+	 * host is?
+	 */
+	int getEffectiveOperatingLimit();
+
+	/** How low can the number of operating runs be throttled to? Setter */
+	void setMinimumOperatingLimit(int minimum);
+
+	/** How low can the number of operating runs be throttled to? Getter */
+	int getMinimumOperatingLimit();
+
 	/**
 	 * How many runs are actually operating?
 	 * 
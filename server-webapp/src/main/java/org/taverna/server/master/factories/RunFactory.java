@@ -37,4 +37,33 @@ public interface RunFactory {
 	 * @return Whether a run should start.
 	 */
 	boolean isAllowingRunsToStart();
+
+	/**
+	 * Check whether the factory will accept a request to start a run, either
+	 * by starting it at once or by queueing it until there is capacity for it.
+	 * 
+	 * @return Whether a request to start a run should be accepted.
+	 */
+	boolean isAcceptingStartRequests();
+
+	/**
+	 * Find where a run is in the queue of runs waiting to start.
+	 * 
+	 * @param run
+	 *            The run to look for.
+	 * @return The position of the run in the queue, starting at 1, or 0 if the
+	 *         run is not queued.
+	 */
+	int getStartQueuePosition(TavernaRun run);
+
+	/**
+	 * Estimate how long a client should wait before asking about a run that
+	 * is waiting to start.
+	 * 
+	 * @param position
+	 *            The position of the run in the queue of runs waiting to
+	 *            start.
+	 * @return The suggested delay, in seconds.
+	 */
+	int getStartRetryDelay(int position);
 }
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.identity;
+
+import static java.lang.Long.parseLong;
+import static java.lang.Long.toHexString;
+import static java.lang.System.currentTimeMillis;
+import static org.springframework.security.core.context.SecurityContextHolder.getContext;
+import static org.taverna.server.master.identity.WorkflowInternalAuthProvider.PREFIX;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
+
+/**
+ * Issues and accepts short-lived signed session tokens so that clients making
+ * many small requests do not have to pay for a password check on each one.
+ * After a request has been authenticated with a username and password, the
+ * response carries a token (in the {@value #HEADER} header and the
+ * {@value #COOKIE} cookie) unless the request already carried one that is not
+ * yet half way to expiry; presenting that token on later requests instead of
+ * the password authenticates them as the same user until the token expires or
+ * the user's record is changed.
+ * <p>
+ * Tokens are signed with a key generated when the server starts, so they do
+ * not survive a restart. This filter must come after the HTTP Basic
+ * authentication filter in the security filter chain.
+ *
+ * @author Donal Fellows
+ */
+public class SessionTokenFilter implements Filter, UserStore.ChangeListener {
+	/** The name of the HTTP header used to carry session tokens. */
+	public static final String HEADER = "X-Taverna-Session";
+	/** The name of the cookie used to carry session tokens. */
+	public static final String COOKIE = "TavernaSession";
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final String AUTHORIZATION = "Authorization";
+	private static final String BASIC = "Basic ";
+	private static final String SET_COOKIE = "Set-Cookie";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Log log = LogFactory.getLog("Taverna.Server.UserDB");
+	private final ConcurrentMap<String, Long> notBefore = new ConcurrentHashMap<>();
+	private volatile long globalNotBefore;
+	private final WebAuthenticationDetailsSource detailsSource = new WebAuthenticationDetailsSource();
+	private UserDetailsService userDetailsService;
+	private UserStore userStore;
+	private SecretKeySpec key;
+	private long lifetime;
+
+	/**
+	 * @param service
+	 *            Where to get the current details of a user from. Should be
+	 *            cached.
+	 */
+	@Required
+	public void setUserDetailsService(UserDetailsService service) {
+		this.userDetailsService = service;
+	}
+
+	/**
+	 * @param store
+	 *            The user store, which tells us when users are changed so that
+	 *            their tokens can be revoked.
+	 */
+	@Required
+	public void setUserStore(UserStore store) {
+		this.userStore = store;
+	}
+
+	/**
+	 * @param lifetime
+	 *            How long (in seconds) an issued token remains valid for. Zero
+	 *            or negative disables the issuing and acceptance of tokens.
+	 */
+	@Required
+	public void setLifetime(int lifetime) {
+		this.lifetime = lifetime * 1000L;
+	}
+
+	@PostConstruct
+	void start() {
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		key = new SecretKeySpec(secret, ALGORITHM);
+		userStore.addChangeListener(this);
+	}
+
+	@PreDestroy
+	void stop() {
+		userStore.removeChangeListener(this);
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) {
+		// Configured as a bean
+	}
+
+	@Override
+	public void destroy() {
+		// Configured as a bean
+	}
+
+	/** The current time, in milliseconds. Overridable for testing. */
+	long now() {
+		return currentTimeMillis();
+	}
+
+	@Override
+	public void userChanged(String username) {
+		long now = now();
+		/*
+		 * A revocation only matters while tokens issued before it could still
+		 * be unexpired, so forget the ones older than a token lifetime.
+		 */
+		Iterator<Long> revocations = notBefore.values().iterator();
+		while (revocations.hasNext())
+			if (revocations.next() + lifetime < now)
+				revocations.remove();
+		notBefore.put(username, now);
+	}
+
+	@Override
+	public void allUsersChanged() {
+		globalNotBefore = now();
+		notBefore.clear();
+	}
+
+	/**
+	 * @return How many users currently have their earlier tokens revoked.
+	 */
+	int revocationCount() {
+		return notBefore.size();
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		if (lifetime > 0 && request instanceof HttpServletRequest)
+			doFilter((HttpServletRequest) request,
+					(HttpServletResponse) response);
+		chain.doFilter(request, response);
+	}
+
+	private void doFilter(HttpServletRequest request,
+			HttpServletResponse response) {
+		Authentication auth = getContext().getAuthentication();
+		if (auth != null && auth.isAuthenticated()) {
+			/*
+			 * Just authenticated by password; hand out a token unless the
+			 * client already holds a good one. The password itself has been
+			 * erased from the authentication by now, so look at how the
+			 * request was authenticated instead.
+			 */
+			if (auth instanceof UsernamePasswordAuthenticationToken
+					&& isBasicAuthenticated(request)
+					&& !auth.getName().startsWith(PREFIX)
+					&& needsToken(auth.getName(), getToken(request)))
+				issue(auth.getName(), request, response);
+			return;
+		}
+		String token = getToken(request);
+		if (token == null)
+			return;
+		String username = validate(token);
+		if (username == null)
+			return;
+		UserDetails user;
+		try {
+			user = userDetailsService.loadUserByUsername(username);
+		} catch (UsernameNotFoundException e) {
+			return;
+		}
+		if (!user.isEnabled() || !user.isAccountNonLocked()
+				|| !user.isAccountNonExpired()
+				|| !user.isCredentialsNonExpired())
+			return;
+		if (log.isDebugEnabled())
+			log.debug("accepted session token for user " + username);
+		UsernamePasswordAuthenticationToken result = new UsernamePasswordAuthenticationToken(
+				user, null, user.getAuthorities());
+		result.setDetails(detailsSource.buildDetails(request));
+		getContext().setAuthentication(result);
+	}
+
+	private static boolean isBasicAuthenticated(HttpServletRequest request) {
+		String header = request.getHeader(AUTHORIZATION);
+		return header != null && header.startsWith(BASIC);
+	}
+
+	/**
+	 * Whether a client should be given a new token: when it has none that is
+	 * valid for the user, or when the one it has is past half its lifetime.
+	 */
+	private boolean needsToken(String username, @Nullable String token) {
+		if (token == null || !username.equals(validate(token)))
+			return true;
+		return issuedAt(token) + lifetime / 2 < now();
+	}
+
+	@Nullable
+	private String getToken(HttpServletRequest request) {
+		String token = request.getHeader(HEADER);
+		if (token != null)
+			return token;
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null)
+			for (Cookie c : cookies)
+				if (COOKIE.equals(c.getName()))
+					return c.getValue();
+		return null;
+	}
+
+	private void issue(String username, HttpServletRequest request,
+			HttpServletResponse response) {
+		String token = makeToken(username, now());
+		response.setHeader(HEADER, token);
+		/*
+		 * Written by hand because the Cookie class cannot set SameSite; the
+		 * token is hex digits and dots only. The cookie is never sent over
+		 * plain HTTP nor with cross-site requests, so it cannot be used to
+		 * forge requests; clients that talk plain HTTP use the header.
+		 */
+		StringBuilder cookie = new StringBuilder(COOKIE).append('=')
+				.append(token);
+		cookie.append("; Max-Age=").append(lifetime / 1000);
+		cookie.append("; Path=").append(
+				request.getContextPath().isEmpty() ? "/" : request
+						.getContextPath());
+		cookie.append("; Secure; HttpOnly; SameSite=Strict");
+		response.addHeader(SET_COOKIE, cookie.toString());
+	}
+
+	/**
+	 * Make a token for a user.
+	 *
+	 * @param username
+	 *            Who the token is for.
+	 * @param issued
+	 *            When the token was issued, in milliseconds since the epoch.
+	 * @return The token.
+	 */
+	String makeToken(String username, long issued) {
+		String body = new String(Hex.encode(username.getBytes(UTF8))) + "."
+				+ toHexString(issued);
+		return body + "." + sign(body);
+	}
+
+	/**
+	 * Check a token.
+	 *
+	 * @param token
+	 *            The token to check.
+	 * @return The name of the user the token is for, or <tt>null</tt> if the
+	 *         token is invalid, expired or revoked.
+	 */
+	@Nullable
+	String validate(String token) {
+		String[] parts = token.split("\\.");
+		if (parts.length != 3)
+			return null;
+		String body = parts[0] + "." + parts[1];
+		if (!MessageDigest.isEqual(sign(body).getBytes(UTF8),
+				parts[2].getBytes(UTF8)))
+			return null;
+		String username;
+		long issued;
+		try {
+			username = new String(Hex.decode(parts[0]), UTF8);
+			issued = parseLong(parts[1], 16);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (issued + lifetime < now()
+				|| issued < globalNotBefore)
+			return null;
+		Long revoked = notBefore.get(username);
+		if (revoked != null && issued <= revoked)
+			return null;
+		return username;
+	}
+
+	/**
+	 * @return When a token that has passed {@link #validate(String)} was
+	 *         issued, in milliseconds since the epoch.
+	 */
+	private static long issuedAt(String token) {
+		return parseLong(token.split("\\.")[1], 16);
+	}
+
+	private String sign(String body) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return new String(Hex.encode(mac.doFinal(body.getBytes(UTF8))));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("failed to sign session token", e);
+		}
+	}
+}
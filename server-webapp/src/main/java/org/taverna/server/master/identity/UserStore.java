@@ -5,6 +5,7 @@
  */
 package org.taverna.server.master.identity;
 
+import static java.lang.System.currentTimeMillis;
 import static org.apache.commons.logging.LogFactory.getLog;
 import static org.taverna.server.master.TavernaServer.JMX_ROOT;
 import static org.taverna.server.master.common.Roles.ADMIN;
@@ -17,6 +18,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -64,7 +69,7 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 	private Map<String, BootstrapUserInfo> base = new HashMap<>();
 	private String defLocalUser;
 	private PasswordEncoder encoder;
-	private volatile int epoch;
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
 
 	/**
 	 * Install the encoder that will be used to turn a plaintext password into
@@ -126,7 +131,8 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 				persist(u);
 			}
 		base = null;
-		epoch++;
+		for (ChangeListener l : listeners)
+			l.allUsersChanged();
 	}
 
 	@Override
@@ -206,7 +212,7 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 			u.setLocalUsername(defLocalUser);
 		log.info("creating user for " + username);
 		persist(u);
-		epoch++;
+		invalidate(username);
 	}
 
 	@Override
@@ -222,7 +228,7 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 		if (u != null) {
 			u.setDisabled(!enabled);
 			log.info((enabled ? "enabling" : "disabling") + " user " + username);
-			epoch++;
+			invalidate(username);
 		}
 	}
 
@@ -240,7 +246,7 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 			u.setAdmin(admin);
 			log.info((admin ? "enabling" : "disabling") + " user " + username
 					+ " admin status");
-			epoch++;
+			invalidate(username);
 		}
 	}
 
@@ -256,7 +262,7 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 		if (u != null) {
 			installPassword(u, password);
 			log.info("changing password for user " + username);
-			epoch++;
+			invalidate(username);
 		}
 	}
 
@@ -273,7 +279,7 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 			u.setLocalUsername(localUsername);
 			log.info("mapping user " + username + " to local account "
 					+ localUsername);
-			epoch++;
+			invalidate(username);
 		}
 	}
 
@@ -286,7 +292,7 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 	public void deleteUser(String username) {
 		delete(getById(username));
 		log.info("deleting user " + username);
-		epoch++;
+		invalidate(username);
 	}
 
 	@Override
@@ -318,40 +324,165 @@ public class UserStore extends JDOSupport<User> implements UserDetailsService,
 		throw new UsernameNotFoundException("who are you?");
 	}
 
-	int getEpoch() {
-		return epoch;
+	/**
+	 * Tell the listeners on this store that a user's record has changed.
+	 * 
+	 * @param username
+	 *            The user whose details are no longer current.
+	 */
+	private void invalidate(String username) {
+		for (ChangeListener l : listeners)
+			l.userChanged(username);
+	}
+
+	/**
+	 * Register a listener for changes to user records.
+	 * 
+	 * @param listener
+	 *            The listener to add.
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		listeners.add(listener);
 	}
 
-	public static class CachedUserStore implements UserDetailsService {
-		private int epoch;
-		private Map<String, UserDetails> cache = new HashMap<>();
+	/**
+	 * Unregister a listener for changes to user records.
+	 * 
+	 * @param listener
+	 *            The listener to remove.
+	 */
+	public void removeChangeListener(ChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Things that hold information derived from user records, and which must
+	 * discard it when the user record is modified.
+	 * 
+	 * @author Donal Fellows
+	 */
+	public interface ChangeListener {
+		/**
+		 * Called when a user is created, modified or deleted.
+		 * 
+		 * @param username
+		 *            The name of the affected user.
+		 */
+		void userChanged(String username);
+
+		/** Called when any number of users may have changed. */
+		void allUsersChanged();
+	}
+
+	/**
+	 * A cache in front of the user store that is used during authentication,
+	 * so that the database is not consulted on every request. Entries live for
+	 * a bounded time, and are discarded individually when the underlying store
+	 * changes the corresponding user.
+	 * 
+	 * @author Donal Fellows
+	 */
+	@ManagedResource(objectName = JMX_ROOT + "UserCache", description = "The cache of user details used during authentication.")
+	public static class CachedUserStore implements UserDetailsService,
+			ChangeListener {
+		private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+		private final AtomicLong invalidations = new AtomicLong();
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private long lifetime = DEFAULT_LIFETIME;
 		private UserStore realStore;
+		/** Default lifetime of a cache entry, in milliseconds: 5 minutes. */
+		public static final long DEFAULT_LIFETIME = 5 * 60 * 1000;
+
+		private static class Entry {
+			final UserDetails details;
+			final long expiry;
+
+			Entry(UserDetails details, long lifetime) {
+				this.details = details;
+				this.expiry = currentTimeMillis() + lifetime;
+			}
+
+			boolean expired() {
+				return currentTimeMillis() > expiry;
+			}
+		}
 
 		@Required
 		public void setRealStore(UserStore store) {
+			if (realStore != null)
+				realStore.removeChangeListener(this);
 			this.realStore = store;
+			store.addChangeListener(this);
+		}
+
+		/**
+		 * @param lifetime
+		 *            How long (in seconds) a user's details may be served from
+		 *            the cache before they are fetched again.
+		 */
+		public void setLifetime(int lifetime) {
+			this.lifetime = lifetime * 1000L;
+		}
+
+		@PreDestroy
+		void disconnect() {
+			if (realStore != null)
+				realStore.removeChangeListener(this);
+			cache.clear();
 		}
 
 		@Override
 		@PerfLogged
 		public UserDetails loadUserByUsername(String username) {
-			int epoch = realStore.getEpoch();
-			UserDetails details;
-			synchronized (cache) {
-				if (epoch != this.epoch) {
-					cache.clear();
-					this.epoch = epoch;
-					details = null;
-				} else
-					details = cache.get(username);
-			}
-			if (details == null) {
-				details = realStore.loadUserByUsername(username);
-				synchronized (cache) {
-					cache.put(username, details);
-				}
+			Entry e = cache.get(username);
+			if (e != null && !e.expired()) {
+				hits.incrementAndGet();
+				return e.details;
 			}
-			return details;
+			misses.incrementAndGet();
+			long gen = invalidations.get();
+			e = new Entry(realStore.loadUserByUsername(username), lifetime);
+			cache.put(username, e);
+			/*
+			 * If the user was changed while we were reading it, what we read
+			 * may be the old version; don't keep it.
+			 */
+			if (invalidations.get() != gen)
+				cache.remove(username, e);
+			return e.details;
+		}
+
+		@Override
+		public void userChanged(String username) {
+			invalidations.incrementAndGet();
+			cache.remove(username);
+		}
+
+		@Override
+		public void allUsersChanged() {
+			flush();
+		}
+
+		@ManagedOperation(description = "Discard all cached user details.")
+		public void flush() {
+			invalidations.incrementAndGet();
+			cache.clear();
+		}
+
+		@ManagedAttribute(description = "Number of lookups satisfied from the cache.")
+		public long getHits() {
+			return hits.get();
+		}
+
+		@ManagedAttribute(description = "Number of lookups that had to consult the user database.")
+		public long getMisses() {
+			return misses.get();
+		}
+
+		@ManagedAttribute(description = "Number of users with cached details.")
+		public int getSize() {
+			return cache.size();
 		}
 	}
 
@@ -5,7 +5,6 @@
  */
 package org.taverna.server.master.identity;
 
-import static java.util.Collections.synchronizedMap;
 import static org.springframework.web.context.request.RequestContextHolder.currentRequestAttributes;
 import static org.taverna.server.master.common.Roles.SELF;
 
@@ -13,8 +12,6 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
@@ -42,6 +39,7 @@ import org.taverna.server.master.exceptions.UnknownRunException;
 import org.taverna.server.master.interfaces.LocalIdentityMapper;
 import org.taverna.server.master.interfaces.RunStore;
 import org.taverna.server.master.utils.CallTimeLogger.PerfLogged;
+import org.taverna.server.master.utils.StripedLruCache;
 import org.taverna.server.master.utils.UsernamePrincipal;
 import org.taverna.server.master.worker.RunDatabaseDAO;
 
@@ -58,22 +56,59 @@ public class WorkflowInternalAuthProvider extends
 	private static final boolean logDecisions = true;
 	public static final String PREFIX = "wfrun_";
 	private RunDatabaseDAO dao;
-	private Map<String, String> cache;
+	private volatile StripedLruCache<String, String> cache;
+	private int cacheBound;
+	private int cacheLifetime = 600;
+	private int cacheConcurrency = 16;
 
 	@Required
 	public void setDao(RunDatabaseDAO dao) {
 		this.dao = dao;
 	}
 
+	/**
+	 * @param bound
+	 *            The maximum number of runs to cache the security tokens of.
+	 */
 	@Required
-	@SuppressWarnings("serial")
-	public void setCacheBound(final int bound) {
-		cache = synchronizedMap(new LinkedHashMap<String, String>() {
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
-				return size() > bound;
+	public void setCacheBound(int bound) {
+		this.cacheBound = bound;
+		cache = null;
+	}
+
+	/**
+	 * @param lifetime
+	 *            How long (in seconds) to cache a run's security token for.
+	 */
+	public void setCacheLifetime(int lifetime) {
+		this.cacheLifetime = lifetime;
+		cache = null;
+	}
+
+	/**
+	 * @param concurrency
+	 *            How many independently-locked parts to split the token cache
+	 *            into.
+	 */
+	public void setCacheConcurrency(int concurrency) {
+		this.cacheConcurrency = concurrency;
+		cache = null;
+	}
+
+	/**
+	 * @return The cache of run security tokens, made on first use so that it
+	 *         reflects all the settings.
+	 */
+	private StripedLruCache<String, String> cache() {
+		StripedLruCache<String, String> c = cache;
+		if (c == null)
+			synchronized (this) {
+				c = cache;
+				if (c == null)
+					cache = c = new StripedLruCache<>(cacheBound,
+							cacheLifetime * 1000L, cacheConcurrency);
 			}
-		});
+		return c;
 	}
 
 	public void setAuthorizedAddresses(String[] addresses) {
@@ -199,6 +234,7 @@ public class WorkflowInternalAuthProvider extends
 		if (logDecisions)
 			log.info("request for auth for user " + username);
 		String wfid = username.substring(PREFIX.length());
+		StripedLruCache<String, String> cache = cache();
 		String securityToken;
 		try {
 			securityToken = cache.get(wfid);
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.interaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory index of one run's interaction feed, which records only which
+ * entry files there are and when each was last modified, so that a page of the
+ * feed can be chosen without reading any of the files; the entries themselves
+ * are loaded by the caller for just the page that is wanted. The entry files in
+ * the run's feed directory remain the real store; the index is brought up to
+ * date from a listing of that directory, and is also told directly about
+ * entries added and removed through the server.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Donal Fellows
+ */
+class FeedIndex {
+	/** An indexed entry. */
+	static final class Item {
+		/** The name of the entry's file. */
+		final String name;
+		/** Tie-breaker for entries with the same modification time. */
+		final long sequence;
+		volatile Date modified;
+		/** Whether the modification time is only a guess so far. */
+		volatile boolean provisional;
+		/** Whether the file has been found to be unreadable. */
+		volatile boolean unreadable;
+
+		Item(String name, Date modified, long sequence, boolean provisional) {
+			this.name = name;
+			this.modified = modified;
+			this.sequence = sequence;
+			this.provisional = provisional;
+		}
+	}
+
+	/** Newest first. */
+	private static final Comparator<Item> ORDER = new Comparator<Item>() {
+		@Override
+		public int compare(Item a, Item b) {
+			int c = b.modified.compareTo(a.modified);
+			if (c == 0)
+				c = Long.compare(b.sequence, a.sequence);
+			return c;
+		}
+	};
+
+	private final Map<String, Item> items = new HashMap<>();
+	/** Sorted view of the readable items; rebuilt lazily when stale. */
+	private List<Item> sorted;
+	private long sequence;
+
+	/**
+	 * Bring the index up to date with the contents of the feed directory.
+	 *
+	 * @param listing
+	 *            The names of the entry files and when they were last
+	 *            modified.
+	 * @return How many files were new or had changed.
+	 */
+	synchronized int sync(@Nonnull Map<String, Date> listing) {
+		int changed = 0;
+		for (Iterator<String> it = items.keySet().iterator(); it.hasNext();)
+			if (!listing.containsKey(it.next())) {
+				it.remove();
+				sorted = null;
+			}
+		for (Map.Entry<String, Date> file : listing.entrySet()) {
+			Item item = items.get(file.getKey());
+			if (item != null) {
+				if (item.provisional) {
+					item.modified = file.getValue();
+					item.provisional = false;
+					sorted = null;
+					continue;
+				} else if (item.modified.equals(file.getValue()))
+					continue;
+			}
+			changed++;
+			items.put(file.getKey(), new Item(file.getKey(), file.getValue(),
+					sequence++, false));
+			sorted = null;
+		}
+		return changed;
+	}
+
+	/**
+	 * Add an entry that has just been written.
+	 *
+	 * @param name
+	 *            The name of the entry's file.
+	 */
+	synchronized void add(@Nonnull String name) {
+		items.put(name, new Item(name, new Date(), sequence++, true));
+		sorted = null;
+	}
+
+	/**
+	 * Forget an entry that has been deleted.
+	 *
+	 * @param name
+	 *            The name of the entry's file.
+	 */
+	synchronized void remove(@Nonnull String name) {
+		if (items.remove(name) != null)
+			sorted = null;
+	}
+
+	/**
+	 * Note that an entry's file could not be read, so that it is left out of
+	 * pages until it changes.
+	 *
+	 * @param item
+	 *            The entry.
+	 */
+	synchronized void unreadable(@Nonnull Item item) {
+		if (!item.unreadable) {
+			item.unreadable = true;
+			sorted = null;
+		}
+	}
+
+	/**
+	 * Get some of the entries, newest first, leaving out those known to be
+	 * unreadable.
+	 *
+	 * @param before
+	 *            If not <tt>null</tt>, the name of an entry file; only entries
+	 *            older than that are returned. If there is no such entry, the
+	 *            newest entries are returned.
+	 * @param limit
+	 *            The maximum number of entries to return, or negative for no
+	 *            limit.
+	 * @return The entries.
+	 */
+	@Nonnull
+	synchronized List<Item> page(@Nullable String before, int limit) {
+		if (sorted == null) {
+			sorted = new ArrayList<>(items.size());
+			for (Item item : items.values())
+				if (!item.unreadable)
+					sorted.add(item);
+			Collections.sort(sorted, ORDER);
+		}
+		int from = 0;
+		Item cursor = (before == null ? null : items.get(before));
+		if (cursor != null) {
+			from = Collections.binarySearch(sorted, cursor, ORDER);
+			// An unreadable cursor isn't in the list; start where it would be
+			from = (from < 0 ? -from - 1 : from + 1);
+		}
+		int to = (limit < 0 ? sorted.size() : Math.min(sorted.size(), from
+				+ limit));
+		return new ArrayList<>(sorted.subList(from, to));
+	}
+
+	/** @return How many entry files are indexed. */
+	synchronized int size() {
+		return items.size();
+	}
+}
@@ -6,10 +6,11 @@
 package org.taverna.server.master.interaction;
 
 import static java.lang.management.ManagementFactory.getPlatformMBeanServer;
-import static java.util.Collections.reverse;
 import static javax.management.Query.attr;
 import static javax.management.Query.match;
 import static javax.management.Query.value;
+import static javax.ws.rs.core.UriBuilder.fromUri;
+import static org.taverna.server.master.notification.RunEventBus.INTERACTION;
 import static org.apache.commons.logging.LogFactory.getLog;
 
 import java.io.ByteArrayInputStream;
@@ -44,15 +45,21 @@ import org.taverna.server.master.exceptions.FilesystemAccessException;
 import org.taverna.server.master.exceptions.NoDirectoryEntryException;
 import org.taverna.server.master.exceptions.NoUpdateException;
 import org.taverna.server.master.interfaces.Directory;
-import org.taverna.server.master.interfaces.DirectoryEntry;
 import org.taverna.server.master.interfaces.File;
 import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.interfaces.UriBuilderFactory;
+import org.taverna.server.master.notification.RunEventBus;
 import org.taverna.server.master.utils.FilenameUtils;
+import org.taverna.server.master.utils.WeightedLruCache;
 
 /**
  * Bean that supports interaction feeds. This glues together the Abdera
  * serialization engine and the directory-based model used inside the server.
+ * The entry files in the run's feed directory are the store of the feed. A
+ * per-run {@link FeedIndex} records which entries there are and in what order,
+ * so that only the entries on the page being served need to be read, and
+ * recently used parsed entries are cached; both caches are bounded by what
+ * they hold across all runs, not by how many runs they hold.
  * 
  * @author Donal Fellows
  */
@@ -77,6 +84,17 @@ public class InteractionFeedSupport {
 	private static final long MAX_ENTRY_SIZE = 50 * 1024;
 	/** Extension for entry files. */
 	private static final String EXT = ".atom";
+	/**
+	 * The most entries that may be indexed, summed over all runs' feeds. Each
+	 * costs about a hundred bytes; the indices of the least recently read feeds
+	 * are dropped (to be rebuilt from a listing) to stay within this.
+	 */
+	private static final long MAX_INDEXED_ENTRIES = 100000;
+	/**
+	 * The most bytes of entry files whose parsed forms may be cached, summed
+	 * over all runs' feeds.
+	 */
+	private static final long MAX_CACHED_ENTRY_BYTES = 16 * 1024 * 1024;
 
 	private TavernaServerSupport support;
 	private FilenameUtils utils;
@@ -84,8 +102,13 @@ public class InteractionFeedSupport {
 	private Parser parser;
 	private Factory factory;
 	private UriBuilderFactory uriBuilder;
+	private RunEventBus eventBus;
 
 	private AtomicInteger counter = new AtomicInteger();
+	private final WeightedLruCache<String, FeedIndex> indices = new WeightedLruCache<>(
+			MAX_INDEXED_ENTRIES);
+	private final WeightedLruCache<String, CachedEntry> entries = new WeightedLruCache<>(
+			MAX_CACHED_ENTRY_BYTES);
 
 	@Required
 	public void setSupport(TavernaServerSupport support) {
@@ -110,6 +133,15 @@ public class InteractionFeedSupport {
 		this.uriBuilder = uriBuilder;
 	}
 
+	/**
+	 * @param eventBus
+	 *            Where to announce new entries to anyone waiting for them.
+	 */
+	@Required
+	public void setEventBus(RunEventBus eventBus) {
+		this.eventBus = eventBus;
+	}
+
 	private final Map<String, URL> endPoints = new HashMap<>();
 
 	@PostConstruct
@@ -160,16 +192,39 @@ public class InteractionFeedSupport {
 				.path(FEED_URL_DIR + "/{entryID}").build(id);
 	}
 
-	private Entry getEntryFromFile(File f) throws FilesystemAccessException {
+	/** A parsed entry, as held in the cache. */
+	private static final class CachedEntry {
+		final Entry entry;
+		/** When the file was modified, or <tt>null</tt> if not yet known. */
+		final Date modified;
+		/** The size of the file. */
+		final int size;
+
+		CachedEntry(Entry entry, Date modified, int size) {
+			this.entry = entry;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+
+	private CachedEntry getEntryFromFile(File f, Date modified)
+			throws FilesystemAccessException {
 		long size = f.getSize();
 		if (size > MAX_ENTRY_SIZE)
 			throw new FilesystemAccessException("entry larger than 50kB");
 		byte[] contents = f.getContents(0, (int) size);
 		Document<Entry> doc = parser.parse(new ByteArrayInputStream(contents));
-		return doc.getRoot();
+		Entry entry = doc.getRoot();
+		/*
+		 * The parser builds the tree lazily, and building it isn't thread-safe;
+		 * the entry may be cached and cloned by several requests at once, so
+		 * it must be finished now.
+		 */
+		entry.complete();
+		return new CachedEntry(entry, modified, contents.length);
 	}
 
-	private void putEntryInFile(Directory dir, String name, Entry contents)
+	private int putEntryInFile(Directory dir, String name, Entry contents)
 			throws FilesystemAccessException, NoUpdateException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		try {
@@ -179,14 +234,75 @@ public class InteractionFeedSupport {
 		}
 		File f = dir.makeEmptyFile(support.getPrincipal(), name);
 		f.appendContents(baos.toByteArray());
+		return baos.size();
 	}
 
-	private List<DirectoryEntry> listPossibleEntries(TavernaRun run)
+	private static String key(TavernaRun run, String name) {
+		return run.getId() + "/" + name;
+	}
+
+	private void cache(TavernaRun run, String name, CachedEntry ce) {
+		entries.put(key(run, name), ce, ce.size);
+	}
+
+	/**
+	 * List the entry files of a run's feed, with when each was last modified.
+	 * The whole listing is fetched from the run's worker in one call.
+	 */
+	private Map<String, Date> listing(TavernaRun run)
 			throws FilesystemAccessException, NoDirectoryEntryException {
-		List<DirectoryEntry> entries = new ArrayList<>(utils.getDirectory(run,
-				FEED_DIR).getContentsByDate());
-		reverse(entries);
-		return entries;
+		Map<String, Date> listing = new HashMap<>();
+		for (Map.Entry<String, Date> file : utils.getDirectory(run, FEED_DIR)
+				.getFileModificationDates().entrySet())
+			if (file.getKey().endsWith(EXT))
+				listing.put(file.getKey(), file.getValue());
+		return listing;
+	}
+
+	/**
+	 * Get the index of a run's feed, bringing it up to date with a listing of
+	 * the feed directory. No entry file is read.
+	 */
+	private FeedIndex index(TavernaRun run) throws FilesystemAccessException,
+			NoDirectoryEntryException {
+		Map<String, Date> listing = listing(run);
+		FeedIndex index = indices.get(run.getId());
+		if (index == null)
+			index = new FeedIndex();
+		index.sync(listing);
+		// Storing it again updates its weight, which may evict other indices
+		indices.put(run.getId(), index, index.size() + 1);
+		return index;
+	}
+
+	/**
+	 * Get a parsed entry on the page being served, from the cache if it is
+	 * there and up to date, or else from its file.
+	 * 
+	 * @return The entry, or <tt>null</tt> if it can't be read.
+	 */
+	@Nullable
+	private Entry load(TavernaRun run, FeedIndex.Item item) {
+		CachedEntry ce = entries.get(key(run, item.name));
+		if (ce != null && ce.modified == null) {
+			/*
+			 * Read (or written) before the file was listed; entries are never
+			 * updated in place, so this is the listed version.
+			 */
+			if (!item.provisional)
+				cache(run, item.name, new CachedEntry(ce.entry, item.modified,
+						ce.size));
+			return ce.entry;
+		} else if (ce != null && ce.modified.equals(item.modified))
+			return ce.entry;
+		try {
+			ce = getEntryFromFile(utils.getFile(run, FEED_DIR + "/" + item.name),
+					item.provisional ? null : item.modified);
+		} catch (FilesystemAccessException | NoDirectoryEntryException e) {
+			return null;
+		}
+		cache(run, item.name, ce);
+		return ce.entry;
 	}
 
 	private String getRunURL(TavernaRun run) {
@@ -207,32 +323,92 @@ public class InteractionFeedSupport {
 	 */
 	public Feed getRunFeed(TavernaRun run) throws FilesystemAccessException,
 			NoDirectoryEntryException {
+		return getRunFeed(run, null, -1);
+	}
+
+	/**
+	 * Get part of the interaction feed for a partciular run, newest entries
+	 * first. If there are older entries than fit, the feed has a link to the
+	 * next page.
+	 * 
+	 * @param run
+	 *            The workflow run that defines which feed we are operating on.
+	 * @param before
+	 *            If not <tt>null</tt>, the ID of an entry; only older entries
+	 *            are included.
+	 * @param limit
+	 *            The maximum number of entries to include, or negative for no
+	 *            limit. Zero is taken to mean one.
+	 * @return The Abdera feed descriptor.
+	 * @throws FilesystemAccessException
+	 *             If the feed directory can't be read for some reason.
+	 * @throws NoDirectoryEntryException
+	 *             If the feed directory doesn't exist.
+	 */
+	public Feed getRunFeed(TavernaRun run, String before, int limit)
+			throws FilesystemAccessException, NoDirectoryEntryException {
+		if (limit == 0)
+			limit = 1;
 		URI feedURI = getFeedURI(run);
 		Feed feed = factory.newFeed();
 		feed.setTitle("Interactions for Taverna Run \"" + run.getName() + "\"");
 		feed.addLink(new IRI(feedURI).toString(), "self");
 		feed.addLink(getRunURL(run), "workflowrun");
+		FeedIndex index = index(run);
+		/*
+		 * Read only the entries on the page; any found to be unreadable are
+		 * left out, and replaced with older ones.
+		 */
+		int wanted = (limit < 0 ? -1 : limit + 1);
+		List<FeedIndex.Item> items = new ArrayList<>();
+		List<Entry> loaded = new ArrayList<>();
+		String cursor = (before == null ? null : before + EXT);
+		while (wanted < 0 || items.size() < wanted) {
+			List<FeedIndex.Item> page = index.page(cursor, wanted < 0 ? -1
+					: wanted - items.size());
+			if (page.isEmpty())
+				break;
+			for (FeedIndex.Item item : page) {
+				Entry e = load(run, item);
+				if (e == null)
+					index.unreadable(item);
+				else {
+					items.add(item);
+					loaded.add(e);
+				}
+			}
+			cursor = page.get(page.size() - 1).name;
+			if (wanted < 0)
+				break;
+		}
+		boolean more = limit >= 0 && items.size() > limit;
+		if (more)
+			items = items.subList(0, limit);
 		boolean fetchedDate = false;
-		for (DirectoryEntry de : listPossibleEntries(run)) {
-			if (!(de instanceof File))
+		for (int i = 0; i < items.size(); i++) {
+			FeedIndex.Item item = items.get(i);
+			Entry e = (Entry) loaded.get(i).clone();
+			if (STRIP_CONTENTS)
+				e.setContentElement(null);
+			feed.addEntry(e);
+			if (fetchedDate)
 				continue;
-			try {
-				Entry e = getEntryFromFile((File) de);
-				if (STRIP_CONTENTS)
-					e.setContentElement(null);
-				feed.addEntry(e);
-				if (fetchedDate)
-					continue;
-				Date last = e.getUpdated();
-				if (last == null)
-					last = e.getPublished();
-				if (last == null)
-					last = de.getModificationDate();
-				feed.setUpdated(last);
-				fetchedDate = true;
-			} catch (FilesystemAccessException e) {
-				// Can't do anything about it, so we'll just drop the entry.
-			}
+			Date last = e.getUpdated();
+			if (last == null)
+				last = e.getPublished();
+			if (last == null)
+				last = item.modified;
+			feed.setUpdated(last);
+			fetchedDate = true;
+		}
+		if (more) {
+			String last = items.get(items.size() - 1).name;
+			feed.addLink(
+					new IRI(fromUri(feedURI)
+							.queryParam("before",
+									last.substring(0, last.length() - EXT.length()))
+							.queryParam("limit", limit).build()).toString(),
+					"next");
 		}
 		return feed;
 	}
@@ -252,8 +428,24 @@ public class InteractionFeedSupport {
 	 */
 	public Entry getRunFeedEntry(TavernaRun run, String entryID)
 			throws FilesystemAccessException, NoDirectoryEntryException {
-		File entryFile = utils.getFile(run, FEED_DIR + "/" + entryID + EXT);
-		return getEntryFromFile(entryFile);
+		String name = entryID + EXT;
+		// The file may have been deleted behind our back; don't serve it
+		Date modified = listing(run).get(name);
+		if (modified == null) {
+			entries.remove(key(run, name));
+			FeedIndex index = indices.get(run.getId());
+			if (index != null)
+				index.remove(name);
+			throw new NoDirectoryEntryException("no such entry");
+		}
+		CachedEntry ce = entries.get(key(run, name));
+		if (ce == null
+				|| (ce.modified != null && !ce.modified.equals(modified))) {
+			ce = getEntryFromFile(utils.getFile(run, FEED_DIR + "/" + name),
+					modified);
+			cache(run, name, ce);
+		}
+		return (Entry) ce.entry.clone();
 	}
 
 	/**
@@ -287,9 +479,16 @@ public class InteractionFeedSupport {
 		entry.addLink(getRunURL(run), "workflowrun");
 		entry.setUpdated(now);
 		entry.setPublished(now);
-		putEntryInFile(utils.getDirectory(run, FEED_DIR), localId + EXT, entry);
-		return getEntryFromFile(utils.getFile(run, FEED_DIR + "/" + localId
-				+ EXT));
+		int size = putEntryInFile(utils.getDirectory(run, FEED_DIR), localId
+				+ EXT, entry);
+		Entry copy = (Entry) entry.clone();
+		copy.complete();
+		cache(run, localId + EXT, new CachedEntry(copy, null, size));
+		FeedIndex index = indices.get(run.getId());
+		if (index != null)
+			index.add(localId + EXT);
+		eventBus.publish(run.getId(), INTERACTION, localId);
+		return entry;
 	}
 
 	/**
@@ -312,5 +511,9 @@ public class InteractionFeedSupport {
 			NoUpdateException {
 		support.permitUpdate(run);
 		utils.getFile(run, FEED_DIR + "/" + entryID + EXT).destroy();
+		entries.remove(key(run, entryID + EXT));
+		FeedIndex index = indices.get(run.getId());
+		if (index != null)
+			index.remove(entryID + EXT);
 	}
 }
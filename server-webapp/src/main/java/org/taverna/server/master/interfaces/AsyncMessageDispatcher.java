@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.interfaces;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A message dispatcher that can accept a message for sending and report later
+ * how the sending went, so that the thread handing the message over does not
+ * have to wait for it to be sent.
+ *
+ * @author Donal Fellows
+ */
+public interface AsyncMessageDispatcher extends MessageDispatcher {
+	/**
+	 * How the dispatcher reports the outcome of sending a message. Only the
+	 * first report about a message counts.
+	 */
+	interface Completion {
+		/** The message has been sent. */
+		void delivered();
+
+		/**
+		 * The message could not be sent.
+		 *
+		 * @param reason
+		 *            Why not.
+		 */
+		void failed(@Nonnull Exception reason);
+	}
+
+	/**
+	 * Accept a message for sending to a recipient, and return without waiting
+	 * for it to be sent. The outcome must be reported to the completion within
+	 * a bounded time.
+	 *
+	 * @param originator
+	 *            The workflow run that produced the message. May be
+	 *            <tt>null</tt> for a message being sent to a chosen target
+	 *            after the server has restarted.
+	 * @param messageSubject
+	 *            The subject of the message to send.
+	 * @param messageContent
+	 *            The plain-text content of the message to send.
+	 * @param targetParameter
+	 *            A description of where it is to go.
+	 * @param completion
+	 *            Where to report the outcome.
+	 * @throws Exception
+	 *             If the message cannot be accepted; the completion is then
+	 *             not used.
+	 */
+	void dispatch(@Nullable TavernaRun originator,
+			@Nonnull String messageSubject, @Nonnull String messageContent,
+			@Nonnull String targetParameter, @Nonnull Completion completion)
+			throws Exception;
+}
@@ -8,6 +8,8 @@ package org.taverna.server.master.interfaces;
 import java.io.PipedInputStream;
 import java.security.Principal;
 import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
 
 import org.taverna.server.master.exceptions.FilesystemAccessException;
 
@@ -35,6 +37,23 @@ public interface Directory extends DirectoryEntry {
 	Collection<DirectoryEntry> getContentsByDate()
 			throws FilesystemAccessException;
 
+	/**
+	 * @return The names of the files (not sub-directories) in the directory,
+	 *         each with when it was last modified, fetched all at once.
+	 * @throws FilesystemAccessException
+	 *             If things go wrong.
+	 */
+	Map<String, Date> getFileModificationDates()
+			throws FilesystemAccessException;
+
+	/**
+	 * @return The total size, in bytes, of the files in the directory and its
+	 *         sub-directories.
+	 * @throws FilesystemAccessException
+	 *             If things go wrong.
+	 */
+	long getTotalSize() throws FilesystemAccessException;
+
 	/**
 	 * @return The contents of the directory (and its sub-directories) as a zip.
 	 * @throws FilesystemAccessException
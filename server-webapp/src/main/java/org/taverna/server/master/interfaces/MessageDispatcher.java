@@ -6,6 +6,7 @@
 package org.taverna.server.master.interfaces;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * The interface supported by all notification message dispatchers.
@@ -26,10 +27,13 @@ public interface MessageDispatcher {
 	String getName();
 
 	/**
-	 * Dispatch a message to a recipient.
+	 * Dispatch a message to a recipient. Should not take indefinitely long;
+	 * the thread doing the dispatch is interrupted if it takes too long.
 	 * 
 	 * @param originator
-	 *            The workflow run that produced the message.
+	 *            The workflow run that produced the message. May be
+	 *            <tt>null</tt> for a message being sent to a chosen target
+	 *            after the server has restarted.
 	 * @param messageSubject
 	 *            The subject of the message to send.
 	 * @param messageContent
@@ -39,7 +43,7 @@ public interface MessageDispatcher {
 	 * @throws Exception
 	 *             If anything goes wrong.
 	 */
-	void dispatch(@Nonnull TavernaRun originator,
+	void dispatch(@Nullable TavernaRun originator,
 			@Nonnull String messageSubject, @Nonnull String messageContent,
 			@Nonnull String targetParameter) throws Exception;
 }
\ No newline at end of file
@@ -50,6 +50,16 @@ public interface Policy {
 	void permitCreate(UsernamePrincipal user, Workflow workflow)
 			throws NoCreateException;
 
+	/**
+	 * Note that a run whose creation was permitted by
+	 * {@link #permitCreate(UsernamePrincipal, Workflow)} was not created after
+	 * all, so that any capacity set aside for it can be given back.
+	 * 
+	 * @param user
+	 *            Who wanted to do the creation.
+	 */
+	void createFailed(UsernamePrincipal user);
+
 	/**
 	 * Test whether the user can destroy a workflow instance run or manipulate
 	 * its expiry date.
@@ -52,6 +52,7 @@ import org.taverna.server.master.interfaces.Listener;
 import org.taverna.server.master.interfaces.SecurityContextFactory;
 import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.interfaces.UriBuilderFactory;
+import org.taverna.server.master.notification.RunEventBus;
 import org.taverna.server.master.notification.atom.EventDAO;
 import org.taverna.server.master.usage.UsageRecordRecorder;
 import org.taverna.server.master.utils.UsernamePrincipal;
@@ -253,6 +254,7 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 	private SecurityContextFactory securityFactory;
 	UsageRecordRecorder usageRecordSink;
 	private EventDAO masterEventFeed;
+	private RunEventBus runEventBus;
 
 	@Autowired(required = true)
 	void setSecurityContextFactory(SecurityContextFactory factory) {
@@ -264,6 +266,11 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 		this.masterEventFeed = masterEventFeed;
 	}
 
+	@Autowired(required = true)
+	void setRunEventBus(RunEventBus runEventBus) {
+		this.runEventBus = runEventBus;
+	}
+
 	@Autowired(required = true)
 	void setUsageRecordSink(UsageRecordRecorder usageRecordSink) {
 		this.usageRecordSink = usageRecordSink;
@@ -429,4 +436,9 @@ public abstract class AbstractRemoteRunFactory extends RunFactoryConfiguration
 	public EventDAO getMasterEventFeed() {
 		return masterEventFeed;
 	}
+
+	@Override
+	public RunEventBus getRunEventBus() {
+		return runEventBus;
+	}
 }
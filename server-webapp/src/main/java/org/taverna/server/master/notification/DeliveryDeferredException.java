@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+/**
+ * Thrown by a message dispatcher to say that a message should be sent later
+ * rather than now, e.g., because its target has been sent too much recently.
+ * The {@link NotificationEngine} tries again after the given delay without
+ * counting this as a failed attempt.
+ *
+ * @author Donal Fellows
+ */
+@SuppressWarnings("serial")
+public class DeliveryDeferredException extends Exception {
+	private final long delay;
+
+	/**
+	 * @param target
+	 *            Where the message was to go.
+	 * @param delay
+	 *            How long to wait before trying again, in milliseconds.
+	 */
+	public DeliveryDeferredException(String target, long delay) {
+		super("delivery to " + target + " deferred for " + delay + "ms");
+		this.delay = delay;
+	}
+
+	/** @return How long to wait before trying again, in milliseconds. */
+	public long getDelay() {
+		return delay;
+	}
+}
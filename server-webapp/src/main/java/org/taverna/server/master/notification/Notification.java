@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import static java.util.UUID.randomUUID;
+
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import javax.jdo.annotations.Queries;
+import javax.jdo.annotations.Query;
+
+/**
+ * The persistent record of a notification message that has yet to be
+ * delivered, or that could not be delivered at all (a <i>dead letter</i>).
+ * The message is stored fully rendered, so that it can be sent after a
+ * restart without needing the run that it is about.
+ *
+ * @author Donal Fellows
+ */
+@PersistenceCapable(schema = "NOTIFY", table = "NOTIFICATIONS")
+@Queries({
+		@Query(name = "pending", value = "SELECT FROM org.taverna.server.master.notification.Notification WHERE dead == false ORDER BY created ASC"),
+		@Query(name = "dead", value = "SELECT FROM org.taverna.server.master.notification.Notification WHERE dead == true ORDER BY created ASC") })
+public class Notification {
+	@PrimaryKey
+	@Column(length = 48)
+	private String id;
+	@Persistent
+	@Column(length = 48)
+	private String dispatcher;
+	@Persistent
+	@Column(length = 512)
+	private String target;
+	@Persistent
+	@Column(length = 48)
+	private String runId;
+	@Persistent
+	@Column(length = 1024)
+	private String subject;
+	@Persistent
+	@Column(jdbcType = "CLOB")
+	private String content;
+	@Persistent
+	private Date created;
+	@Persistent
+	private Date nextAttempt;
+	@Persistent
+	private int attempts;
+	@Persistent
+	private boolean dead;
+	@Persistent
+	@Column(length = 1024)
+	private String lastError;
+
+	Notification() {
+	}
+
+	Notification(@Nonnull String dispatcher, @Nonnull String target,
+			@Nullable String runId, @Nonnull String subject,
+			@Nonnull String content) {
+		this.id = randomUUID().toString();
+		this.dispatcher = dispatcher;
+		this.target = target;
+		this.runId = runId;
+		this.subject = subject;
+		this.content = content;
+		this.created = new Date();
+		this.nextAttempt = created;
+	}
+
+	@Nonnull
+	public String getId() {
+		return id;
+	}
+
+	/** @return The name of the dispatcher to send the message with. */
+	@Nonnull
+	public String getDispatcher() {
+		return dispatcher;
+	}
+
+	/** @return Where the message is to go, as understood by the dispatcher. */
+	@Nonnull
+	public String getTarget() {
+		return target;
+	}
+
+	/** @return The ID of the run the message is about, if known. */
+	@Nullable
+	public String getRunId() {
+		return runId;
+	}
+
+	@Nonnull
+	public String getSubject() {
+		return subject;
+	}
+
+	@Nonnull
+	public String getContent() {
+		return content;
+	}
+
+	/** @return When the message was first queued. */
+	@Nonnull
+	public Date getCreated() {
+		return created;
+	}
+
+	/** @return When the message should next be tried. */
+	@Nonnull
+	public Date getNextAttempt() {
+		return nextAttempt;
+	}
+
+	/** @return How many times sending the message has failed. */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/** @return Whether the message has been given up on. */
+	public boolean isDead() {
+		return dead;
+	}
+
+	/** @return Why the last attempt to send the message failed. */
+	@Nullable
+	public String getLastError() {
+		return lastError;
+	}
+
+	void failed(int attempts, @Nullable Date nextAttempt, String error) {
+		this.attempts = attempts;
+		if (nextAttempt == null)
+			dead = true;
+		else
+			this.nextAttempt = nextAttempt;
+		if (error != null && error.length() > 1024)
+			error = error.substring(0, 1024);
+		lastError = error;
+	}
+
+	void revive() {
+		attempts = 0;
+		dead = false;
+		nextAttempt = new Date();
+	}
+}
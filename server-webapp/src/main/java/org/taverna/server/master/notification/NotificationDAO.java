@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.taverna.server.master.utils.JDOSupport;
+
+/**
+ * The database of notification messages that have not yet been delivered,
+ * so that they are not lost if the server is restarted before they are sent,
+ * together with those that could not be delivered at all.
+ *
+ * @author Donal Fellows
+ */
+public class NotificationDAO extends JDOSupport<Notification> {
+	public NotificationDAO() {
+		super(Notification.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Notification> list(String queryName) {
+		return (List<Notification>) namedQuery(queryName).execute();
+	}
+
+	/**
+	 * Record a message that is to be sent.
+	 *
+	 * @param notification
+	 *            The message.
+	 */
+	@WithinSingleTransaction
+	public void save(@Nonnull Notification notification) {
+		persist(notification);
+	}
+
+	/**
+	 * Forget a message because it has been sent.
+	 *
+	 * @param id
+	 *            The ID of the message.
+	 */
+	@WithinSingleTransaction
+	public void delivered(@Nonnull String id) {
+		delete(getById(id));
+	}
+
+	/**
+	 * Record that an attempt to send a message failed.
+	 *
+	 * @param id
+	 *            The ID of the message.
+	 * @param attempts
+	 *            How many attempts have now failed.
+	 * @param nextAttempt
+	 *            When to try again, or <tt>null</tt> if the message is to be
+	 *            given up on.
+	 * @param error
+	 *            Why the attempt failed.
+	 */
+	@WithinSingleTransaction
+	public void failed(@Nonnull String id, int attempts,
+			@Nullable Date nextAttempt, @Nullable String error) {
+		Notification n = getById(id);
+		if (n != null)
+			n.failed(attempts, nextAttempt, error);
+	}
+
+	/**
+	 * @return Copies of the messages that are still to be sent, oldest first.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public List<Notification> getPending() {
+		return new ArrayList<>(detachAll(list("pending")));
+	}
+
+	/**
+	 * @return Copies of the messages that were given up on, oldest first.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public List<Notification> getDead() {
+		return new ArrayList<>(detachAll(list("dead")));
+	}
+
+	/**
+	 * Make the messages that were given up on eligible to be sent again.
+	 *
+	 * @return Copies of the revived messages.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public List<Notification> reviveDead() {
+		List<Notification> dead = list("dead");
+		for (Notification n : dead)
+			n.revive();
+		return new ArrayList<>(detachAll(dead));
+	}
+
+	/**
+	 * Forget the messages that were given up on.
+	 *
+	 * @return How many messages were forgotten.
+	 */
+	@WithinSingleTransaction
+	public int deleteDead() {
+		List<Notification> dead = list("dead");
+		int count = dead.size();
+		for (Notification n : dead)
+			delete(n);
+		return count;
+	}
+}
@@ -5,28 +5,86 @@
  */
 package org.taverna.server.master.notification;
 
+import static java.lang.Math.max;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.taverna.server.master.interfaces.AsyncMessageDispatcher;
 import org.taverna.server.master.interfaces.MessageDispatcher;
 import org.taverna.server.master.interfaces.TavernaRun;
 
 /**
  * A common object for handling dispatch of event-driven messages.
+ * <p>
+ * Messages to a chosen target (email, SMS, etc.) are sent in the background,
+ * so that a slow or broken message fabric never holds up the run that the
+ * message is about. Each dispatcher has its own small pool of threads and
+ * bounded queue, so one misbehaving fabric cannot starve the others. Each
+ * attempt to send is limited in time; failed attempts are retried with
+ * exponentially growing delays, and messages that still cannot be sent are
+ * eventually kept aside as <i>dead letters</i> for the administrator to retry
+ * or discard. A dispatcher may also {@linkplain DeliveryDeferredException
+ * defer} a message, which is then tried again later without that counting as
+ * a failure. An {@linkplain AsyncMessageDispatcher asynchronous dispatcher}
+ * only holds one of its threads while taking a message, and reports later how
+ * the sending went. Messages are recorded in the database until they are sent, so
+ * they are delivered (at least once) even across a restart of the server.
+ * <p>
+ * Messages to the universal dispatchers (e.g., the Atom feed) are still
+ * handed over directly; those dispatchers do their own queueing.
  * 
  * @author Donal Fellows
  */
+@ManagedResource(objectName = JMX_ROOT + "NotificationEngine", description = "Delivers notification messages about workflow runs.")
 public class NotificationEngine {
 	private Log log = LogFactory.getLog("Taverna.Server.Notification");
 	private Map<String, MessageDispatcher> dispatchers;
 	private List<MessageDispatcher> universalDispatchers;
+	private NotificationDAO dao;
+	private final Map<String, Lane> lanes = new HashMap<>();
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+			1, new Threads("Notification timer"));
+	private volatile int threadsPerDispatcher = 2;
+	private volatile Map<String, Integer> dispatcherThreads = new HashMap<>();
+	private volatile int queueCapacity = 100;
+	private volatile long timeout = 30000;
+	private volatile long initialRetryDelay = 60000;
+	private volatile long maxRetryDelay = 3600000;
+	private volatile int maxAttempts = 6;
+	private volatile boolean stopped;
+
+	public NotificationEngine() {
+		// Most timeouts are cancelled; don't let them pile up
+		timer.setRemoveOnCancelPolicy(true);
+	}
 
 	/**
 	 * @param dispatchers
@@ -48,35 +106,484 @@ public class NotificationEngine {
 		this.universalDispatchers = dispatcherList;
 	}
 
+	/**
+	 * @param dao
+	 *            Where messages are recorded until they are sent. If not set,
+	 *            messages not yet sent are lost when the server stops.
+	 */
+	public void setDao(NotificationDAO dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * @param threadsPerDispatcher
+	 *            How many messages may be being sent by each dispatcher at
+	 *            once. Only affects dispatchers not yet used.
+	 */
+	public void setThreadsPerDispatcher(int threadsPerDispatcher) {
+		this.threadsPerDispatcher = max(1, threadsPerDispatcher);
+	}
+
+	/**
+	 * @param dispatcherThreads
+	 *            How many messages may be being sent at once by particular
+	 *            dispatchers, by name, where that differs from the default.
+	 *            Only affects dispatchers not yet used.
+	 */
+	public void setDispatcherThreads(Map<String, Integer> dispatcherThreads) {
+		this.dispatcherThreads = new HashMap<>(dispatcherThreads);
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            How many messages may be waiting for each dispatcher. Messages
+	 *            beyond that are put back until later. Only affects
+	 *            dispatchers not yet used.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = max(1, queueCapacity);
+	}
+
+	@ManagedAttribute(description = "How long an attempt to send a message may take, in milliseconds.")
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	@ManagedAttribute(description = "How long an attempt to send a message may take, in milliseconds.")
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param initialRetryDelay
+	 *            How long to wait before trying to send a message again after
+	 *            the first failure, in milliseconds. The delay doubles after
+	 *            each further failure.
+	 */
+	public void setInitialRetryDelay(long initialRetryDelay) {
+		this.initialRetryDelay = max(1, initialRetryDelay);
+	}
+
+	/**
+	 * @param maxRetryDelay
+	 *            The longest to wait before trying to send a message again, in
+	 *            milliseconds.
+	 */
+	public void setMaxRetryDelay(long maxRetryDelay) {
+		this.maxRetryDelay = max(1, maxRetryDelay);
+	}
+
+	@ManagedAttribute(description = "How many times sending a message is tried before it is given up on.")
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = max(1, maxAttempts);
+	}
+
+	@ManagedAttribute(description = "How many times sending a message is tried before it is given up on.")
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/** Makes the (daemon) threads that send messages. */
+	private static class Threads implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		Threads(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + " " + count.incrementAndGet());
+			t.setContextClassLoader(null);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/** The sending threads and statistics of one dispatcher. */
+	private static class Lane {
+		final ThreadPoolExecutor executor;
+		final AtomicInteger waiting = new AtomicInteger();
+		/** Messages taken by an asynchronous dispatcher but not yet sent. */
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong dead = new AtomicLong();
+		final AtomicLong deferred = new AtomicLong();
+		private long totalSendTime, maxSendTime, totalDelay, maxDelay;
+
+		Lane(String name, int threads, int capacity) {
+			executor = new ThreadPoolExecutor(threads, threads, 60, SECONDS,
+					new ArrayBlockingQueue<Runnable>(capacity), new Threads(
+							"Notification " + name));
+			executor.allowCoreThreadTimeOut(true);
+		}
+
+		synchronized void delivered(long sendTime, long delay) {
+			delivered.incrementAndGet();
+			totalSendTime += sendTime;
+			maxSendTime = max(maxSendTime, sendTime);
+			totalDelay += delay;
+			maxDelay = max(maxDelay, delay);
+		}
+
+		int queued() {
+			return executor.getQueue().size() + executor.getActiveCount()
+					+ waiting.get() + inFlight.get();
+		}
+
+		synchronized String describe(String name) {
+			long n = max(1, delivered.get());
+			return name + ": delivered=" + delivered + " failedAttempts="
+					+ failures + " undeliverable=" + dead + " deferred="
+					+ deferred + " queued=" + queued() + " meanSendTime="
+					+ totalSendTime / n + "ms maxSendTime=" + maxSendTime
+					+ "ms meanDeliveryDelay=" + totalDelay / n
+					+ "ms maxDeliveryDelay=" + maxDelay + "ms";
+		}
+	}
+
+	/** A message on its way, with what is known of where it came from. */
+	private static class Delivery {
+		final Notification record;
+		/** The source of the message; <tt>null</tt> after a restart. */
+		final TavernaRun originator;
+		/** How to render the message; <tt>null</tt> after a restart. */
+		final Message message;
+		int attempts;
+
+		Delivery(Notification record, TavernaRun originator, Message message) {
+			this.record = record;
+			this.originator = originator;
+			this.message = message;
+			this.attempts = record.getAttempts();
+		}
+
+		@Override
+		public String toString() {
+			return record.getDispatcher() + ":" + record.getTarget();
+		}
+	}
+
+	/** Thrown when retrying a message cannot possibly help. */
+	@SuppressWarnings("serial")
+	private static class UndeliverableException extends Exception {
+		UndeliverableException(Throwable cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Arranges for the thread sending a message to be interrupted if it takes
+	 * too long, without ever leaving a stray interrupt on the thread.
+	 */
+	private static class Watchdog implements Runnable {
+		private final Thread worker = Thread.currentThread();
+		private boolean running = true;
+		private boolean fired;
+
+		@Override
+		public synchronized void run() {
+			if (running) {
+				running = false;
+				fired = true;
+				worker.interrupt();
+			}
+		}
+
+		/** @return Whether the watchdog interrupted the sending. */
+		synchronized boolean finish() {
+			if (running)
+				running = false;
+			else
+				Thread.interrupted();
+			return fired;
+		}
+	}
+
+	/**
+	 * An attempt to send a message by an asynchronous dispatcher. Whichever of
+	 * the dispatcher and the timeout reports first decides the outcome.
+	 */
+	private class Attempt implements AsyncMessageDispatcher.Completion,
+			Runnable {
+		private final Lane lane;
+		private final Delivery delivery;
+		private final long start = currentTimeMillis();
+		private final AtomicBoolean done = new AtomicBoolean();
+		volatile ScheduledFuture<?> alarm;
+
+		Attempt(Lane lane, Delivery delivery) {
+			this.lane = lane;
+			this.delivery = delivery;
+		}
+
+		@Override
+		public void delivered() {
+			finish(null, false);
+		}
+
+		@Override
+		public void failed(Exception reason) {
+			finish(reason, false);
+		}
+
+		/** The timeout. */
+		@Override
+		public void run() {
+			finish(new Exception("timed out"), true);
+		}
+
+		private void finish(Exception failure, boolean timedOut) {
+			if (!done.compareAndSet(false, true))
+				return;
+			ScheduledFuture<?> alarm = this.alarm;
+			if (alarm != null)
+				alarm.cancel(false);
+			lane.inFlight.decrementAndGet();
+			finished(lane, delivery, start, failure, timedOut);
+		}
+	}
+
+	private synchronized Lane lane(String name) {
+		Lane lane = lanes.get(name);
+		if (lane == null) {
+			Integer threads = dispatcherThreads.get(name);
+			lane = new Lane(name, threads == null ? threadsPerDispatcher : max(
+					1, threads), queueCapacity);
+			lanes.put(name, lane);
+		}
+		return lane;
+	}
+
+	private synchronized List<Map.Entry<String, Lane>> allLanes() {
+		return new ArrayList<>(lanes.entrySet());
+	}
+
 	private void dispatchToChosenTarget(TavernaRun originator, String scheme,
-			String target, Message message) throws Exception {
+			String target, Message message) {
+		MessageDispatcher d = dispatchers.get(scheme);
+		if (d == null || !d.isAvailable()) {
+			log.warn("no such notification dispatcher for " + scheme);
+			return;
+		}
+		Notification n = new Notification(scheme, target,
+				originator == null ? null : originator.getId(),
+				message.getTitle(scheme), message.getContent(scheme));
+		if (dao != null)
+			try {
+				dao.save(n);
+			} catch (RuntimeException e) {
+				log.warn("failed to record notification for " + scheme + ":"
+						+ target + "; it will be lost if the server stops", e);
+			}
+		submit(new Delivery(n, originator, message));
+	}
+
+	private void submit(final Delivery delivery) {
+		if (stopped)
+			return;
+		final Lane lane = lane(delivery.record.getDispatcher());
 		try {
-			MessageDispatcher d = dispatchers.get(scheme);
-			if (d != null && d.isAvailable())
-				d.dispatch(originator, message.getTitle(scheme),
-						message.getContent(scheme), target);
-			else
-				log.warn("no such notification dispatcher for " + scheme);
+			lane.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					attempt(lane, delivery);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (stopped)
+				return;
+			// Queue full; try again later without counting it as a failure
+			lane.deferred.incrementAndGet();
+			later(lane, delivery, initialRetryDelay);
+		}
+	}
+
+	private void later(final Lane lane, final Delivery delivery, long delay) {
+		lane.waiting.incrementAndGet();
+		try {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					lane.waiting.decrementAndGet();
+					submit(delivery);
+				}
+			}, delay, MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down; the message is still in the database
+			lane.waiting.decrementAndGet();
+		}
+	}
+
+	private void attempt(Lane lane, Delivery delivery) {
+		MessageDispatcher d = dispatchers.get(delivery.record.getDispatcher());
+		if (d instanceof AsyncMessageDispatcher && d.isAvailable()) {
+			attemptAsync(lane, delivery, (AsyncMessageDispatcher) d);
+			return;
+		}
+		Watchdog watchdog = new Watchdog();
+		ScheduledFuture<?> alarm;
+		try {
+			alarm = timer.schedule(watchdog, timeout, MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down; the message is still in the database
+			return;
+		}
+		long start = currentTimeMillis();
+		Exception failure = null;
+		boolean timedOut;
+		try {
+			send(delivery);
+		} catch (Exception e) {
+			failure = e;
+		} finally {
+			alarm.cancel(false);
+			timedOut = watchdog.finish();
+		}
+		finished(lane, delivery, start, failure, timedOut);
+	}
+
+	/**
+	 * Hand a message to an asynchronous dispatcher, and return without
+	 * waiting for it to be sent.
+	 */
+	private void attemptAsync(Lane lane, Delivery delivery,
+			AsyncMessageDispatcher d) {
+		Attempt attempt = new Attempt(lane, delivery);
+		lane.inFlight.incrementAndGet();
+		try {
+			attempt.alarm = timer.schedule(attempt, timeout, MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down; the message is still in the database
+			lane.inFlight.decrementAndGet();
+			return;
+		}
+		Notification n = delivery.record;
+		try {
+			d.dispatch(delivery.originator, n.getSubject(), n.getContent(),
+					n.getTarget(), attempt);
 		} catch (URISyntaxException e) {
-			// See if *someone* will handle the message
-			Exception e2 = null;
-			for (MessageDispatcher d : dispatchers.values())
+			try {
+				fallBack(delivery, e);
+				attempt.delivered();
+			} catch (Exception e2) {
+				attempt.failed(e2);
+			}
+		} catch (Exception e) {
+			attempt.failed(e);
+		}
+	}
+
+	/** Record the outcome of an attempt to send a message. */
+	private void finished(Lane lane, Delivery delivery, long start,
+			Exception failure, boolean timedOut) {
+		long end = currentTimeMillis();
+
+		if (failure == null) {
+			lane.delivered(end - start, end
+					- delivery.record.getCreated().getTime());
+			if (dao != null)
+				try {
+					dao.delivered(delivery.record.getId());
+				} catch (RuntimeException e) {
+					log.warn("failed to record delivery of notification to "
+							+ delivery + "; it may be sent again", e);
+				}
+			return;
+		}
+
+		if (failure instanceof DeliveryDeferredException) {
+			long delay = ((DeliveryDeferredException) failure).getDelay();
+			lane.deferred.incrementAndGet();
+			if (dao != null)
 				try {
-					if (d.isAvailable()) {
-						d.dispatch(originator, message.getTitle(d.getName()),
-								message.getContent(d.getName()), scheme + ":"
-										+ target);
-						return;
-					}
-				} catch (Exception ex) {
-					if (log.isDebugEnabled())
-						log.debug("failed in pseudo-directed dispatch of "
-								+ scheme + ":" + target, ex);
-					e2 = ex;
+					dao.failed(delivery.record.getId(), delivery.attempts,
+							new Date(end + delay), failure.getMessage());
+				} catch (RuntimeException e) {
+					log.warn("failed to record deferral of notification to "
+							+ delivery, e);
 				}
-			if (e2 != null)
-				throw e2;
+			later(lane, delivery, delay);
+			return;
 		}
+
+		lane.failures.incrementAndGet();
+		int attempts = ++delivery.attempts;
+		String error = timedOut ? "timed out after " + timeout + "ms"
+				: failure.toString();
+		boolean giveUp = failure instanceof UndeliverableException
+				|| attempts >= maxAttempts;
+		long delay = retryDelay(attempts);
+		if (giveUp)
+			lane.dead.incrementAndGet();
+		if (dao != null)
+			try {
+				dao.failed(delivery.record.getId(), attempts, giveUp ? null
+						: new Date(end + delay), error);
+			} catch (RuntimeException e) {
+				log.warn("failed to record failure of notification to "
+						+ delivery, e);
+			}
+		if (giveUp) {
+			log.warn("giving up on notification to " + delivery + " after "
+					+ attempts + " attempts: " + error, failure);
+		} else {
+			if (log.isDebugEnabled())
+				log.debug("failed to send notification to " + delivery
+						+ "; will try again in " + delay + "ms", failure);
+			later(lane, delivery, delay);
+		}
+	}
+
+	long retryDelay(int attempts) {
+		long delay = initialRetryDelay;
+		for (int i = 1; i < attempts && delay < maxRetryDelay; i++)
+			delay *= 2;
+		return Math.min(delay, maxRetryDelay);
+	}
+
+	private void send(Delivery delivery) throws Exception {
+		Notification n = delivery.record;
+		MessageDispatcher d = dispatchers.get(n.getDispatcher());
+		if (d == null || !d.isAvailable())
+			throw new Exception("notification dispatcher for "
+					+ n.getDispatcher() + " not available");
+		try {
+			d.dispatch(delivery.originator, n.getSubject(), n.getContent(),
+					n.getTarget());
+		} catch (URISyntaxException e) {
+			fallBack(delivery, e);
+		}
+	}
+
+	/** See if <i>someone</i> will handle a message with a bad target. */
+	private void fallBack(Delivery delivery, URISyntaxException e)
+			throws Exception {
+		Notification n = delivery.record;
+		Exception e2 = e;
+		for (MessageDispatcher other : dispatchers.values())
+			try {
+				if (other.isAvailable()) {
+					String type = other.getName();
+					other.dispatch(delivery.originator,
+							delivery.message == null ? n.getSubject()
+									: delivery.message.getTitle(type),
+							delivery.message == null ? n.getContent()
+									: delivery.message.getContent(type),
+							n.getDispatcher() + ":" + n.getTarget());
+					return;
+				}
+			} catch (DeliveryDeferredException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				if (log.isDebugEnabled())
+					log.debug("failed in pseudo-directed dispatch of "
+							+ delivery, ex);
+				e2 = ex;
+			}
+		throw new UndeliverableException(e2);
 	}
 
 	private void dispatchUniversally(TavernaRun originator, Message message)
@@ -92,7 +599,8 @@ public class NotificationEngine {
 	}
 
 	/**
-	 * Dispatch a message over the notification fabric.
+	 * Dispatch a message over the notification fabric. The message is only
+	 * queued for its chosen target; this does not wait for it to be sent.
 	 * 
 	 * @param originator
 	 *            What workflow run was the source of this message?
@@ -102,15 +610,35 @@ public class NotificationEngine {
 	 *            determines the dispatcher) or as an invalid URI in which case
 	 *            it is just tried against the possibilities to see if any
 	 *            succeeds.
-	 * @param subject
-	 *            The subject line of the message.
 	 * @param message
-	 *            The plain text body of the message.
+	 *            The message to send, which can be rendered for each type of
+	 *            dispatcher.
 	 * @throws Exception
 	 *             If anything goes wrong with the dispatch process.
 	 */
 	public void dispatchMessage(TavernaRun originator, String destination,
 			Message message) throws Exception {
+		dispatchToTarget(originator, destination, message);
+		dispatchUniversally(originator, message);
+	}
+
+	/**
+	 * Dispatch a message to its chosen target only, and not to the universal
+	 * dispatchers. The message is only queued; this does not wait for it to
+	 * be sent.
+	 * 
+	 * @param originator
+	 *            What workflow run was the source of this message?
+	 * @param destination
+	 *            Where the message should get delivered to, as a URI whose
+	 *            scheme determines the dispatcher. Destinations that are not
+	 *            URIs are ignored.
+	 * @param message
+	 *            The message to send, which can be rendered for each type of
+	 *            dispatcher.
+	 */
+	public void dispatchToTarget(TavernaRun originator, String destination,
+			Message message) {
 		if (destination != null && !destination.trim().isEmpty()) {
 			try {
 				URI toURI = new URI(destination.trim());
@@ -120,7 +648,108 @@ public class NotificationEngine {
 				// Ignore
 			}
 		}
-		dispatchUniversally(originator, message);
+	}
+
+	/**
+	 * Start sending the messages that had not been sent when the server last
+	 * stopped, at the times they were due to be retried.
+	 */
+	@PostConstruct
+	public void resumePending() {
+		if (dao == null)
+			return;
+		List<Notification> pending;
+		try {
+			pending = dao.getPending();
+		} catch (RuntimeException e) {
+			log.warn("failed to load unsent notifications", e);
+			return;
+		}
+		long now = currentTimeMillis();
+		for (Notification n : pending)
+			later(lane(n.getDispatcher()), new Delivery(n, null, null),
+					max(0, n.getNextAttempt().getTime() - now));
+		if (!pending.isEmpty())
+			log.info("resuming delivery of " + pending.size()
+					+ " unsent notifications");
+	}
+
+	/**
+	 * Stop sending messages. Those not yet sent remain in the database.
+	 */
+	@PreDestroy
+	public void stop() {
+		stopped = true;
+		timer.shutdownNow();
+		for (Map.Entry<String, Lane> entry : allLanes())
+			entry.getValue().executor.shutdownNow();
+	}
+
+	@ManagedAttribute(description = "The delivery statistics of each notification dispatcher.")
+	public String[] getDispatcherStatistics() {
+		List<String> result = new ArrayList<>();
+		for (Map.Entry<String, Lane> entry : allLanes())
+			result.add(entry.getValue().describe(entry.getKey()));
+		return result.toArray(new String[result.size()]);
+	}
+
+	@ManagedAttribute(description = "The number of notifications delivered.")
+	public long getDeliveredCount() {
+		long count = 0;
+		for (Map.Entry<String, Lane> entry : allLanes())
+			count += entry.getValue().delivered.get();
+		return count;
+	}
+
+	@ManagedAttribute(description = "The number of failed attempts to deliver notifications.")
+	public long getFailedAttemptCount() {
+		long count = 0;
+		for (Map.Entry<String, Lane> entry : allLanes())
+			count += entry.getValue().failures.get();
+		return count;
+	}
+
+	@ManagedAttribute(description = "The number of notifications given up on since the server started.")
+	public long getUndeliverableCount() {
+		long count = 0;
+		for (Map.Entry<String, Lane> entry : allLanes())
+			count += entry.getValue().dead.get();
+		return count;
+	}
+
+	@ManagedAttribute(description = "The number of notifications waiting to be sent or being sent.")
+	public int getQueuedCount() {
+		int count = 0;
+		for (Map.Entry<String, Lane> entry : allLanes())
+			count += entry.getValue().queued();
+		return count;
+	}
+
+	/**
+	 * Try again to send the messages that were given up on.
+	 * 
+	 * @return How many messages will be tried again.
+	 */
+	@ManagedOperation(description = "Try again to send the notifications that were given up on.")
+	public int retryUndeliverable() {
+		if (dao == null)
+			return 0;
+		List<Notification> revived = dao.reviveDead();
+		for (Notification n : revived)
+			submit(new Delivery(n, null, null));
+		return revived.size();
+	}
+
+	/**
+	 * Forget the messages that were given up on.
+	 * 
+	 * @return How many messages were forgotten.
+	 */
+	@ManagedOperation(description = "Forget the notifications that were given up on.")
+	public int discardUndeliverable() {
+		if (dao == null)
+			return 0;
+		return dao.deleteDead();
 	}
 
 	/**
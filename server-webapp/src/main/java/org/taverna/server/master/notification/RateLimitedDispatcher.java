@@ -5,26 +5,62 @@
  */
 package org.taverna.server.master.notification;
 
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.joda.time.DateTime;
 import org.taverna.server.master.interfaces.MessageDispatcher;
 import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.utils.StripedLruCache;
 
 /**
  * Rate-limiting support. Some message fabrics simply should not be used to send
  * a lot of messages.
+ * <p>
+ * Each target may be sent a <i>burst</i> of messages at once, and then one
+ * message per cooldown period. This is tracked as the time of the next free
+ * sending slot for the target. A message that comes too soon is given its own
+ * slot, the next free one, and is {@linkplain DeliveryDeferredException
+ * deferred} until then; when it is tried again it is sent in that slot,
+ * without taking another. Later messages get later slots, so they cannot
+ * overtake the deferred ones. Once a target has too many messages waiting,
+ * further ones are dropped. A message that fails to send gives its slot back.
+ * <p>
+ * Only a bounded number of targets are remembered (the least recently used are
+ * forgotten first), and a target is also forgotten once it has been idle for
+ * long enough that everything waiting has been sent, so memory use stays
+ * constant however many targets there are. Forgetting a target before then
+ * merely lets it send again early.
  * 
  * @author Donal Fellows
  */
 public abstract class RateLimitedDispatcher implements MessageDispatcher {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	/** How many independently locked parts the table of targets has. */
+	private static final int CONCURRENCY = 16;
+	/**
+	 * How long after its slot a deferred message's reservation is kept for it
+	 * to be tried again, in nanoseconds. After that, it is assumed never to be
+	 * coming back (e.g., the server was restarted).
+	 */
+	private static final long RESERVATION_GRACE = 60 * NANOS_PER_SECOND;
 	/** Pre-configured logger. */
 	protected Log log = LogFactory.getLog("Taverna.Server.Notification");
-	private int cooldownSeconds;
-	private Map<String, DateTime> lastSend = new HashMap<>();
+	private volatile int cooldownSeconds;
+	private volatile int burst = 1;
+	private volatile int maxTargets = 10000;
+	private volatile int maxDeferred;
+	private volatile StripedLruCache<String, Bucket> buckets = newBuckets();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
 
 	String valid(String value, String def) {
 		if (value == null || value.trim().isEmpty()
@@ -36,40 +72,248 @@ public abstract class RateLimitedDispatcher implements MessageDispatcher {
 
 	/**
 	 * Set how long must elapse between updates to the status of any particular
-	 * user. Calls before that time are just silently dropped.
+	 * user, once any burst allowance is used up. Calls before that time are
+	 * deferred or silently dropped.
 	 * 
 	 * @param cooldownSeconds
 	 *            Time to elapse, in seconds.
 	 */
 	public void setCooldownSeconds(int cooldownSeconds) {
 		this.cooldownSeconds = cooldownSeconds;
+		buckets = newBuckets();
+	}
+
+	/**
+	 * Set how many messages may be sent to any particular user in quick
+	 * succession before the cooldown applies.
+	 * 
+	 * @param burst
+	 *            The number of messages; at least 1.
+	 */
+	public void setBurst(int burst) {
+		this.burst = max(1, burst);
+		buckets = newBuckets();
 	}
 
 	/**
-	 * Test whether the rate limiter allows the given user to send a message.
+	 * Set how many users have their sending history remembered.
+	 * 
+	 * @param maxTargets
+	 *            The number of users.
+	 */
+	public void setMaxTargets(int maxTargets) {
+		this.maxTargets = max(1, maxTargets);
+		buckets = newBuckets();
+	}
+
+	/**
+	 * Set how many messages to any particular user may be waiting for their
+	 * turn to be sent. Messages beyond that are silently dropped.
+	 * 
+	 * @param maxDeferred
+	 *            The number of messages; zero to drop all messages that come
+	 *            too soon.
+	 */
+	public void setMaxDeferred(int maxDeferred) {
+		this.maxDeferred = max(0, maxDeferred);
+		buckets = newBuckets();
+	}
+
+	/** @return How many messages were dropped for being sent too often. */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/** @return How many times a message was told to wait for its turn. */
+	public long getDeferredCount() {
+		return deferred.get();
+	}
+
+	/** @return How many users currently have their sending history remembered. */
+	int getTrackedTargets() {
+		return buckets.size();
+	}
+
+	/** @return The current time, in nanoseconds. */
+	long now() {
+		return nanoTime();
+	}
+
+	private StripedLruCache<String, Bucket> newBuckets() {
+		// Long enough for everything waiting to be sent and the burst to be
+		// available again, but at least a second
+		long lifetime = max(1000L, 1000L * cooldownSeconds
+				* (burst + maxDeferred))
+				+ RESERVATION_GRACE / 1000000;
+		return new StripedLruCache<>(maxTargets, lifetime, CONCURRENCY);
+	}
+
+	/**
+	 * Ask the rate limiter when the given user may be sent a message, taking
+	 * a slot for it if it may be sent now or reserving one if it must wait.
+	 * 
+	 * @param who
+	 *            Who wants to send the message?
+	 * @param message
+	 *            What identifies the message, so that a deferred message is
+	 *            recognised when it is tried again; <tt>null</tt> if the
+	 *            message may not be deferred.
+	 * @return Zero if the message may be sent now, the number of milliseconds
+	 *         to wait if it should be sent later, or negative if it should be
+	 *         dropped.
+	 */
+	long sendDelay(String who, final String message) {
+		int cooldown = cooldownSeconds;
+		if (cooldown <= 0)
+			return 0;
+		final long now = now();
+		final long period = cooldown * NANOS_PER_SECOND;
+		final int burst = this.burst;
+		final int maxDeferred = (message == null ? 0 : this.maxDeferred);
+		long delay = buckets.apply(who,
+				new StripedLruCache.Action<Bucket, Long>() {
+					@Override
+					public Bucket create() {
+						return new Bucket(now);
+					}
+
+					@Override
+					public Long apply(Bucket b) {
+						return b.take(now, period, burst, maxDeferred, message);
+					}
+				});
+		if (delay < 0)
+			dropped.incrementAndGet();
+		else if (delay > 0) {
+			deferred.incrementAndGet();
+			return max(1, (delay + 999999) / 1000000);
+		}
+		return delay;
+	}
+
+	/**
+	 * Test whether the rate limiter allows the given user to send a message
+	 * now. If not, nothing is reserved.
 	 * 
 	 * @param who
 	 *            Who wants to send the message?
 	 * @return <tt>true</tt> iff they are permitted.
 	 */
 	protected boolean isSendAllowed(String who) {
-		DateTime now = new DateTime();
-		synchronized (lastSend) {
-			DateTime last = lastSend.get(who);
-			if (last != null) {
-				if (!now.isAfter(last.plusSeconds(cooldownSeconds)))
-					return false;
+		return sendDelay(who, null) == 0;
+	}
+
+	/**
+	 * Give back the slot used by a message to the given user, because sending
+	 * it failed; a retry should not be dropped for coming too soon.
+	 * 
+	 * @param who
+	 *            Who the message was for.
+	 */
+	protected void sendFailed(String who) {
+		Bucket b = buckets.get(who);
+		if (b != null)
+			b.release(now(), cooldownSeconds * NANOS_PER_SECOND);
+	}
+
+	/** @return What identifies a message among those to one target. */
+	private static String key(String subject, String content) {
+		return subject + "\n" + content;
+	}
+
+	/**
+	 * The sending slots of a target. The next free slot is kept as a
+	 * <i>theoretical arrival time</i>: a message may be sent at once if that
+	 * is no more than a burst's worth of periods ahead, and each message
+	 * (sent or deferred) moves it on by one period.
+	 */
+	private static final class Bucket {
+		/** When the slot after all those already taken starts. */
+		private long nextFree;
+		/** The slots reserved for deferred messages, by message. */
+		private final Map<String, Deque<Long>> reserved = new HashMap<>();
+		private int waiting;
+
+		Bucket(long now) {
+			nextFree = now;
+		}
+
+		/**
+		 * @return Zero if the message may be sent now, how many nanoseconds
+		 *         until its slot if it should wait, or negative if too many
+		 *         messages are waiting already.
+		 */
+		synchronized long take(long now, long period, int burst,
+				int maxDeferred, String message) {
+			forgetAbandoned(now);
+			Deque<Long> slots = (message == null ? null : reserved.get(message));
+			if (slots != null) {
+				// Tried again; it keeps the slot it was given
+				long slot = slots.getFirst();
+				if (slot > now)
+					return slot - now;
+				unreserve(message, slots);
+				return 0;
+			}
+			long tat = max(nextFree, now);
+			long slot = tat - (burst - 1) * period;
+			if (slot <= now) {
+				nextFree = tat + period;
+				return 0;
+			}
+			if (waiting >= maxDeferred)
+				return -1;
+			nextFree = tat + period;
+			slots = new ArrayDeque<>();
+			slots.add(slot);
+			reserved.put(message, slots);
+			waiting++;
+			return slot - now;
+		}
+
+		/** Give back the slot taken by a message that failed to send. */
+		synchronized void release(long now, long period) {
+			nextFree = max(now, nextFree - period);
+		}
+
+		private void unreserve(String message, Deque<Long> slots) {
+			slots.removeFirst();
+			if (slots.isEmpty())
+				reserved.remove(message);
+			waiting--;
+		}
+
+		private void forgetAbandoned(long now) {
+			if (waiting == 0)
+				return;
+			for (Iterator<Deque<Long>> it = reserved.values().iterator(); it
+					.hasNext();) {
+				Deque<Long> slots = it.next();
+				while (!slots.isEmpty()
+						&& slots.getFirst() + RESERVATION_GRACE < now) {
+					slots.removeFirst();
+					waiting--;
+				}
+				if (slots.isEmpty())
+					it.remove();
 			}
-			lastSend.put(who, now);
 		}
-		return true;
 	}
 
 	@Override
 	public void dispatch(TavernaRun ignored, String messageSubject,
 			String messageContent, String target) throws Exception {
-		if (isSendAllowed(target))
+		long delay = sendDelay(target, key(messageSubject, messageContent));
+		if (delay < 0)
+			return;
+		else if (delay > 0)
+			throw new DeliveryDeferredException(target, delay);
+		try {
 			dispatch(messageSubject, messageContent, target);
+		} catch (Exception e) {
+			sendFailed(target);
+			throw e;
+		}
 	}
 
 	/**
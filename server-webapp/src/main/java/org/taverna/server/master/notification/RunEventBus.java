@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.taverna.server.master.common.Status;
+import org.taverna.server.master.utils.TimerWheel;
+
+/**
+ * An in-process bus carrying the events that happen to workflow runs (changes
+ * of state, new interaction requests) to whoever is waiting for them. Each
+ * event gets an identifier that is larger than that of every event before it,
+ * so a client can say "tell me about everything after <i>this</i>" and never
+ * miss or repeat anything; the identifiers keep growing across restarts of
+ * the server too. A short history of recent events is kept for each run so
+ * that a client that was briefly disconnected can catch up.
+ * <p>
+ * Watchers are held without a thread each; they are called back when an event
+ * arrives for their run, or with nothing when their time runs out (checked by
+ * {@link #expireWatches()}, which must be called periodically).
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "RunEventBus", description = "Delivers the events of workflow runs to waiting clients.")
+public class RunEventBus {
+	/** The type of events that say what state a run is now in. */
+	public static final String STATUS = "status";
+	/** The type of events that say a new interaction entry has appeared. */
+	public static final String INTERACTION = "interaction";
+	/** The type of the event that says a run has been destroyed. */
+	public static final String DESTROYED = "destroyed";
+	/** How many events are remembered for each run. */
+	private static final int HISTORY = 32;
+	/** How long events are remembered for, in milliseconds. */
+	private static final long HISTORY_LIFETIME = 10 * 60 * 1000;
+	/** The granularity of watch timeouts, in milliseconds. */
+	private static final long TICK = 100;
+
+	/**
+	 * Something that happened to a run.
+	 *
+	 * @author Donal Fellows
+	 */
+	public static final class RunEvent {
+		private final long id;
+		private final String type;
+		private final String data;
+		private final long time;
+
+		RunEvent(long id, String type, String data, long time) {
+			this.id = id;
+			this.type = type;
+			this.data = data;
+			this.time = time;
+		}
+
+		/** @return The identifier of the event. */
+		public long getId() {
+			return id;
+		}
+
+		/** @return What sort of event this is. */
+		@Nonnull
+		public String getType() {
+			return type;
+		}
+
+		/** @return The details of the event. */
+		@Nonnull
+		public String getData() {
+			return data;
+		}
+	}
+
+	/**
+	 * Someone waiting for events.
+	 *
+	 * @author Donal Fellows
+	 */
+	public interface Watcher {
+		/**
+		 * Called (once) when there are events for the watcher or it has waited
+		 * as long as it may. Must not block.
+		 *
+		 * @param events
+		 *            The events, oldest first; empty if the watcher timed out.
+		 * @param latest
+		 *            The identifier to wait after next time.
+		 */
+		void deliver(@Nonnull List<RunEvent> events, long latest);
+	}
+
+	private static class Watch {
+		final String run;
+		final Watcher watcher;
+
+		Watch(String run, Watcher watcher) {
+			this.run = run;
+			this.watcher = watcher;
+		}
+	}
+
+	private static class Channel {
+		final Deque<RunEvent> history = new ArrayDeque<>();
+		final Set<Watch> watches = new HashSet<>();
+	}
+
+	private final Log log = getLog("Taverna.Server.Notification");
+	private final Map<String, Channel> channels = new HashMap<>();
+	private final TimerWheel<Watch> timeouts;
+	/** Millisecond timestamp scaled up, so identifiers grow across restarts. */
+	private final AtomicLong sequence = new AtomicLong(
+			currentTimeMillis() * 1000);
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private int watchCount;
+	private volatile int maxWatches = 1000;
+	private volatile Semaphore blocking = new Semaphore(20);
+	private volatile int maxBlocking = 20;
+
+	public RunEventBus() {
+		timeouts = new TimerWheel<>(TICK, now());
+	}
+
+	/** @return The current time, in milliseconds. */
+	long now() {
+		return currentTimeMillis();
+	}
+
+	@ManagedAttribute(description = "The maximum number of clients that may be waiting for run events at once.")
+	public void setMaxWatches(int maxWatches) {
+		this.maxWatches = maxWatches;
+	}
+
+	@ManagedAttribute(description = "The maximum number of clients that may be waiting for run events at once.")
+	public int getMaxWatches() {
+		return maxWatches;
+	}
+
+	@ManagedAttribute(description = "The maximum number of request threads that may be held waiting for run events when the container cannot suspend requests.")
+	public void setMaxBlocking(int maxBlocking) {
+		this.maxBlocking = maxBlocking;
+		this.blocking = new Semaphore(maxBlocking);
+	}
+
+	@ManagedAttribute(description = "The maximum number of request threads that may be held waiting for run events when the container cannot suspend requests.")
+	public int getMaxBlocking() {
+		return maxBlocking;
+	}
+
+	@ManagedAttribute(description = "The number of clients currently waiting for run events.")
+	public synchronized int getWatchCount() {
+		return watchCount;
+	}
+
+	@ManagedAttribute(description = "The number of run events published.")
+	public long getPublishedCount() {
+		return published.get();
+	}
+
+	@ManagedAttribute(description = "The number of waiting clients that were answered with no events.")
+	public long getTimedOutCount() {
+		return timedOut.get();
+	}
+
+	/**
+	 * @return The identifier of the most recent event (of any run); waiting
+	 *         for events after this only gets new events.
+	 */
+	public long getLatest() {
+		return sequence.get();
+	}
+
+	/**
+	 * Record that a run has changed state.
+	 *
+	 * @param runId
+	 *            The ID of the run.
+	 * @param status
+	 *            The state that the run is now in.
+	 */
+	public void statusChanged(@Nonnull String runId, @Nonnull Status status) {
+		publish(runId, STATUS, status.toString());
+	}
+
+	/**
+	 * Record that a run has been destroyed. Anyone waiting for its events is
+	 * told, and its history is forgotten.
+	 *
+	 * @param runId
+	 *            The ID of the run.
+	 */
+	public void runDestroyed(@Nonnull String runId) {
+		publish(runId, DESTROYED, runId);
+		synchronized (this) {
+			Channel c = channels.get(runId);
+			if (c != null && c.watches.isEmpty())
+				channels.remove(runId);
+		}
+	}
+
+	/**
+	 * Record that something happened to a run, and tell anyone waiting for it.
+	 *
+	 * @param runId
+	 *            The ID of the run.
+	 * @param type
+	 *            What sort of event it is.
+	 * @param data
+	 *            The details of the event.
+	 */
+	public void publish(@Nonnull String runId, @Nonnull String type,
+			@Nonnull String data) {
+		List<Watch> waiting;
+		RunEvent event;
+		synchronized (this) {
+			event = new RunEvent(sequence.incrementAndGet(), type, data, now());
+			Channel c = channel(runId);
+			c.history.addLast(event);
+			if (c.history.size() > HISTORY)
+				c.history.removeFirst();
+			waiting = new ArrayList<>(c.watches);
+			c.watches.clear();
+			for (Watch w : waiting)
+				timeouts.cancel(w);
+			watchCount -= waiting.size();
+		}
+		published.incrementAndGet();
+		List<RunEvent> events = singletonList(event);
+		for (Watch w : waiting)
+			deliver(w, events, event.getId());
+	}
+
+	/**
+	 * Get the remembered events of a run.
+	 *
+	 * @param runId
+	 *            The ID of the run.
+	 * @param since
+	 *            Only events with a larger identifier than this are returned.
+	 * @return The events, oldest first.
+	 */
+	@Nonnull
+	public synchronized List<RunEvent> eventsSince(@Nonnull String runId,
+			long since) {
+		Channel c = channels.get(runId);
+		if (c == null)
+			return emptyList();
+		return after(c, since);
+	}
+
+	private static List<RunEvent> after(Channel c, long since) {
+		List<RunEvent> events = new ArrayList<>();
+		for (RunEvent e : c.history)
+			if (e.getId() > since)
+				events.add(e);
+		return events;
+	}
+
+	private Channel channel(String runId) {
+		Channel c = channels.get(runId);
+		if (c == null) {
+			c = new Channel();
+			channels.put(runId, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Wait for events of a run without holding a thread. If there are already
+	 * events after the given one, the watcher is called straight away.
+	 *
+	 * @param runId
+	 *            The ID of the run.
+	 * @param since
+	 *            The identifier of the last event the watcher knows about.
+	 * @param timeout
+	 *            How long to wait, in milliseconds.
+	 * @param watcher
+	 *            What to call when there are events or the time has run out.
+	 * @return Whether the watcher was accepted; it is refused (and not called)
+	 *         if too many watchers are waiting already.
+	 */
+	public boolean watch(@Nonnull String runId, long since, long timeout,
+			@Nonnull Watcher watcher) {
+		Watch w = new Watch(runId, watcher);
+		List<RunEvent> events;
+		synchronized (this) {
+			Channel c = channel(runId);
+			events = after(c, since);
+			if (events.isEmpty()) {
+				if (watchCount >= maxWatches)
+					return false;
+				c.watches.add(w);
+				timeouts.schedule(w, now() + timeout);
+				watchCount++;
+				return true;
+			}
+		}
+		deliver(w, events, events.get(events.size() - 1).getId());
+		return true;
+	}
+
+	/**
+	 * Wait for events of a run, holding the current thread. For use only when
+	 * the request cannot be suspended; the number of threads that may be held
+	 * at once is limited separately.
+	 *
+	 * @param runId
+	 *            The ID of the run.
+	 * @param since
+	 *            The identifier of the last event the caller knows about.
+	 * @param timeout
+	 *            How long to wait, in milliseconds.
+	 * @return The events, which are empty if none arrived in time, or
+	 *         <tt>null</tt> if too many callers are waiting already.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	@Nullable
+	public List<RunEvent> await(@Nonnull String runId, long since, long timeout)
+			throws InterruptedException {
+		Semaphore s = blocking;
+		if (!s.tryAcquire())
+			return null;
+		try {
+			final CountDownLatch done = new CountDownLatch(1);
+			final List<RunEvent> result = new ArrayList<>();
+			if (!watch(runId, since, timeout, new Watcher() {
+				@Override
+				public void deliver(List<RunEvent> events, long latest) {
+					synchronized (result) {
+						result.addAll(events);
+					}
+					done.countDown();
+				}
+			}))
+				return null;
+			// The bus will answer by the timeout; don't rely on it entirely
+			done.await(timeout + 10 * TICK, TimeUnit.MILLISECONDS);
+			synchronized (result) {
+				return new ArrayList<>(result);
+			}
+		} finally {
+			s.release();
+		}
+	}
+
+	/**
+	 * Answer the watchers whose time has run out, and forget old events. Must
+	 * be called periodically (e.g., every second).
+	 */
+	public void expireWatches() {
+		long now = now();
+		List<Watch> expired = new ArrayList<>();
+		long latest;
+		synchronized (this) {
+			latest = sequence.get();
+			for (Watch w : timeouts.advance(now)) {
+				Channel c = channels.get(w.run);
+				if (c != null && c.watches.remove(w)) {
+					watchCount--;
+					expired.add(w);
+				}
+			}
+			for (Iterator<Channel> it = channels.values().iterator(); it
+					.hasNext();) {
+				Channel c = it.next();
+				while (!c.history.isEmpty()
+						&& c.history.getFirst().time < now - HISTORY_LIFETIME)
+					c.history.removeFirst();
+				if (c.history.isEmpty() && c.watches.isEmpty())
+					it.remove();
+			}
+		}
+		timedOut.addAndGet(expired.size());
+		List<RunEvent> none = emptyList();
+		for (Watch w : expired)
+			deliver(w, none, latest);
+	}
+
+	private void deliver(Watch w, List<RunEvent> events, long latest) {
+		try {
+			w.watcher.deliver(events, latest);
+		} catch (RuntimeException e) {
+			log.warn("failed to deliver events for run " + w.run, e);
+		}
+	}
+}
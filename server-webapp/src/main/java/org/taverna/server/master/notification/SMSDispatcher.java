@@ -21,6 +21,7 @@ import javax.annotation.PreDestroy;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -42,6 +43,7 @@ public class SMSDispatcher extends RateLimitedDispatcher {
 	private CloseableHttpClient client;
 	private URI service;
 	private String user = "", pass = "";
+	private int timeout = 30000;
 	private String usernameField = "username", passwordField = "password",
 			destinationField = "to", messageField = "text";
 
@@ -105,9 +107,23 @@ public class SMSDispatcher extends RateLimitedDispatcher {
 		this.pass = valid(pass, "");
 	}
 
+	/**
+	 * @param timeout
+	 *            How long to wait for the SMS gateway to connect or to reply,
+	 *            in milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
 	@PostConstruct
 	void init() {
-		client = HttpClientBuilder.create().build();
+		client = HttpClientBuilder
+				.create()
+				.setDefaultRequestConfig(
+						RequestConfig.custom().setConnectTimeout(timeout)
+								.setConnectionRequestTimeout(timeout)
+								.setSocketTimeout(timeout).build()).build();
 	}
 
 	@PreDestroy
@@ -0,0 +1,694 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.joda.time.format.ISODateTimeFormat.dateTime;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.codehaus.jettison.json.JSONTokener;
+import org.joda.time.DateTime;
+import org.taverna.server.master.interfaces.AsyncMessageDispatcher;
+import org.taverna.server.master.interfaces.TavernaRun;
+
+/**
+ * Dispatch messages to programs by POSTing them as JSON to an HTTP or HTTPS
+ * URL (a <i>webhook</i>); the target is the URL, as in
+ * <tt>webhook:https://example.com/taverna-events</tt>. Messages that are
+ * already well-formed JSON objects (such as those made by the webhook notifier)
+ * are sent as they are; other messages are wrapped up as an object with
+ * <tt>subject</tt> and <tt>message</tt> fields.
+ * <p>
+ * Webhooks may not be on the server's own machine or networks (loopback,
+ * link-local, site-local and unique-local addresses): the address that the
+ * host name resolves to is checked when connecting, unless the administrator
+ * has permitted that host.
+ * <p>
+ * Messages are taken {@linkplain AsyncMessageDispatcher asynchronously}: each
+ * is put on the queue of its URL and the notification engine's thread returns
+ * at once. A single sender per URL sends the queued messages in one request,
+ * as <tt>{"sent":<i>time</i>,"events":[<i>message</i>,...]}</tt>; the first
+ * message of a batch waits briefly for others to join it, and each message in
+ * the batch is then reported as sent or failed, so that failed messages are
+ * retried by the notification engine as usual. A message whose URL already
+ * has too many messages queued is deferred. The time from taking a message to
+ * learning the outcome of its request is bounded by the timeout; this must be
+ * less than the notification engine's own timeout, so that each message's
+ * outcome is that of its batch. Connections are pooled and kept alive between
+ * requests. If a secret is configured, each
+ * request carries an HMAC-SHA256 signature of its body in the
+ * <tt>X-Taverna-Signature</tt> header, as <tt>sha256=<i>hex</i></tt>.
+ *
+ * @author Donal Fellows
+ */
+public class WebhookDispatcher implements AsyncMessageDispatcher {
+	/** The header carrying the signature of the request body. */
+	public static final String SIGNATURE_HEADER = "X-Taverna-Signature";
+	private static final String HMAC = "HmacSHA256";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** How long after the deadline to wait for an aborted request to end. */
+	private static final long ABORT_GRACE = 1000;
+	private Log log = LogFactory.getLog("Taverna.Server.Notification");
+	/** The senders with messages to send, by URL. Also their lock. */
+	private final Map<String, Sender> senders = new HashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong failedRequests = new AtomicLong();
+	private boolean enabled = true;
+	private String secret = "";
+	private Set<String> privateHosts = Collections.emptySet();
+	private int timeout = 25000;
+	private long linger = 200;
+	private int maxBatch = 50;
+	private int maxQueued = 200;
+	private int maxConnections = 20;
+	private int maxConnectionsPerHost = 4;
+	private CloseableHttpClient client;
+	private ThreadPoolExecutor sending;
+	private ScheduledThreadPoolExecutor timer;
+
+	@Override
+	public String getName() {
+		return "webhook";
+	}
+
+	/**
+	 * @param enabled
+	 *            Whether messages may be sent by webhook at all.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @param secret
+	 *            The key used to sign requests; if empty, requests are not
+	 *            signed.
+	 */
+	public void setSecret(String secret) {
+		this.secret = (secret == null || secret.trim().startsWith("${") ? ""
+				: secret.trim());
+	}
+
+	/**
+	 * @param hosts
+	 *            The webhook hosts that may be on the server's own machine or
+	 *            networks, separated by commas, or <tt>*</tt> for all hosts.
+	 */
+	public void setPermittedPrivateHosts(String hosts) {
+		Set<String> names = new HashSet<>();
+		if (hosts != null && !hosts.trim().startsWith("${"))
+			for (String host : hosts.split(","))
+				if (!host.trim().isEmpty())
+					names.add(host.trim().toLowerCase());
+		privateHosts = names;
+	}
+
+	/**
+	 * @param timeout
+	 *            The most time that sending a message may take in all,
+	 *            including waiting in its URL's queue, in milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param linger
+	 *            How long the first message for a URL waits for others to
+	 *            join it, in milliseconds.
+	 */
+	public void setLinger(long linger) {
+		this.linger = linger;
+	}
+
+	/**
+	 * @param maxBatch
+	 *            The most messages sent in one request.
+	 */
+	public void setMaxBatch(int maxBatch) {
+		this.maxBatch = Math.max(1, maxBatch);
+	}
+
+	/**
+	 * @param maxQueued
+	 *            The most messages that may wait to be sent to one URL; more
+	 *            are deferred.
+	 */
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = Math.max(1, maxQueued);
+	}
+
+	/**
+	 * @param maxConnections
+	 *            The most connections kept open to all webhooks together, and
+	 *            so the most requests in progress at once.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @param maxConnectionsPerHost
+	 *            The most connections kept open to any one webhook host.
+	 */
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	/** @return How many requests have been made. */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/** @return How many messages have been sent. */
+	public long getEventCount() {
+		return events.get();
+	}
+
+	/** @return How many requests have failed. */
+	public long getFailedRequestCount() {
+		return failedRequests.get();
+	}
+
+	@PostConstruct
+	void init() {
+		PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(
+				RegistryBuilder
+						.<ConnectionSocketFactory> create()
+						.register("http",
+								PlainConnectionSocketFactory.getSocketFactory())
+						.register("https",
+								SSLConnectionSocketFactory.getSocketFactory())
+						.build(), new GuardedResolver());
+		pool.setMaxTotal(maxConnections);
+		pool.setDefaultMaxPerRoute(maxConnectionsPerHost);
+		client = HttpClientBuilder
+				.create()
+				.setConnectionManager(pool)
+				.setDefaultRequestConfig(
+						RequestConfig.custom().setConnectTimeout(timeout)
+								.setConnectionRequestTimeout(timeout)
+								.setSocketTimeout(timeout).build()).build();
+		sending = new ThreadPoolExecutor(maxConnections, maxConnections, 60,
+				SECONDS, new LinkedBlockingQueue<Runnable>(), new Threads(
+						"Webhook sender"));
+		sending.allowCoreThreadTimeOut(true);
+		timer = new ScheduledThreadPoolExecutor(1, new Threads("Webhook timer"));
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	@PreDestroy
+	void close() throws IOException {
+		try {
+			if (timer != null)
+				timer.shutdownNow();
+			if (sending != null)
+				sending.shutdownNow();
+			if (client != null)
+				client.close();
+		} finally {
+			timer = null;
+			sending = null;
+			client = null;
+			synchronized (senders) {
+				// Their messages are still in the notification database
+				senders.clear();
+			}
+		}
+	}
+
+	/** Makes the (daemon) threads that send and time requests. */
+	private static class Threads implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		Threads(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + " " + count.incrementAndGet());
+			t.setContextClassLoader(null);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Resolves the names of webhook hosts, refusing addresses on the server's
+	 * own machine or networks unless the host is permitted to have them. As
+	 * this is done when connecting, a name cannot be made to resolve one way
+	 * when checked and another way when used.
+	 */
+	private class GuardedResolver implements DnsResolver {
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			InetAddress[] addresses = SystemDefaultDnsResolver.INSTANCE
+					.resolve(host);
+			Set<String> permitted = privateHosts;
+			if (!permitted.contains("*")
+					&& !permitted.contains(host.toLowerCase()))
+				for (InetAddress address : addresses)
+					if (isInternal(address))
+						throw new UnknownHostException("webhook host " + host
+								+ " has internal address "
+								+ address.getHostAddress()
+								+ ", which is not permitted");
+			return addresses;
+		}
+	}
+
+	/**
+	 * @param address
+	 *            An address to check.
+	 * @return Whether the address is on this machine or a private network.
+	 */
+	static boolean isInternal(@Nonnull InetAddress address) {
+		if (address.isAnyLocalAddress() || address.isLoopbackAddress()
+				|| address.isLinkLocalAddress() || address.isSiteLocalAddress()
+				|| address.isMulticastAddress())
+			return true;
+		// IPv6 unique local addresses, fc00::/7
+		return address instanceof Inet6Address
+				&& (address.getAddress()[0] & 0xfe) == 0xfc;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return enabled && client != null;
+	}
+
+	/** A message waiting to be sent. */
+	private static class Pending {
+		final String event;
+		final Completion completion;
+		/** When the message must have been sent by. */
+		final long deadline;
+
+		Pending(String event, Completion completion, long deadline) {
+			this.event = event;
+			this.completion = completion;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * The queue of messages for one URL, and the task that sends them in
+	 * batches. The sender is never running more than once at a time, so each
+	 * URL has at most one request in progress. All fields are guarded by the
+	 * lock on {@link #senders}.
+	 */
+	private class Sender implements Runnable {
+		final String target;
+		final URI uri;
+		final List<Pending> queue = new ArrayList<>();
+		/** Whether the sender is running or due to run. */
+		boolean scheduled;
+		/** The delayed start of the sender, while waiting for a batch. */
+		ScheduledFuture<?> lingering;
+
+		Sender(String target, URI uri) {
+			this.target = target;
+			this.uri = uri;
+		}
+
+		/** Called with the lock held, after a message has been queued. */
+		void queued() {
+			if (!scheduled) {
+				scheduled = true;
+				if (queue.size() >= maxBatch)
+					sending.execute(this);
+				else
+					lingering = timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							sending.execute(Sender.this);
+						}
+					}, linger, MILLISECONDS);
+			} else if (lingering != null && queue.size() >= maxBatch
+					&& lingering.cancel(false)) {
+				// Full; no need to wait any longer
+				lingering = null;
+				sending.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			List<Pending> batch;
+			synchronized (senders) {
+				lingering = null;
+				List<Pending> head = queue.subList(0,
+						Math.min(queue.size(), maxBatch));
+				batch = new ArrayList<>(head);
+				head.clear();
+			}
+			try {
+				send(uri, batch);
+			} finally {
+				synchronized (senders) {
+					if (queue.isEmpty()) {
+						scheduled = false;
+						if (senders.get(target) == this)
+							senders.remove(target);
+					} else if (sending != null)
+						// These have waited long enough already; go to the back
+						sending.execute(this);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void dispatch(TavernaRun originator, String messageSubject,
+			String messageContent, String target, Completion completion)
+			throws Exception {
+		URI uri = endpoint(target);
+		Pending message = new Pending(event(messageSubject, messageContent),
+				completion, currentTimeMillis() + timeout);
+		synchronized (senders) {
+			if (sending == null)
+				throw new IOException("webhook dispatcher is closed");
+			Sender sender = senders.get(target);
+			if (sender == null) {
+				sender = new Sender(target, uri);
+				senders.put(target, sender);
+			}
+			if (sender.queue.size() >= maxQueued)
+				// The URL is slow; by then, the queue will have moved on
+				throw new DeliveryDeferredException(target, timeout);
+			sender.queue.add(message);
+			sender.queued();
+		}
+	}
+
+	/**
+	 * Reports the outcome of sending a message to a thread that is waiting for
+	 * it.
+	 */
+	private static class Waiter implements Completion {
+		private boolean done;
+		private Exception failure;
+
+		@Override
+		public synchronized void delivered() {
+			if (!done) {
+				done = true;
+				notifyAll();
+			}
+		}
+
+		@Override
+		public synchronized void failed(Exception reason) {
+			if (!done) {
+				failure = reason;
+				done = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Wait for the outcome. Not interruptible: the outcome of each message
+		 * is that of its batch, and the wait is bounded anyway.
+		 */
+		synchronized void await(URI uri, long end) throws Exception {
+			boolean interrupted = false;
+			try {
+				while (!done) {
+					long wait = end - currentTimeMillis();
+					if (wait <= 0)
+						throw new IOException("webhook delivery to " + uri
+								+ " timed out");
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 * Send a message and wait for the outcome. The notification engine does
+	 * not use this, as it does not need to wait.
+	 */
+	@Override
+	public void dispatch(TavernaRun originator, String messageSubject,
+			String messageContent, String target) throws Exception {
+		URI uri = endpoint(target);
+		long end = currentTimeMillis() + timeout + ABORT_GRACE;
+		Waiter waiter = new Waiter();
+		dispatch(originator, messageSubject, messageContent, target, waiter);
+		waiter.await(uri, end);
+	}
+
+	private static URI endpoint(String target) throws URISyntaxException {
+		URI uri = new URI(target.trim());
+		String scheme = uri.getScheme();
+		if (!("http".equalsIgnoreCase(scheme) || "https"
+				.equalsIgnoreCase(scheme)) || uri.getHost() == null)
+			throw new URISyntaxException(target,
+					"webhook must be an absolute HTTP or HTTPS URL");
+		return uri;
+	}
+
+	private static String event(String subject, String content) {
+		String json = asJsonObject(content);
+		if (json != null)
+			return json;
+		return "{\"subject\":" + quote(subject) + ",\"message\":"
+				+ quote(content) + "}";
+	}
+
+	/**
+	 * Send a batch of messages in one request, and report how that went to
+	 * each of them. Messages that have waited too long are failed without
+	 * being sent.
+	 */
+	private void send(URI uri, List<Pending> batch) {
+		long now = currentTimeMillis();
+		List<Pending> live = new ArrayList<>(batch.size());
+		long deadline = Long.MAX_VALUE;
+		for (Pending p : batch)
+			if (p.deadline <= now)
+				p.completion.failed(new IOException("webhook delivery to "
+						+ uri + " timed out waiting to be sent"));
+			else {
+				live.add(p);
+				deadline = Math.min(deadline, p.deadline);
+			}
+		if (live.isEmpty())
+			return;
+		try {
+			post(uri, live, deadline);
+		} catch (Exception e) {
+			failedRequests.incrementAndGet();
+			IOException failure = new IOException("webhook delivery to " + uri
+					+ " failed: " + e.getMessage(), e);
+			for (Pending p : live)
+				p.completion.failed(failure);
+			return;
+		}
+		for (Pending p : live)
+			p.completion.delivered();
+	}
+
+	private static String body(List<Pending> batch) {
+		StringBuilder sb = new StringBuilder("{\"sent\":").append(
+				quote(dateTime().print(new DateTime()))).append(",\"events\":[");
+		String sep = "";
+		for (Pending p : batch) {
+			sb.append(sep).append(p.event);
+			sep = ",";
+		}
+		return sb.append("]}").toString();
+	}
+
+	private void post(URI uri, List<Pending> batch, long deadline)
+			throws IOException, GeneralSecurityException {
+		String body = body(batch);
+		final HttpPost post = new HttpPost(uri);
+		post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+		if (!secret.isEmpty())
+			post.setHeader(SIGNATURE_HEADER, "sha256=" + sign(secret, body));
+		long remaining = deadline - currentTimeMillis();
+		if (remaining <= 0)
+			throw new IOException("no time left to send to webhook");
+		// The client's timeouts bound each step; this bounds the whole
+		ScheduledFuture<?> abort = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				post.abort();
+			}
+		}, remaining, MILLISECONDS);
+		requests.incrementAndGet();
+		try (CloseableHttpResponse response = client.execute(post)) {
+			// Read everything, so the connection can be reused
+			EntityUtils.consume(response.getEntity());
+			int code = response.getStatusLine().getStatusCode();
+			if (code < 200 || code >= 300)
+				throw new IOException("webhook answered "
+						+ response.getStatusLine());
+		} catch (IOException e) {
+			if (post.isAborted())
+				throw new IOException("webhook took longer than " + timeout
+						+ "ms", e);
+			throw e;
+		} finally {
+			abort.cancel(false);
+		}
+		events.addAndGet(batch.size());
+		if (log.isDebugEnabled())
+			log.debug("sent " + batch.size() + " events to " + uri);
+	}
+
+	/**
+	 * If a string is exactly one JSON object, get it in a form that can be
+	 * included in a request as it is.
+	 *
+	 * @param text
+	 *            The string to check.
+	 * @return The object as strict JSON, or <tt>null</tt> if the string is not
+	 *         a JSON object.
+	 */
+	@Nullable
+	static String asJsonObject(@Nonnull String text) {
+		text = text.trim();
+		if (!text.startsWith("{"))
+			return null;
+		try {
+			JSONTokener tokener = new JSONTokener(text);
+			Object value = tokener.nextValue();
+			if (!(value instanceof JSONObject) || tokener.nextClean() != 0)
+				return null;
+			// The parser is lenient; what it writes is not
+			return value.toString();
+		} catch (JSONException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compute the signature of a request body.
+	 *
+	 * @param secret
+	 *            The key to sign with.
+	 * @param body
+	 *            The body of the request.
+	 * @return The HMAC-SHA256 of the body, in lower-case hexadecimal.
+	 * @throws GeneralSecurityException
+	 *             If the platform cannot compute the signature.
+	 */
+	@Nonnull
+	public static String sign(@Nonnull String secret, @Nonnull String body)
+			throws GeneralSecurityException {
+		Mac mac = Mac.getInstance(HMAC);
+		mac.init(new SecretKeySpec(secret.getBytes(UTF8), HMAC));
+		StringBuilder sb = new StringBuilder();
+		for (byte b : mac.doFinal(body.getBytes(UTF8)))
+			sb.append(Character.forDigit((b >> 4) & 15, 16)).append(
+					Character.forDigit(b & 15, 16));
+		return sb.toString();
+	}
+
+	/**
+	 * Make a JSON string literal.
+	 *
+	 * @param value
+	 *            The string to quote.
+	 * @return The literal, including the surrounding quotes.
+	 */
+	@Nonnull
+	public static String quote(@Nonnull String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < ' ')
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
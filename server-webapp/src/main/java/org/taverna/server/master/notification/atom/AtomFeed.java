@@ -5,17 +5,28 @@
  */
 package org.taverna.server.master.notification.atom;
 
+import static java.lang.Math.max;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.reverse;
+import static java.util.UUID.nameUUIDFromBytes;
 import static java.util.UUID.randomUUID;
 import static javax.ws.rs.core.UriBuilder.fromUri;
 import static org.taverna.server.master.common.Roles.USER;
 import static org.taverna.server.master.common.Uri.secure;
+import static org.taverna.server.master.rest.TavernaServerREST.EventFeed.PAGE;
+import static org.taverna.server.master.rest.TavernaServerREST.EventFeed.SINCE;
 
 import java.net.URI;
 import java.util.Date;
+import java.util.List;
 
 import javax.annotation.security.RolesAllowed;
 import javax.servlet.ServletContext;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
@@ -29,10 +40,13 @@ import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.interfaces.UriBuilderFactory;
 import org.taverna.server.master.rest.TavernaServerREST.EventFeed;
 import org.taverna.server.master.utils.InvocationCounter.CallCounted;
+import org.taverna.server.master.utils.UsernamePrincipal;
 
 /**
  * Simple REST handler that allows an Atom feed to be served up of events
- * generated by workflow runs.
+ * generated by workflow runs. The feed is served a page at a time, with
+ * entity tags so that clients polling for changes can be told cheaply that
+ * nothing has happened.
  * 
  * @author Donal Fellows
  */
@@ -50,6 +64,7 @@ public class AtomFeed implements EventFeed, UriBuilderFactory,
 	private Abdera abdera;
 	private String feedLanguage = "en";
 	private String uuid = randomUUID().toString();
+	private int pageSize = 100;
 
 	@Required
 	public void setEventSource(EventDAO eventSource) {
@@ -69,6 +84,14 @@ public class AtomFeed implements EventFeed, UriBuilderFactory,
 		return feedLanguage;
 	}
 
+	/**
+	 * @param pageSize
+	 *            The number of events on each page of the feed.
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = max(1, pageSize);
+	}
+
 	@Required
 	public void setAbdera(Abdera abdera) {
 		this.abdera = abdera;
@@ -77,15 +100,37 @@ public class AtomFeed implements EventFeed, UriBuilderFactory,
 	@Override
 	@CallCounted
 	@RolesAllowed(USER)
-	public Feed getFeed(UriInfo ui) {
+	public Response getFeed(UriInfo ui, Request request, int page,
+			String since) {
+		UsernamePrincipal user = support.getPrincipal();
+		page = max(0, page);
+		List<Event> events = null;
+		if (since != null)
+			// Oldest first; more means there are yet newer events
+			events = eventSource.getEventsSince(user, since, pageSize + 1);
+		if (events == null) {
+			since = null;
+			// Newest first; more means there are older events
+			events = eventSource.getEvents(user, page * pageSize, pageSize + 1);
+		}
+		boolean more = events.size() > pageSize;
+		if (more)
+			events = events.subList(0, pageSize);
+		if (since != null)
+			reverse(events);
+
+		EntityTag tag = entityTag(user, page, since, more, events);
+		ResponseBuilder rb = request.evaluatePreconditions(tag);
+		if (rb != null)
+			return rb.tag(tag).build();
+
 		Feed feed = abdera.getFactory().newFeed();
 		feed.setTitle("events relating to workflow runs").setLanguage(
 				feedLanguage);
-		String user = support.getPrincipal().toString()
-				.replaceAll("[^A-Za-z0-9]+", "");
-		feed.setId(format("urn:taverna-server:%s:%s", uuid, user));
+		String userid = user.toString().replaceAll("[^A-Za-z0-9]+", "");
+		feed.setId(format("urn:taverna-server:%s:%s", uuid, userid));
 		org.joda.time.DateTime modification = null;
-		for (Event e : eventSource.getEvents(support.getPrincipal())) {
+		for (Event e : events) {
 			if (modification == null || e.getPublished().isAfter(modification))
 				modification = e.getPublished();
 			feed.addEntry(e.getEntry(abdera, feedLanguage));
@@ -94,8 +139,48 @@ public class AtomFeed implements EventFeed, UriBuilderFactory,
 			feed.setUpdated(new Date());
 		else
 			feed.setUpdated(modification.toDate());
-		feed.addLink(ui.getAbsolutePath().toASCIIString(), "self");
-		return feed;
+		addLinks(feed, ui, page, since, more, events);
+		return Response.ok(feed).tag(tag).build();
+	}
+
+	/**
+	 * Add the RFC 5005 navigation links to a page of the feed. "Previous"
+	 * pages hold newer events and "next" pages older ones.
+	 */
+	private void addLinks(Feed feed, UriInfo ui, int page, String since,
+			boolean more, List<Event> events) {
+		feed.addLink(ui.getRequestUri().toASCIIString(), "self");
+		feed.addLink(ui.getAbsolutePath().toASCIIString(), "first");
+		if (since != null) {
+			if (more)
+				feed.addLink(
+						ui.getAbsolutePathBuilder()
+								.queryParam(SINCE, events.get(0).getId())
+								.build().toASCIIString(), "previous");
+			return;
+		}
+		if (page > 0)
+			feed.addLink(ui.getAbsolutePathBuilder()
+					.queryParam(PAGE, page - 1).build().toASCIIString(),
+					"previous");
+		if (more)
+			feed.addLink(ui.getAbsolutePathBuilder()
+					.queryParam(PAGE, page + 1).build().toASCIIString(), "next");
+	}
+
+	/**
+	 * Work out the entity tag of a page of the feed from what is on it, so
+	 * that it can be checked before the feed document is built.
+	 */
+	private EntityTag entityTag(UsernamePrincipal user, int page,
+			String since, boolean more, List<Event> events) {
+		StringBuilder sb = new StringBuilder(uuid).append('/').append(user)
+				.append('/').append(page).append('/').append(since)
+				.append('/').append(more);
+		for (Event e : events)
+			sb.append('/').append(e.getId());
+		return new EntityTag(nameUUIDFromBytes(sb.toString().getBytes(UTF_8))
+				.toString());
 	}
 
 	@Override
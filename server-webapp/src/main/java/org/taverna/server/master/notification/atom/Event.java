@@ -13,6 +13,7 @@ import java.util.Date;
 
 import javax.jdo.annotations.Column;
 import javax.jdo.annotations.Index;
+import javax.jdo.annotations.Indices;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.Queries;
@@ -25,15 +26,23 @@ import org.taverna.server.master.utils.UsernamePrincipal;
 
 /**
  * Parent class of all events that may appear on the feed for a workflow run.
+ * The feed is ordered by the sequence number that each event is given as it
+ * is stored, not by when it was published, as events are not necessarily
+ * stored in the order they are published in.
  * 
  * @author Donal Fellows
  */
 @SuppressWarnings("serial")
 @PersistenceCapable(schema = "ATOM", table = "EVENTS")
+@Indices({
+		@Index(name = "EVENTS_OWNER_PUBLISHED", members = { "owner", "published" }),
+		@Index(name = "EVENTS_OWNER_SEQUENCE", members = { "owner", "sequence" }) })
 @Queries({
-		@Query(name = "eventsForUser", language = "SQL", value = "SELECT id FROM ATOM.EVENTS WHERE owner = ? ORDER BY published DESC", resultClass = String.class),
-		@Query(name = "eventForUserAndId", language = "SQL", value = "SELECT id FROM ATOM.EVENTS WHERE owner = ? AND id = ?", resultClass = String.class),
-		@Query(name = "eventsFromBefore", language = "SQL", value = "SELECT id FROM ATOM.EVENTS where published < ?", resultClass = String.class) })
+		@Query(name = "eventsForUser", value = "SELECT FROM org.taverna.server.master.notification.atom.Event WHERE owner == :owner ORDER BY sequence DESC, published DESC, id DESC"),
+		@Query(name = "eventsForUserSince", value = "SELECT FROM org.taverna.server.master.notification.atom.Event WHERE owner == :owner && sequence > :sequence ORDER BY sequence ASC"),
+		@Query(name = "lastSequence", value = "SELECT max(sequence) FROM org.taverna.server.master.notification.atom.Event", unique = "true"),
+		@Query(name = "eventForUserAndId", value = "SELECT FROM org.taverna.server.master.notification.atom.Event WHERE owner == :owner && id == :id"),
+		@Query(name = "eventsFromBefore", value = "SELECT FROM org.taverna.server.master.notification.atom.Event WHERE published < :death") })
 public class Event implements Serializable {
 	@Persistent(primaryKey = "true")
 	@Column(length = 48)
@@ -49,6 +58,13 @@ public class Event implements Serializable {
 	private String title;
 	@Persistent
 	private String link;
+	/**
+	 * Where this event comes in the order that events were stored in; events
+	 * stored before there was such an order have zero.
+	 */
+	@Persistent
+	@Column(defaultValue = "0")
+	private long sequence;
 
 	Event() {
 	}
@@ -96,6 +112,14 @@ public class Event implements Serializable {
 		return link;
 	}
 
+	public final long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
 	public Entry getEntry(Abdera abdera, String language) {
 		Entry entry = abdera.getFactory().newEntry();
 		entry.setId(id);
@@ -107,4 +131,10 @@ public class Event implements Serializable {
 		entry.setContent(message).setLanguage(language);
 		return entry;
 	}
+
+	@Override
+	public String toString() {
+		return "event " + id + " for " + owner + " (" + title + ", " + link
+				+ ")";
+	}
 }
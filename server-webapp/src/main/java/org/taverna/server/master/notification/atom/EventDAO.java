@@ -5,37 +5,54 @@
  */
 package org.taverna.server.master.notification.atom;
 
-import static java.lang.Thread.interrupted;
-import static java.lang.Thread.sleep;
-import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.jdo.Query;
 import javax.jdo.annotations.PersistenceAware;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.taverna.server.master.interfaces.MessageDispatcher;
 import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.interfaces.UriBuilderFactory;
+import org.taverna.server.master.utils.BatchingPipeline;
 import org.taverna.server.master.utils.JDOSupport;
 import org.taverna.server.master.utils.UsernamePrincipal;
 
 /**
- * The database interface that supports the event feed.
+ * The database interface that supports the event feed. New events are handed
+ * to a background thread that stores them in batches, so that recording an
+ * event does not normally hold up a change to the state of a run. If events
+ * arrive faster than they can be stored and the backlog fills up, the thread
+ * raising an event waits a little for room and then stores the event itself,
+ * so events are slowed down rather than discarded. Events that cannot be
+ * stored even when retried on their own are logged and counted.
+ * <p>
+ * Each event is given the next sequence number as it is stored, and events
+ * are stored one batch at a time, so the sequence numbers of stored events
+ * only ever grow. Clients page through newer events by sequence number, so a
+ * client never misses an event that was stored after the last one it saw.
+ * The numbers are given out by this object, so the event store must not be
+ * shared between servers.
  * 
  * @author Donal Fellows
  */
 @PersistenceAware
+@ManagedResource(objectName = JMX_ROOT + "AtomEvents", description = "The store of events for the Atom feed.")
 public class EventDAO extends JDOSupport<Event> implements MessageDispatcher {
 	public EventDAO() {
 		super(Event.class);
@@ -49,6 +66,15 @@ public class EventDAO extends JDOSupport<Event> implements MessageDispatcher {
 	private Log log = LogFactory.getLog("Taverna.Server.Atom");
 	private UriBuilderFactory ubf;
 	private int expiryAgeDays;
+	private int queueCapacity = 10000;
+	private int batchSize = 100;
+	private long offerTimeout = 1000;
+	private EventDAO self;
+	private BatchingPipeline<Event> pipeline;
+	/** Held while giving events sequence numbers and storing them. */
+	private final Object storeLock = new Object();
+	/** The last sequence number given out, or -1 if not yet looked up. */
+	private long lastSequence = -1;
 
 	@Required
 	public void setExpiryAgeDays(int expiryAgeDays) {
@@ -60,6 +86,31 @@ public class EventDAO extends JDOSupport<Event> implements MessageDispatcher {
 		this.ubf = ubf;
 	}
 
+	/**
+	 * @param queueCapacity
+	 *            How many events may be waiting to be stored.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param batchSize
+	 *            The largest number of events stored in one transaction.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param offerTimeout
+	 *            How long, in milliseconds, to wait for room in a full
+	 *            backlog before storing an event directly.
+	 */
+	public void setOfferTimeout(long offerTimeout) {
+		this.offerTimeout = offerTimeout;
+	}
+
 	/**
 	 * Get the given user's list of events.
 	 * 
@@ -70,18 +121,69 @@ public class EventDAO extends JDOSupport<Event> implements MessageDispatcher {
 	@Nonnull
 	@WithinSingleTransaction
 	public List<Event> getEvents(@Nonnull UsernamePrincipal user) {
+		return getEvents(user, 0, -1);
+	}
+
+	/**
+	 * Get part of the given user's list of events, most recent first. The
+	 * events are fetched with a single query.
+	 * 
+	 * @param user
+	 *            The identity of the user to get the events for.
+	 * @param offset
+	 *            How many of the most recent events to skip.
+	 * @param limit
+	 *            The maximum number of events to return, or negative for no
+	 *            limit.
+	 * @return A copy of the requested part of the list of events.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public List<Event> getEvents(@Nonnull UsernamePrincipal user, int offset,
+			int limit) {
+		Query q = namedQuery("eventsForUser");
+		if (limit >= 0)
+			q.setRange(offset, offset + limit);
+		else if (offset > 0)
+			q.setRange(offset, Long.MAX_VALUE);
 		@SuppressWarnings("unchecked")
-		List<String> ids = (List<String>) namedQuery("eventsForUser").execute(
-				user.getName());
+		List<Event> events = (List<Event>) q.execute(user.getName());
 		if (log.isDebugEnabled())
-			log.debug("found " + ids.size() + " events for user " + user);
+			log.debug("found " + events.size() + " events for user " + user);
+		return new ArrayList<>(detachAll(events));
+	}
 
-		List<Event> result = new ArrayList<>();
-		for (String id : ids) {
-			Event event = getById(id);
-			result.add(detach(event));
-		}
-		return result;
+	/**
+	 * Get the given user's events that were stored after a particular event,
+	 * oldest first.
+	 * 
+	 * @param user
+	 *            The identity of the user to get the events for.
+	 * @param sinceId
+	 *            The handle of the event to get the events newer than.
+	 * @param limit
+	 *            The maximum number of events to return.
+	 * @return A copy of the requested events, or <tt>null</tt> if there is no
+	 *         such event for the user (e.g., because it has expired).
+	 */
+	@Nullable
+	@WithinSingleTransaction
+	public List<Event> getEventsSince(@Nonnull UsernamePrincipal user,
+			@Nonnull String sinceId, int limit) {
+		@SuppressWarnings("unchecked")
+		List<Event> since = (List<Event>) namedQuery("eventForUserAndId")
+				.execute(user.getName(), sinceId);
+		if (since.size() != 1)
+			return null;
+		Query q = namedQuery("eventsForUserSince");
+		q.setRange(0, limit);
+		@SuppressWarnings("unchecked")
+		List<Event> events = (List<Event>) q.execute(user.getName(), since
+				.get(0).getSequence());
+		if (log.isDebugEnabled())
+			log.debug("found " + events.size() + " events for user " + user
+					+ " since " + sinceId);
+		return new ArrayList<>(detachAll(events));
 	}
 
 	/**
@@ -97,15 +199,15 @@ public class EventDAO extends JDOSupport<Event> implements MessageDispatcher {
 	@WithinSingleTransaction
 	public Event getEvent(@Nonnull UsernamePrincipal user, @Nonnull String id) {
 		@SuppressWarnings("unchecked")
-		List<String> ids = (List<String>) namedQuery("eventForUserAndId")
+		List<Event> events = (List<Event>) namedQuery("eventForUserAndId")
 				.execute(user.getName(), id);
 		if (log.isDebugEnabled())
-			log.debug("found " + ids.size() + " events for user " + user
+			log.debug("found " + events.size() + " events for user " + user
 					+ " with id = " + id);
 
-		if (ids.size() != 1)
+		if (events.size() != 1)
 			throw new IllegalArgumentException("no such id");
-		return detach(getById(ids.get(0)));
+		return detach(events.get(0));
 	}
 
 	/**
@@ -120,22 +222,17 @@ public class EventDAO extends JDOSupport<Event> implements MessageDispatcher {
 	}
 
 	/**
-	 * Delete all events that have expired.
+	 * Delete all events that have expired, as a single bulk delete.
 	 */
 	@WithinSingleTransaction
 	public void deleteExpiredEvents() {
 		Date death = new DateTime().plusDays(-expiryAgeDays).toDate();
 		death = new Timestamp(death.getTime()); // UGLY SQL HACK
 
-		@SuppressWarnings("unchecked")
-		List<String> ids = (List<String>) namedQuery("eventsFromBefore")
-				.execute(death);
-		if (log.isDebugEnabled() && !ids.isEmpty())
-			log.debug("found " + ids.size()
-					+ " events to be squelched (older than " + death + ")");
-
-		for (String id : ids)
-			delete(getById(id));
+		long count = namedQuery("eventsFromBefore").deletePersistentAll(death);
+		if (log.isDebugEnabled() && count > 0)
+			log.debug("squelched " + count + " events (older than " + death
+					+ ")");
 	}
 
 	@Override
@@ -143,64 +240,103 @@ public class EventDAO extends JDOSupport<Event> implements MessageDispatcher {
 		return true;
 	}
 
-	private BlockingQueue<Event> insertQueue = new ArrayBlockingQueue<>(16);
-
 	@Override
 	public void dispatch(TavernaRun originator, String messageSubject,
-			String messageContent, String targetParameter) throws Exception {
-		insertQueue.put(new Event("finish", ubf.getRunUriBuilder(originator)
-				.build(), originator.getSecurityContext().getOwner(),
-				messageSubject, messageContent));
+			String messageContent, String targetParameter) {
+		// No run (e.g., a message resumed after a restart): nothing to link to
+		if (originator == null)
+			return;
+		enqueue(new Event("finish", ubf.getRunUriBuilder(originator).build(),
+				originator.getSecurityContext().getOwner(), messageSubject,
+				messageContent));
 	}
 
 	public void started(TavernaRun originator, String messageSubject,
-			String messageContent) throws InterruptedException {
-		insertQueue.put(new Event("start", ubf.getRunUriBuilder(originator)
-				.build(), originator.getSecurityContext().getOwner(),
-				messageSubject, messageContent));
+			String messageContent) {
+		if (originator == null)
+			return;
+		enqueue(new Event("start", ubf.getRunUriBuilder(originator).build(),
+				originator.getSecurityContext().getOwner(), messageSubject,
+				messageContent));
+	}
+
+	private void enqueue(Event event) {
+		if (pipeline != null)
+			pipeline.submit(event, offerTimeout);
+		else
+			store(singletonList(event));
+	}
+
+	/**
+	 * Give some events the next sequence numbers and store them. Each batch is
+	 * committed before the next is numbered, so that no event can become
+	 * visible after one with a later number.
+	 */
+	private void store(List<Event> events) {
+		synchronized (storeLock) {
+			if (lastSequence < 0)
+				lastSequence = self.getLastSequence();
+			for (Event event : events)
+				event.setSequence(++lastSequence);
+			self.storeEvents(events);
+		}
+	}
+
+	/**
+	 * @return The largest sequence number of any stored event, or zero if
+	 *         there are none.
+	 */
+	@WithinSingleTransaction
+	public long getLastSequence() {
+		Number last = (Number) namedQuery("lastSequence").execute();
+		return last == null ? 0 : last.longValue();
 	}
 
-	private Thread eventDaemon;
-	private boolean shuttingDown = false;
+	@ManagedAttribute(description = "The number of feed events lost because they could not be stored.", currencyTimeLimit = 10)
+	public long getDiscardedEventCount() {
+		return pipeline == null ? 0 : pipeline.getFailedCount();
+	}
+
+	@ManagedAttribute(description = "The number of feed events stored by the thread that raised them because too many were waiting to be stored.", currencyTimeLimit = 10)
+	public long getDirectlyStoredEventCount() {
+		return pipeline == null ? 0 : pipeline.getDirectWriteCount();
+	}
 
+	/**
+	 * @param dao
+	 *            This object as seen through Spring, so that the transaction
+	 *            aspect applies when the background thread stores events.
+	 */
 	@Required
-	public void setSelf(final EventDAO dao) {
-		eventDaemon = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					while (!shuttingDown && !interrupted()) {
-						transferEvents(dao, new ArrayList<Event>(
-								asList(insertQueue.take())));
-						sleep(5000);
-					}
-				} catch (InterruptedException e) {
-				} finally {
-					transferEvents(dao, new ArrayList<Event>());
-				}
-			}
-		}, "ATOM event daemon");
-		eventDaemon.setContextClassLoader(null);
-		eventDaemon.setDaemon(true);
-		eventDaemon.start();
+	public void setSelf(EventDAO dao) {
+		self = dao;
 	}
 
-	private void transferEvents(EventDAO dao, List<Event> e) {
-		insertQueue.drainTo(e);
-		dao.storeEvents(e);
+	@PostConstruct
+	void startDaemon() {
+		pipeline = new BatchingPipeline<>("ATOM event daemon", queueCapacity,
+				batchSize, new BatchingPipeline.Sink<Event>() {
+					@Override
+					public void write(List<Event> events) {
+						store(events);
+					}
+				});
 	}
 
 	@PreDestroy
-	void stopDaemon() {
-		shuttingDown = true;
-		if (eventDaemon != null)
-			eventDaemon.interrupt();
+	void stopDaemon() throws InterruptedException {
+		if (pipeline != null)
+			pipeline.stop(10000);
 	}
 
+	/**
+	 * Store a batch of events in one transaction; the inserts are sent to the
+	 * database as a JDBC batch.
+	 */
 	@WithinSingleTransaction
 	protected void storeEvents(List<Event> events) {
-		for (Event e : events)
-			persist(e);
-		log.info("stored " + events.size() + " notification events");
+		persistAll(events);
+		if (log.isDebugEnabled())
+			log.debug("stored " + events.size() + " notification events");
 	}
 }
@@ -11,12 +11,14 @@ import java.net.MalformedURLException;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.OPTIONS;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
 
 import org.apache.abdera.model.Entry;
@@ -35,6 +37,12 @@ public interface InteractionFeedREST {
 	/**
 	 * Get the feed document for this ATOM feed.
 	 * 
+	 * @param before
+	 *            If given, the ID of an entry; only older entries are listed.
+	 * @param limit
+	 *            If given, the maximum number of entries to list (at least
+	 *            one); if there are more, the feed has a <tt>next</tt> link to
+	 *            them.
 	 * @return The feed.
 	 * @throws FilesystemAccessException
 	 *             If we can't read from the feed directory.
@@ -45,7 +53,9 @@ public interface InteractionFeedREST {
 	@Path("/")
 	@Produces(ATOM)
 	@Description("Get the feed document for this ATOM feed.")
-	Feed getFeed() throws FilesystemAccessException, NoDirectoryEntryException;
+	Feed getFeed(@QueryParam("before") String before,
+			@QueryParam("limit") @DefaultValue("-1") int limit)
+			throws FilesystemAccessException, NoDirectoryEntryException;
 
 	/**
 	 * Adds an entry to this ATOM feed.
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.rest;
+
+import static org.taverna.server.master.common.Roles.USER;
+import static org.taverna.server.master.rest.ContentTypes.EVENT_STREAM;
+import static org.taverna.server.master.rest.ContentTypes.JSON;
+import static org.taverna.server.master.rest.ContentTypes.XML;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.OPTIONS;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.bind.annotation.XmlValue;
+
+import org.apache.cxf.jaxrs.model.wadl.Description;
+import org.taverna.server.master.common.VersionedElement;
+
+/**
+ * The events of a workflow run (changes of state, new interaction requests),
+ * delivered by long polling or as a stream of server-sent events. Either way,
+ * the request is held until there is something to say about the run or the
+ * timeout expires.
+ *
+ * @author Donal Fellows
+ */
+@RolesAllowed(USER)
+@Description("The events of a workflow run, by long polling or server-sent events.")
+public interface RunEventsREST {
+	/**
+	 * The query parameter giving the ID of the last event the client knows
+	 * about.
+	 */
+	String SINCE = "since";
+	/** The query parameter giving how long to wait, in seconds. */
+	String TIMEOUT = "timeout";
+	/** The header used by server-sent event clients when reconnecting. */
+	String LAST_EVENT_ID = "Last-Event-ID";
+
+	/**
+	 * Wait for the events of the run.
+	 *
+	 * @param since
+	 *            The ID of the last event the client knows about. If absent,
+	 *            the reply is immediate and describes the run's current state.
+	 * @param timeout
+	 *            How long to wait for an event, in seconds.
+	 * @return The events that happened after the given one, which is empty if
+	 *         none happened in time. If the server cannot hold the request
+	 *         open just now, the response is <tt>503 Service
+	 *         Unavailable</tt> with a <tt>Retry-After</tt> header.
+	 */
+	@GET
+	@Path("/")
+	@Produces({ XML, JSON })
+	@Description("Wait for the events of the run.")
+	@Nonnull
+	Response getEvents(@QueryParam(SINCE) String since,
+			@QueryParam(TIMEOUT) @DefaultValue("60") int timeout);
+
+	/**
+	 * Wait for the events of the run, as a <tt>text/event-stream</tt>. The
+	 * response stays open, carrying events as they happen, until the timeout;
+	 * the client then reconnects to get more, and the <tt>Last-Event-ID</tt> it
+	 * sends ensures that nothing is lost between connections. (Where the
+	 * container cannot suspend requests, the response ends after the first
+	 * events, and may be <tt>503 Service Unavailable</tt> with a
+	 * <tt>Retry-After</tt> header if too many clients are waiting.)
+	 *
+	 * @param lastEventId
+	 *            The ID of the last event the client knows about.
+	 * @param since
+	 *            Alternative to <tt>lastEventId</tt>, for clients that cannot
+	 *            set headers on the first connection.
+	 * @param timeout
+	 *            How long to wait for an event, in seconds.
+	 * @return The events as a server-sent event stream.
+	 */
+	@GET
+	@Path("/")
+	@Produces(EVENT_STREAM)
+	@Description("Wait for the events of the run, as server-sent events.")
+	@Nonnull
+	Response streamEvents(@HeaderParam(LAST_EVENT_ID) String lastEventId,
+			@QueryParam(SINCE) String since,
+			@QueryParam(TIMEOUT) @DefaultValue("60") int timeout);
+
+	/** Get an outline of the operations supported. */
+	@OPTIONS
+	@Path("/")
+	@Description("Produces the description of the run's events.")
+	Response eventsOptions();
+
+	/**
+	 * A list of the events of a run.
+	 *
+	 * @author Donal Fellows
+	 */
+	@XmlRootElement(name = "runEvents")
+	@XmlType(name = "RunEvents")
+	public static class EventList extends VersionedElement {
+		/** The ID to ask for events after next time. */
+		@XmlAttribute
+		public long latest;
+		/** The events, oldest first. */
+		@XmlElement(name = "event")
+		public List<Event> events = new ArrayList<>();
+
+		public EventList() {
+		}
+
+		public EventList(long latest) {
+			super(true);
+			this.latest = latest;
+		}
+	}
+
+	/**
+	 * One event of a run.
+	 *
+	 * @author Donal Fellows
+	 */
+	@XmlType(name = "RunEvent")
+	public static class Event {
+		/** The ID of the event. */
+		@XmlAttribute
+		public long id;
+		/** The type of the event. */
+		@XmlAttribute
+		public String type;
+		/** The details of the event. */
+		@XmlValue
+		public String data;
+
+		public Event() {
+		}
+
+		public Event(long id, String type, String data) {
+			this.id = id;
+			this.type = type;
+			this.data = data;
+		}
+	}
+}
@@ -29,13 +29,16 @@ import java.util.Map;
 import javax.annotation.Nonnull;
 import javax.annotation.security.RolesAllowed;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.OPTIONS;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
@@ -44,7 +47,6 @@ import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
 
 import org.apache.abdera.model.Entry;
-import org.apache.abdera.model.Feed;
 import org.apache.cxf.jaxrs.model.wadl.Description;
 import org.taverna.server.master.common.Capability;
 import org.taverna.server.master.common.RunReference;
@@ -565,14 +567,42 @@ public interface TavernaServerREST {
 	@RolesAllowed(USER)
 	public interface EventFeed {
 		/**
-		 * @return the feed of events for the current user.
+		 * The query parameter used to ask for a page of older events.
+		 */
+		String PAGE = "page";
+		/**
+		 * The query parameter used to ask for only the events newer than a
+		 * given event.
+		 */
+		String SINCE = "since";
+
+		/**
+		 * Get the feed of events for the current user, one page at a time. The
+		 * feed is paged as described in RFC 5005: the first page holds the
+		 * most recent events, and each page links to the pages of older and
+		 * newer events.
+		 * 
+		 * @param ui
+		 *            About how this method was called.
+		 * @param request
+		 *            The request, used to evaluate conditional requests.
+		 * @param page
+		 *            Which page of events to get; zero is the most recent.
+		 * @param since
+		 *            If given, the ID of an event; only events newer than that
+		 *            are returned (oldest first, if there are more than fit on
+		 *            a page).
+		 * @return the feed of events for the current user, or a
+		 *         <tt>304</tt> response if it has not changed.
 		 */
 		@GET
 		@Path("/")
 		@Produces("application/atom+xml;type=feed")
 		@Description("Get an Atom feed for the user's events.")
 		@Nonnull
-		Feed getFeed(@Context UriInfo ui);
+		Response getFeed(@Context UriInfo ui, @Context Request request,
+				@QueryParam(PAGE) @DefaultValue("0") int page,
+				@QueryParam(SINCE) String since);
 
 		/**
 		 * @param id
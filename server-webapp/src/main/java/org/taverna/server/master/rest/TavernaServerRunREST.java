@@ -14,6 +14,7 @@ import static org.taverna.server.master.rest.ContentTypes.ROBUNDLE;
 import static org.taverna.server.master.rest.ContentTypes.TEXT;
 import static org.taverna.server.master.rest.ContentTypes.XML;
 import static org.taverna.server.master.rest.TavernaServerRunREST.PathNames.DIR;
+import static org.taverna.server.master.rest.TavernaServerRunREST.PathNames.EVENTS;
 import static org.taverna.server.master.rest.TavernaServerRunREST.PathNames.GENERATE_PROVENANCE;
 import static org.taverna.server.master.rest.TavernaServerRunREST.PathNames.IN;
 import static org.taverna.server.master.rest.TavernaServerRunREST.PathNames.LISTEN;
@@ -299,7 +300,11 @@ public interface TavernaServerRunREST {
 	 * @param status
 	 *            The new status code.
 	 * @return Description of what status the run is actually in, or a 202 to
-	 *         indicate that things are still changing.
+	 *         indicate that things are still changing. If the run has been
+	 *         queued to start because the server is busy, the 202 response
+	 *         also has a <tt>Retry-After</tt> header suggesting when to check
+	 *         on the run again and an <tt>X-Taverna-Queue-Position</tt> header
+	 *         saying how many runs will be started before it (plus one).
 	 * @throws NoUpdateException
 	 *             If the current user is not permitted to update the run.
 	 * @throws BadStateChangeException
@@ -432,6 +437,17 @@ public interface TavernaServerRunREST {
 	@Nonnull
 	InteractionFeedREST getInteractionFeed();
 
+	/**
+	 * Get a handle to the events of the workflow run, for waiting until its
+	 * state changes or a new interaction request appears.
+	 * 
+	 * @return A RESTful delegate for the events.
+	 */
+	@Path(EVENTS)
+	@Description("Wait for the events of the workflow run.")
+	@Nonnull
+	RunEventsREST getEvents();
+
 	/**
 	 * @return The stdout for the workflow run, or empty string if the run has
 	 *         not yet started.
@@ -579,6 +595,7 @@ public interface TavernaServerRunREST {
 		public static final String LOG = "log";
 		public static final String RUNBUNDLE = "run-bundle";
 		public static final String GENERATE_PROVENANCE = "generate-provenance";
+		public static final String EVENTS = "events";
 	}
 
 	/**
@@ -617,6 +634,8 @@ public interface TavernaServerRunREST {
 		public ListenerList listeners;
 		/** The location of the interaction feed. */
 		public Uri interaction;
+		/** Where to wait for the events of the run. */
+		public Uri events;
 		/** The name of the run. */
 		public Uri name;
 		/** The stdout of the run. */
@@ -746,6 +765,7 @@ public interface TavernaServerRunREST {
 			startTime = new Uri(ui, T_START);
 			finishTime = new Uri(ui, T_FINISH);
 			interaction = new Uri(ui, FEED_URL_DIR);
+			events = new Uri(ui, EVENTS);
 			name = new Uri(ui, NAME);
 			owner = run.getSecurityContext().getOwner().getName();
 			stdout = new Uri(ui, STDOUT);
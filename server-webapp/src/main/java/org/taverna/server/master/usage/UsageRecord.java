@@ -5,6 +5,13 @@
  */
 package org.taverna.server.master.usage;
 
+import static org.taverna.server.master.usage.UsageRecord.RECORDS_QUERY;
+import static org.taverna.server.master.usage.UsageRecord.USER_RECORDS_QUERY;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
 import java.util.Date;
 
 import javax.jdo.annotations.Column;
@@ -15,17 +22,34 @@ import javax.jdo.annotations.PrimaryKey;
 import javax.jdo.annotations.Queries;
 import javax.jdo.annotations.Query;
 import javax.xml.bind.JAXBException;
+import javax.xml.datatype.Duration;
+import javax.xml.datatype.XMLGregorianCalendar;
 
 import org.ogf.usage.JobUsageRecord;
+import org.ogf.usage.v1_0.CpuDuration;
+import org.ogf.usage.v1_0.Disk;
+import org.ogf.usage.v1_0.EndTime;
+import org.ogf.usage.v1_0.Memory;
+import org.ogf.usage.v1_0.StartTime;
+import org.ogf.usage.v1_0.WallDuration;
 
 /**
- * A usage record as recorded in the database.
+ * A usage record as recorded in the database. As well as the record itself,
+ * the main figures from it are held in their own columns, so that records can
+ * be found and summarised without parsing them.
  * 
  * @author Donal Fellows
  */
 @PersistenceCapable(table = "USAGE_RECORD_LOG", schema = "UR", cacheable = "true")
-@Queries({ @Query(name = "allByDate", value = "SELECT USAGE_RECORD FROM UR.USAGE_RECORD_LOG ORDER BY CREATE_DATE", resultClass = String.class, unmodifiable = "true", unique = "false", language = "SQL") })
+@Index(name = "USERID_CREATE_IDX", members = { "userid", "createDate" })
+@Queries({
+		@Query(name = "byDate", value = RECORDS_QUERY + " ORDER BY createDate ASC, id ASC"),
+		@Query(name = "forUserByDate", value = USER_RECORDS_QUERY + " ORDER BY createDate ASC, id ASC") })
 public class UsageRecord {
+	static final String RECORDS_QUERY = "SELECT usageRecord FROM org.taverna.server.master.usage.UsageRecord WHERE createDate >= :from && createDate < :to";
+	static final String USER_RECORDS_QUERY = RECORDS_QUERY
+			+ " && userid == :user";
+
 	/**
 	 * Create an empty usage record database entry.
 	 */
@@ -41,12 +65,65 @@ public class UsageRecord {
 	 *             If deserialization of the record fails.
 	 */
 	public UsageRecord(String usageRecord) throws JAXBException {
-		JobUsageRecord jur = JobUsageRecord.unmarshal(usageRecord);
 		setUsageRecord(usageRecord);
-		setCreateDate(jur.getRecordIdentity().getCreateTime()
-				.toGregorianCalendar().getTime());
-		setId(jur.getRecordIdentity().getRecordId());
-		setUserid(jur.getUserIdentity().get(0).getLocalUserId());
+		describe(JobUsageRecord.unmarshal(usageRecord));
+	}
+
+	/**
+	 * Create a usage record database entry that is populated from the given UR,
+	 * parsing it as it is read and keeping its text.
+	 * 
+	 * @param usageRecord
+	 *            Where to read the serialized usage record from.
+	 * @throws JAXBException
+	 *             If deserialization of the record fails.
+	 * @throws IOException
+	 *             If reading the record fails.
+	 */
+	public UsageRecord(Reader usageRecord) throws JAXBException, IOException {
+		CopyingReader reader = new CopyingReader(usageRecord);
+		describe(JobUsageRecord.unmarshal(reader));
+		// Anything after the end of the document is part of the text too
+		char[] buffer = new char[256];
+		while (reader.read(buffer, 0, buffer.length) >= 0)
+			continue;
+		setUsageRecord(reader.text.toString());
+	}
+
+	/** A reader that keeps a copy of everything read through it. */
+	private static class CopyingReader extends FilterReader {
+		final StringBuilder text = new StringBuilder();
+
+		CopyingReader(Reader in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = in.read();
+			if (c >= 0)
+				text.append((char) c);
+			return c;
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int length)
+				throws IOException {
+			int n = in.read(buffer, offset, length);
+			if (n > 0)
+				text.append(buffer, offset, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			throw new IOException("skip not supported");
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
 	}
 
 	/**
@@ -59,10 +136,48 @@ public class UsageRecord {
 	 */
 	public UsageRecord(JobUsageRecord usageRecord) throws JAXBException {
 		setUsageRecord(usageRecord.marshal());
-		setCreateDate(usageRecord.getRecordIdentity().getCreateTime()
+		describe(usageRecord);
+	}
+
+	/** Copy the main figures out of the usage record. */
+	private void describe(JobUsageRecord ur) {
+		setCreateDate(ur.getRecordIdentity().getCreateTime()
 				.toGregorianCalendar().getTime());
-		setId(usageRecord.getRecordIdentity().getRecordId());
-		setUserid(usageRecord.getUserIdentity().get(0).getLocalUserId());
+		setId(ur.getRecordIdentity().getRecordId());
+		setUserid(ur.getUserIdentity().get(0).getLocalUserId());
+		StartTime start = ur.getOfType(StartTime.class);
+		if (start != null)
+			startTime = date(start.getValue());
+		EndTime end = ur.getOfType(EndTime.class);
+		if (end != null)
+			endTime = date(end.getValue());
+		WallDuration wall = ur.getOfType(WallDuration.class);
+		if (wall != null)
+			wallMillis = millis(wall.getValue());
+		for (Object o : ur.getWallDurationOrCpuDurationOrNodeCount())
+			if (o instanceof CpuDuration) {
+				Long cpu = millis(((CpuDuration) o).getValue());
+				if (cpu != null)
+					cpuMillis = (cpuMillis == null ? cpu : cpuMillis + cpu);
+			}
+		Memory memory = ur.getOfType(Memory.class);
+		if (memory != null)
+			memoryBytes = bytes(memory.getValue());
+		Disk disk = ur.getOfType(Disk.class);
+		if (disk != null)
+			diskBytes = bytes(disk.getValue());
+	}
+
+	private static Date date(XMLGregorianCalendar value) {
+		return value == null ? null : value.toGregorianCalendar().getTime();
+	}
+
+	private static Long millis(Duration value) {
+		return value == null ? null : value.getTimeInMillis(new Date(0));
+	}
+
+	private static Long bytes(BigInteger value) {
+		return value == null ? null : value.longValue();
 	}
 
 	@PrimaryKey
@@ -79,6 +194,32 @@ public class UsageRecord {
 	@Column(name = "CREATE_DATE")
 	private Date createDate;
 
+	@Persistent
+	@Index(name = "START_IDX")
+	@Column(name = "START_TIME")
+	private Date startTime;
+
+	@Persistent
+	@Index(name = "END_IDX")
+	@Column(name = "END_TIME")
+	private Date endTime;
+
+	@Persistent
+	@Column(name = "WALL_MILLIS")
+	private Long wallMillis;
+
+	@Persistent
+	@Column(name = "CPU_MILLIS")
+	private Long cpuMillis;
+
+	@Persistent
+	@Column(name = "MEMORY_BYTES")
+	private Long memoryBytes;
+
+	@Persistent
+	@Column(name = "DISK_BYTES")
+	private Long diskBytes;
+
 	@Persistent
 	@Column(name = "USAGE_RECORD", length = 32000)
 	// TODO Consider moving to BLOB (CLOB?) type
@@ -108,6 +249,30 @@ public class UsageRecord {
 		this.createDate = createDate;
 	}
 
+	public Date getStartTime() {
+		return startTime;
+	}
+
+	public Date getEndTime() {
+		return endTime;
+	}
+
+	public Long getWallMillis() {
+		return wallMillis;
+	}
+
+	public Long getCpuMillis() {
+		return cpuMillis;
+	}
+
+	public Long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public Long getDiskBytes() {
+		return diskBytes;
+	}
+
 	public String getUsageRecord() {
 		return usageRecord;
 	}
@@ -5,32 +5,82 @@
  */
 package org.taverna.server.master.usage;
 
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.singletonList;
 import static org.apache.commons.logging.LogFactory.getLog;
 
-import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.jdo.Query;
 import javax.xml.bind.JAXBException;
 
 import org.apache.commons.logging.Log;
 import org.ogf.usage.JobUsageRecord;
 import org.springframework.beans.factory.annotation.Required;
 import org.taverna.server.master.api.ManagementModel;
+import org.taverna.server.master.utils.BatchingPipeline;
 import org.taverna.server.master.utils.Contextualizer;
 import org.taverna.server.master.utils.JDOSupport;
+import org.taverna.server.master.utils.OneShotThread;
 
 /**
- * A simple state-aware writer of usage records. It just appends them, one by
- * one, to the file whose name is stored in the state.
+ * A simple state-aware writer of usage records. It appends them to the file
+ * whose name is stored in the state, and stores them in the database.
+ * <p>
+ * Records are accepted into a bounded queue, so that the workers that report
+ * them are not held up; a background thread appends each batch of records to
+ * the log with a single flush and sync, then parses them and inserts them into
+ * the database in one transaction. After each batch is in the database, how
+ * far through the log the database has got is noted in a checkpoint file next
+ * to the log; on startup, any records in the log beyond the checkpoint that
+ * are not in the database are inserted. If the queue is full, the thread that
+ * reported the record only appends it to the log, without waiting for the
+ * database; the background thread puts it into the database from the log
+ * after its next batch. (With no log, that thread has to wait for room in the
+ * queue instead.) Once everything in the log is in the database and the log
+ * has grown past a size limit, it is moved aside and a new log is begun.
+ * <p>
+ * The per-user daily totals kept by the {@link UsageSummaryDAO} are updated in
+ * the same transaction as the records are stored in.
  * 
  * @author Donal Fellows
  */
 public class UsageRecordRecorder extends JDOSupport<UsageRecord> {
+	/** Appended to the name of the log to get the name of its checkpoint. */
+	static final String CHECKPOINT_SUFFIX = ".checkpoint";
+	/** Appended to the name of the log to get the name of the previous log. */
+	static final String ROTATED_SUFFIX = ".old";
+	/**
+	 * How long to wait for room in the queue when there is no log to put a
+	 * record in instead.
+	 */
+	private static final long OVERFLOW_WAIT = 1000;
+	/** How often to try to put records missed earlier into the database. */
+	private static final long CATCH_UP_INTERVAL = 60000;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** The latest time that all supported databases can represent. */
+	private static final Date END_OF_TIME = new Date(253402300799999L);
 	private Log log = getLog("Taverna.Server.Webapp");
 	public UsageRecordRecorder() {
 		super(UsageRecord.class);
@@ -40,10 +90,29 @@ public class UsageRecordRecorder extends JDOSupport<UsageRecord> {
 	private boolean disableDB = false;
 	private ManagementModel state;
 	private Contextualizer contextualizer;
+	private long rotateSize = 10 * 1024 * 1024;
+	/** Guards the log itself; may be taken while holding {@link #lock}. */
+	private final Object logLock = new Object();
 	private String logDestination;
-	private PrintWriter writer;
+	private FileOutputStream logStream;
+	private Writer writer;
+	/** Whether some records in the log may be missing from the database. */
+	private boolean dbBehind;
+	/**
+	 * Whether records have been put in the log without being put in the
+	 * database, because the queue was full.
+	 */
+	private boolean overflowed;
+	/** When the database was last caught up with the log, or tried to be. */
+	private long lastCatchUp;
+	/** Whether the log has been checked for records missing from the database. */
+	private boolean recovered;
 	private Object lock = new Object();
 	private UsageRecordRecorder self;
+	private int queueCapacity = 10000;
+	private int batchSize = 100;
+	private BatchingPipeline<String> pipeline;
+	private UsageSummaryDAO summaries;
 
 	/**
 	 * @param state
@@ -67,6 +136,17 @@ public class UsageRecordRecorder extends JDOSupport<UsageRecord> {
 		disableDB = "yes".equalsIgnoreCase(disable);
 	}
 
+	/**
+	 * @param rotateSize
+	 *            How large the log may grow, in bytes, before it is moved aside
+	 *            once everything in it is in the database. Not positive to
+	 *            never do so. The log is never moved aside when the database
+	 *            is disabled, as it is then the only copy of the records.
+	 */
+	public void setLogRotateSize(long rotateSize) {
+		this.rotateSize = rotateSize;
+	}
+
 	/**
 	 * @param contextualizer
 	 *            the system's contextualizer, used to allow making the UR dump
@@ -78,73 +158,590 @@ public class UsageRecordRecorder extends JDOSupport<UsageRecord> {
 	}
 
 	/**
-	 * Accept a usage record for recording.
+	 * @param summaries
+	 *            Where the daily totals of usage are kept. If not set, no
+	 *            totals are kept.
+	 */
+	public void setSummaries(UsageSummaryDAO summaries) {
+		this.summaries = summaries;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            How many usage records may be waiting to be stored.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param batchSize
+	 *            The largest number of usage records stored in one
+	 *            transaction.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	@PostConstruct
+	void start() {
+		pipeline = new BatchingPipeline<>("usage record writer",
+				queueCapacity, batchSize, new BatchingPipeline.Sink<String>() {
+					@Override
+					public void write(List<String> usageRecords) {
+						store(usageRecords);
+					}
+				});
+		new OneShotThread("usage record recovery", new Runnable() {
+			@Override
+			public void run() {
+				recover();
+			}
+		});
+	}
+
+	/**
+	 * Accept a usage record for recording. Does not wait for it to be put in
+	 * the database; if there is a backlog, it is only appended to the log
+	 * before this returns.
 	 * 
 	 * @param usageRecord
 	 *            The serialized usage record to record.
 	 */
 	public void storeUsageRecord(String usageRecord) {
+		if (pipeline == null) {
+			store(singletonList(usageRecord));
+			return;
+		}
+		if (pipeline.offer(usageRecord))
+			return;
+		// Backlogged; rather than lose the record, log it for the writer
+		String logfile = currentLogFile();
+		if (logfile != null)
+			synchronized (logLock) {
+				if (writeLog(logfile, singletonList(usageRecord)) >= 0) {
+					overflowed = true;
+					return;
+				}
+			}
+		pipeline.submit(usageRecord, OVERFLOW_WAIT);
+	}
+
+	/**
+	 * Wait until every usage record accepted so far has been written.
+	 * 
+	 * @param timeout
+	 *            How long to wait, in milliseconds.
+	 * @return Whether everything was written within the timeout.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	boolean flush(long timeout) throws InterruptedException {
+		return pipeline == null || pipeline.awaitIdle(timeout);
+	}
+
+	private String currentLogFile() {
 		String logfile = state.getUsageRecordLogFile();
 		if (logfile == null)
 			logfile = this.logFile;
-		if (logfile != null) {
+		if (logfile != null)
 			logfile = contextualizer.contextualize(logfile);
-			synchronized (lock) {
-				if (!logfile.equals(logDestination)) {
-					if (writer != null) {
-						writer.close();
-						writer = null;
-					}
-					try {
-						writer = new PrintWriter(new FileWriter(logfile));
-						logDestination = logfile;
-					} catch (IOException e) {
-						log.warn("failed to open usage record log file", e);
-					}
-				}
-				if (writer != null) {
-					writer.println(usageRecord);
-					writer.flush();
-				}
+		return logfile;
+	}
+
+	/**
+	 * Log a batch of usage records and save them to the database.
+	 * 
+	 * @param usageRecords
+	 *            The serialized usage records.
+	 */
+	void store(List<String> usageRecords) {
+		synchronized (lock) {
+			if (!recovered)
+				recover();
+			String logfile = currentLogFile();
+			long logged = -1;
+			if (logfile != null)
+				logged = appendToLog(logfile, usageRecords);
+			if (disableDB)
+				return;
+			List<UsageRecord> urs = parse(usageRecords);
+			if (!urs.isEmpty() && !saveURsToDB(urs))
+				dbBehind = true;
+			else if (dbBehind && logged >= 0)
+				catchUp(logfile);
+			if (logged >= 0 && !dbBehind)
+				commit(logfile, logged);
+		}
+	}
+
+	/**
+	 * Note how far through the log is in the database, first putting in any
+	 * records logged because the queue was full, and move the log aside if
+	 * that is all of it. The caller must hold {@link #lock}.
+	 * 
+	 * @param logged
+	 *            How far through the log is known to be in the database,
+	 *            apart from the records logged because the queue was full.
+	 */
+	private void commit(String logfile, long logged) {
+		long end = takeOverflow(logfile, logged);
+		if (end > logged
+				&& replay(new File(logfile), readCheckpoint(logfile)) < 0) {
+			dbBehind = true;
+			return;
+		}
+		writeCheckpoint(logfile, end);
+		rotateIfCommitted(logfile, end);
+	}
+
+	/**
+	 * Note that the records logged because the queue was full are about to be
+	 * put in the database.
+	 * 
+	 * @return How far through the log those records go, or <tt>logged</tt>
+	 *         if there are none.
+	 */
+	private long takeOverflow(String logfile, long logged) {
+		synchronized (logLock) {
+			if (!overflowed)
+				return logged;
+			overflowed = false;
+			return Math.max(logged, new File(logfile).length());
+		}
+	}
+
+	/**
+	 * Move the log aside once it is large and everything in it is in the
+	 * database. The checkpoint is reset first, so that stopping part way
+	 * through only makes the next start check a log that is already in the
+	 * database.
+	 * 
+	 * @param committed
+	 *            How far through the log is known to be in the database.
+	 */
+	private void rotateIfCommitted(String logfile, long committed) {
+		if (rotateSize <= 0 || committed < rotateSize)
+			return;
+		synchronized (logLock) {
+			File file = new File(logfile);
+			if (overflowed || file.length() != committed)
+				// Something was logged since; wait for the next batch
+				return;
+			writeCheckpoint(logfile, 0);
+			closeLog();
+			File old = new File(logfile + ROTATED_SUFFIX);
+			if (old.exists() && !old.delete()) {
+				log.warn("failed to delete old usage record log file " + old);
+				return;
 			}
+			if (file.renameTo(old))
+				log.info("moved usage record log file to " + old);
+			else
+				log.warn("failed to move usage record log file to " + old);
 		}
+	}
 
-		if (!disableDB)
-			saveURtoDB(usageRecord);
+	/**
+	 * Now that saving to the database works again, put the records that
+	 * failed to be saved earlier into it from the log. Not tried more than
+	 * once a minute, as it reads the log from the checkpoint on.
+	 */
+	private void catchUp(String logfile) {
+		long now = currentTimeMillis();
+		if (now - lastCatchUp < CATCH_UP_INTERVAL)
+			return;
+		lastCatchUp = now;
+		File file = new File(logfile);
+		int count = replay(file, readCheckpoint(logfile));
+		if (count < 0)
+			return;
+		dbBehind = false;
+		if (count > 0)
+			log.info("caught up with " + count
+					+ " usage records from log file " + logfile);
 	}
 
 	/**
-	 * How to save a usage record to the database.
+	 * Append usage records to the log, with one flush and sync for them all.
 	 * 
-	 * @param usageRecord
-	 *            The serialized usage record to save.
+	 * @return How long the log now is, or -1 if writing failed.
 	 */
-	protected void saveURtoDB(String usageRecord) {
-		UsageRecord ur;
+	private long appendToLog(String logfile, List<String> usageRecords) {
+		synchronized (logLock) {
+			return writeLog(logfile, usageRecords);
+		}
+	}
+
+	/** Append to the log; the caller must hold {@link #logLock}. */
+	private long writeLog(String logfile, List<String> usageRecords) {
 		try {
-			ur = new UsageRecord(usageRecord);
-		} catch (JAXBException e) {
-			log.warn("failed to deserialize usage record", e);
-			return;
+			if (!logfile.equals(logDestination)) {
+				closeLog();
+				logStream = new FileOutputStream(logfile, true);
+				writer = new BufferedWriter(new OutputStreamWriter(logStream,
+						UTF8));
+				logDestination = logfile;
+			}
+			for (String ur : usageRecords) {
+				writer.write(ur);
+				writer.write(System.lineSeparator());
+			}
+			writer.flush();
+			logStream.getChannel().force(false);
+			return logStream.getChannel().position();
+		} catch (IOException e) {
+			log.warn("failed to write usage records to log file", e);
+			closeLog();
+			return -1;
 		}
+	}
 
+	private void closeLog() {
 		try {
-			self.saveURtoDB(ur);
+			if (writer != null)
+				writer.close();
+		} catch (IOException e) {
+			log.warn("failed to close usage record log file", e);
+		}
+		writer = null;
+		logStream = null;
+		logDestination = null;
+	}
+
+	private List<UsageRecord> parse(List<String> usageRecords) {
+		List<UsageRecord> urs = new ArrayList<>(usageRecords.size());
+		for (String usageRecord : usageRecords)
+			try {
+				urs.add(new UsageRecord(usageRecord));
+			} catch (JAXBException | RuntimeException e) {
+				log.warn("failed to deserialize usage record", e);
+			}
+		return urs;
+	}
+
+	/**
+	 * How to save some usage records to the database. They are saved in one
+	 * transaction if possible, and otherwise one at a time.
+	 * 
+	 * @param urs
+	 *            The usage records to save.
+	 * @return Whether they were all saved.
+	 */
+	protected boolean saveURsToDB(List<UsageRecord> urs) {
+		try {
+			self.saveURBatchToDB(urs);
+			return true;
 		} catch (RuntimeException e) {
-			log.warn("failed to save UR to database", e);
+			if (urs.size() == 1) {
+				log.warn("failed to save UR to database", e);
+				return false;
+			}
+			log.info("failed to save batch of URs to database; "
+					+ "saving them singly", e);
 		}
+		boolean saved = true;
+		for (UsageRecord ur : urs)
+			try {
+				self.saveURtoDB(ur);
+			} catch (RuntimeException e) {
+				log.warn("failed to save UR to database", e);
+				saved = false;
+			}
+		return saved;
 	}
 
 	@WithinSingleTransaction
 	public void saveURtoDB(UsageRecord ur) {
 		persist(ur);
+		if (summaries != null)
+			summaries.addAll(singletonList(ur));
+	}
+
+	/**
+	 * Save a batch of usage records in one transaction; the inserts are sent
+	 * to the database as a JDBC batch.
+	 */
+	@WithinSingleTransaction
+	public void saveURBatchToDB(List<UsageRecord> urs) {
+		persistAll(urs);
+		if (summaries != null)
+			summaries.addAll(urs);
+	}
+
+	/**
+	 * Save those of some usage records that are not already in the database.
+	 * 
+	 * @return How many were saved.
+	 */
+	@WithinSingleTransaction
+	public int saveMissingURsToDB(List<UsageRecord> urs) {
+		Set<String> seen = new HashSet<>();
+		List<UsageRecord> missing = new ArrayList<>();
+		for (UsageRecord ur : urs)
+			if (seen.add(ur.getId()) && getById(ur.getId()) == null)
+				missing.add(ur);
+		persistAll(missing);
+		if (summaries != null)
+			summaries.addAll(missing);
+		return missing.size();
+	}
+
+	/**
+	 * Put the usage records that are in the log after the checkpoint, but not
+	 * in the database, into the database. This catches up with records that
+	 * were logged but not stored when the server last stopped.
+	 */
+	void recover() {
+		synchronized (lock) {
+			if (recovered)
+				return;
+			recovered = true;
+			String logfile = currentLogFile();
+			if (logfile == null || disableDB)
+				return;
+			File file = new File(logfile);
+			if (!file.isFile())
+				return;
+			long end = file.length();
+			long start = readCheckpoint(logfile);
+			if (start > end)
+				// The log has been replaced
+				start = 0;
+			if (start == end)
+				return;
+			int count = replay(file, start);
+			if (count < 0) {
+				dbBehind = true;
+				return;
+			}
+			writeCheckpoint(logfile, end);
+			if (count > 0)
+				log.info("recovered " + count + " usage records from log file "
+						+ logfile);
+		}
+	}
+
+	/**
+	 * Put the usage records in the log from the given point on that are not
+	 * in the database into it. The records are parsed straight from the log,
+	 * a batch at a time.
+	 * 
+	 * @param file
+	 *            The log file.
+	 * @param start
+	 *            Where in the log to start, in bytes; if past the end, the log
+	 *            has been replaced, so it is all read.
+	 * @return How many records were added, or -1 if some could not be.
+	 */
+	private int replay(File file, long start) {
+		if (start > file.length())
+			start = 0;
+		int count = 0;
+		try (LogReader records = new LogReader(file, start)) {
+			List<UsageRecord> batch = new ArrayList<>(batchSize);
+			Reader record;
+			while ((record = records.nextRecord()) != null) {
+				try {
+					batch.add(new UsageRecord(record));
+				} catch (JAXBException | RuntimeException e) {
+					log.warn("failed to deserialize usage record", e);
+				}
+				if (batch.size() >= batchSize) {
+					count += self.saveMissingURsToDB(batch);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			if (!batch.isEmpty())
+				count += self.saveMissingURsToDB(batch);
+			return count;
+		} catch (IOException e) {
+			log.warn("failed to read usage record log file", e);
+			return -1;
+		} catch (RuntimeException e) {
+			log.warn("failed to save usage records from log file", e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the usage records in a log one at a time, so that a whole log
+	 * need not be held in memory. Each record starts on a new line; a record
+	 * only spans several lines if the following lines do not start a new XML
+	 * document. Blank lines are skipped.
+	 */
+	static class LogReader implements Closeable {
+		private final BufferedReader in;
+		/** The first line of the next record, or <tt>null</tt> at the end. */
+		private String next;
+		private Record current;
+
+		/**
+		 * @param file
+		 *            The log file.
+		 * @param offset
+		 *            Where in the file to start reading, in bytes.
+		 * @throws IOException
+		 *             If the log can't be opened.
+		 */
+		LogReader(@Nonnull File file, long offset) throws IOException {
+			FileInputStream stream = new FileInputStream(file);
+			try {
+				stream.getChannel().position(offset);
+				in = new BufferedReader(new InputStreamReader(stream, UTF8));
+				next = readLine();
+			} catch (IOException | RuntimeException e) {
+				stream.close();
+				throw e;
+			}
+		}
+
+		private String readLine() throws IOException {
+			String line;
+			do
+				line = in.readLine();
+			while (line != null && line.trim().isEmpty());
+			return line;
+		}
+
+		/**
+		 * Get the next record. Getting another record skips whatever is left
+		 * of this one.
+		 * 
+		 * @return The text of the next record, or <tt>null</tt> if there are
+		 *         no more.
+		 * @throws IOException
+		 *             If the log can't be read.
+		 */
+		@Nullable
+		Reader nextRecord() throws IOException {
+			if (current != null)
+				current.skipRest();
+			if (next == null)
+				return null;
+			current = new Record(next);
+			next = null;
+			return current;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/** The lines of one record, read on demand. */
+		private class Record extends Reader {
+			private String line;
+			private int pos;
+			private boolean ended;
+
+			Record(String firstLine) {
+				line = firstLine;
+			}
+
+			/** Move to the next line of the record, if there is one. */
+			private boolean advance() throws IOException {
+				if (ended)
+					return false;
+				String l = readLine();
+				if (l == null || l.startsWith("<?xml")) {
+					next = l;
+					ended = true;
+					line = null;
+					return false;
+				}
+				line = "\n" + l;
+				pos = 0;
+				return true;
+			}
+
+			@Override
+			public int read(char[] buffer, int offset, int length)
+					throws IOException {
+				if (length == 0)
+					return 0;
+				while (line == null || pos >= line.length())
+					if (!advance())
+						return -1;
+				int n = Math.min(length, line.length() - pos);
+				line.getChars(pos, pos + n, buffer, offset);
+				pos += n;
+				return n;
+			}
+
+			void skipRest() throws IOException {
+				while (advance())
+					continue;
+			}
+
+			@Override
+			public void close() {
+				// The log is closed by the LogReader
+			}
+		}
+	}
+
+	private long readCheckpoint(String logfile) {
+		File checkpoint = new File(logfile + CHECKPOINT_SUFFIX);
+		if (!checkpoint.isFile())
+			return 0;
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(checkpoint), UTF8))) {
+			return Long.parseLong(r.readLine().trim());
+		} catch (IOException | RuntimeException e) {
+			log.warn("unreadable usage record checkpoint; "
+					+ "checking the whole log", e);
+			return 0;
+		}
+	}
+
+	private void writeCheckpoint(String logfile, long offset) {
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(logfile
+				+ CHECKPOINT_SUFFIX), UTF8)) {
+			w.write(Long.toString(offset));
+		} catch (IOException e) {
+			log.warn("failed to write usage record checkpoint", e);
+		}
 	}
 
 	@WithinSingleTransaction
 	public List<JobUsageRecord> getUsageRecords() {
+		return getUsageRecords(null, null, null, 0, -1);
+	}
+
+	/**
+	 * Get some of the usage records, in the order they were made. The records
+	 * are found using the indexes on who they are for and when they were made.
+	 * 
+	 * @param user
+	 *            Whose records to get, or <tt>null</tt> for everyone's.
+	 * @param from
+	 *            The earliest time a record may have been made, or
+	 *            <tt>null</tt> for no limit.
+	 * @param to
+	 *            The time (exclusive) that records must have been made before,
+	 *            or <tt>null</tt> for no limit.
+	 * @param offset
+	 *            How many of the matching records to skip.
+	 * @param limit
+	 *            The largest number of records to get, or negative for no
+	 *            limit.
+	 * @return The records.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public List<JobUsageRecord> getUsageRecords(@Nullable String user,
+			@Nullable Date from, @Nullable Date to, int offset, int limit) {
+		Query q = namedQuery(user == null ? "byDate" : "forUserByDate");
+		if (limit >= 0)
+			q.setRange(offset, offset + limit);
+		else if (offset > 0)
+			q.setRange(offset, Long.MAX_VALUE);
+		Date start = (from == null ? new Date(0) : from);
+		Date end = (to == null ? END_OF_TIME : to);
 		@SuppressWarnings("unchecked")
-		Collection<String> urs = (Collection<String>) namedQuery("allByDate")
-				.execute();
+		Collection<String> urs = (Collection<String>) (user == null ? q
+				.execute(start, end) : q.execute(start, end, user));
 		List<JobUsageRecord> result = new ArrayList<>();
 		for (String ur : urs)
 			try {
@@ -155,9 +752,43 @@ public class UsageRecordRecorder extends JDOSupport<UsageRecord> {
 		return result;
 	}
 
+	/**
+	 * Get the daily totals of usage for a period.
+	 * 
+	 * @param user
+	 *            Whose totals to get, or <tt>null</tt> for everyone's.
+	 * @param from
+	 *            The start of the period, or <tt>null</tt> for no limit.
+	 * @param to
+	 *            The end of the period (exclusive), or <tt>null</tt> for no
+	 *            limit.
+	 * @return The totals, by day, or an empty list if totals are not kept.
+	 */
+	@Nonnull
+	public List<UsageSummary> getUsageSummaries(@Nullable String user,
+			@Nullable Date from, @Nullable Date to) {
+		if (summaries == null)
+			return new ArrayList<>();
+		return summaries.getSummaries(user, from == null ? new Date(0) : from,
+				to == null ? END_OF_TIME : to);
+	}
+
 	@PreDestroy
 	public void close() {
-		if (writer != null)
-			writer.close();
+		try {
+			if (pipeline != null)
+				pipeline.stop(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			// Records logged while the queue was full, after its last batch
+			String logfile = currentLogFile();
+			if (logfile != null && recovered && !disableDB && !dbBehind)
+				commit(logfile, readCheckpoint(logfile));
+			synchronized (logLock) {
+				closeLog();
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.usage;
+
+import static org.taverna.server.master.usage.UsageSummary.SUMMARIES_QUERY;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.annotation.Nonnull;
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import javax.jdo.annotations.Queries;
+import javax.jdo.annotations.Query;
+
+/**
+ * The total resources used by one user's workflow runs on one day (in UTC),
+ * kept up to date as usage records are stored, so that reports need not read
+ * the records themselves. Runs count towards the day their usage record was
+ * made, i.e., the day they finished.
+ *
+ * @author Donal Fellows
+ */
+@PersistenceCapable(table = "USAGE_SUMMARY", schema = "UR")
+@Index(name = "SUMMARY_USER_DATE_IDX", members = { "userid", "day" })
+@Queries({
+		@Query(name = "byDay", value = SUMMARIES_QUERY
+				+ " ORDER BY day ASC, userid ASC"),
+		@Query(name = "forUserByDay", value = SUMMARIES_QUERY
+				+ " && userid == :user ORDER BY day ASC") })
+public class UsageSummary {
+	static final String SUMMARIES_QUERY = "SELECT FROM org.taverna.server.master.usage.UsageSummary WHERE day >= :from && day < :to";
+	private static final long DAY = 24 * 60 * 60 * 1000;
+
+	@PrimaryKey
+	@Column(name = "ID", length = 40)
+	private String id;
+
+	@Persistent
+	@Column(name = "USERID", length = 24)
+	private String userid;
+
+	@Persistent
+	@Index(name = "SUMMARY_DATE_IDX")
+	@Column(name = "SUMMARY_DATE")
+	private Date day;
+
+	@Persistent
+	@Column(name = "JOBS")
+	private long jobs;
+
+	@Persistent
+	@Column(name = "WALL_MILLIS")
+	private long wallMillis;
+
+	@Persistent
+	@Column(name = "CPU_MILLIS")
+	private long cpuMillis;
+
+	@Persistent
+	@Column(name = "DISK_BYTES")
+	private long diskBytes;
+
+	@Persistent
+	@Column(name = "MAX_MEMORY_BYTES")
+	private long maxMemoryBytes;
+
+	UsageSummary() {
+	}
+
+	UsageSummary(@Nonnull String userid, @Nonnull Date day) {
+		this.id = key(userid, day);
+		this.userid = userid;
+		this.day = startOfDay(day);
+	}
+
+	/**
+	 * @param date
+	 *            A moment in time.
+	 * @return The start of the day (in UTC) containing that moment.
+	 */
+	@Nonnull
+	static Date startOfDay(@Nonnull Date date) {
+		long t = date.getTime();
+		return new Date(t - ((t % DAY) + DAY) % DAY);
+	}
+
+	/**
+	 * @return The identity of the summary for a user's runs on the day
+	 *         containing a particular moment.
+	 */
+	@Nonnull
+	static String key(@Nonnull String userid, @Nonnull Date date) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return userid + "/" + format.format(date);
+	}
+
+	/**
+	 * Add the resources used by a run into the totals.
+	 *
+	 * @param ur
+	 *            The usage record of the run.
+	 */
+	void add(@Nonnull UsageRecord ur) {
+		jobs++;
+		if (ur.getWallMillis() != null)
+			wallMillis += ur.getWallMillis();
+		if (ur.getCpuMillis() != null)
+			cpuMillis += ur.getCpuMillis();
+		if (ur.getDiskBytes() != null)
+			diskBytes += ur.getDiskBytes();
+		if (ur.getMemoryBytes() != null)
+			maxMemoryBytes = Math.max(maxMemoryBytes, ur.getMemoryBytes());
+	}
+
+	public String getUserid() {
+		return userid;
+	}
+
+	/** @return The start of the day (in UTC) being summarised. */
+	public Date getDay() {
+		return day;
+	}
+
+	/** @return How many runs finished. */
+	public long getJobs() {
+		return jobs;
+	}
+
+	/** @return The total elapsed time of the runs, in milliseconds. */
+	public long getWallMillis() {
+		return wallMillis;
+	}
+
+	/** @return The total CPU time used by the runs, in milliseconds. */
+	public long getCpuMillis() {
+		return cpuMillis;
+	}
+
+	/** @return The total disk space used by the runs, in bytes. */
+	public long getDiskBytes() {
+		return diskBytes;
+	}
+
+	/** @return The most memory used by any one run, in bytes. */
+	public long getMaxMemoryBytes() {
+		return maxMemoryBytes;
+	}
+}
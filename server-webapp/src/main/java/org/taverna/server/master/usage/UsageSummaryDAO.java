@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.usage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.taverna.server.master.utils.JDOSupport;
+
+/**
+ * The database of daily per-user usage totals.
+ *
+ * @author Donal Fellows
+ */
+public class UsageSummaryDAO extends JDOSupport<UsageSummary> {
+	public UsageSummaryDAO() {
+		super(UsageSummary.class);
+	}
+
+	/**
+	 * Add some newly stored usage records into the totals. Meant to be called
+	 * in the same transaction as the records are stored in.
+	 *
+	 * @param urs
+	 *            The usage records.
+	 */
+	@WithinSingleTransaction
+	public void addAll(@Nonnull Collection<UsageRecord> urs) {
+		Map<String, UsageSummary> touched = new HashMap<>();
+		for (UsageRecord ur : urs) {
+			if (ur.getUserid() == null || ur.getCreateDate() == null)
+				continue;
+			String key = UsageSummary.key(ur.getUserid(), ur.getCreateDate());
+			UsageSummary summary = touched.get(key);
+			if (summary == null) {
+				summary = getById(key);
+				if (summary == null)
+					summary = persist(new UsageSummary(ur.getUserid(),
+							ur.getCreateDate()));
+				touched.put(key, summary);
+			}
+			summary.add(ur);
+		}
+	}
+
+	/**
+	 * Get the daily totals for a period.
+	 *
+	 * @param user
+	 *            Whose totals to get, or <tt>null</tt> for everyone's.
+	 * @param from
+	 *            The start of the period.
+	 * @param to
+	 *            The end of the period (exclusive).
+	 * @return The totals, by day.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public List<UsageSummary> getSummaries(@Nullable String user,
+			@Nonnull Date from, @Nonnull Date to) {
+		Object found;
+		if (user == null)
+			found = namedQuery("byDay").execute(UsageSummary.startOfDay(from),
+					to);
+		else
+			found = namedQuery("forUserByDay").execute(
+					UsageSummary.startOfDay(from), to, user);
+		@SuppressWarnings("unchecked")
+		Collection<UsageSummary> summaries = (Collection<UsageSummary>) found;
+		return new ArrayList<>(detachAll(summaries));
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.Thread.sleep;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hands items over from the threads that produce them to a single background
+ * thread that writes them out in batches. The queue between producers and the
+ * writer is bounded. Items {@linkplain #offer(Object) offered} while it is
+ * full are refused (and counted) rather than holding the producer up; items
+ * {@linkplain #submit(Object, long) submitted} while it is full make the
+ * producer wait a bounded time for room, and are then written by the producer
+ * itself, so they are not lost. The writer takes whatever has accumulated, up
+ * to the batch size, each time it is ready for more, so batches grow naturally
+ * when items arrive faster than they can be written one at a time.
+ * <p>
+ * If writing a batch fails, its items are retried once, one at a time, so
+ * that one bad item does not take the rest of its batch with it. Items that
+ * still cannot be written are logged individually and counted.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Donal Fellows
+ * @param <T>
+ *            The type of items being written.
+ */
+public class BatchingPipeline<T> {
+	/**
+	 * Where the items are written to.
+	 *
+	 * @param <T>
+	 *            The type of items being written.
+	 */
+	public interface Sink<T> {
+		/**
+		 * Write out a batch of items. Called from the pipeline's own thread,
+		 * and from producers' threads when the pipeline is backlogged, so may
+		 * be called concurrently.
+		 *
+		 * @param batch
+		 *            The items to write; never empty.
+		 * @throws Exception
+		 *             If the batch could not be written; the items are
+		 *             retried one at a time, and then discarded.
+		 */
+		void write(@Nonnull List<T> batch) throws Exception;
+	}
+
+	/** How often the writer checks whether it should stop, in milliseconds. */
+	private static final long POLL_INTERVAL = 100;
+	private final Log log = LogFactory.getLog("Taverna.Server.Utils");
+	private final String name;
+	private final BlockingQueue<T> queue;
+	private final int batchSize;
+	private final Sink<T> sink;
+	private final Thread thread;
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+	private final AtomicLong direct = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private volatile boolean stopping;
+
+	/**
+	 * Create a pipeline and start its writer thread.
+	 *
+	 * @param name
+	 *            The name of the pipeline, used for its thread and in logging.
+	 * @param capacity
+	 *            How many items may be waiting to be written.
+	 * @param batchSize
+	 *            The largest number of items written in one batch.
+	 * @param sink
+	 *            Where the items are written to.
+	 */
+	public BatchingPipeline(@Nonnull String name, int capacity, int batchSize,
+			@Nonnull Sink<T> sink) {
+		if (capacity < 1 || batchSize < 1)
+			throw new IllegalArgumentException(
+					"capacity and batch size must be positive");
+		this.name = name;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.batchSize = batchSize;
+		this.sink = sink;
+		thread = new OneShotThread(name, new Runnable() {
+			@Override
+			public void run() {
+				writerLoop();
+			}
+		});
+	}
+
+	/**
+	 * Queue an item to be written. Never blocks.
+	 *
+	 * @param item
+	 *            The item to write.
+	 * @return Whether the item was accepted; it is refused if the queue is full
+	 *         or the pipeline has been stopped.
+	 */
+	public boolean offer(@Nonnull T item) {
+		if (!stopping) {
+			pending.incrementAndGet();
+			if (queue.offer(item))
+				return true;
+			pending.decrementAndGet();
+		}
+		if (refused.incrementAndGet() % 1000 == 1)
+			log.warn(name + " is backlogged; refused " + refused.get()
+					+ " items so far");
+		return false;
+	}
+
+	/**
+	 * Queue an item to be written, waiting for room if the pipeline is
+	 * backlogged. If there is still no room after the timeout (or the pipeline
+	 * has been stopped), the item is written on the calling thread instead.
+	 *
+	 * @param item
+	 *            The item to write.
+	 * @param timeout
+	 *            How long to wait for room in the queue, in milliseconds.
+	 */
+	public void submit(@Nonnull T item, long timeout) {
+		if (!stopping) {
+			pending.incrementAndGet();
+			boolean queued = false;
+			try {
+				queued = queue.offer(item, timeout, MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (!queued)
+					pending.decrementAndGet();
+			}
+			if (queued)
+				return;
+		}
+		if (direct.incrementAndGet() % 1000 == 1)
+			log.warn(name + " is backlogged; " + direct.get()
+					+ " items written by their producers so far");
+		writeWithRetry(singletonList(item));
+	}
+
+	private void writerLoop() {
+		List<T> batch = new ArrayList<>(batchSize);
+		try {
+			while (!stopping) {
+				T item = queue.poll(POLL_INTERVAL, MILLISECONDS);
+				if (item == null)
+					continue;
+				batch.add(item);
+				queue.drainTo(batch, batchSize - 1);
+				write(batch);
+			}
+		} catch (InterruptedException e) {
+			// Stopping
+		}
+		while (queue.drainTo(batch, batchSize) > 0)
+			write(batch);
+	}
+
+	private void write(List<T> batch) {
+		if (batch.isEmpty())
+			return;
+		int size = batch.size();
+		try {
+			writeWithRetry(batch);
+		} finally {
+			batch.clear();
+			batches.incrementAndGet();
+			pending.addAndGet(-size);
+		}
+	}
+
+	private void writeWithRetry(List<T> batch) {
+		try {
+			sink.write(batch);
+			written.addAndGet(batch.size());
+			return;
+		} catch (Exception e) {
+			log.warn(name + " failed to write " + batch.size()
+					+ " items; retrying them one at a time", e);
+		}
+		for (T item : batch)
+			try {
+				sink.write(singletonList(item));
+				written.incrementAndGet();
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				log.error(name + " lost " + item, e);
+			}
+	}
+
+	/**
+	 * Stop accepting items, write out those already queued and stop the
+	 * writer thread.
+	 *
+	 * @param timeout
+	 *            How long to wait for the writer to finish, in milliseconds.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public void stop(long timeout) throws InterruptedException {
+		stopping = true;
+		thread.join(timeout);
+	}
+
+	/**
+	 * Wait until every item accepted so far has been written (or has failed to
+	 * be written).
+	 *
+	 * @param timeout
+	 *            How long to wait, in milliseconds.
+	 * @return Whether everything was written within the timeout.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+		long deadline = currentTimeMillis() + timeout;
+		while (pending.get() > 0) {
+			if (currentTimeMillis() > deadline)
+				return false;
+			sleep(5);
+		}
+		return true;
+	}
+
+	/** @return How many items are waiting to be written. */
+	public int getBacklog() {
+		return queue.size();
+	}
+
+	/** @return How many items have been written. */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/** @return How many items were refused because the queue was full. */
+	public long getRefusedCount() {
+		return refused.get();
+	}
+
+	/**
+	 * @return How many submitted items were written by their producers
+	 *         because the queue stayed full.
+	 */
+	public long getDirectWriteCount() {
+		return direct.get();
+	}
+
+	/** @return How many items were lost because writing them failed. */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/** @return How many batches have been written. */
+	public long getBatchCount() {
+		return batches.get();
+	}
+}
@@ -5,10 +5,14 @@
  */
 package org.taverna.server.master.utils;
 
+import static java.lang.System.currentTimeMillis;
+import static java.lang.Thread.currentThread;
 import static java.util.Arrays.asList;
 import static java.util.Collections.unmodifiableList;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
@@ -17,9 +21,13 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -32,7 +40,7 @@ import javax.xml.ws.Holder;
 
 /**
  * Obtains the certificate chain for an arbitrary SSL service. Maintains a
- * cache.
+ * cache, which remembers failures (for a shorter time) as well as successes.
  * 
  * @author Donal Fellows
  */
@@ -134,19 +142,113 @@ public class CertificateChainFetcher {
 			}
 		} }, null);
 		SSLSocketFactory factory = context.getSocketFactory();
-		try (SSLSocket socket = (SSLSocket) factory.createSocket(host, port)) {
-			socket.setSoTimeout(timeout);
-			socket.startHandshake();
-		} catch (SSLException e) {
-			// Ignore
+		try (Socket plain = new Socket()) {
+			plain.connect(new InetSocketAddress(host, port), timeout);
+			plain.setSoTimeout(timeout);
+			try (SSLSocket socket = (SSLSocket) factory.createSocket(plain,
+					host, port, true)) {
+				socket.startHandshake();
+			} catch (SSLException e) {
+				// Ignore
+			}
 		}
 		return chain.value;
 	}
 
-	private Map<URI, List<X509Certificate>> cache = new HashMap<>();
+	private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+	private long cacheLifetime = 60 * 60 * 1000;
+	private long failureLifetime = 60 * 1000;
+	private volatile long nextSweep;
+
+	/**
+	 * @param lifetime
+	 *            How long (in seconds) to remember a successfully-fetched
+	 *            certificate chain for.
+	 */
+	public void setCacheLifetime(int lifetime) {
+		this.cacheLifetime = lifetime * 1000L;
+	}
+
+	/**
+	 * @param lifetime
+	 *            How long (in seconds) to remember that a service could not be
+	 *            contacted for, so that repeated requests for it do not each
+	 *            have to wait for a timeout.
+	 */
+	public void setFailureLifetime(int lifetime) {
+		this.failureLifetime = lifetime * 1000L;
+	}
 
 	/**
-	 * Gets the certificate chain for a service identified by URI.
+	 * A fetch of a certificate chain, possibly still in progress. Everyone
+	 * asking for the same service while the fetch is happening waits for the
+	 * same result.
+	 */
+	private class CacheEntry extends FutureTask<List<X509Certificate>> {
+		private volatile long expiry = Long.MAX_VALUE;
+
+		CacheEntry(final String host, final int port) {
+			super(new Callable<List<X509Certificate>>() {
+				@Override
+				public List<X509Certificate> call() throws Exception {
+					X509Certificate[] chain = getCertificateChainForService(
+							host, port);
+					if (chain == null)
+						return null;
+					return unmodifiableList(asList(chain));
+				}
+			});
+		}
+
+		@Override
+		protected void set(List<X509Certificate> value) {
+			// No chain is as much a failure as not getting through at all
+			expiry = currentTimeMillis()
+					+ (value == null ? failureLifetime : cacheLifetime);
+			super.set(value);
+		}
+
+		@Override
+		protected void setException(Throwable t) {
+			expiry = currentTimeMillis() + failureLifetime;
+			super.setException(t);
+		}
+
+		boolean expired() {
+			return currentTimeMillis() > expiry;
+		}
+
+		List<X509Certificate> getChain() throws IOException,
+				GeneralSecurityException {
+			boolean interrupted = false;
+			try {
+				while (true)
+					try {
+						return get();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				if (t instanceof IOException)
+					throw new IOException(t.getMessage(), t);
+				if (t instanceof GeneralSecurityException)
+					throw new GeneralSecurityException(t.getMessage(), t);
+				if (t instanceof RuntimeException)
+					throw (RuntimeException) t;
+				throw new RuntimeException(t);
+			} finally {
+				if (interrupted)
+					currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets the certificate chain for a service identified by URI. Chains are
+	 * cached per service authority (host and port); concurrent requests for
+	 * the same authority share a single fetch, and requests for different
+	 * authorities do not wait for each other.
 	 * 
 	 * @param uri
 	 *            The URI of the (secure) service to identify.
@@ -163,37 +265,60 @@ public class CertificateChainFetcher {
 			GeneralSecurityException {
 		if (!secure)
 			return null;
-		synchronized (this) {
-			if (!cache.containsKey(uri)) {
-				int port = uri.getPort();
-				if (port == -1)
-					switch (uri.getScheme()) {
-					case "http":
-						port = 80;
-						break;
-					case "https":
-						port = 443;
-						break;
-					default:
-						return null;
-					}
-				X509Certificate[] chain = getCertificateChainForService(
-						uri.getHost(), port);
-				if (chain != null)
-					cache.put(uri, unmodifiableList(asList(chain)));
-				else
-					cache.put(uri, null);
+		int port = uri.getPort();
+		if (port == -1)
+			switch (uri.getScheme()) {
+			case "http":
+				port = 80;
+				break;
+			case "https":
+				port = 443;
+				break;
+			default:
+				return null;
 			}
-			return cache.get(uri);
+		String key = uri.getHost() + ":" + port;
+		CacheEntry entry = cache.get(key);
+		if (entry == null || entry.expired())
+			sweep();
+		while (entry == null || entry.expired()) {
+			CacheEntry fetch = new CacheEntry(uri.getHost(), port);
+			if (entry == null ? cache.putIfAbsent(key, fetch) == null : cache
+					.replace(key, entry, fetch)) {
+				fetch.run();
+				entry = fetch;
+			} else
+				entry = cache.get(key);
 		}
+		return entry.getChain();
+	}
+
+	/**
+	 * Forgets the expired entries in the cache, so that services which are
+	 * asked about once do not stay in it for ever. Does nothing if this was
+	 * done within the last failure lifetime.
+	 */
+	private void sweep() {
+		long now = currentTimeMillis();
+		if (now < nextSweep)
+			return;
+		nextSweep = now + failureLifetime;
+		for (Iterator<CacheEntry> it = cache.values().iterator(); it.hasNext();)
+			if (it.next().expired())
+				it.remove();
+	}
+
+	/**
+	 * @return How many services are in the cache.
+	 */
+	int cacheSize() {
+		return cache.size();
 	}
 
 	/**
 	 * Flushes the cache.
 	 */
 	public void flushCache() {
-		synchronized (this) {
-			cache.clear();
-		}
+		cache.clear();
 	}
 }
@@ -12,6 +12,7 @@ import static org.apache.commons.logging.LogFactory.getLog;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.util.Collection;
 import java.util.WeakHashMap;
 
 import javax.annotation.Nonnull;
@@ -119,6 +120,19 @@ public abstract class JDOSupport<T> {
 		return pm().makePersistent(value);
 	}
 
+	/**
+	 * Make many instances of the context class persist in the database at
+	 * once, allowing the inserts to be batched. Their identities must not
+	 * already exist.
+	 * 
+	 * @param values
+	 *            The instances to persist.
+	 */
+	protected void persistAll(@Nonnull Collection<T> values) {
+		if (!values.isEmpty())
+			pm().makePersistentAll(values);
+	}
+
 	/**
 	 * Make a non-persistent (i.e., will hold its value past the end of the
 	 * transaction) copy of a persistence-coupled instance of the context class.
@@ -134,6 +148,19 @@ public abstract class JDOSupport<T> {
 		return pm().detachCopy(value);
 	}
 
+	/**
+	 * Make non-persistent copies of many persistence-coupled instances of the
+	 * context class.
+	 * 
+	 * @param values
+	 *            The values to decouple.
+	 * @return The non-persistent copies.
+	 */
+	@Nonnull
+	protected Collection<T> detachAll(@Nonnull Collection<T> values) {
+		return pm().detachCopyAll(values);
+	}
+
 	/**
 	 * Look up an instance of the context class by its identity.
 	 * 
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.Math.round;
+import static java.lang.System.nanoTime;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Limits how fast each principal may make calls, and how many calls each
+ * principal may have in progress at once. The rate is enforced with a token
+ * bucket per principal, which refills at the configured rate up to the
+ * configured burst size.
+ * <p>
+ * Only a bounded number of principals are tracked, in a
+ * {@linkplain StripedLruCache striped cache} so that calls by different
+ * principals rarely contend; the least recently seen principal (of those that
+ * share a stripe) is forgotten when a new one arrives and the bound has been
+ * reached. Forgetting a principal merely gives it a full bucket again next
+ * time, but principals with calls in progress are never forgotten, so the
+ * bound may be exceeded by (at most) the number of calls that the container
+ * can service at once. Changing the bound forgets all principals.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "RateLimiter", description = "Limits the rate and concurrency of calls made by each user.")
+public class RateLimiter {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	/** How many independently locked parts the table of principals has. */
+	private static final int CONCURRENCY = 16;
+	/** How long an idle principal is remembered for, in milliseconds. */
+	private static final long IDLE_LIFETIME = 3600000;
+	private volatile boolean enabled = true;
+	private volatile double rate = 10;
+	private volatile int burst = 20;
+	private volatile int maxInFlight = 8;
+	private volatile int maxPrincipals = 10000;
+	private volatile StripedLruCache<String, Bucket> buckets = newBuckets();
+	private final AtomicLong granted = new AtomicLong();
+	private final AtomicLong refusedRate = new AtomicLong();
+	private final AtomicLong refusedConcurrency = new AtomicLong();
+	private final AtomicLong inFlight = new AtomicLong();
+
+	@ManagedAttribute(description = "Whether calls are being limited.")
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@ManagedAttribute(description = "Whether calls are being limited.")
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@ManagedAttribute(description = "The sustained number of calls per second allowed to each user; zero or less for no limit.")
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+
+	@ManagedAttribute(description = "The sustained number of calls per second allowed to each user; zero or less for no limit.")
+	public double getRate() {
+		return rate;
+	}
+
+	@ManagedAttribute(description = "The number of calls a user may make in a burst before the rate limit applies.")
+	public void setBurst(int burst) {
+		this.burst = max(1, burst);
+	}
+
+	@ManagedAttribute(description = "The number of calls a user may make in a burst before the rate limit applies.")
+	public int getBurst() {
+		return burst;
+	}
+
+	@ManagedAttribute(description = "The number of calls each user may have in progress at once; zero or less for no limit.")
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	@ManagedAttribute(description = "The number of calls each user may have in progress at once; zero or less for no limit.")
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	@ManagedAttribute(description = "The number of users whose call rates are remembered.")
+	public void setMaxPrincipals(int maxPrincipals) {
+		this.maxPrincipals = max(1, maxPrincipals);
+		buckets = newBuckets();
+	}
+
+	@ManagedAttribute(description = "The number of users whose call rates are remembered.")
+	public int getMaxPrincipals() {
+		return maxPrincipals;
+	}
+
+	@ManagedAttribute(description = "The number of users whose call rates are currently remembered.", currencyTimeLimit = 10)
+	public int getTrackedPrincipals() {
+		return buckets.size();
+	}
+
+	@ManagedAttribute(description = "The number of calls allowed.", currencyTimeLimit = 10)
+	public long getGrantedCount() {
+		return granted.get();
+	}
+
+	@ManagedAttribute(description = "The number of calls refused because the user was calling too often.", currencyTimeLimit = 10)
+	public long getRateRefusedCount() {
+		return refusedRate.get();
+	}
+
+	@ManagedAttribute(description = "The number of calls refused because the user had too many calls in progress.", currencyTimeLimit = 10)
+	public long getConcurrencyRefusedCount() {
+		return refusedConcurrency.get();
+	}
+
+	@ManagedAttribute(description = "The number of calls currently in progress.", currencyTimeLimit = 10)
+	public long getInFlightCount() {
+		return inFlight.get();
+	}
+
+	@ManagedOperation(description = "Forget the call history of all users.")
+	public void reset() {
+		buckets.clear();
+	}
+
+	/** @return The current time, in nanoseconds. */
+	long now() {
+		return nanoTime();
+	}
+
+	private StripedLruCache<String, Bucket> newBuckets() {
+		return new StripedLruCache<String, Bucket>(maxPrincipals,
+				IDLE_LIFETIME, CONCURRENCY) {
+			@Override
+			protected boolean isPinned(Bucket bucket) {
+				return bucket.inFlight > 0;
+			}
+		};
+	}
+
+	/**
+	 * Ask to make a call. If the permit returned is
+	 * {@linkplain Permit#isGranted() granted}, it must be
+	 * {@linkplain Permit#release() released} when the call finishes.
+	 *
+	 * @param principal
+	 *            Who is making the call.
+	 * @return The permit.
+	 */
+	@Nonnull
+	public Permit acquire(@Nonnull String principal) {
+		if (!enabled)
+			return new Permit(null, 0);
+		final long now = now();
+		final double rate = this.rate;
+		final long period = rate > 0 ? max(1, round(NANOS_PER_SECOND / rate))
+				: 0;
+		final int burst = this.burst;
+		final int maxInFlight = this.maxInFlight;
+		final Bucket[] taken = new Bucket[1];
+		/*
+		 * The token is taken while the principal's stripe is locked, so the
+		 * bucket can't be forgotten between being found and being pinned by
+		 * the call; if it could, a later call would get a fresh bucket and
+		 * escape the limit on calls in progress.
+		 */
+		long delay = buckets.apply(principal,
+				new StripedLruCache.Action<Bucket, Long>() {
+					@Override
+					public Bucket create() {
+						return new Bucket(burst, now);
+					}
+
+					@Override
+					public Long apply(Bucket b) {
+						taken[0] = b;
+						return b.take(now, period, burst, maxInFlight);
+					}
+				});
+		if (delay < 0) {
+			refusedConcurrency.incrementAndGet();
+			return new Permit(null, 1);
+		} else if (delay > 0) {
+			refusedRate.incrementAndGet();
+			return new Permit(null, max(1,
+					(long) ceil(delay / (double) NANOS_PER_SECOND)));
+		}
+		granted.incrementAndGet();
+		inFlight.incrementAndGet();
+		return new Permit(taken[0], 0);
+	}
+
+	/**
+	 * The outcome of asking to make a call.
+	 *
+	 * @author Donal Fellows
+	 */
+	public final class Permit {
+		private final Bucket bucket;
+		private final long retryAfter;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		Permit(Bucket bucket, long retryAfter) {
+			this.bucket = bucket;
+			this.retryAfter = retryAfter;
+		}
+
+		/** @return Whether the call may go ahead. */
+		public boolean isGranted() {
+			return retryAfter == 0;
+		}
+
+		/**
+		 * @return How many seconds the caller should wait before trying again,
+		 *         or zero if the call may go ahead.
+		 */
+		public long getRetryAfter() {
+			return retryAfter;
+		}
+
+		/**
+		 * Say that the call has finished. Safe to call more than once, and on
+		 * permits that were not granted.
+		 */
+		public void release() {
+			if (bucket != null && released.compareAndSet(false, true)) {
+				bucket.done();
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	private static final class Bucket extends TokenBucket {
+		/** Read with only the stripe lock held when deciding whether to forget. */
+		volatile int inFlight;
+
+		Bucket(int burst, long now) {
+			super(burst, now);
+		}
+
+		/**
+		 * Try to take a token.
+		 *
+		 * @return Zero if a token was taken, the number of nanoseconds until
+		 *         one will be available if the bucket is empty, or negative if
+		 *         there are too many calls in progress.
+		 */
+		synchronized long take(long now, long period, int burst,
+				int maxInFlight) {
+			if (maxInFlight > 0 && inFlight >= maxInFlight)
+				return -1;
+			long delay = take(now, period, burst);
+			if (delay == 0)
+				inFlight++;
+			return delay;
+		}
+
+		synchronized void done() {
+			inFlight--;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static javax.ws.rs.core.MediaType.TEXT_PLAIN_TYPE;
+import static org.apache.cxf.transport.http.AbstractHTTPDestination.HTTP_REQUEST;
+import static org.apache.cxf.transport.http.AbstractHTTPDestination.HTTP_RESPONSE;
+import static org.springframework.security.core.context.SecurityContextHolder.getContext;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.Response;
+
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.interceptor.OutgoingChainInterceptor;
+import org.apache.cxf.jaxrs.model.OperationResourceInfo;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.taverna.server.master.exceptions.OverloadedException;
+import org.taverna.server.master.utils.RateLimiter.Permit;
+
+/**
+ * Applies a {@link RateLimiter} to the calls made to a service, just before
+ * they are handed to the service bean. Calls are charged to the authenticated
+ * user, or to the client's address if nobody has authenticated. Refused calls
+ * get a <tt>429 Too Many Requests</tt> response with a <tt>Retry-After</tt>
+ * header; for SOAP, the body of that response is an {@link OverloadedException}
+ * fault.
+ *
+ * @author Donal Fellows
+ */
+public class RateLimitingInterceptor extends AbstractPhaseInterceptor<Message> {
+	/** The HTTP status code for "Too Many Requests" (RFC 6585). */
+	public static final int TOO_MANY_REQUESTS = 429;
+	private static final String RETRY_AFTER = "Retry-After";
+	private RateLimiter limiter;
+	private final Release release = new Release();
+
+	public RateLimitingInterceptor() {
+		super(Phase.PRE_INVOKE);
+	}
+
+	@Required
+	public void setLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	@Override
+	public void handleMessage(Message message) throws Fault {
+		Permit permit = limiter.acquire(principal(message));
+		if (permit.isGranted()) {
+			message.getExchange().put(Permit.class, permit);
+			message.getInterceptorChain().add(release);
+			return;
+		}
+
+		String retry = Long.toString(permit.getRetryAfter());
+		HttpServletResponse response = (HttpServletResponse) message
+				.get(HTTP_RESPONSE);
+		if (response != null)
+			response.setHeader(RETRY_AFTER, retry);
+		String msg = "too many requests; retry after " + retry + " seconds";
+		if (message.getExchange().get(OperationResourceInfo.class) != null) {
+			// REST: the invoker sends this instead of calling the service
+			message.getExchange().put(
+					Response.class,
+					Response.status(TOO_MANY_REQUESTS).header(RETRY_AFTER, retry)
+							.type(TEXT_PLAIN_TYPE).entity(msg).build());
+			return;
+		}
+		Fault f = new Fault(new OverloadedException(msg));
+		f.setStatusCode(TOO_MANY_REQUESTS);
+		throw f;
+	}
+
+	/** Called if anything fails after the permit was granted. */
+	@Override
+	public void handleFault(Message message) {
+		release(message);
+	}
+
+	private static void release(Message message) {
+		Permit permit = message.getExchange().get(Permit.class);
+		if (permit != null)
+			permit.release();
+	}
+
+	private static String principal(Message message) {
+		Authentication auth = getContext().getAuthentication();
+		if (auth != null && auth.isAuthenticated()
+				&& !(auth instanceof AnonymousAuthenticationToken))
+			return "user:" + auth.getName();
+		HttpServletRequest request = (HttpServletRequest) message
+				.get(HTTP_REQUEST);
+		if (request != null)
+			return "address:" + request.getRemoteAddr();
+		return "anonymous";
+	}
+
+	/**
+	 * Releases the permit once the response (including any streamed content)
+	 * has been sent; the outgoing chain runs inside the
+	 * {@link OutgoingChainInterceptor}.
+	 */
+	private static class Release extends AbstractPhaseInterceptor<Message> {
+		Release() {
+			super(Phase.POST_INVOKE);
+			addAfter(OutgoingChainInterceptor.class.getName());
+		}
+
+		@Override
+		public void handleMessage(Message message) {
+			release(message);
+		}
+	}
+}
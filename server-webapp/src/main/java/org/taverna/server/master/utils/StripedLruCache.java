@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.lang.System.currentTimeMillis;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded cache that evicts the least-recently-used entries, and which also
+ * discards entries once they have been held for longer than a fixed lifetime.
+ * The key space is split across a number of independently locked segments so
+ * that concurrent lookups of different keys rarely contend with each other;
+ * the consequence is that the LRU ordering (and the bound) is only exact within
+ * each segment. Subclasses may {@linkplain #isPinned(Object) pin} values that
+ * are in use, which are then neither evicted nor expired; the bound may be
+ * exceeded by the number of pinned values.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Donal Fellows
+ * @param <K>
+ *            The type of keys.
+ * @param <V>
+ *            The type of values.
+ */
+public class StripedLruCache<K, V> {
+	private final Segment[] segments;
+	private final long lifetime;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param bound
+	 *            The (approximate) maximum number of entries to hold.
+	 * @param lifetime
+	 *            How long an entry may be held for, in milliseconds.
+	 * @param concurrency
+	 *            The number of segments to split the cache into.
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedLruCache(int bound, long lifetime, int concurrency) {
+		if (bound < 1 || lifetime < 1 || concurrency < 1)
+			throw new IllegalArgumentException(
+					"bound, lifetime and concurrency must be positive");
+		int n = Integer.highestOneBit(Math.min(concurrency, bound));
+		int perSegment = (bound + n - 1) / n;
+		segments = new StripedLruCache.Segment[n];
+		for (int i = 0; i < n; i++)
+			segments[i] = new Segment(perSegment);
+		this.lifetime = lifetime;
+	}
+
+	/**
+	 * @return The current time, in milliseconds. Tests may replace the clock.
+	 */
+	long now() {
+		return currentTimeMillis();
+	}
+
+	private Segment segment(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h ^= (h >>> 7);
+		return segments[h & (segments.length - 1)];
+	}
+
+	/**
+	 * Look up a value, marking it as recently used.
+	 *
+	 * @param key
+	 *            The key to look up.
+	 * @return The value, or <tt>null</tt> if there is no value or it has
+	 *         expired.
+	 */
+	@Nullable
+	public V get(@Nonnull K key) {
+		Segment s = segment(key);
+		synchronized (s) {
+			Entry<V> e = s.get(key);
+			if (e == null)
+				return null;
+			if (!isLive(e, now())) {
+				s.remove(key);
+				return null;
+			}
+			return e.value;
+		}
+	}
+
+	/**
+	 * Add or replace a value in the cache, possibly evicting the
+	 * least-recently-used entry of its segment.
+	 *
+	 * @param key
+	 *            The key to store under.
+	 * @param value
+	 *            The value to store.
+	 */
+	public void put(@Nonnull K key, @Nonnull V value) {
+		Entry<V> e = new Entry<>(value, now() + lifetime);
+		Segment s = segment(key);
+		synchronized (s) {
+			s.put(key, e);
+		}
+	}
+
+	/**
+	 * Add a value to the cache unless there is already an (unexpired) value
+	 * for its key, possibly evicting the least-recently-used entry of its
+	 * segment.
+	 *
+	 * @param key
+	 *            The key to store under.
+	 * @param value
+	 *            The value to store.
+	 * @return The value already in the cache, or <tt>null</tt> if the given
+	 *         value was stored.
+	 */
+	@Nullable
+	public V putIfAbsent(@Nonnull K key, @Nonnull V value) {
+		long now = now();
+		Segment s = segment(key);
+		synchronized (s) {
+			Entry<V> e = s.get(key);
+			if (e != null && isLive(e, now))
+				return e.value;
+			s.put(key, new Entry<>(value, now + lifetime));
+			return null;
+		}
+	}
+
+	/**
+	 * Do something with the value for a key, creating the value if there is
+	 * none, all while holding the lock on the key's segment, so that the value
+	 * cannot be evicted or replaced until the action has finished. The value is
+	 * marked as recently used, and its lifetime restarts.
+	 *
+	 * @param key
+	 *            The key to look up.
+	 * @param action
+	 *            What to do. It must not use this cache.
+	 * @return The result of the action.
+	 */
+	public <R> R apply(@Nonnull K key, @Nonnull Action<V, R> action) {
+		long now = now();
+		Segment s = segment(key);
+		synchronized (s) {
+			Entry<V> e = s.get(key);
+			V value = (e != null && isLive(e, now)) ? e.value : action.create();
+			R result = action.apply(value);
+			// Eviction happens after the action, so it sees any pin it took
+			s.put(key, new Entry<>(value, now + lifetime));
+			return result;
+		}
+	}
+
+	/**
+	 * Remove a value from the cache.
+	 *
+	 * @param key
+	 *            The key to remove.
+	 */
+	public void remove(@Nonnull K key) {
+		Segment s = segment(key);
+		synchronized (s) {
+			s.remove(key);
+		}
+	}
+
+	/** Remove everything from the cache. */
+	public void clear() {
+		for (Segment s : segments)
+			synchronized (s) {
+				s.clear();
+			}
+	}
+
+	/**
+	 * @return The number of entries in the cache, including any that have
+	 *         expired but not yet been noticed.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment s : segments)
+			synchronized (s) {
+				size += s.size();
+			}
+		return size;
+	}
+
+	/**
+	 * Whether a value is in use, and so must be kept. Called with the lock on
+	 * the value's segment held. By default, no value is pinned.
+	 *
+	 * @param value
+	 *            The value to check.
+	 * @return <tt>true</tt> if the value must not be evicted or expired.
+	 */
+	protected boolean isPinned(@Nonnull V value) {
+		return false;
+	}
+
+	private boolean isLive(Entry<V> e, long now) {
+		return e.expiry >= now || isPinned(e.value);
+	}
+
+	/**
+	 * Something to do with a value while it is held in the cache.
+	 *
+	 * @param <V>
+	 *            The type of values.
+	 * @param <R>
+	 *            The type of result.
+	 */
+	public interface Action<V, R> {
+		/** @return A new value, for when the cache does not hold one. */
+		@Nonnull
+		V create();
+
+		/**
+		 * @param value
+		 *            The value held in the cache.
+		 * @return The result.
+		 */
+		R apply(@Nonnull V value);
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long expiry;
+
+		Entry(V value, long expiry) {
+			this.value = value;
+			this.expiry = expiry;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<K, Entry<V>> {
+		private final int bound;
+
+		Segment(int bound) {
+			super(16, 0.75f, true);
+			this.bound = bound;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+			if (size() <= bound)
+				return false;
+			if (!isPinned(eldest.getValue().value))
+				return true;
+			// Evict the least recently used entry that is not pinned instead
+			Iterator<Entry<V>> it = values().iterator();
+			while (it.hasNext())
+				if (!isPinned(it.next().value)) {
+					it.remove();
+					break;
+				}
+			return false;
+		}
+	}
+}
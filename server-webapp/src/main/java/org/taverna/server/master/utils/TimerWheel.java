@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A hierarchical timer wheel, used to keep track of deadlines for a large
+ * number of keys such that advancing the clock only costs work proportional to
+ * the number of keys that actually fall due. Each level of the wheel has
+ * {@value #SLOTS} slots; a slot on level <i>n</i> covers
+ * <tt>SLOTS<sup>n</sup></tt> ticks, and keys cascade down towards level zero
+ * as their deadline approaches. Keys whose deadline is further away than the
+ * whole wheel can represent are held in an overflow set and reconsidered when
+ * the top level turns over.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Donal Fellows
+ * @param <K>
+ *            The type of keys being scheduled.
+ */
+public class TimerWheel<K> {
+	private static final int BITS = 6;
+	/** The number of slots on each level of the wheel. */
+	public static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	private final long tickLength;
+	private final Set<K>[][] wheels;
+	private final Set<K> overflow = new HashSet<>();
+	private final Set<K> due = new HashSet<>();
+	private final Map<K, Long> deadlines = new HashMap<>();
+	private final Map<K, Set<K>> location = new HashMap<>();
+	private long currentTick;
+
+	/**
+	 * Create a timer wheel.
+	 *
+	 * @param tickLength
+	 *            The granularity of the wheel, in milliseconds. Deadlines are
+	 *            rounded up to the next tick boundary.
+	 * @param start
+	 *            The time (in milliseconds since the epoch) that the wheel
+	 *            considers to be "now".
+	 */
+	@SuppressWarnings("unchecked")
+	public TimerWheel(long tickLength, long start) {
+		if (tickLength <= 0)
+			throw new IllegalArgumentException("tick length must be positive");
+		this.tickLength = tickLength;
+		wheels = new Set[LEVELS][SLOTS];
+		for (Set<K>[] level : wheels)
+			for (int i = 0; i < SLOTS; i++)
+				level[i] = new HashSet<>();
+		currentTick = start / tickLength;
+	}
+
+	/**
+	 * Set (or reset) the deadline for a key.
+	 *
+	 * @param key
+	 *            The key to schedule.
+	 * @param deadline
+	 *            When the key falls due, in milliseconds since the epoch.
+	 */
+	public synchronized void schedule(@Nonnull K key, long deadline) {
+		unlink(key);
+		long tick = (deadline + tickLength - 1) / tickLength;
+		deadlines.put(key, tick);
+		place(key, tick);
+	}
+
+	/**
+	 * Remove a key from the wheel.
+	 *
+	 * @param key
+	 *            The key to forget about.
+	 * @return Whether the key was scheduled.
+	 */
+	public synchronized boolean cancel(@Nonnull K key) {
+		boolean known = unlink(key);
+		deadlines.remove(key);
+		return known;
+	}
+
+	/**
+	 * @return The number of keys currently scheduled.
+	 */
+	public synchronized int size() {
+		return deadlines.size();
+	}
+
+	/**
+	 * Move the wheel forward to the given time, collecting every key whose
+	 * deadline is at or before that time. The collected keys are no longer
+	 * scheduled afterwards.
+	 *
+	 * @param now
+	 *            The time to advance to, in milliseconds since the epoch.
+	 * @return The keys that have fallen due.
+	 */
+	@Nonnull
+	public synchronized List<K> advance(long now) {
+		long target = now / tickLength;
+		if (target > currentTick) {
+			long from = currentTick;
+			currentTick = target;
+			/*
+			 * Only the slots whose span the clock has entered need looking at,
+			 * lowest level first; their keys either fall due or move to a
+			 * lower level. A long jump thus costs at most a turn of each
+			 * level, not a visit to every key.
+			 */
+			for (int level = 0; level < LEVELS; level++) {
+				int shift = BITS * level;
+				long first = (from >>> shift) + 1, last = target >>> shift;
+				if (last < first)
+					break;
+				if (last - first >= SLOTS)
+					first = last - SLOTS + 1;
+				for (long i = first; i <= last; i++)
+					replace(wheels[level][(int) (i & MASK)]);
+				if (level == LEVELS - 1
+						&& target >>> (BITS * LEVELS) > from >>> (BITS * LEVELS))
+					replace(overflow);
+			}
+		}
+		List<K> result = new ArrayList<>(due);
+		for (K key : result) {
+			location.remove(key);
+			deadlines.remove(key);
+		}
+		due.clear();
+		return result;
+	}
+
+	private boolean unlink(K key) {
+		Set<K> bucket = location.remove(key);
+		if (bucket == null)
+			return false;
+		bucket.remove(key);
+		return true;
+	}
+
+	private void place(K key, long tick) {
+		long delta = tick - currentTick;
+		Set<K> bucket = overflow;
+		if (delta <= 0)
+			bucket = due;
+		else
+			for (int level = 0; level < LEVELS; level++)
+				if (delta < 1L << (BITS * (level + 1))) {
+					bucket = wheels[level][(int) ((tick >>> (BITS * level)) & MASK)];
+					break;
+				}
+		bucket.add(key);
+		location.put(key, bucket);
+	}
+
+	private void replace(Set<K> slot) {
+		List<K> keys = new ArrayList<>(slot);
+		slot.clear();
+		for (K key : keys)
+			place(key, deadlines.get(key));
+	}
+}
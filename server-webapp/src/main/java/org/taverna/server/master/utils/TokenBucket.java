@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/**
+ * A token bucket, which holds up to a <i>burst</i> of tokens and refills at
+ * one token per <i>period</i>. The burst size and period are supplied on each
+ * call rather than fixed, so that they may be reconfigured while buckets are
+ * in use; times are in nanoseconds, as from {@link System#nanoTime()}.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Donal Fellows
+ */
+public class TokenBucket {
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Create a full bucket.
+	 *
+	 * @param burst
+	 *            How many tokens the bucket holds.
+	 * @param now
+	 *            The current time.
+	 */
+	public TokenBucket(int burst, long now) {
+		tokens = burst;
+		lastRefill = now;
+	}
+
+	/**
+	 * Try to take a token.
+	 *
+	 * @param now
+	 *            The current time.
+	 * @param period
+	 *            How long it takes to add one token to the bucket; zero or
+	 *            less if tokens are unlimited.
+	 * @param burst
+	 *            How many tokens the bucket holds.
+	 * @return Zero if a token was taken, or else how long it will be until one
+	 *         is available.
+	 */
+	public synchronized long take(long now, long period, int burst) {
+		if (period <= 0)
+			return 0;
+		tokens = min(burst, tokens + (now - lastRefill) / (double) period);
+		lastRefill = now;
+		if (tokens < 1)
+			return max(1, (long) ((1 - tokens) * period));
+		tokens--;
+		return 0;
+	}
+}
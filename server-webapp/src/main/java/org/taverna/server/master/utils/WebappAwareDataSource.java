@@ -42,13 +42,18 @@ public class WebappAwareDataSource extends BasicDataSource {
 	}
 
 	/**
-	 * A JDBC connection URL to use on shutting down the database. If not set,
-	 * do nothing special.
+	 * A JDBC connection URL to use on shutting down the database. If not set
+	 * (or set to "<tt>none</tt>", as is appropriate for databases that are not
+	 * embedded in the webapp), do nothing special.
 	 * 
 	 * @param url
 	 */
 	public void setShutdownUrl(String url) {
-		shutdownUrl = url;
+		if (url == null || url.trim().isEmpty()
+				|| url.trim().equalsIgnoreCase("none"))
+			shutdownUrl = null;
+		else
+			shutdownUrl = url;
 	}
 
 	private void doInit() {
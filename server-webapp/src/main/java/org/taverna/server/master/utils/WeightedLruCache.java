@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A cache that evicts the least-recently-used entries once the total weight
+ * of the entries exceeds a bound. Each entry's weight is supplied when it is
+ * stored (e.g., its size in bytes, or how many items it holds), so the bound
+ * applies to what the entries cost rather than merely how many there are. An
+ * entry that is heavier than the bound on its own is not kept.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Donal Fellows
+ * @param <K>
+ *            The type of keys.
+ * @param <V>
+ *            The type of values.
+ */
+public class WeightedLruCache<K, V> {
+	private final long bound;
+	private final LinkedHashMap<K, Weighted<V>> map = new LinkedHashMap<>(16,
+			0.75f, true);
+	private long weight;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param bound
+	 *            The maximum total weight of the entries to hold.
+	 */
+	public WeightedLruCache(long bound) {
+		if (bound < 1)
+			throw new IllegalArgumentException("bound must be positive");
+		this.bound = bound;
+	}
+
+	/**
+	 * Look up a value, marking it as recently used.
+	 *
+	 * @param key
+	 *            The key to look up.
+	 * @return The value, or <tt>null</tt> if there is no value.
+	 */
+	@Nullable
+	public synchronized V get(@Nonnull K key) {
+		Weighted<V> w = map.get(key);
+		return w == null ? null : w.value;
+	}
+
+	/**
+	 * Add or replace a value in the cache, evicting least-recently-used
+	 * entries until the total weight is within the bound again. Storing a value
+	 * again is how its weight is updated.
+	 *
+	 * @param key
+	 *            The key to store under.
+	 * @param value
+	 *            The value to store.
+	 * @param weight
+	 *            What the value costs to hold; must not be negative.
+	 */
+	public synchronized void put(@Nonnull K key, @Nonnull V value, long weight) {
+		if (weight < 0)
+			throw new IllegalArgumentException("weight must not be negative");
+		Weighted<V> old = map.remove(key);
+		if (old != null)
+			this.weight -= old.weight;
+		if (weight > bound)
+			return;
+		map.put(key, new Weighted<>(value, weight));
+		this.weight += weight;
+		for (Iterator<Weighted<V>> it = map.values().iterator(); this.weight > bound
+				&& it.hasNext();) {
+			this.weight -= it.next().weight;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Remove a value from the cache.
+	 *
+	 * @param key
+	 *            The key to remove.
+	 */
+	public synchronized void remove(@Nonnull K key) {
+		Weighted<V> old = map.remove(key);
+		if (old != null)
+			weight -= old.weight;
+	}
+
+	/** Remove everything from the cache. */
+	public synchronized void clear() {
+		map.clear();
+		weight = 0;
+	}
+
+	/** @return The number of entries in the cache. */
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/** @return The total weight of the entries in the cache. */
+	public synchronized long weight() {
+		return weight;
+	}
+
+	private static class Weighted<V> {
+		final V value;
+		final long weight;
+
+		Weighted(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
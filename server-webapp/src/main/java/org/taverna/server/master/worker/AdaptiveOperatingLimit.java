@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Runtime.getRuntime;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.io.File;
+
+import javax.annotation.Nonnull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Adjusts how many workflow runs may be operating at once according to how
+ * busy the host is. The configured operating limit is the ceiling and the
+ * {@linkplain #setMinimum(int) minimum} is the floor; between them, the
+ * effective limit is cut back sharply when the host is overloaded (high load
+ * average, little free memory, or tasks stalling on CPU, memory or I/O) and
+ * raised one step at a time while the host is comfortable and the limit is
+ * actually holding runs back. On hosts where none of the metrics can be read,
+ * the effective limit is the configured limit.
+ *
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "AdaptiveOperatingLimit", description = "Adjusts the operating limit according to how busy the host is.")
+public class AdaptiveOperatingLimit {
+	private Log log = LogFactory.getLog("Taverna.Server.Worker");
+	private PolicyLimits limits;
+	private RunDBSupport runDB;
+	private File proc = new File("/proc");
+	private boolean enabled;
+	private int minimum = 1;
+	private double maxLoadPerCpu = 1.0;
+	private double minFreeMemory = 0.1;
+	private double maxPressure = 20.0;
+	/** The current effective limit; 0 if not yet determined. */
+	private int current;
+	private HostMetrics lastMetrics;
+
+	/**
+	 * @param limits
+	 *            Where to get the configured operating limit from.
+	 */
+	@Required
+	public void setLimits(PolicyLimits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * @param runDB
+	 *            Where to find out how many runs are operating.
+	 */
+	@Required
+	public void setRunDB(RunDBSupport runDB) {
+		this.runDB = runDB;
+	}
+
+	/**
+	 * @param proc
+	 *            Where the <tt>/proc</tt> filesystem is mounted.
+	 */
+	public void setProcDirectory(String proc) {
+		this.proc = new File(proc);
+	}
+
+	@ManagedAttribute(description = "Whether the operating limit is adjusted according to how busy the host is.")
+	public synchronized void setEnabled(boolean enabled) {
+		if (enabled && !this.enabled)
+			current = 0;
+		this.enabled = enabled;
+	}
+
+	@ManagedAttribute(description = "Whether the operating limit is adjusted according to how busy the host is.")
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	@ManagedAttribute(description = "The lowest that the operating limit may be reduced to.")
+	public synchronized void setMinimum(int minimum) {
+		this.minimum = max(1, minimum);
+	}
+
+	@ManagedAttribute(description = "The lowest that the operating limit may be reduced to.")
+	public synchronized int getMinimum() {
+		return minimum;
+	}
+
+	@ManagedAttribute(description = "The one-minute load average per processor above which the host is overloaded.")
+	public synchronized void setMaxLoadPerCpu(double maxLoadPerCpu) {
+		this.maxLoadPerCpu = maxLoadPerCpu;
+	}
+
+	@ManagedAttribute(description = "The one-minute load average per processor above which the host is overloaded.")
+	public synchronized double getMaxLoadPerCpu() {
+		return maxLoadPerCpu;
+	}
+
+	@ManagedAttribute(description = "The fraction of memory available below which the host is overloaded.")
+	public synchronized void setMinFreeMemory(double minFreeMemory) {
+		this.minFreeMemory = minFreeMemory;
+	}
+
+	@ManagedAttribute(description = "The fraction of memory available below which the host is overloaded.")
+	public synchronized double getMinFreeMemory() {
+		return minFreeMemory;
+	}
+
+	@ManagedAttribute(description = "The percentage of time tasks are stalled on CPU, memory or I/O above which the host is overloaded.")
+	public synchronized void setMaxPressure(double maxPressure) {
+		this.maxPressure = maxPressure;
+	}
+
+	@ManagedAttribute(description = "The percentage of time tasks are stalled on CPU, memory or I/O above which the host is overloaded.")
+	public synchronized double getMaxPressure() {
+		return maxPressure;
+	}
+
+	/**
+	 * @return The maximum number of runs that may currently be operating.
+	 */
+	@ManagedAttribute(description = "The number of runs that may currently be operating.", currencyTimeLimit = 10)
+	public synchronized int getEffectiveLimit() {
+		int ceiling = limits.getOperatingLimit();
+		if (!enabled || current < 1)
+			return ceiling;
+		return max(min(minimum, ceiling), min(current, ceiling));
+	}
+
+	@ManagedAttribute(description = "The host metrics last used to adjust the operating limit.", currencyTimeLimit = 10)
+	public synchronized String getLastMetrics() {
+		return lastMetrics == null ? "" : lastMetrics.toString();
+	}
+
+	/**
+	 * Read the host metrics and adjust the effective limit. Called
+	 * periodically.
+	 */
+	@ManagedOperation(description = "Adjust the operating limit now.")
+	public void adjust() {
+		if (!isEnabled())
+			return;
+		HostMetrics metrics = HostMetrics.read(proc, getRuntime()
+				.availableProcessors());
+		OperatingRunGauge gauge = runDB.getFactory().getOperatingRunGauge();
+		int operating = gauge.isSynchronized() ? gauge.count() : -1;
+		synchronized (this) {
+			lastMetrics = metrics;
+			int ceiling = limits.getOperatingLimit();
+			int floor = min(minimum, ceiling);
+			int from = current < 1 ? ceiling : max(floor, min(current, ceiling));
+			current = decide(metrics, from, operating, floor, ceiling);
+			if (current != from && log.isDebugEnabled())
+				log.debug("operating limit adjusted from " + from + " to "
+						+ current + "; " + metrics);
+		}
+	}
+
+	/**
+	 * Work out the new limit.
+	 *
+	 * @param metrics
+	 *            How busy the host is.
+	 * @param limit
+	 *            The current effective limit.
+	 * @param operating
+	 *            How many runs are operating, or negative if not known.
+	 * @param floor
+	 *            The lowest that the limit may go.
+	 * @param ceiling
+	 *            The highest that the limit may go.
+	 * @return The new limit.
+	 */
+	synchronized int decide(@Nonnull HostMetrics metrics, int limit,
+			int operating, int floor, int ceiling) {
+		if (metrics.isUnknown())
+			return ceiling;
+		if (isOverloaded(metrics))
+			return max(floor, limit - max(1, limit / 4));
+		if (isComfortable(metrics) && operating >= limit)
+			return min(ceiling, limit + 1);
+		return limit;
+	}
+
+	private boolean isOverloaded(HostMetrics m) {
+		Double load = m.getLoadPerCpu();
+		return (load != null && load > maxLoadPerCpu)
+				|| (m.freeMemory != null && m.freeMemory < minFreeMemory)
+				|| above(m.cpuPressure, maxPressure)
+				|| above(m.memoryPressure, maxPressure)
+				|| above(m.ioPressure, maxPressure);
+	}
+
+	/**
+	 * Whether there is clear headroom; the gap between this and being
+	 * overloaded stops the limit oscillating.
+	 */
+	private boolean isComfortable(HostMetrics m) {
+		Double load = m.getLoadPerCpu();
+		return (load == null || load < maxLoadPerCpu * 0.75)
+				&& (m.freeMemory == null || m.freeMemory > minFreeMemory * 2)
+				&& !above(m.cpuPressure, maxPressure / 2)
+				&& !above(m.memoryPressure, maxPressure / 2)
+				&& !above(m.ioPressure, maxPressure / 2);
+	}
+
+	private static boolean above(Double value, double threshold) {
+		return value != null && value > threshold;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.taverna.server.master.worker.ArchivedRunConnection.ARCHIVE_COUNT_QUERY;
+import static org.taverna.server.master.worker.ArchivedRunConnection.ARCHIVE_EXPIRIES_QUERY;
+import static org.taverna.server.master.worker.ArchivedRunConnection.ARCHIVE_NAMES_QUERY;
+import static org.taverna.server.master.worker.ArchivedRunConnection.ARCHIVE_OWNERS_QUERY;
+import static org.taverna.server.master.worker.ArchivedRunConnection.ARCHIVE_TABLE;
+import static org.taverna.server.master.worker.ArchivedRunConnection.ARCHIVE_TIMEOUT_QUERY;
+import static org.taverna.server.master.worker.RunConnection.NAME_LENGTH;
+import static org.taverna.server.master.worker.RunConnection.SCHEMA;
+
+import java.io.IOException;
+import java.rmi.MarshalledObject;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.Join;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import javax.jdo.annotations.Queries;
+import javax.jdo.annotations.Query;
+
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.common.Credential;
+import org.taverna.server.master.common.Trust;
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.interfaces.SecurityContextFactory;
+import org.taverna.server.master.utils.UsernamePrincipal;
+
+/**
+ * The persistent representation of a workflow run that has finished, and
+ * which is only being retained until it expires. Such runs are moved out of
+ * the main {@link RunConnection} table so that the queries that are made
+ * frequently (such as the check for newly-finished runs) only have to consider
+ * the runs that are still active. Only the information needed to give access
+ * to the run's results and to clean up the run is kept.
+ *
+ * @author Donal Fellows
+ */
+@PersistenceCapable(table = ARCHIVE_TABLE, schema = SCHEMA)
+@Queries({
+		@Query(name = "count", language = "SQL", value = ARCHIVE_COUNT_QUERY, unique = "true", resultClass = Integer.class),
+		@Query(name = "names", language = "SQL", value = ARCHIVE_NAMES_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "timedout", language = "SQL", value = ARCHIVE_TIMEOUT_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "expiries", language = "SQL", value = ARCHIVE_EXPIRIES_QUERY, unique = "false"),
+		@Query(name = "owners", language = "SQL", value = ARCHIVE_OWNERS_QUERY, unique = "false") })
+public class ArchivedRunConnection {
+	static final String ARCHIVE_TABLE = "RUN_ARCHIVE";
+	private static final String FULL_NAME = SCHEMA + "." + ARCHIVE_TABLE;
+	static final String ARCHIVE_COUNT_QUERY = "SELECT count(*) FROM "
+			+ FULL_NAME;
+	static final String ARCHIVE_NAMES_QUERY = "SELECT ID FROM " + FULL_NAME;
+	static final String ARCHIVE_OWNERS_QUERY = "SELECT ID, owner FROM "
+			+ FULL_NAME;
+	static final String ARCHIVE_TIMEOUT_QUERY = "SELECT ID FROM " + FULL_NAME
+			+ "   WHERE expiry < CURRENT_TIMESTAMP";
+	static final String ARCHIVE_EXPIRIES_QUERY = "SELECT ID, expiry FROM "
+			+ FULL_NAME + "   ORDER BY expiry";
+
+	@PrimaryKey
+	@Column(length = 40)
+	private String id;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Column(length = NAME_LENGTH)
+	private String name;
+
+	@Persistent(defaultFetchGroup = "true")
+	private Date creationInstant;
+
+	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private Workflow workflow;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Index(name = ARCHIVE_TABLE + "_EXPIRY")
+	private Date expiry;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Join(table = ARCHIVE_TABLE + "_READERS", column = "ID")
+	private String[] readers;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Join(table = ARCHIVE_TABLE + "_WRITERS", column = "ID")
+	private String[] writers;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Join(table = ARCHIVE_TABLE + "_DESTROYERS", column = "ID")
+	private String[] destroyers;
+
+	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private MarshalledObject<RemoteSingleRun> run;
+
+	@Persistent(defaultFetchGroup = "true")
+	private int generateProvenance;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Column(length = 128)
+	@Index(name = ARCHIVE_TABLE + "_OWNER")
+	String owner;
+
+	@Persistent(defaultFetchGroup = "true")
+	@Column(length = 36)
+	private String securityToken;
+
+	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private SecurityContextFactory securityContextFactory;
+	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private Credential[] credentials;
+	@Persistent(defaultFetchGroup = "true", serialized = "true")
+	@Column(jdbcType = "BLOB", sqlType = "BLOB")
+	private Trust[] trust;
+
+	private static final String[] STRING_ARY = new String[0];
+
+	public String getId() {
+		return id;
+	}
+
+	public Date getExpiry() {
+		return expiry;
+	}
+
+	public String getSecurityToken() {
+		return securityToken;
+	}
+
+	/**
+	 * Manufacture an archival representation of the given finished workflow
+	 * run. Must be called within the context of a transaction.
+	 *
+	 * @param rrd
+	 *            The remote delegate of the workflow run.
+	 * @param securityToken
+	 *            The security token previously issued to the run; this must
+	 *            be preserved across archiving.
+	 * @return The persistent object.
+	 * @throws IOException
+	 *             If serialisation fails.
+	 */
+	@Nonnull
+	public static ArchivedRunConnection toArchiveForm(
+			@Nonnull RemoteRunDelegate rrd, String securityToken)
+			throws IOException {
+		ArchivedRunConnection arc = new ArchivedRunConnection();
+		arc.id = rrd.id;
+		arc.securityToken = securityToken;
+		arc.creationInstant = rrd.getCreationTimestamp();
+		arc.workflow = rrd.getWorkflow();
+		arc.run = rrd.marshalled();
+		arc.securityContextFactory = rrd.getSecurityContext().getFactory();
+		arc.owner = rrd.getSecurityContext().getOwner().getName();
+		arc.makeChanges(rrd);
+		return arc;
+	}
+
+	private static List<String> list(String[] ary) {
+		if (ary == null)
+			return emptyList();
+		return asList(ary);
+	}
+
+	/**
+	 * Get the remote run delegate for a particular archived run. Must be
+	 * called within the context of a transaction.
+	 *
+	 * @param db
+	 *            The database facade.
+	 * @return The delegate object.
+	 * @throws Exception
+	 *             If anything goes wrong.
+	 */
+	@Nonnull
+	public RemoteRunDelegate fromDBform(@Nonnull RunDBSupport db)
+			throws Exception {
+		RemoteRunDelegate rrd = new RemoteRunDelegate();
+		rrd.id = getId();
+		rrd.creationInstant = creationInstant;
+		rrd.workflow = workflow;
+		rrd.expiry = expiry;
+		rrd.readers = new HashSet<>(list(readers));
+		rrd.writers = new HashSet<>(list(writers));
+		rrd.destroyers = new HashSet<>(list(destroyers));
+		rrd.marshalledRun = run;
+		rrd.doneTransitionToFinished = true;
+		rrd.generateProvenance = generateProvenance != 0;
+		rrd.secContext = securityContextFactory.create(rrd,
+				new UsernamePrincipal(owner));
+		((SecurityContextDelegate) rrd.secContext).setCredentialsAndTrust(
+				credentials, trust);
+		rrd.db = db;
+		rrd.factory = db.getFactory();
+		rrd.name = name;
+		return rrd;
+	}
+
+	/**
+	 * Flush changes from a remote run delegate to the archive. Must be called
+	 * within the context of a transaction.
+	 *
+	 * @param rrd
+	 *            The remote run delegate object that has potential changes.
+	 */
+	public void makeChanges(@Nonnull RemoteRunDelegate rrd) {
+		expiry = rrd.getExpiry();
+		readers = rrd.getReaders().toArray(STRING_ARY);
+		writers = rrd.getWriters().toArray(STRING_ARY);
+		destroyers = rrd.getDestroyers().toArray(STRING_ARY);
+		credentials = rrd.getSecurityContext().getCredentials();
+		trust = rrd.getSecurityContext().getTrusted();
+		generateProvenance = (rrd.generateProvenance ? 1 : 0);
+		if (rrd.name.length() > NAME_LENGTH)
+			this.name = rrd.name.substring(0, NAME_LENGTH);
+		else
+			this.name = rrd.name;
+	}
+}
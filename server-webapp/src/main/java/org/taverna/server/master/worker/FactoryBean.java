@@ -5,6 +5,7 @@
  */
 package org.taverna.server.master.worker;
 
+import org.taverna.server.master.notification.RunEventBus;
 import org.taverna.server.master.notification.atom.EventDAO;
 
 /**
@@ -23,4 +24,19 @@ public interface FactoryBean {
 	 *         feed)
 	 */
 	EventDAO getMasterEventFeed();
+
+	/**
+	 * @return the bus that tells waiting clients about the events of runs
+	 */
+	RunEventBus getRunEventBus();
+
+	/**
+	 * @return the tracker of which runs are operating
+	 */
+	OperatingRunGauge getOperatingRunGauge();
+
+	/**
+	 * @return the queue of runs waiting to start
+	 */
+	StartQueue getStartQueue();
 }
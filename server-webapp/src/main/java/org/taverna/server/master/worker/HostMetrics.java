@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.Files.readAllLines;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A snapshot of how busy the host is, as read from the Linux <tt>/proc</tt>
+ * filesystem. Any metric that cannot be read (e.g., because the host is not
+ * Linux, or the kernel does not support pressure-stall information) is
+ * <tt>null</tt>.
+ *
+ * @author Donal Fellows
+ */
+final class HostMetrics {
+	/** The number of processors available. */
+	final int cpus;
+	/** The one-minute load average. */
+	@Nullable
+	final Double loadAverage;
+	/** The fraction (0&ndash;1) of memory that is available for use. */
+	@Nullable
+	final Double freeMemory;
+	/**
+	 * The percentage of the last ten seconds that some task was stalled
+	 * waiting for the CPU.
+	 */
+	@Nullable
+	final Double cpuPressure;
+	/**
+	 * The percentage of the last ten seconds that some task was stalled
+	 * waiting for memory.
+	 */
+	@Nullable
+	final Double memoryPressure;
+	/**
+	 * The percentage of the last ten seconds that some task was stalled
+	 * waiting for I/O.
+	 */
+	@Nullable
+	final Double ioPressure;
+
+	HostMetrics(int cpus, Double loadAverage, Double freeMemory,
+			Double cpuPressure, Double memoryPressure, Double ioPressure) {
+		this.cpus = cpus;
+		this.loadAverage = loadAverage;
+		this.freeMemory = freeMemory;
+		this.cpuPressure = cpuPressure;
+		this.memoryPressure = memoryPressure;
+		this.ioPressure = ioPressure;
+	}
+
+	/**
+	 * Read the current metrics.
+	 *
+	 * @param proc
+	 *            Where the <tt>/proc</tt> filesystem is mounted.
+	 * @param cpus
+	 *            The number of processors available.
+	 * @return The metrics.
+	 */
+	@Nonnull
+	static HostMetrics read(@Nonnull File proc, int cpus) {
+		return new HostMetrics(cpus, loadAverage(proc), freeMemory(proc),
+				pressure(proc, "cpu"), pressure(proc, "memory"), pressure(
+						proc, "io"));
+	}
+
+	/** @return The load average per processor, or <tt>null</tt>. */
+	@Nullable
+	Double getLoadPerCpu() {
+		if (loadAverage == null)
+			return null;
+		return loadAverage / (cpus < 1 ? 1 : cpus);
+	}
+
+	/** @return Whether none of the metrics could be read. */
+	boolean isUnknown() {
+		return loadAverage == null && freeMemory == null
+				&& cpuPressure == null && memoryPressure == null
+				&& ioPressure == null;
+	}
+
+	@Nullable
+	private static List<String> lines(File proc, String name) {
+		try {
+			return readAllLines(new File(proc, name).toPath(), US_ASCII);
+		} catch (IOException | SecurityException e) {
+			return null;
+		}
+	}
+
+	/** Parses <tt>/proc/loadavg</tt>, e.g., "<tt>0.52 0.58 0.59 1/389 123</tt>" */
+	private static Double loadAverage(File proc) {
+		List<String> lines = lines(proc, "loadavg");
+		if (lines == null || lines.isEmpty())
+			return null;
+		try {
+			return Double.parseDouble(lines.get(0).trim().split("\\s+")[0]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/** Parses <tt>/proc/meminfo</tt>, e.g., "<tt>MemTotal: 16318480 kB</tt>" */
+	private static Double freeMemory(File proc) {
+		List<String> lines = lines(proc, "meminfo");
+		if (lines == null)
+			return null;
+		Long total = null, available = null;
+		for (String line : lines) {
+			String[] bits = line.split("[:\\s]+");
+			if (bits.length < 2)
+				continue;
+			try {
+				if (bits[0].equals("MemTotal"))
+					total = Long.parseLong(bits[1]);
+				else if (bits[0].equals("MemAvailable"))
+					available = Long.parseLong(bits[1]);
+			} catch (NumberFormatException e) {
+				// Ignore the line
+			}
+		}
+		if (total == null || available == null || total <= 0)
+			return null;
+		return available / (double) total;
+	}
+
+	/**
+	 * Parses <tt>/proc/pressure/*</tt>, e.g.,
+	 * "<tt>some avg10=1.53 avg60=0.87 avg300=0.40 total=4182</tt>"
+	 */
+	private static Double pressure(File proc, String resource) {
+		List<String> lines = lines(proc, "pressure/" + resource);
+		if (lines == null)
+			return null;
+		for (String line : lines) {
+			if (!line.startsWith("some "))
+				continue;
+			for (String field : line.split("\\s+"))
+				if (field.startsWith("avg10="))
+					try {
+						return Double.parseDouble(field.substring(6));
+					} catch (NumberFormatException e) {
+						return null;
+					}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "load=" + loadAverage + " (" + cpus + " cpus), free memory="
+				+ freeMemory + ", pressure: cpu=" + cpuPressure + " memory="
+				+ memoryPressure + " io=" + ioPressure;
+	}
+}
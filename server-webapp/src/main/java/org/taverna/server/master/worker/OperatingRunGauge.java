@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.System.currentTimeMillis;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Keeps track of which workflow runs are operating, so that the number of
+ * operating runs can be found without asking every worker. The gauge is
+ * updated by the state changes that the webapp makes itself (starting,
+ * stopping and destroying runs) and is corrected by the periodic checks of the
+ * state of unfinished runs that the run database makes, which also catch runs
+ * that finish of their own accord. Until the first such check has completed
+ * (e.g., just after a restart) the gauge is not authoritative.
+ *
+ * @author Donal Fellows
+ */
+public class OperatingRunGauge {
+	private final ConcurrentMap<String, Boolean> operating = new ConcurrentHashMap<>();
+	/** When each run last had its state changed by the webapp. */
+	private final ConcurrentMap<String, Long> lastChange = new ConcurrentHashMap<>();
+	private volatile boolean synced;
+
+	/**
+	 * Record that a run has been told to start operating.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 */
+	public void started(@Nonnull String id) {
+		lastChange.put(id, currentTimeMillis());
+		operating.put(id, true);
+	}
+
+	/**
+	 * Record that a run is no longer operating, whether because it has been
+	 * stopped, finished or destroyed.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 */
+	public void stopped(@Nonnull String id) {
+		lastChange.put(id, currentTimeMillis());
+		operating.remove(id);
+	}
+
+	/**
+	 * @return Whether the gauge has been reconciled with the actual states of
+	 *         the runs at least once.
+	 */
+	public boolean isSynchronized() {
+		return synced;
+	}
+
+	/**
+	 * @return The number of runs believed to be operating.
+	 */
+	public int count() {
+		return operating.size();
+	}
+
+	/**
+	 * @return The IDs of the runs believed to be operating. A copy, which the
+	 *         caller may change.
+	 */
+	@Nonnull
+	public Set<String> getOperatingRuns() {
+		return new HashSet<>(operating.keySet());
+	}
+
+	/**
+	 * Correct the gauge from an observation of the states of the runs. Runs
+	 * whose state has been changed by the webapp since the observation started
+	 * are left alone, as the observation may predate the change.
+	 *
+	 * @param observed
+	 *            Map from the ID of each run observed to whether it was
+	 *            operating.
+	 * @param complete
+	 *            Whether the observation covered every unfinished run. If so,
+	 *            runs not mentioned are taken to be not operating.
+	 * @param since
+	 *            When the observation started.
+	 */
+	public void reconcile(@Nonnull Map<String, Boolean> observed,
+			boolean complete, long since) {
+		for (Entry<String, Boolean> e : observed.entrySet()) {
+			String id = e.getKey();
+			if (changedSince(id, since))
+				continue;
+			if (e.getValue())
+				operating.put(id, true);
+			else
+				operating.remove(id);
+		}
+		if (complete) {
+			for (String id : operating.keySet())
+				if (!observed.containsKey(id) && !changedSince(id, since))
+					operating.remove(id);
+			synced = true;
+		}
+		Iterator<Long> it = lastChange.values().iterator();
+		while (it.hasNext())
+			if (it.next() < since)
+				it.remove();
+	}
+
+	private boolean changedSince(String id, long since) {
+		Long when = lastChange.get(id);
+		return when != null && when >= since;
+	}
+}
@@ -29,14 +29,16 @@ import org.taverna.server.master.utils.UsernamePrincipal;
 /**
  * Basic policy implementation that allows any workflow to be instantiated by
  * any user, but which does not permit users to access each others workflow
- * runs. It also imposes a global limit on the number of workflow runs at once.
+ * runs. It also imposes a global limit on the number of workflow runs at once,
+ * and the per-user and per-group limits managed by the {@link QuotaManager}.
  * 
  * @author Donal Fellows
  */
 class PolicyImpl implements Policy {
 	Log log = LogFactory.getLog("Taverna.Server.Worker.Policy");
 	private PolicyLimits limits;
-	private RunDBSupport runDB;
+	private QuotaManager quotas;
+	private AdaptiveOperatingLimit operatingLimit;
 
 	@Required
 	public void setLimits(PolicyLimits limits) {
@@ -44,8 +46,13 @@ class PolicyImpl implements Policy {
 	}
 
 	@Required
-	public void setRunDB(RunDBSupport runDB) {
-		this.runDB = runDB;
+	public void setQuotas(QuotaManager quotas) {
+		this.quotas = quotas;
+	}
+
+	@Required
+	public void setOperatingLimit(AdaptiveOperatingLimit operatingLimit) {
+		this.operatingLimit = operatingLimit;
 	}
 
 	@Override
@@ -55,12 +62,12 @@ class PolicyImpl implements Policy {
 
 	@Override
 	public Integer getMaxRuns(UsernamePrincipal user) {
-		return null;
+		return quotas.getEffectiveLimits(user.getName()).getRuns();
 	}
 
 	@Override
 	public int getOperatingLimit() {
-		return limits.getOperatingLimit();
+		return operatingLimit.getEffectiveLimit();
 	}
 
 	@Override
@@ -113,8 +120,13 @@ class PolicyImpl implements Policy {
 		if (user == null)
 			throw new NoCreateException(
 					"anonymous workflow creation not allowed");
-		if (runDB.countRuns() >= getMaxRuns())
-			throw new NoCreateException("server load exceeded; please wait");
+		quotas.reserveRun(user.getName(), getMaxRuns());
+	}
+
+	@Override
+	public void createFailed(UsernamePrincipal user) {
+		if (user != null)
+			quotas.releaseReservation(user.getName());
 	}
 
 	@Override
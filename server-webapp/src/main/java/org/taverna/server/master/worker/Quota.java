@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.taverna.server.master.worker.Quota.NAMES_QUERY;
+import static org.taverna.server.master.worker.Quota.SCHEMA;
+import static org.taverna.server.master.worker.Quota.TABLE;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import javax.jdo.annotations.Query;
+
+/**
+ * The persistent record of the resource limits imposed on a user or on the
+ * members of a group.
+ *
+ * @author Donal Fellows
+ */
+@PersistenceCapable(table = TABLE, schema = SCHEMA)
+@Query(name = "names", language = "SQL", value = NAMES_QUERY, unique = "false", resultClass = String.class)
+public class Quota {
+	static final String SCHEMA = "TAVERNA";
+	static final String TABLE = "QUOTA";
+	static final String NAMES_QUERY = "SELECT ID FROM " + SCHEMA + "."
+			+ TABLE;
+
+	@PrimaryKey
+	@Column(length = 140)
+	private String id;
+
+	@Persistent(defaultFetchGroup = "true")
+	private Integer maxRuns;
+
+	@Persistent(defaultFetchGroup = "true")
+	private Integer maxOperating;
+
+	@Persistent(defaultFetchGroup = "true")
+	private Long maxDiskBytes;
+
+	Quota(@Nonnull String id) {
+		this.id = id;
+	}
+
+	@Nonnull
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The limits recorded, copied out of the persistent object.
+	 */
+	@Nonnull
+	public QuotaLimits getLimits() {
+		return new QuotaLimits(maxRuns, maxOperating, maxDiskBytes);
+	}
+
+	/**
+	 * @param limits
+	 *            The limits to record.
+	 */
+	public void setLimits(@Nullable QuotaLimits limits) {
+		maxRuns = limits == null ? null : limits.getRuns();
+		maxOperating = limits == null ? null : limits.getOperating();
+		maxDiskBytes = limits == null ? null : limits.getDiskBytes();
+	}
+}
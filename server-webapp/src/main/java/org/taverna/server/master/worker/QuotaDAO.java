@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.taverna.server.master.utils.JDOSupport;
+
+/**
+ * The database of quota settings.
+ *
+ * @author Donal Fellows
+ */
+public class QuotaDAO extends JDOSupport<Quota> {
+	public QuotaDAO() {
+		super(Quota.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<String> names() {
+		return (List<String>) namedQuery("names").execute();
+	}
+
+	/**
+	 * @return All the quota settings, keyed by the ID of the user or group
+	 *         they apply to.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public Map<String, QuotaLimits> listQuotas() {
+		Map<String, QuotaLimits> result = new HashMap<>();
+		for (String id : names()) {
+			Quota q = getById(id);
+			if (q != null)
+				result.put(id, q.getLimits());
+		}
+		return result;
+	}
+
+	/**
+	 * Set (or remove) a quota setting.
+	 *
+	 * @param id
+	 *            The ID of the user or group the setting applies to.
+	 * @param limits
+	 *            The limits to impose, or <tt>null</tt> to remove the setting.
+	 */
+	@WithinSingleTransaction
+	public void setQuota(@Nonnull String id, @Nullable QuotaLimits limits) {
+		Quota q = getById(id);
+		if (limits == null) {
+			delete(q);
+			return;
+		}
+		if (q == null)
+			q = persist(new Quota(id));
+		q.setLimits(limits);
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.System.currentTimeMillis;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.taverna.server.master.exceptions.NoCreateException;
+
+/**
+ * In-memory accounting of the resources held by each user's workflow runs, so
+ * that quotas can be enforced without counting rows in the database on every
+ * request. Permission to create a run is granted by taking out a reservation,
+ * which is converted into a run when the run is registered; reservations that
+ * are never converted are given back when creation fails, and otherwise lapse
+ * after a while.
+ *
+ * @author Donal Fellows
+ */
+class QuotaLedger {
+	private static class Usage {
+		int runs;
+		long bytes;
+		final ArrayDeque<Long> reservations = new ArrayDeque<>();
+
+		boolean isIdle() {
+			return runs == 0 && bytes == 0 && reservations.isEmpty();
+		}
+	}
+
+	/** Map from run ID to owner. */
+	private final Map<String, String> owners = new HashMap<>();
+	/** Map from run ID to size of working directory. */
+	private final Map<String, Long> sizes = new HashMap<>();
+	private final Map<String, Usage> usage = new HashMap<>();
+	private final long reservationLifetime;
+	private int reserved;
+
+	/**
+	 * @param reservationLifetime
+	 *            How long (in milliseconds) a reservation to create a run lasts
+	 *            for if the run is not registered.
+	 */
+	QuotaLedger(long reservationLifetime) {
+		this.reservationLifetime = reservationLifetime;
+	}
+
+	private Usage usage(String user) {
+		Usage u = usage.get(user);
+		if (u == null) {
+			u = new Usage();
+			usage.put(user, u);
+		}
+		return u;
+	}
+
+	private void tidy(String user, Usage u) {
+		if (u.isIdle())
+			usage.remove(user);
+	}
+
+	private void expireReservations(long now) {
+		for (Usage u : usage.values())
+			while (!u.reservations.isEmpty() && u.reservations.peek() < now) {
+				u.reservations.poll();
+				reserved--;
+			}
+	}
+
+	/**
+	 * Check whether a user may create another workflow run, and if so, reserve
+	 * the capacity for it.
+	 *
+	 * @param user
+	 *            Who wants to create the run.
+	 * @param limits
+	 *            The limits that apply to the user.
+	 * @param globalLimit
+	 *            The maximum number of runs across all users.
+	 * @throws NoCreateException
+	 *             If the run may not be created.
+	 */
+	synchronized void reserve(@Nonnull String user, @Nonnull QuotaLimits limits,
+			int globalLimit) throws NoCreateException {
+		long now = currentTimeMillis();
+		expireReservations(now);
+		if (owners.size() + reserved >= globalLimit)
+			throw new NoCreateException("server load exceeded; please wait");
+		Usage u = usage(user);
+		Integer runLimit = limits.getRuns();
+		if (runLimit != null && u.runs + u.reservations.size() >= runLimit) {
+			tidy(user, u);
+			throw new NoCreateException("limit of " + runLimit
+					+ " workflow runs reached; please delete some");
+		}
+		Long diskLimit = limits.getDiskBytes();
+		if (diskLimit != null && u.bytes >= diskLimit) {
+			tidy(user, u);
+			throw new NoCreateException("limit of " + diskLimit
+					+ " bytes of disk space reached; please delete some runs");
+		}
+		u.reservations.add(now + reservationLifetime);
+		reserved++;
+	}
+
+	/**
+	 * Give back a reservation because the run it was taken out for was not
+	 * created after all.
+	 *
+	 * @param user
+	 *            Who took out the reservation.
+	 */
+	synchronized void release(@Nonnull String user) {
+		Usage u = usage.get(user);
+		if (u == null || u.reservations.pollLast() == null)
+			return;
+		reserved--;
+		tidy(user, u);
+	}
+
+	/**
+	 * Record that a run exists, using up one of its owner's reservations if
+	 * there are any. Does nothing if the run is already known.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @param owner
+	 *            The name of the owner of the run.
+	 */
+	synchronized void created(@Nonnull String id, @Nonnull String owner) {
+		if (owners.containsKey(id))
+			return;
+		owners.put(id, owner);
+		Usage u = usage(owner);
+		u.runs++;
+		if (u.reservations.poll() != null)
+			reserved--;
+	}
+
+	/**
+	 * Record that a run no longer exists.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 */
+	synchronized void destroyed(@Nonnull String id) {
+		String owner = owners.remove(id);
+		if (owner == null)
+			return;
+		Usage u = usage(owner);
+		u.runs--;
+		Long size = sizes.remove(id);
+		if (size != null)
+			u.bytes -= size;
+		tidy(owner, u);
+	}
+
+	/**
+	 * Record how much disk space a run's working directory occupies.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @param bytes
+	 *            The size of the working directory.
+	 */
+	synchronized void setDiskUsage(@Nonnull String id, long bytes) {
+		String owner = owners.get(id);
+		if (owner == null)
+			return;
+		Long old = sizes.put(id, bytes);
+		usage(owner).bytes += bytes - (old == null ? 0 : old);
+	}
+
+	/**
+	 * @param id
+	 *            The ID of a run.
+	 * @return The name of the owner of the run, or <tt>null</tt> if the run is
+	 *         not known.
+	 */
+	@Nullable
+	synchronized String getOwner(@Nonnull String id) {
+		return owners.get(id);
+	}
+
+	/** @return The number of runs that exist. */
+	synchronized int getRunCount() {
+		return owners.size();
+	}
+
+	/**
+	 * @param user
+	 *            The name of a user.
+	 * @return The number of runs that the user owns.
+	 */
+	synchronized int getRunCount(@Nonnull String user) {
+		Usage u = usage.get(user);
+		return u == null ? 0 : u.runs;
+	}
+
+	/**
+	 * @param user
+	 *            The name of a user.
+	 * @return The last measured size of the working directories of the user's
+	 *         runs.
+	 */
+	synchronized long getDiskUsage(@Nonnull String user) {
+		Usage u = usage.get(user);
+		return u == null ? 0 : u.bytes;
+	}
+
+	/**
+	 * @param user
+	 *            The name of a user.
+	 * @param ids
+	 *            The IDs of some runs.
+	 * @return How many of those runs the user owns.
+	 */
+	synchronized int countOwned(@Nonnull String user,
+			@Nonnull Collection<String> ids) {
+		int count = 0;
+		for (String id : ids)
+			if (user.equals(owners.get(id)))
+				count++;
+		return count;
+	}
+
+	/** @return The names of the users who own runs. */
+	@Nonnull
+	synchronized Set<String> getUsers() {
+		return new HashSet<>(usage.keySet());
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.Math.max;
+
+import java.io.Serializable;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The limits on the resources that a user may consume. Each limit may be
+ * absent (<tt>null</tt>), meaning that it is not restricted at this level.
+ * Instances are immutable.
+ *
+ * @author Donal Fellows
+ */
+public final class QuotaLimits implements Serializable {
+	private static final long serialVersionUID = 1L;
+	/** No limits at all. */
+	public static final QuotaLimits NONE = new QuotaLimits(null, null, null);
+	private final Integer runs;
+	private final Integer operating;
+	private final Long diskBytes;
+
+	/**
+	 * @param runs
+	 *            The maximum number of workflow runs that may exist at once.
+	 * @param operating
+	 *            The maximum number of workflow runs that may be operating at
+	 *            once.
+	 * @param diskBytes
+	 *            The maximum number of bytes that the working directories of
+	 *            the workflow runs may occupy in total.
+	 */
+	public QuotaLimits(@Nullable Integer runs, @Nullable Integer operating,
+			@Nullable Long diskBytes) {
+		this.runs = runs;
+		this.operating = operating;
+		this.diskBytes = diskBytes;
+	}
+
+	@Nullable
+	public Integer getRuns() {
+		return runs;
+	}
+
+	@Nullable
+	public Integer getOperating() {
+		return operating;
+	}
+
+	@Nullable
+	public Long getDiskBytes() {
+		return diskBytes;
+	}
+
+	/** @return Whether no limit is set. */
+	public boolean isEmpty() {
+		return runs == null && operating == null && diskBytes == null;
+	}
+
+	/**
+	 * Combine with the limits from another source of equal standing (e.g.,
+	 * another group that the user is a member of) by taking the more generous
+	 * of each limit that both set.
+	 *
+	 * @param other
+	 *            The other limits.
+	 * @return The combined limits.
+	 */
+	@Nonnull
+	public QuotaLimits mostGenerous(@Nonnull QuotaLimits other) {
+		return new QuotaLimits(larger(runs, other.runs), larger(operating,
+				other.operating), larger(diskBytes, other.diskBytes));
+	}
+
+	/**
+	 * Combine with more specific limits (e.g., those set for the user
+	 * themselves) which take precedence wherever they are set.
+	 *
+	 * @param specific
+	 *            The more specific limits.
+	 * @return The combined limits.
+	 */
+	@Nonnull
+	public QuotaLimits overriddenBy(@Nonnull QuotaLimits specific) {
+		return new QuotaLimits(specific.runs != null ? specific.runs : runs,
+				specific.operating != null ? specific.operating : operating,
+				specific.diskBytes != null ? specific.diskBytes : diskBytes);
+	}
+
+	private static Integer larger(Integer a, Integer b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		return max(a, b);
+	}
+
+	private static Long larger(Long a, Long b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		return max(a, b);
+	}
+
+	@Override
+	public String toString() {
+		return "runs=" + runs + ", operating=" + operating + ", diskBytes="
+				+ diskBytes;
+	}
+}
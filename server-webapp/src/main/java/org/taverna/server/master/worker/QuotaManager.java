@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Collections.emptyList;
+import static org.springframework.security.core.context.SecurityContextHolder.getContext;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.taverna.server.master.exceptions.NoCreateException;
+
+/**
+ * Manages the limits on how many workflow runs each user may have, how many
+ * of those may be operating at once, and how much disk space their working
+ * directories may occupy. Limits may be set for individual users and for
+ * groups; a group is any authority granted to a user (such as a role or a
+ * local account mapping). A group's limits apply to each of its members who
+ * does not have the corresponding limit set individually; where a user is in
+ * several groups with limits, the most generous applies.
+ * <p>
+ * The limits are stored in the database but are cached here, and the usage
+ * of each user is tracked in memory, so the checks are cheap.
+ *
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "Quotas", description = "The per-user and per-group limits on resource consumption.")
+public class QuotaManager {
+	private static final String USER = "user:";
+	private static final String GROUP = "group:";
+	/**
+	 * How long (in milliseconds) permission to create a run remains reserved
+	 * if the run is never registered and the failure is not reported.
+	 */
+	private static final long RESERVATION_LIFETIME = 60000;
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.Policy");
+	private QuotaDAO dao;
+	private RunDBSupport runDB;
+	private UserDetailsService userDetailsService;
+	private final ConcurrentMap<String, QuotaLimits> limits = new ConcurrentHashMap<>();
+	private volatile boolean limitsLoaded;
+	private final QuotaLedger ledger = new QuotaLedger(RESERVATION_LIFETIME);
+	private volatile boolean usageLoaded;
+
+	@Required
+	public void setDao(QuotaDAO dao) {
+		this.dao = dao;
+	}
+
+	@Required
+	public void setRunDB(RunDBSupport runDB) {
+		this.runDB = runDB;
+	}
+
+	/**
+	 * @param service
+	 *            Where to find out what groups a user is in when that user is
+	 *            not the one making the current request.
+	 */
+	@Required
+	public void setUserDetailsService(UserDetailsService service) {
+		this.userDetailsService = service;
+	}
+
+	private Map<String, QuotaLimits> limits() {
+		if (!limitsLoaded)
+			synchronized (limits) {
+				if (!limitsLoaded) {
+					limits.putAll(dao.listQuotas());
+					limitsLoaded = true;
+				}
+			}
+		return limits;
+	}
+
+	/**
+	 * Make sure that the ledger knows about the runs in the database. Done
+	 * before anything else touches the ledger, so there are no reservations to
+	 * confuse it. If the runs cannot be listed, this is tried again the next
+	 * time the ledger is wanted; until it succeeds, no reservations are made,
+	 * as the ledger would undercount the runs that exist.
+	 */
+	private QuotaLedger ledger() {
+		if (!usageLoaded)
+			synchronized (this) {
+				if (!usageLoaded)
+					try {
+						Map<String, String> owners = runDB.listRunOwners();
+						for (Entry<String, String> e : owners.entrySet())
+							ledger.created(e.getKey(), e.getValue());
+						log.info("loaded ownership of " + owners.size()
+								+ " runs for quota accounting");
+						usageLoaded = true;
+					} catch (RuntimeException e) {
+						log.warn("failed to load run ownership; refusing to "
+								+ "create runs until it can be loaded", e);
+					}
+			}
+		return ledger;
+	}
+
+	private Collection<String> groups(String user) {
+		Collection<? extends GrantedAuthority> authorities;
+		Authentication auth = getContext().getAuthentication();
+		try {
+			if (auth != null && user.equals(auth.getName()))
+				authorities = auth.getAuthorities();
+			else
+				authorities = userDetailsService.loadUserByUsername(user)
+						.getAuthorities();
+		} catch (RuntimeException e) {
+			// Not a user we know about, so not in any group we know about
+			return emptyList();
+		}
+		List<String> groups = new ArrayList<>();
+		for (GrantedAuthority a : authorities)
+			groups.add(a.getAuthority());
+		return groups;
+	}
+
+	/**
+	 * Work out the limits that apply to a user.
+	 *
+	 * @param user
+	 *            The name of the user.
+	 * @return The limits, combining those for the user's groups and those for
+	 *         the user.
+	 */
+	@Nonnull
+	public QuotaLimits getEffectiveLimits(@Nonnull String user) {
+		Map<String, QuotaLimits> limits = limits();
+		QuotaLimits result = null;
+		if (!limits.isEmpty())
+			for (String group : groups(user)) {
+				QuotaLimits l = limits.get(GROUP + group);
+				if (l != null)
+					result = (result == null ? l : result.mostGenerous(l));
+			}
+		if (result == null)
+			result = QuotaLimits.NONE;
+		QuotaLimits own = limits.get(USER + user);
+		return own == null ? result : result.overriddenBy(own);
+	}
+
+	/**
+	 * Check whether a user may create another workflow run, and if so, reserve
+	 * the capacity for it.
+	 *
+	 * @param user
+	 *            Who wants to create the run.
+	 * @param globalLimit
+	 *            The maximum number of runs across all users.
+	 * @throws NoCreateException
+	 *             If the run may not be created.
+	 */
+	public void reserveRun(@Nonnull String user, int globalLimit)
+			throws NoCreateException {
+		QuotaLedger ledger = ledger();
+		if (!usageLoaded)
+			throw new NoCreateException(
+					"cannot count existing runs; please try again later");
+		ledger.reserve(user, getEffectiveLimits(user), globalLimit);
+	}
+
+	/**
+	 * Give back the capacity reserved by {@link #reserveRun(String, int)}
+	 * because the run was not created after all.
+	 *
+	 * @param user
+	 *            Who wanted to create the run.
+	 */
+	public void releaseReservation(@Nonnull String user) {
+		ledger().release(user);
+	}
+
+	/**
+	 * Check whether a user may have another workflow run operating.
+	 *
+	 * @param user
+	 *            The name of the user.
+	 * @param operating
+	 *            The IDs of the runs that are operating.
+	 * @return Whether the user is below their limit of operating runs.
+	 */
+	public boolean mayStartRun(@Nonnull String user,
+			@Nonnull Collection<String> operating) {
+		Integer limit = getEffectiveLimits(user).getOperating();
+		return limit == null || ledger().countOwned(user, operating) < limit;
+	}
+
+	/**
+	 * Make a filter that says which of some users may have another workflow
+	 * run started. The users' limits are looked up now, so that the filter
+	 * itself never has to consult the user database; it is meant to be used
+	 * while holding locks.
+	 *
+	 * @param users
+	 *            The users whose runs might be started.
+	 * @param operating
+	 *            The IDs of the runs that are operating.
+	 * @return A filter that admits those of the users who are below their
+	 *         limit of operating runs. Other users are not admitted.
+	 */
+	@Nonnull
+	public StartQueue.OwnerFilter operatingFilter(
+			@Nonnull Collection<String> users,
+			@Nonnull final Collection<String> operating) {
+		final QuotaLedger ledger = ledger();
+		final Map<String, Integer> operatingLimits = new HashMap<>();
+		for (String user : users)
+			operatingLimits.put(user, getEffectiveLimits(user).getOperating());
+		return new StartQueue.OwnerFilter() {
+			@Override
+			public boolean mayStart(String owner) {
+				// Users not looked up yet wait for the next dispatch
+				if (!operatingLimits.containsKey(owner))
+					return false;
+				Integer limit = operatingLimits.get(owner);
+				return limit == null
+						|| ledger.countOwned(owner, operating) < limit;
+			}
+		};
+	}
+
+	/**
+	 * Record that a run has been created.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @param owner
+	 *            The name of the user who owns the run.
+	 */
+	public void runCreated(@Nonnull String id, @Nonnull String owner) {
+		ledger().created(id, owner);
+	}
+
+	/**
+	 * @param id
+	 *            The ID of a run.
+	 * @return The name of the owner of the run, or <tt>null</tt> if the run is
+	 *         not known.
+	 */
+	@Nullable
+	public String getOwner(@Nonnull String id) {
+		return ledger().getOwner(id);
+	}
+
+	/**
+	 * Record that a run has been deleted.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 */
+	public void runDestroyed(@Nonnull String id) {
+		ledger().destroyed(id);
+	}
+
+	/**
+	 * Record how much disk space a run is using.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @param bytes
+	 *            The size of the run's working directory.
+	 */
+	public void setDiskUsage(@Nonnull String id, long bytes) {
+		ledger().setDiskUsage(id, bytes);
+	}
+
+	/** @return The number of workflow runs that exist. */
+	@ManagedAttribute(description = "The number of workflow runs that exist.")
+	public int getRunCount() {
+		return ledger().getRunCount();
+	}
+
+	/**
+	 * @param user
+	 *            The name of a user.
+	 * @return The number of workflow runs the user owns.
+	 */
+	@ManagedOperation(description = "How many workflow runs does the user own?")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "user", description = "The name of the user."))
+	public int getRunCount(@Nonnull String user) {
+		return ledger().getRunCount(user);
+	}
+
+	/**
+	 * @param user
+	 *            The name of a user.
+	 * @return How many of the user's runs are operating.
+	 */
+	@ManagedOperation(description = "How many of the user's workflow runs are operating?")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "user", description = "The name of the user."))
+	public int getOperatingCount(@Nonnull String user) {
+		return ledger().countOwned(user,
+				runDB.getFactory().getOperatingRunGauge().getOperatingRuns());
+	}
+
+	/**
+	 * @param user
+	 *            The name of a user.
+	 * @return How much disk space the user's runs were using when last
+	 *         measured.
+	 */
+	@ManagedOperation(description = "How many bytes of disk space are the user's workflow runs using?")
+	@ManagedOperationParameters(@ManagedOperationParameter(name = "user", description = "The name of the user."))
+	public long getDiskUsage(@Nonnull String user) {
+		return ledger().getDiskUsage(user);
+	}
+
+	/** @return The names of the users who own workflow runs. */
+	@Nonnull
+	@ManagedAttribute(description = "The users who own workflow runs.")
+	public List<String> getActiveUsers() {
+		return new ArrayList<>(new TreeSet<>(ledger().getUsers()));
+	}
+
+	private List<String> listNames(String prefix) {
+		List<String> result = new ArrayList<>();
+		for (String id : new TreeSet<>(limits().keySet()))
+			if (id.startsWith(prefix))
+				result.add(id.substring(prefix.length()));
+		return result;
+	}
+
+	/** @return The users who have limits set for them specifically. */
+	@Nonnull
+	@ManagedAttribute(description = "The users who have quotas set for them specifically.")
+	public List<String> getUsersWithQuotas() {
+		return listNames(USER);
+	}
+
+	/** @return The groups that have limits set for them. */
+	@Nonnull
+	@ManagedAttribute(description = "The groups that have quotas set for them.")
+	public List<String> getGroupsWithQuotas() {
+		return listNames(GROUP);
+	}
+
+	/**
+	 * @param user
+	 *            The name of a user.
+	 * @return The limits set for that user specifically, or <tt>null</tt> if
+	 *         there are none.
+	 */
+	@Nullable
+	public QuotaLimits getUserQuota(@Nonnull String user) {
+		return limits().get(USER + user);
+	}
+
+	/**
+	 * @param group
+	 *            The name of a group.
+	 * @return The limits set for that group, or <tt>null</tt> if there are
+	 *         none.
+	 */
+	@Nullable
+	public QuotaLimits getGroupQuota(@Nonnull String group) {
+		return limits().get(GROUP + group);
+	}
+
+	/**
+	 * @param user
+	 *            The name of a user.
+	 * @param quota
+	 *            The limits to set for that user specifically, or
+	 *            <tt>null</tt> to remove them.
+	 */
+	public void setUserQuota(@Nonnull String user, @Nullable QuotaLimits quota) {
+		store(USER + user, quota);
+	}
+
+	/**
+	 * @param group
+	 *            The name of a group.
+	 * @param quota
+	 *            The limits to set for that group, or <tt>null</tt> to remove
+	 *            them.
+	 */
+	public void setGroupQuota(@Nonnull String group, @Nullable QuotaLimits quota) {
+		store(GROUP + group, quota);
+	}
+
+	private void store(String id, QuotaLimits quota) {
+		if (quota != null && quota.isEmpty())
+			quota = null;
+		Map<String, QuotaLimits> limits = limits();
+		synchronized (limits) {
+			dao.setQuota(id, quota);
+			if (quota == null)
+				limits.remove(id);
+			else
+				limits.put(id, quota);
+		}
+		log.info("set quota for " + id + " to " + quota);
+	}
+
+	private static Integer limit(int value) {
+		return value < 0 ? null : value;
+	}
+
+	@ManagedOperation(description = "Set the quota for a user. Negative values mean no limit.")
+	@ManagedOperationParameters({
+			@ManagedOperationParameter(name = "user", description = "The name of the user."),
+			@ManagedOperationParameter(name = "runs", description = "The maximum number of runs."),
+			@ManagedOperationParameter(name = "operating", description = "The maximum number of operating runs."),
+			@ManagedOperationParameter(name = "diskBytes", description = "The maximum disk space for the runs' working directories.") })
+	public void setUserQuota(String user, int runs, int operating,
+			long diskBytes) {
+		setUserQuota(user, new QuotaLimits(limit(runs), limit(operating),
+				diskBytes < 0 ? null : diskBytes));
+	}
+
+	@ManagedOperation(description = "Set the quota for each member of a group. Negative values mean no limit.")
+	@ManagedOperationParameters({
+			@ManagedOperationParameter(name = "group", description = "The name of the group."),
+			@ManagedOperationParameter(name = "runs", description = "The maximum number of runs."),
+			@ManagedOperationParameter(name = "operating", description = "The maximum number of operating runs."),
+			@ManagedOperationParameter(name = "diskBytes", description = "The maximum disk space for the runs' working directories.") })
+	public void setGroupQuota(String group, int runs, int operating,
+			long diskBytes) {
+		setGroupQuota(group, new QuotaLimits(limit(runs), limit(operating),
+				diskBytes < 0 ? null : diskBytes));
+	}
+}
@@ -31,6 +31,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.zip.ZipEntry;
@@ -55,7 +56,6 @@ import org.taverna.server.master.exceptions.BadPropertyValueException;
 import org.taverna.server.master.exceptions.BadStateChangeException;
 import org.taverna.server.master.exceptions.FilesystemAccessException;
 import org.taverna.server.master.exceptions.NoListenerException;
-import org.taverna.server.master.exceptions.OverloadedException;
 import org.taverna.server.master.exceptions.UnknownRunException;
 import org.taverna.server.master.interfaces.Directory;
 import org.taverna.server.master.interfaces.DirectoryEntry;
@@ -84,11 +84,14 @@ public class RemoteRunDelegate implements TavernaRun {
 	HashSet<String> destroyers;
 	transient String id;
 	transient RemoteSingleRun run;
+	transient MarshalledObject<RemoteSingleRun> marshalledRun;
 	transient RunDBSupport db;
 	transient FactoryBean factory;
 	boolean doneTransitionToFinished;
 	boolean generateProvenance;// FIXME expose
 	String name;
+	/** When the run was queued to start, or <tt>null</tt> if it isn't. */
+	Date queued;
 	private static final String ELLIPSIS = "...";
 
 	public RemoteRunDelegate(Date creationInstant, Workflow workflow,
@@ -124,6 +127,42 @@ public class RemoteRunDelegate implements TavernaRun {
 	RemoteRunDelegate() {
 	}
 
+	/**
+	 * Get the RMI handle to the run in the worker. Runs that have been loaded
+	 * from the database only have their handle reconstructed when it is first
+	 * needed, as doing so involves talking to the worker.
+	 * 
+	 * @return The remote run handle.
+	 * @throws RemoteException
+	 *             If the handle can't be reconstructed; this is reported the
+	 *             same way as a failure to talk to the worker.
+	 */
+	@Nonnull
+	synchronized RemoteSingleRun remote() throws RemoteException {
+		if (run == null)
+			try {
+				run = marshalledRun.get();
+			} catch (IOException | ClassNotFoundException e) {
+				throw new RunReconnectionException(e);
+			}
+		return run;
+	}
+
+	/**
+	 * Get the serialized form of the RMI handle to the run in the worker.
+	 * 
+	 * @return The serialized remote run handle.
+	 * @throws IOException
+	 *             If serialization fails.
+	 */
+	@Nonnull
+	synchronized MarshalledObject<RemoteSingleRun> marshalled()
+			throws IOException {
+		if (marshalledRun == null)
+			marshalledRun = new MarshalledObject<>(run);
+		return marshalledRun;
+	}
+
 	/**
 	 * Get the types of listener supported by this run.
 	 * 
@@ -132,14 +171,14 @@ public class RemoteRunDelegate implements TavernaRun {
 	 *             If anything goes wrong.
 	 */
 	public List<String> getListenerTypes() throws RemoteException {
-		return run.getListenerTypes();
+		return remote().getListenerTypes();
 	}
 
 	@Override
 	public void addListener(Listener listener) {
 		if (listener instanceof ListenerDelegate)
 			try {
-				run.addListener(((ListenerDelegate) listener).getRemote());
+				remote().addListener(((ListenerDelegate) listener).getRemote());
 			} catch (RemoteException e) {
 				log.warn("communication problem adding listener", e);
 			} catch (ImplementationException e) {
@@ -171,7 +210,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	public Listener makeListener(String type, String config)
 			throws NoListenerException {
 		try {
-			return new ListenerDelegate(run.makeListener(type, config));
+			return new ListenerDelegate(remote().makeListener(type, config));
 		} catch (RemoteException e) {
 			throw new NoListenerException("failed to make listener", e);
 		}
@@ -180,10 +219,14 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public void destroy() {
 		try {
-			run.destroy();
+			remote().destroy();
 		} catch (RemoteException | ImplementationException e) {
 			log.warn("failed to destroy run", e);
 		}
+		if (factory != null) {
+			factory.getOperatingRunGauge().stopped(id);
+			factory.getRunEventBus().runDestroyed(getId());
+		}
 	}
 
 	@Override
@@ -195,7 +238,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	public List<Listener> getListeners() {
 		List<Listener> listeners = new ArrayList<>();
 		try {
-			for (RemoteListener rl : run.getListeners())
+			for (RemoteListener rl : remote().getListeners())
 				listeners.add(new ListenerDelegate(rl));
 		} catch (RemoteException e) {
 			log.warn("failed to get listeners", e);
@@ -211,7 +254,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public Status getStatus() {
 		try {
-			switch (run.getStatus()) {
+			switch (remote().getStatus()) {
 			case Initialized:
 				return Status.Initialized;
 			case Operating:
@@ -235,7 +278,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public Directory getWorkingDirectory() throws FilesystemAccessException {
 		try {
-			return new DirectoryDelegate(run.getWorkingDirectory());
+			return new DirectoryDelegate(remote().getWorkingDirectory());
 		} catch (Throwable e) {
 			if (e.getCause() != null)
 				e = e.getCause();
@@ -257,28 +300,37 @@ public class RemoteRunDelegate implements TavernaRun {
 			log.info("setting status of run " + id + " to " + s);
 			switch (s) {
 			case Initialized:
-				run.setStatus(RemoteStatus.Initialized);
+				db.cancelQueuedStart(this);
+				remote().setStatus(RemoteStatus.Initialized);
+				statusChanged(Status.Initialized);
 				break;
 			case Operating:
-				if (run.getStatus() == RemoteStatus.Initialized) {
-					if (!factory.isAllowingRunsToStart())
-						throw new OverloadedException();
-					secContext.conveySecurity();
+				RemoteStatus current = remote().getStatus();
+				if (current == RemoteStatus.Initialized
+						|| current == RemoteStatus.Stopped) {
+					String position = db.queueForStart(this);
+					if (position != null)
+						return position;
+				}
+				if (current == RemoteStatus.Stopped) {
+					resume();
+					break;
 				}
-				run.setGenerateProvenance(generateProvenance);
-				run.setStatus(RemoteStatus.Operating);
-				factory.getMasterEventFeed()
-						.started(
-								this,
-								"started run execution",
-								"The execution of run '" + getName()
-										+ "' has started.");
+				if (current == RemoteStatus.Initialized)
+					secContext.conveySecurity();
+				start();
 				break;
 			case Stopped:
-				run.setStatus(RemoteStatus.Stopped);
+				db.cancelQueuedStart(this);
+				remote().setStatus(RemoteStatus.Stopped);
+				factory.getOperatingRunGauge().stopped(id);
+				statusChanged(Status.Stopped);
 				break;
 			case Finished:
-				run.setStatus(RemoteStatus.Finished);
+				db.cancelQueuedStart(this);
+				remote().setStatus(RemoteStatus.Finished);
+				factory.getOperatingRunGauge().stopped(id);
+				statusChanged(Status.Finished);
 				break;
 			}
 			return null;
@@ -296,12 +348,85 @@ public class RemoteRunDelegate implements TavernaRun {
 			log.info("still working on setting status of run " + id + " to "
 					+ s, e);
 			return e.getMessage();
-		} catch (InterruptedException e) {
-			throw new BadStateChangeException(
-					"interrupted while waiting to insert notification into database");
 		}
 	}
 
+	private void start() throws RemoteException, ImplementationException,
+			StillWorkingOnItException, IllegalStateTransitionException {
+		remote().setGenerateProvenance(generateProvenance);
+		remote().setStatus(RemoteStatus.Operating);
+		factory.getOperatingRunGauge().started(id);
+		statusChanged(Status.Operating);
+		factory.getMasterEventFeed().started(this, "started run execution",
+				"The execution of run '" + getName() + "' has started.");
+		try {
+			db.notifyStarted(this);
+		} catch (RuntimeException e) {
+			log.warn("failed to do notification of start of run " + id, e);
+		}
+	}
+
+	private void resume() throws RemoteException, ImplementationException,
+			StillWorkingOnItException, IllegalStateTransitionException {
+		remote().setStatus(RemoteStatus.Operating);
+		factory.getOperatingRunGauge().started(id);
+		statusChanged(Status.Operating);
+	}
+
+	/**
+	 * Tell anyone waiting on this run that its state has changed.
+	 * 
+	 * @param s
+	 *            The state the run is now in.
+	 */
+	void statusChanged(Status s) {
+		if (factory != null)
+			factory.getRunEventBus().statusChanged(getId(), s);
+	}
+
+	/**
+	 * Start a run that was queued waiting for there to be capacity for it, or
+	 * resume it if it was suspended. Called once it has been taken out of the
+	 * queue.
+	 * 
+	 * @throws Exception
+	 *             If anything goes wrong.
+	 */
+	void startQueued() throws Exception {
+		queued = null;
+		db.flushToDisk(this);
+		switch (remote().getStatus()) {
+		case Initialized:
+			log.info("starting queued run " + id);
+			secContext.conveySecurity();
+			start();
+			break;
+		case Stopped:
+			log.info("resuming suspended run " + id);
+			resume();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Suspend an operating run to make way for a more urgent one. The run is
+	 * marked as queued so that it is resumed when there is capacity again,
+	 * including after a restart; the caller puts it in the start queue.
+	 * 
+	 * @throws Exception
+	 *             If anything goes wrong.
+	 */
+	void suspend() throws Exception {
+		log.info("suspending run " + id + " to make way for another");
+		remote().setStatus(RemoteStatus.Stopped);
+		factory.getOperatingRunGauge().stopped(id);
+		statusChanged(Status.Stopped);
+		queued = new Date();
+		db.flushToDisk(this);
+	}
+
 	static void checkBadFilename(String filename)
 			throws FilesystemAccessException {
 		if (filename.startsWith("/"))
@@ -314,7 +439,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public String getInputBaclavaFile() {
 		try {
-			return run.getInputBaclavaFile();
+			return remote().getInputBaclavaFile();
 		} catch (RemoteException e) {
 			log.warn("problem when fetching input baclava file", e);
 			return null;
@@ -325,7 +450,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	public List<Input> getInputs() {
 		ArrayList<Input> inputs = new ArrayList<>();
 		try {
-			for (RemoteInput ri : run.getInputs())
+			for (RemoteInput ri : remote().getInputs())
 				inputs.add(new RunInput(ri));
 		} catch (RemoteException e) {
 			log.warn("problem when fetching list of workflow inputs", e);
@@ -336,7 +461,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public String getOutputBaclavaFile() {
 		try {
-			return run.getOutputBaclavaFile();
+			return remote().getOutputBaclavaFile();
 		} catch (RemoteException e) {
 			log.warn("problem when fetching output baclava file", e);
 			return null;
@@ -346,7 +471,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public Input makeInput(String name) throws BadStateChangeException {
 		try {
-			return new RunInput(run.makeInput(name));
+			return new RunInput(remote().makeInput(name));
 		} catch (RemoteException e) {
 			throw new BadStateChangeException("failed to make input", e);
 		}
@@ -357,7 +482,7 @@ public class RemoteRunDelegate implements TavernaRun {
 			throws FilesystemAccessException, BadStateChangeException {
 		checkBadFilename(filename);
 		try {
-			run.setInputBaclavaFile(filename);
+			remote().setInputBaclavaFile(filename);
 		} catch (RemoteException e) {
 			throw new FilesystemAccessException(
 					"cannot set input baclava file name", e);
@@ -369,7 +494,7 @@ public class RemoteRunDelegate implements TavernaRun {
 			throws FilesystemAccessException, BadStateChangeException {
 		checkBadFilename(filename);
 		try {
-			run.setOutputBaclavaFile(filename);
+			remote().setOutputBaclavaFile(filename);
 		} catch (RemoteException e) {
 			throw new FilesystemAccessException(
 					"cannot set output baclava file name", e);
@@ -385,7 +510,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public Date getFinishTimestamp() {
 		try {
-			return run.getFinishTimestamp();
+			return remote().getFinishTimestamp();
 		} catch (RemoteException e) {
 			log.info("failed to get finish timestamp", e);
 			return null;
@@ -395,7 +520,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public Date getStartTimestamp() {
 		try {
-			return run.getStartTimestamp();
+			return remote().getStartTimestamp();
 		} catch (RemoteException e) {
 			log.info("failed to get finish timestamp", e);
 			return null;
@@ -408,7 +533,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	 */
 	public void setReaders(Set<String> readers) {
 		this.readers = new HashSet<>(readers);
-		db.flushToDisk(this);
+		db.flushReadersToDisk(this);
 	}
 
 	/**
@@ -457,7 +582,7 @@ public class RemoteRunDelegate implements TavernaRun {
 		out.defaultWriteObject();
 		out.writeUTF(secContext.getOwner().getName());
 		out.writeObject(secContext.getFactory());
-		out.writeObject(new MarshalledObject<>(run));
+		out.writeObject(marshalled());
 	}
 
 	@Override
@@ -488,7 +613,7 @@ public class RemoteRunDelegate implements TavernaRun {
 		} catch (Exception e) {
 			throw new SecurityContextReconstructionException(e);
 		}
-		run = ((MarshalledObject<RemoteSingleRun>) in.readObject()).get();
+		marshalledRun = (MarshalledObject<RemoteSingleRun>) in.readObject();
 	}
 
 	public void setSecurityContext(TavernaSecurityContext tavernaSecurityContext) {
@@ -512,7 +637,7 @@ public class RemoteRunDelegate implements TavernaRun {
 	@Override
 	public void ping() throws UnknownRunException {
 		try {
-			run.ping();
+			remote().ping();
 		} catch (RemoteException e) {
 			throw new UnknownRunException(e);
 		}
@@ -635,6 +760,27 @@ class DirectoryDelegate extends DEDelegate implements Directory {
 		return result;
 	}
 
+	@Override
+	public Map<String, Date> getFileModificationDates()
+			throws FilesystemAccessException {
+		try {
+			return rd.getFileModificationDates();
+		} catch (IOException e) {
+			throw new FilesystemAccessException(
+					"failed to get directory contents", e);
+		}
+	}
+
+	@Override
+	public long getTotalSize() throws FilesystemAccessException {
+		try {
+			return rd.getTotalSize();
+		} catch (IOException e) {
+			throw new FilesystemAccessException(
+					"failed to get size of directory tree", e);
+		}
+	}
+
 	static class DateComparator implements Comparator<DirectoryEntry> {
 		@Override
 		public int compare(DirectoryEntry a, DirectoryEntry b) {
@@ -962,4 +1108,11 @@ class SecurityContextReconstructionException extends RuntimeException {
 	public SecurityContextReconstructionException(Throwable t) {
 		super("failed to rebuild security context", t);
 	}
-}
\ No newline at end of file
+}
+
+@SuppressWarnings("serial")
+class RunReconnectionException extends RemoteException {
+	public RunReconnectionException(Throwable t) {
+		super("failed to reconnect to remote run", t);
+	}
+}
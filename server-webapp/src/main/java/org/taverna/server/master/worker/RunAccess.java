@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.taverna.server.master.worker.RunAccess.ACCESS_COUNT_QUERY;
+import static org.taverna.server.master.worker.RunAccess.ACCESS_INDEXED_QUERY;
+import static org.taverna.server.master.worker.RunAccess.ACCESS_TABLE;
+import static org.taverna.server.master.worker.RunConnection.SCHEMA;
+
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+import javax.jdo.annotations.Column;
+import javax.jdo.annotations.Index;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+import javax.jdo.annotations.Queries;
+import javax.jdo.annotations.Query;
+
+/**
+ * The persistent record that a user may see a workflow run, either because
+ * they own it or because they have been granted permission to read it. There
+ * is one of these for each such pair, whether the run is active or has been
+ * {@linkplain ArchivedRunConnection archived}, so listing the runs that a user
+ * can see and counting the runs are each a single query on narrow, indexed
+ * columns, and do not need to load any run or to look at its list of readers.
+ *
+ * @author Donal Fellows
+ */
+@PersistenceCapable(table = ACCESS_TABLE, schema = SCHEMA)
+@Queries({
+		@Query(name = "count", language = "SQL", value = ACCESS_COUNT_QUERY, unique = "true", resultClass = Integer.class),
+		@Query(name = "indexed", language = "SQL", value = ACCESS_INDEXED_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "visible", value = "SELECT runId FROM org.taverna.server.master.worker.RunAccess WHERE principal == :user ORDER BY created ASC, runId ASC"),
+		@Query(name = "all", value = "SELECT runId FROM org.taverna.server.master.worker.RunAccess WHERE isOwner == 1 ORDER BY created ASC, runId ASC"),
+		@Query(name = "ofRun", value = "SELECT FROM org.taverna.server.master.worker.RunAccess WHERE runId == :id") })
+public class RunAccess {
+	static final String ACCESS_TABLE = "RUN_ACCESS";
+	private static final String FULL_NAME = SCHEMA + "." + ACCESS_TABLE;
+	static final String ACCESS_COUNT_QUERY = "SELECT count(*) FROM "
+			+ FULL_NAME + "   WHERE isOwner = 1";
+	static final String ACCESS_INDEXED_QUERY = "SELECT runId FROM "
+			+ FULL_NAME + "   WHERE isOwner = 1";
+
+	@PrimaryKey
+	@Column(length = 170)
+	private String key;
+
+	@Persistent
+	@Column(length = 40)
+	@Index(name = ACCESS_TABLE + "_RUN")
+	private String runId;
+
+	@Persistent
+	@Column(length = 128)
+	@Index(name = ACCESS_TABLE + "_PRINCIPAL")
+	private String principal;
+
+	@Persistent
+	@Index(name = ACCESS_TABLE + "_OWNER")
+	private int isOwner;
+
+	@Persistent
+	private Date created;
+
+	RunAccess() {
+	}
+
+	/**
+	 * @param runId
+	 *            The ID of the run.
+	 * @param principal
+	 *            The name of the user who may see the run.
+	 * @param isOwner
+	 *            Whether that user owns the run.
+	 * @param created
+	 *            When the run was created; runs are listed in this order.
+	 */
+	RunAccess(@Nonnull String runId, @Nonnull String principal,
+			boolean isOwner, Date created) {
+		this.key = runId + " " + principal;
+		this.runId = runId;
+		this.principal = principal;
+		this.isOwner = (isOwner ? 1 : 0);
+		this.created = created;
+	}
+
+	public String getRunId() {
+		return runId;
+	}
+
+	public String getPrincipal() {
+		return principal;
+	}
+
+	public boolean isOwner() {
+		return isOwner != 0;
+	}
+}
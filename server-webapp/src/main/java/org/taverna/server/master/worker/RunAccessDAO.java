@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.jdo.Query;
+import javax.jdo.annotations.PersistenceAware;
+
+import org.taverna.server.master.utils.JDOSupport;
+
+/**
+ * Handles the table that says which users may see which workflow runs. All
+ * methods of this class must be called from within a transaction managed by
+ * the {@link RunDatabaseDAO}, which is the only client of this class.
+ *
+ * @author Donal Fellows
+ */
+@PersistenceAware
+public class RunAccessDAO extends JDOSupport<RunAccess> {
+	public RunAccessDAO() {
+		super(RunAccess.class);
+	}
+
+	/**
+	 * @return The number of workflow runs, active and archived.
+	 */
+	public int count() {
+		return (Integer) namedQuery("count").execute();
+	}
+
+	/**
+	 * @return The IDs of the workflow runs that are in this table.
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	public Set<String> indexed() {
+		return new HashSet<>((List<String>) namedQuery("indexed").execute());
+	}
+
+	/**
+	 * Get part of the list of runs that a user can see, in order of creation.
+	 *
+	 * @param user
+	 *            The user who is asking, or <tt>null</tt> for all runs.
+	 * @param first
+	 *            How many runs to skip.
+	 * @param limit
+	 *            The maximum number of runs to return.
+	 * @return The IDs of the runs.
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	public List<String> visibleTo(@Nullable String user, int first, int limit) {
+		Query q = namedQuery(user == null ? "all" : "visible");
+		q.setRange(first, first + limit);
+		if (user == null)
+			return (List<String>) q.execute();
+		return (List<String>) q.execute(user);
+	}
+
+	/**
+	 * Record who may see a newly created run.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @param owner
+	 *            Who owns the run.
+	 * @param readers
+	 *            Who else may read the run.
+	 * @param created
+	 *            When the run was created.
+	 */
+	public void add(@Nonnull String id, @Nonnull String owner,
+			@Nonnull Collection<String> readers, Date created) {
+		Map<String, RunAccess> rows = new HashMap<>();
+		for (String reader : readers)
+			if (reader != null)
+				rows.put(reader, new RunAccess(id, reader, false, created));
+		rows.put(owner, new RunAccess(id, owner, true, created));
+		persistAll(rows.values());
+	}
+
+	/**
+	 * Bring the record of who may see a run up to date with its current list
+	 * of readers. Only the rows that change are written.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @param owner
+	 *            Who owns the run.
+	 * @param readers
+	 *            Who else may now read the run.
+	 * @param created
+	 *            When the run was created.
+	 */
+	public void update(@Nonnull String id, @Nonnull String owner,
+			@Nonnull Collection<String> readers, Date created) {
+		Set<String> wanted = new HashSet<>(readers);
+		wanted.remove(null);
+		wanted.add(owner);
+		@SuppressWarnings("unchecked")
+		List<RunAccess> rows = (List<RunAccess>) namedQuery("ofRun")
+				.execute(id);
+		for (RunAccess row : rows)
+			if (!wanted.remove(row.getPrincipal()))
+				delete(row);
+		for (String reader : wanted)
+			persist(new RunAccess(id, reader, reader.equals(owner), created));
+	}
+
+	/**
+	 * Forget who may see a run, because it has been deleted.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 */
+	public void remove(@Nonnull String id) {
+		namedQuery("ofRun").deletePersistentAll(id);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.taverna.server.master.worker.ArchivedRunConnection.toArchiveForm;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.jdo.annotations.PersistenceAware;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.taverna.server.master.utils.JDOSupport;
+
+/**
+ * Handles the table of finished workflow runs that are only being kept until
+ * they expire. All methods of this class must be called from within a
+ * transaction managed by the {@link RunDatabaseDAO}, which is the only client
+ * of this class.
+ *
+ * @author Donal Fellows
+ */
+@PersistenceAware
+public class RunArchiveDAO extends JDOSupport<ArchivedRunConnection> {
+	public RunArchiveDAO() {
+		super(ArchivedRunConnection.class);
+	}
+
+	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
+
+	/**
+	 * @return The number of archived workflow runs.
+	 */
+	public int count() {
+		return (Integer) namedQuery("count").execute();
+	}
+
+	/**
+	 * @return The IDs of all archived workflow runs.
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	public List<String> names() {
+		return (List<String>) namedQuery("names").execute();
+	}
+
+	/**
+	 * @return The IDs of the archived workflow runs that have expired.
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	public List<String> expired() {
+		return (List<String>) namedQuery("timedout").execute();
+	}
+
+	/**
+	 * @return Pairs of ID and owner for the archived workflow runs.
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	public List<Object[]> owners() {
+		return (List<Object[]>) namedQuery("owners").execute();
+	}
+
+	/**
+	 * @return Pairs of ID and expiry time for the archived workflow runs.
+	 */
+	@Nonnull
+	@SuppressWarnings("unchecked")
+	public List<Object[]> expiries() {
+		return (List<Object[]>) namedQuery("expiries").execute();
+	}
+
+	/**
+	 * Look up an archived run.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @return The persistent form of the run, or <tt>null</tt> if it is not
+	 *         in the archive.
+	 */
+	@Nullable
+	public ArchivedRunConnection pick(@Nonnull String id) {
+		return getById(id);
+	}
+
+	/**
+	 * Add a finished run to the archive.
+	 *
+	 * @param rrd
+	 *            The run to archive.
+	 * @param securityToken
+	 *            The security token issued to the run.
+	 * @throws IOException
+	 *             If serialisation of the run fails.
+	 */
+	public void archive(@Nonnull RemoteRunDelegate rrd, String securityToken)
+			throws IOException {
+		if (log.isDebugEnabled())
+			log.debug("archiving finished run " + rrd.id);
+		persist(toArchiveForm(rrd, securityToken));
+	}
+
+	/**
+	 * Remove a run from the archive.
+	 *
+	 * @param arc
+	 *            The archived run to remove.
+	 */
+	public void remove(@Nullable ArchivedRunConnection arc) {
+		delete(arc);
+	}
+}
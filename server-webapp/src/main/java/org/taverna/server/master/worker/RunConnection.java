@@ -8,7 +8,11 @@ package org.taverna.server.master.worker;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static org.taverna.server.master.worker.RunConnection.COUNT_QUERY;
+import static org.taverna.server.master.worker.RunConnection.EXPIRIES_QUERY;
+import static org.taverna.server.master.worker.RunConnection.FINISHED_QUERY;
 import static org.taverna.server.master.worker.RunConnection.NAMES_QUERY;
+import static org.taverna.server.master.worker.RunConnection.OWNERS_QUERY;
+import static org.taverna.server.master.worker.RunConnection.QUEUED_QUERY;
 import static org.taverna.server.master.worker.RunConnection.SCHEMA;
 import static org.taverna.server.master.worker.RunConnection.TABLE;
 import static org.taverna.server.master.worker.RunConnection.TIMEOUT_QUERY;
@@ -22,6 +26,7 @@ import java.util.List;
 
 import javax.annotation.Nonnull;
 import javax.jdo.annotations.Column;
+import javax.jdo.annotations.Index;
 import javax.jdo.annotations.Join;
 import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
@@ -47,17 +52,28 @@ import org.taverna.server.master.utils.UsernamePrincipal;
 		@Query(name = "count", language = "SQL", value = COUNT_QUERY, unique = "true", resultClass = Integer.class),
 		@Query(name = "names", language = "SQL", value = NAMES_QUERY, unique = "false", resultClass = String.class),
 		@Query(name = "unterminated", language = "SQL", value = UNTERMINATED_QUERY, unique = "false", resultClass = String.class),
-		@Query(name = "timedout", language = "SQL", value = TIMEOUT_QUERY, unique = "false", resultClass = String.class) })
+		@Query(name = "finished", language = "SQL", value = FINISHED_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "timedout", language = "SQL", value = TIMEOUT_QUERY, unique = "false", resultClass = String.class),
+		@Query(name = "expiries", language = "SQL", value = EXPIRIES_QUERY, unique = "false"),
+		@Query(name = "queued", language = "SQL", value = QUEUED_QUERY, unique = "false"),
+		@Query(name = "owners", language = "SQL", value = OWNERS_QUERY, unique = "false") })
 public class RunConnection {
 	static final String SCHEMA = "TAVERNA";
 	static final String TABLE = "RUN_CONNECTION";
 	private static final String FULL_NAME = SCHEMA + "." + TABLE;
 	static final String COUNT_QUERY = "SELECT count(*) FROM " + FULL_NAME;
 	static final String NAMES_QUERY = "SELECT ID FROM " + FULL_NAME;
+	static final String OWNERS_QUERY = "SELECT ID, owner FROM " + FULL_NAME;
 	static final String TIMEOUT_QUERY = "SELECT ID FROM " + FULL_NAME
 			+ "   WHERE expiry < CURRENT_TIMESTAMP";
+	static final String EXPIRIES_QUERY = "SELECT ID, expiry FROM " + FULL_NAME
+			+ "   ORDER BY expiry";
 	static final String UNTERMINATED_QUERY = "SELECT ID FROM " + FULL_NAME
 			+ "   WHERE doneTransitionToFinished = 0";
+	static final String FINISHED_QUERY = "SELECT ID FROM " + FULL_NAME
+			+ "   WHERE doneTransitionToFinished = 1";
+	static final String QUEUED_QUERY = "SELECT ID, owner FROM " + FULL_NAME
+			+ "   WHERE queued IS NOT NULL ORDER BY queued";
 	static final int NAME_LENGTH = 48; 
 
 	@PrimaryKey
@@ -76,6 +92,7 @@ public class RunConnection {
 	private Workflow workflow;
 
 	@Persistent(defaultFetchGroup = "true")
+	@Index(name = TABLE + "_EXPIRY")
 	private Date expiry;
 
 	@Persistent(defaultFetchGroup = "true")
@@ -95,6 +112,7 @@ public class RunConnection {
 	private MarshalledObject<RemoteSingleRun> run;
 
 	@Persistent(defaultFetchGroup = "true")
+	@Index(name = TABLE + "_FINISHED")
 	private int doneTransitionToFinished;
 
 	@Persistent(defaultFetchGroup = "true")
@@ -102,6 +120,7 @@ public class RunConnection {
 
 	@Persistent(defaultFetchGroup = "true")
 	@Column(length = 128)
+	@Index(name = TABLE + "_OWNER")
 	String owner;
 
 	@Persistent(defaultFetchGroup = "true")
@@ -118,12 +137,21 @@ public class RunConnection {
 	@Column(jdbcType = "BLOB", sqlType = "BLOB")
 	private Trust[] trust;
 
+	/** When the run was queued to start, or <tt>null</tt> if it isn't. */
+	@Persistent(defaultFetchGroup = "true")
+	@Index(name = TABLE + "_QUEUED")
+	private Date queued;
+
 	private static final String[] STRING_ARY = new String[0];
 
 	public String getId() {
 		return id;
 	}
 
+	public Date getExpiry() {
+		return expiry;
+	}
+
 	public boolean isFinished() {
 		return doneTransitionToFinished != 0;
 	}
@@ -186,7 +214,7 @@ public class RunConnection {
 		rrd.readers = new HashSet<>(list(readers));
 		rrd.writers = new HashSet<>(list(writers));
 		rrd.destroyers = new HashSet<>(list(destroyers));
-		rrd.run = run.get();
+		rrd.marshalledRun = run;
 		rrd.doneTransitionToFinished = isFinished();
 		rrd.generateProvenance = isProvenanceGenerated();
 		rrd.secContext = securityContextFactory.create(rrd,
@@ -195,6 +223,7 @@ public class RunConnection {
 		rrd.db = db;
 		rrd.factory = db.getFactory();
 		rrd.name = name;
+		rrd.queued = queued;
 		return rrd;
 	}
 
@@ -212,7 +241,7 @@ public class RunConnection {
 		if (creationInstant == null) {
 			creationInstant = rrd.getCreationTimestamp();
 			workflow = rrd.getWorkflow();
-			run = new MarshalledObject<>(rrd.run);
+			run = rrd.marshalled();
 			securityContextFactory = rrd.getSecurityContext().getFactory();
 			owner = rrd.getSecurityContext().getOwner().getName();
 			securityToken = ((org.taverna.server.master.worker.SecurityContextFactory) securityContextFactory)
@@ -231,6 +260,7 @@ public class RunConnection {
 			this.name = rrd.name;
 		setFinished(rrd.doneTransitionToFinished);
 		setProvenanceGenerated(rrd.generateProvenance);
+		queued = rrd.queued;
 	}
 
 	public String getSecurityToken() {
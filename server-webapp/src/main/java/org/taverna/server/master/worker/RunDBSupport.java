@@ -6,10 +6,12 @@
 package org.taverna.server.master.worker;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.taverna.server.master.exceptions.OverloadedException;
 import org.taverna.server.master.notification.NotificationEngine;
 
 /**
@@ -24,6 +26,12 @@ public interface RunDBSupport {
 	 */
 	void checkForFinishNow();
 
+	/**
+	 * Measure how much disk space each operating run is using, so that disk
+	 * quotas reflect runs that are still writing their outputs.
+	 */
+	void measureDiskUsageNow();
+
 	/**
 	 * Remove currently-expired runs from this database.
 	 */
@@ -32,7 +40,7 @@ public interface RunDBSupport {
 	/**
 	 * How many runs are stored in the database.
 	 * 
-	 * @return The current size of the run table.
+	 * @return The number of runs, including finished runs in the archive.
 	 */
 	int countRuns();
 
@@ -45,6 +53,15 @@ public interface RunDBSupport {
 	 */
 	void flushToDisk(@Nonnull RemoteRunDelegate run);
 
+	/**
+	 * Ensure that a run gets persisted in the database after its list of
+	 * readers has changed, also updating the record of who may see it.
+	 * 
+	 * @param run
+	 *            The run to persist.
+	 */
+	void flushReadersToDisk(@Nonnull RemoteRunDelegate run);
+
 	/**
 	 * Select an arbitrary representative run.
 	 * 
@@ -63,6 +80,15 @@ public interface RunDBSupport {
 	@Nonnull
 	List<String> listRunNames();
 
+	/**
+	 * Get who owns each run.
+	 * 
+	 * @return Map from the names (i.e., UUIDs) of all the runs to the names of
+	 *         their owners.
+	 */
+	@Nonnull
+	Map<String, String> listRunOwners();
+
 	/**
 	 * @param notificationEngine
 	 *            A reference to the notification fabric bean.
@@ -76,6 +102,40 @@ public interface RunDBSupport {
 	 */
 	void setNotifier(CompletionNotifier notifier);
 
+	/**
+	 * Tell the run's notification target that the run has started, if that
+	 * kind of target wants to know (see {@link StartNotifier}). Does not wait
+	 * for the message to be sent.
+	 * 
+	 * @param run
+	 *            The run that has just started.
+	 */
+	void notifyStarted(@Nonnull RemoteRunDelegate run);
+
+	/**
+	 * Decide whether a run that has been asked to start must wait for capacity
+	 * to become available, and if so, put it in the queue of runs waiting to
+	 * start.
+	 * 
+	 * @param run
+	 *            The run that has been asked to start.
+	 * @return A description of where the run is in the queue, or
+	 *         <tt>null</tt> if the run should be started immediately.
+	 * @throws OverloadedException
+	 *             If the run cannot be started and cannot be queued either.
+	 */
+	@Nullable
+	String queueForStart(@Nonnull RemoteRunDelegate run)
+			throws OverloadedException;
+
+	/**
+	 * Take a run out of the queue of runs waiting to start, if it is there.
+	 * 
+	 * @param run
+	 *            The run that is no longer to be started.
+	 */
+	void cancelQueuedStart(@Nonnull RemoteRunDelegate run);
+
 	/**
 	 * @return A reference to the actual factory for remote runs.
 	 */
@@ -6,24 +6,47 @@
 package org.taverna.server.master.worker;
 
 import static java.lang.Integer.parseInt;
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.newSetFromMap;
 import static java.util.UUID.randomUUID;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
 import org.taverna.server.master.common.Status;
+import org.taverna.server.master.exceptions.FilesystemAccessException;
+import org.taverna.server.master.exceptions.OverloadedException;
 import org.taverna.server.master.exceptions.UnknownRunException;
 import org.taverna.server.master.interfaces.Listener;
 import org.taverna.server.master.interfaces.Policy;
@@ -31,6 +54,7 @@ import org.taverna.server.master.interfaces.RunStore;
 import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.notification.NotificationEngine;
 import org.taverna.server.master.notification.NotificationEngine.Message;
+import org.taverna.server.master.utils.TimerWheel;
 import org.taverna.server.master.utils.UsernamePrincipal;
 
 /**
@@ -44,9 +68,30 @@ public class RunDatabase implements RunStore, RunDBSupport {
 	CompletionNotifier backupNotifier;
 	Map<String, CompletionNotifier> typedNotifiers;
 	private NotificationEngine notificationEngine;
+	private QuotaManager quotas;
 	@Autowired
 	private FactoryBean factory;
 	private Map<String, TavernaRun> cache = new HashMap<>();
+	private TimerWheel<String> expirySchedule = new TimerWheel<>(
+			EXPIRY_TICK_MS, currentTimeMillis());
+	private volatile boolean expiryScheduleLoaded;
+	private volatile boolean archiveChecked;
+	private volatile boolean startQueueLoaded;
+	private final Object dispatchLock = new Object();
+	/** Granularity of the expiry schedule, in milliseconds. */
+	private static final long EXPIRY_TICK_MS = 1000;
+	/** How many runs to list from the database at a time. */
+	private static final int LIST_PAGE_SIZE = 100;
+	private int reconnectThreads = 4;
+	private ExecutorService statusCheckPool;
+	private final AtomicBoolean reconnectStarted = new AtomicBoolean();
+	/**
+	 * Whether every run in the database has been loaded into the cache, so
+	 * that the cache can be used to answer questions about all runs.
+	 */
+	private volatile boolean cacheComplete;
+	private final Set<String> removedDuringReconnect = newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
 
 	@Override
 	@Required
@@ -71,17 +116,229 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		this.dao = dao;
 	}
 
+	@Required
+	public void setQuotas(QuotaManager quotas) {
+		this.quotas = quotas;
+	}
+
+	/**
+	 * @param reconnectThreads
+	 *            How many threads to use for talking to workers when
+	 *            reconnecting to runs after a restart and when checking for
+	 *            runs that have finished.
+	 */
+	public void setReconnectThreads(int reconnectThreads) {
+		this.reconnectThreads = reconnectThreads;
+	}
+
+	private synchronized ExecutorService getStatusCheckPool() {
+		if (statusCheckPool == null)
+			statusCheckPool = newFixedThreadPool(reconnectThreads);
+		return statusCheckPool;
+	}
+
+	@PreDestroy
+	synchronized void shutdownStatusCheckPool() {
+		if (statusCheckPool != null)
+			statusCheckPool.shutdownNow();
+		statusCheckPool = null;
+	}
+
+	/**
+	 * Reconnect to all the runs in the database, in the background, so that
+	 * the webapp can answer requests immediately after startup while the
+	 * (potentially slow) process of contacting the workers for all the runs
+	 * that survived a restart is carried out. Started when the webapp starts;
+	 * if the database cannot be read then, it is tried again on each check
+	 * for finished runs. Individual runs are still loaded on demand (and
+	 * kept) if they are asked for before this gets to them.
+	 */
+	@PostConstruct
+	void startReconnecting() {
+		if (!reconnectStarted.compareAndSet(false, true))
+			return;
+		try {
+			getStatusCheckPool().submit(new Runnable() {
+				@Override
+				public void run() {
+					reconnectAll();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	private void reconnectAll() {
+		final long start = currentTimeMillis();
+		prepareArchive();
+		final List<String> ids;
+		try {
+			ids = dao.listRunNames();
+		} catch (RuntimeException e) {
+			log.warn("failed to list runs for reconnection", e);
+			reconnectStarted.set(false);
+			return;
+		}
+		if (ids.isEmpty()) {
+			reconnected(0, 0, start);
+			return;
+		}
+		final AtomicInteger remaining = new AtomicInteger(ids.size());
+		final AtomicInteger failures = new AtomicInteger();
+		try {
+			for (final String id : ids)
+				getStatusCheckPool().submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (!reconnect(id))
+								failures.incrementAndGet();
+						} catch (RuntimeException e) {
+							log.warn("unexpected failure in reconnection of "
+									+ id, e);
+							failures.incrementAndGet();
+						} finally {
+							if (remaining.decrementAndGet() == 0)
+								reconnected(ids.size(), failures.get(), start);
+						}
+					}
+				});
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	private void reconnected(int count, int failures, long start) {
+		cacheComplete = true;
+		removedDuringReconnect.clear();
+		log.info("reconnected " + (count - failures) + " of " + count
+				+ " runs in " + (currentTimeMillis() - start) + "ms");
+	}
+
+	/** @return Whether every run in the database has been reconnected. */
+	boolean isReconnected() {
+		return cacheComplete;
+	}
+
+	private boolean reconnect(String id) {
+		synchronized (cache) {
+			if (cache.containsKey(id))
+				return true;
+		}
+		TavernaRun run = dao.get(id);
+		if (run == null)
+			return false;
+		boolean alive = true;
+		try {
+			run.ping();
+		} catch (UnknownRunException e) {
+			// Keep it anyway; the record lasts until it expires
+			if (log.isDebugEnabled())
+				log.debug("could not contact worker for run " + id, e);
+			alive = false;
+		}
+		remember(id, run);
+		if (alive)
+			measureDiskUsage(run);
+		return alive;
+	}
+
+	/**
+	 * Keep a run that has been loaded from the database, so that it need not
+	 * be loaded (and reconnected) again. Only needed until every run has been
+	 * reconnected, and not done for runs deleted in the meantime.
+	 * 
+	 * @return The run to use: the one already kept, if there is one.
+	 */
+	private TavernaRun remember(String id, TavernaRun run) {
+		synchronized (cache) {
+			TavernaRun cached = cache.get(id);
+			if (cached != null)
+				return cached;
+			if (!cacheComplete && !removedDuringReconnect.contains(id))
+				cache.put(id, run);
+		}
+		return run;
+	}
+
+	private void forget(String id) {
+		synchronized (cache) {
+			cache.remove(id);
+		}
+		quotas.runDestroyed(id);
+		if (!cacheComplete)
+			removedDuringReconnect.add(id);
+	}
+
+	/**
+	 * Move finished runs left in the table of active runs into the archive,
+	 * and record who may see runs not yet in the table of who may see runs.
+	 * Only needs to succeed once.
+	 */
+	private void prepareArchive() {
+		if (!archiveChecked) {
+			try {
+				int n = dao.archiveFinishedRuns();
+				if (n > 0)
+					log.info("archived " + n + " previously finished runs");
+				n = dao.indexUnindexedRuns();
+				if (n > 0)
+					log.info("recorded who may see " + n + " existing runs");
+				archiveChecked = true;
+			} catch (RuntimeException e) {
+				log.warn("failed to archive previously finished runs", e);
+			}
+		}
+	}
+
 	@Override
 	public void checkForFinishNow() {
+		startReconnecting();
+		prepareArchive();
+
 		/*
 		 * Get which runs are actually newly finished; this requires getting the
 		 * candidates from the database and *then* doing the expensive requests
-		 * to the back end to find out the status.
+		 * to the back end to find out the status, which are done in parallel.
 		 */
+		List<Callable<Status>> checks = new ArrayList<>();
+		final List<RemoteRunDelegate> candidates = dao.getPotentiallyNotifiable();
+		for (final RemoteRunDelegate p : candidates)
+			checks.add(new Callable<Status>() {
+				@Override
+				public Status call() {
+					return p.getStatus();
+				}
+			});
 		Map<String, RemoteRunDelegate> notifiable = new HashMap<>();
-		for (RemoteRunDelegate p : dao.getPotentiallyNotifiable())
-			if (p.getStatus() == Status.Finished)
-				notifiable.put(p.getId(), p);
+		Map<String, Boolean> operating = new HashMap<>();
+		boolean complete = true;
+		long checkStart = currentTimeMillis();
+		try {
+			List<Future<Status>> results = getStatusCheckPool().invokeAll(
+					checks, 5, MINUTES);
+			for (int i = 0; i < results.size(); i++)
+				try {
+					RemoteRunDelegate rrd = candidates.get(i);
+					Status s = results.get(i).get();
+					operating.put(rrd.getId(), s == Status.Operating);
+					if (s == Status.Finished)
+						notifiable.put(rrd.getId(), rrd);
+				} catch (ExecutionException e) {
+					log.warn("failed to check status of run", e.getCause());
+					complete = false;
+				} catch (RuntimeException e) {
+					// Timed out; will try again next time
+					complete = false;
+				}
+		} catch (InterruptedException e) {
+			return;
+		}
+		factory.getOperatingRunGauge().reconcile(operating, complete,
+				checkStart);
+		loadStartQueue();
+		dispatchQueuedRuns();
 
 		// Check if there's nothing more to do
 		if (notifiable.isEmpty())
@@ -91,6 +348,15 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		 * Tell the database about the ones we've got.
 		 */
 		dao.markFinished(notifiable.keySet());
+		for (RemoteRunDelegate rrd : notifiable.values())
+			rrd.statusChanged(Status.Finished);
+		for (final RemoteRunDelegate rrd : notifiable.values())
+			getStatusCheckPool().submit(new Runnable() {
+				@Override
+				public void run() {
+					measureDiskUsage(rrd);
+				}
+			});
 
 		/*
 		 * Send out the notifications. The notification addresses are stored in
@@ -108,19 +374,243 @@ public class RunDatabase implements RunStore, RunDBSupport {
 				}
 	}
 
-	@Override
-	public void cleanNow() {
-		List<String> cleaned;
+	/**
+	 * Populate the queue of runs waiting to start from the database, if that
+	 * has not already been done (i.e., after a restart).
+	 */
+	private void loadStartQueue() {
+		if (startQueueLoaded)
+			return;
+		try {
+			StartQueue queue = factory.getStartQueue();
+			Map<String, String> queued = dao.listQueued();
+			for (Entry<String, String> e : queued.entrySet())
+				queue.add(e.getKey(), e.getValue());
+			startQueueLoaded = true;
+			if (!queued.isEmpty())
+				log.info("restored " + queued.size()
+						+ " runs to the queue of runs waiting to start");
+		} catch (RuntimeException e) {
+			log.warn("failed to load queue of runs waiting to start", e);
+		}
+	}
+
+	/**
+	 * Start as many of the runs waiting in the start queue as there is
+	 * capacity for, in the order that the queue releases them.
+	 */
+	private void dispatchQueuedRuns() {
+		StartQueue queue = factory.getStartQueue();
+		Set<String> operating = factory.getOperatingRunGauge()
+				.getOperatingRuns();
+		// Look up the owners' limits before taking any locks
+		StartQueue.OwnerFilter withinQuota = quotas.operatingFilter(
+				queue.getOwners(), operating);
+		synchronized (dispatchLock) {
+			List<RemoteRunDelegate> failed = new ArrayList<>();
+			while (queue.getSize() > 0) {
+				if (!factory.isAllowingRunsToStart()
+						&& !preempt(queue, withinQuota, operating))
+					break;
+				String id = queue.next(withinQuota);
+				if (id == null)
+					break;
+				TavernaRun run = get(id);
+				if (!(run instanceof RemoteRunDelegate))
+					continue;
+				RemoteRunDelegate rrd = (RemoteRunDelegate) run;
+				Date queuedAt = rrd.queued;
+				try {
+					rrd.startQueued();
+					// Our copy of the gauge must count it against its owner
+					operating.add(id);
+				} catch (Exception e) {
+					log.warn("failed to start queued run " + id
+							+ "; will try again later", e);
+					rrd.queued = (queuedAt != null ? queuedAt : new Date());
+					failed.add(rrd);
+				}
+			}
+			/*
+			 * Put the runs that failed to start back at the front of their
+			 * owners' queues; done after the loop so that we do not spin on
+			 * them.
+			 */
+			for (int i = failed.size() - 1; i >= 0; i--) {
+				RemoteRunDelegate rrd = failed.get(i);
+				queue.addFirst(rrd.id, rrd.getSecurityContext().getOwner()
+						.getName());
+				try {
+					flushToDisk(rrd);
+				} catch (RuntimeException e) {
+					log.warn("failed to record that run " + rrd.id
+							+ " is still queued", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Suspend an operating run to make room for the next queued run, if that
+	 * belongs to a user with a higher priority than the owner of the operating
+	 * run. The suspended run is put back at the front of its owner's queue so
+	 * that it resumes when there is room again.
+	 * 
+	 * @return Whether a run was suspended.
+	 */
+	private boolean preempt(StartQueue queue, StartQueue.OwnerFilter filter,
+			Set<String> operating) {
+		if (!queue.isPreemptive())
+			return false;
+		Map<String, String> owners = new HashMap<>();
+		for (String id : operating) {
+			String owner = quotas.getOwner(id);
+			if (owner != null)
+				owners.put(id, owner);
+		}
+		String victim = queue.chooseVictim(owners, filter);
+		if (victim == null)
+			return false;
+		TavernaRun run = get(victim);
+		if (!(run instanceof RemoteRunDelegate))
+			return false;
+		RemoteRunDelegate rrd = (RemoteRunDelegate) run;
 		try {
-			cleaned = dao.doClean();
+			rrd.suspend();
 		} catch (Exception e) {
-			log.warn("failure during deletion of expired runs", e);
+			log.warn("failed to suspend run " + victim, e);
+			return false;
+		}
+		operating.remove(victim);
+		String owner = owners.get(victim);
+		rrd.queued = queuedAheadOf(queue.peek(owner));
+		try {
+			flushToDisk(rrd);
+		} catch (RuntimeException e) {
+			log.warn("failed to record that run " + victim + " is queued", e);
+		}
+		queue.addFirst(victim, owner);
+		return true;
+	}
+
+	/**
+	 * Work out what time to record a run as having been queued at so that,
+	 * when the queue is rebuilt after a restart, the run comes before another.
+	 * 
+	 * @param id
+	 *            The ID of the run to go ahead of, or <tt>null</tt> if there is
+	 *            none.
+	 * @return The time.
+	 */
+	private Date queuedAheadOf(@Nullable String id) {
+		long now = currentTimeMillis();
+		if (id != null) {
+			TavernaRun next = get(id);
+			if (next instanceof RemoteRunDelegate) {
+				Date queued = ((RemoteRunDelegate) next).queued;
+				if (queued != null && queued.getTime() <= now)
+					return new Date(queued.getTime() - 1);
+			}
+		}
+		return new Date(now);
+	}
+
+	private void triggerDispatch() {
+		if (factory.getStartQueue().getSize() == 0)
 			return;
+		getStatusCheckPool().submit(new Runnable() {
+			@Override
+			public void run() {
+				dispatchQueuedRuns();
+			}
+		});
+	}
+
+	@Override
+	public String queueForStart(RemoteRunDelegate run)
+			throws OverloadedException {
+		StartQueue queue = factory.getStartQueue();
+		boolean othersWaiting = queue.isEnabled() && queue.getSize() > 0;
+		String owner = run.getSecurityContext().getOwner().getName();
+		if (run.queued == null
+				&& !othersWaiting
+				&& quotas.mayStartRun(owner, factory.getOperatingRunGauge()
+						.getOperatingRuns()) && factory.isAllowingRunsToStart())
+			return null;
+		if (run.queued == null) {
+			if (!queue.canAccept())
+				throw new OverloadedException();
+			run.queued = new Date();
+			flushToDisk(run);
 		}
-		synchronized (cache) {
-			for (String id : cleaned)
-				cache.remove(id);
+		int position = queue.add(run.id, owner);
+		if (factory.isAllowingRunsToStart() || queue.isPreemptive())
+			triggerDispatch();
+		return "queued to start at position " + position;
+	}
+
+	@Override
+	public void cancelQueuedStart(RemoteRunDelegate run) {
+		if (factory.getStartQueue().remove(run.id) || run.queued != null) {
+			run.queued = null;
+			flushToDisk(run);
+		}
+	}
+
+	@Override
+	public void cleanNow() {
+		List<String> cleaned;
+		if (loadExpirySchedule()) {
+			long now = currentTimeMillis();
+			List<String> due = expirySchedule.advance(now);
+			if (due.isEmpty())
+				return;
+			Map<String, Date> deferred = new HashMap<>();
+			try {
+				cleaned = dao.doClean(due, deferred);
+			} catch (Exception e) {
+				log.warn("failure during deletion of expired runs", e);
+				// Try again on the next pass
+				for (String id : due)
+					expirySchedule.schedule(id, now);
+				return;
+			}
+			// Runs whose expiry was extended behind the schedule's back
+			for (Entry<String, Date> e : deferred.entrySet())
+				expirySchedule.schedule(e.getKey(), e.getValue().getTime());
+		} else {
+			try {
+				cleaned = dao.doClean();
+			} catch (Exception e) {
+				log.warn("failure during deletion of expired runs", e);
+				return;
+			}
 		}
+		for (String id : cleaned)
+			forget(id);
+	}
+
+	/**
+	 * Populate the expiry schedule from the database, if that has not already
+	 * been done. Runs registered or altered before this happens are scheduled
+	 * directly, so this only needs to succeed once.
+	 * 
+	 * @return Whether the schedule is usable.
+	 */
+	private boolean loadExpirySchedule() {
+		if (expiryScheduleLoaded)
+			return true;
+		try {
+			for (Entry<String, Date> e : dao.listExpiries().entrySet())
+				expirySchedule.schedule(e.getKey(), e.getValue().getTime());
+			expiryScheduleLoaded = true;
+			if (log.isDebugEnabled())
+				log.debug("loaded expiry schedule for "
+						+ expirySchedule.size() + " runs");
+		} catch (RuntimeException e) {
+			log.warn("failed to load expiry schedule; scanning instead", e);
+		}
+		return expiryScheduleLoaded;
 	}
 
 	@Override
@@ -137,6 +627,18 @@ public class RunDatabase implements RunStore, RunDBSupport {
 					"unexpected problem when persisting run record in database",
 					e);
 		}
+		expirySchedule.schedule(run.getId(), run.getExpiry().getTime());
+	}
+
+	@Override
+	public void flushReadersToDisk(RemoteRunDelegate run) {
+		try {
+			dao.flushReadersToDisk(run);
+		} catch (IOException e) {
+			throw new RuntimeException(
+					"unexpected problem when persisting run record in database",
+					e);
+		}
 	}
 
 	@Override
@@ -149,6 +651,48 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		return dao.listRunNames();
 	}
 
+	@Override
+	public Map<String, String> listRunOwners() {
+		return dao.listOwners();
+	}
+
+	@Override
+	public void measureDiskUsageNow() {
+		try {
+			for (String id : factory.getOperatingRunGauge().getOperatingRuns()) {
+				final TavernaRun run = get(id);
+				if (run != null)
+					getStatusCheckPool().submit(new Runnable() {
+						@Override
+						public void run() {
+							measureDiskUsage(run);
+						}
+					});
+			}
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	/**
+	 * Measure how much disk space a run's working directory occupies, and tell
+	 * the quota manager. The worker adds up the sizes itself, so this is one
+	 * remote call however many files the run has.
+	 * 
+	 * @param run
+	 *            The run to measure.
+	 */
+	private void measureDiskUsage(TavernaRun run) {
+		try {
+			quotas.setDiskUsage(run.getId(), run.getWorkingDirectory()
+					.getTotalSize());
+		} catch (FilesystemAccessException | RuntimeException e) {
+			if (log.isDebugEnabled())
+				log.debug("failed to measure working directory of run "
+						+ run.getId(), e);
+		}
+	}
+
 	@Nullable
 	private TavernaRun get(String uuid) {
 		TavernaRun run = null;
@@ -162,10 +706,13 @@ public class RunDatabase implements RunStore, RunDBSupport {
 			if (log.isDebugEnabled())
 				log.debug("stale mapping in cache?", e);
 			// Don't need to flush the cache; this happens when cleaning anyway
-			run = null;
+			return dao.get(uuid);
 		}
-		if (run == null)
+		if (run == null) {
 			run = dao.get(uuid);
+			if (run != null)
+				run = remember(uuid, run);
+		}
 		return run;
 	}
 
@@ -197,17 +744,37 @@ public class RunDatabase implements RunStore, RunDBSupport {
 
 	@Override
 	public Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p) {
-		synchronized (cache) {
-			Map<String, TavernaRun> cached = new HashMap<>();
-			for (Entry<String, TavernaRun> e : cache.entrySet()) {
-				TavernaRun r = e.getValue();
-				if (p.permitAccess(user, r))
-					cached.put(e.getKey(), r);
-			}
-			if (!cached.isEmpty())
+		if (cacheComplete)
+			synchronized (cache) {
+				Map<String, TavernaRun> cached = new HashMap<>();
+				for (Entry<String, TavernaRun> e : cache.entrySet()) {
+					TavernaRun r = e.getValue();
+					if (p.permitAccess(user, r))
+						cached.put(e.getKey(), r);
+				}
 				return cached;
+			}
+		Map<String, TavernaRun> result = new LinkedHashMap<>();
+		String name = (user == null ? null : user.getName());
+		for (int first = 0;; first += LIST_PAGE_SIZE) {
+			List<String> ids = dao.listRunNames(name, first, LIST_PAGE_SIZE);
+			for (String id : ids) {
+				TavernaRun run;
+				synchronized (cache) {
+					run = cache.get(id);
+				}
+				if (run == null) {
+					run = dao.get(id);
+					if (run != null)
+						run = remember(id, run);
+				}
+				if (run != null && (user == null || p.permitAccess(user, run)))
+					result.put(id, run);
+			}
+			if (ids.size() < LIST_PAGE_SIZE)
+				break;
 		}
-		return dao.listRuns(user, p);
+		return result;
 	}
 
 	private void logLength(String message, Object obj) {
@@ -243,16 +810,24 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		synchronized (cache) {
 			cache.put(rrd.getId(), run);
 		}
+		expirySchedule.schedule(rrd.getId(), rrd.getExpiry().getTime());
+		quotas.runCreated(rrd.getId(), rrd.getSecurityContext().getOwner()
+				.getName());
+		if (rrd.secContext instanceof SecurityContextDelegate)
+			((SecurityContextDelegate) rrd.secContext).prepareSecurity();
 		return rrd.getId();
 	}
 
 	@Override
 	public void unregisterRun(String uuid) {
 		try {
-			if (dao.unpersistRun(uuid))
-				synchronized (cache) {
-					cache.remove(uuid);
-				}
+			if (dao.unpersistRun(uuid)) {
+				forget(uuid);
+				expirySchedule.cancel(uuid);
+				factory.getOperatingRunGauge().stopped(uuid);
+				factory.getStartQueue().remove(uuid);
+				triggerDispatch();
+			}
 		} catch (RuntimeException e) {
 			if (log.isDebugEnabled())
 				log.debug("problem persisting the deletion of the run " + uuid,
@@ -260,6 +835,46 @@ public class RunDatabase implements RunStore, RunDBSupport {
 		}
 	}
 
+	@Override
+	public void notifyStarted(@Nonnull final RemoteRunDelegate run) {
+		final String name = run.id;
+		String to = null;
+		for (Listener l : run.getListeners())
+			if (l.getName().equals("io")) {
+				try {
+					to = l.getProperty("notificationAddress");
+				} catch (Exception e) {
+					log.warn("failed to get notification address of run "
+							+ name, e);
+				}
+				break;
+			}
+		if (to == null || to.trim().isEmpty())
+			return;
+		String scheme;
+		try {
+			scheme = new URI(to.trim()).getScheme();
+		} catch (URISyntaxException e) {
+			return;
+		}
+		CompletionNotifier n = (typedNotifiers == null ? null : typedNotifiers
+				.get(scheme));
+		if (!(n instanceof StartNotifier))
+			return;
+		final StartNotifier notifier = (StartNotifier) n;
+		notificationEngine.dispatchToTarget(run, to, new Message() {
+			@Override
+			public String getContent(String type) {
+				return notifier.makeStartMessage(name, run);
+			}
+
+			@Override
+			public String getTitle(String type) {
+				return notifier.makeStartSubject(name, run);
+			}
+		});
+	}
+
 	/**
 	 * Process the event that a run has finished.
 	 * 
@@ -9,8 +9,10 @@ import static org.taverna.server.master.worker.RunConnection.toDBform;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -22,11 +24,9 @@ import javax.jdo.annotations.PersistenceAware;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Required;
-import org.taverna.server.master.interfaces.Policy;
 import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.utils.CallTimeLogger.PerfLogged;
 import org.taverna.server.master.utils.JDOSupport;
-import org.taverna.server.master.utils.UsernamePrincipal;
 
 /**
  * This handles storing runs, interfacing with the underlying state engine as
@@ -42,12 +42,24 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 
 	private Log log = LogFactory.getLog("Taverna.Server.Worker.RunDB");
 	private RunDatabase facade;
+	private RunArchiveDAO archive;
+	private RunAccessDAO access;
 
 	@Required
 	public void setFacade(RunDatabase facade) {
 		this.facade = facade;
 	}
 
+	@Required
+	public void setArchive(RunArchiveDAO archive) {
+		this.archive = archive;
+	}
+
+	@Required
+	public void setAccess(RunAccessDAO access) {
+		this.access = access;
+	}
+
 	// -=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=-=
 
 	@SuppressWarnings("unchecked")
@@ -58,13 +70,16 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	}
 
 	/**
-	 * @return The number of workflow runs in the database.
+	 * @return The number of workflow runs in the database, including those
+	 *         that have finished and been archived, as the quota ledger counts
+	 *         them. Counted with a single query on the table of who may see
+	 *         each run.
 	 */
 	@WithinSingleTransaction
 	public int countRuns() {
 		if (log.isDebugEnabled())
 			log.debug("counting the number of runs");
-		return (Integer) namedQuery("count").execute();
+		return access.count();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -72,11 +87,31 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		return (List<String>) namedQuery("timedout").execute();
 	}
 
+	@SuppressWarnings("unchecked")
+	private List<Object[]> expiries() {
+		return (List<Object[]>) namedQuery("expiries").execute();
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object[]> owners() {
+		return (List<Object[]>) namedQuery("owners").execute();
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object[]> queuedRuns() {
+		return (List<Object[]>) namedQuery("queued").execute();
+	}
+
 	@SuppressWarnings("unchecked")
 	private List<String> unterminatedRuns() {
 		return (List<String>) namedQuery("unterminated").execute();
 	}
 
+	@SuppressWarnings("unchecked")
+	private List<String> finishedRuns() {
+		return (List<String>) namedQuery("finished").execute();
+	}
+
 	@Nullable
 	private RunConnection pickRun(@Nonnull String name) {
 		if (log.isDebugEnabled())
@@ -92,17 +127,40 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		}
 	}
 
+	@Nullable
+	private RemoteRunDelegate pickAnyRun(@Nonnull String name)
+			throws Exception {
+		RunConnection rc = getById(name);
+		if (rc != null)
+			return rc.fromDBform(facade);
+		ArchivedRunConnection arc = archive.pick(name);
+		if (arc != null)
+			return arc.fromDBform(facade);
+		if (log.isDebugEnabled())
+			log.debug("no result for " + name);
+		return null;
+	}
+
 	@Nullable
 	@WithinSingleTransaction
 	public String getSecurityToken(@Nonnull String name) {
 		RunConnection rc = getById(name);
-		if (rc == null)
-			return null;
-		return rc.getSecurityToken();
+		if (rc != null)
+			return rc.getSecurityToken();
+		ArchivedRunConnection arc = archive.pick(name);
+		if (arc != null)
+			return arc.getSecurityToken();
+		return null;
 	}
 
 	private void persist(@Nonnull RemoteRunDelegate rrd) throws IOException {
 		persist(toDBform(rrd));
+		access.add(rrd.id, owner(rrd), rrd.getReaders(),
+				rrd.getCreationTimestamp());
+	}
+
+	private static String owner(@Nonnull RemoteRunDelegate rrd) {
+		return rrd.getSecurityContext().getOwner().getName();
 	}
 
 	@Nonnull
@@ -137,36 +195,33 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	@Nullable
 	@WithinSingleTransaction
 	public TavernaRun get(String name) {
+		if (log.isDebugEnabled())
+			log.debug("fetching the run called " + name);
 		try {
-			RunConnection rc = pickRun(name);
-			return (rc == null) ? null : rc.fromDBform(facade);
+			return pickAnyRun(name);
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
 	/**
-	 * Get the runs that a user can read things from.
+	 * Get part of the list of runs that a user can see, in the order that
+	 * they were created. Found with a single query on the table of who may
+	 * see each run, so no run is loaded.
 	 * 
 	 * @param user
-	 *            Who is asking?
-	 * @param p
-	 *            The policy that determines what they can see.
-	 * @return A mapping from run IDs to run handles.
+	 *            Who is asking, or <tt>null</tt> for all runs.
+	 * @param first
+	 *            How many runs to skip.
+	 * @param limit
+	 *            The maximum number of runs to list.
+	 * @return The IDs of the runs, active or archived.
 	 */
 	@Nonnull
 	@WithinSingleTransaction
-	public Map<String, TavernaRun> listRuns(UsernamePrincipal user, Policy p) {
-		Map<String, TavernaRun> result = new HashMap<>();
-		for (String id : nameRuns())
-			try {
-				RemoteRunDelegate rrd = pickRun(id).fromDBform(facade);
-				if (p.permitAccess(user, rrd))
-					result.put(id, rrd);
-			} catch (Exception e) {
-				continue;
-			}
-		return result;
+	public List<String> listRunNames(@Nullable String user, int first,
+			int limit) {
+		return access.visibleTo(user, first, limit);
 	}
 
 	/**
@@ -179,6 +234,9 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		for (RunConnection rc : allRuns())
 			if (rc.getId() != null)
 				runNames.add(rc.getId());
+		for (String id : archive.names())
+			if (id != null)
+				runNames.add(id);
 		return runNames;
 	}
 
@@ -195,6 +253,11 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 				continue;
 			return rc.fromDBform(facade);
 		}
+		for (String id : archive.names()) {
+			ArchivedRunConnection arc = archive.pick(id);
+			if (arc != null)
+				return arc.fromDBform(facade);
+		}
 		return null;
 	}
 
@@ -221,10 +284,20 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	 */
 	@WithinSingleTransaction
 	public boolean unpersistRun(String name) {
-		RunConnection rc = pickRun(name);
-		if (rc != null)
+		RunConnection rc = getById(name);
+		if (rc != null) {
 			delete(rc);
-		return rc != null;
+			access.remove(name);
+			return true;
+		}
+		ArchivedRunConnection arc = archive.pick(name);
+		if (arc != null) {
+			archive.remove(arc);
+			access.remove(name);
+			return true;
+		}
+		log.warn("no result for " + name);
+		return false;
 	}
 
 	/**
@@ -237,11 +310,40 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	 */
 	@WithinSingleTransaction
 	public void flushToDisk(@Nonnull RemoteRunDelegate run) throws IOException {
-		getById(run.id).makeChanges(run);
+		flush(run);
 	}
 
 	/**
-	 * Remove all workflow runs that have expired.
+	 * Ensure that the given workflow run is synchronized with the database,
+	 * after its list of readers has changed; the record of who may see the
+	 * run is brought up to date too. Other changes to a run do not touch
+	 * that record, so they use {@link #flushToDisk(RemoteRunDelegate)}.
+	 * 
+	 * @param run
+	 *            The run to synchronise.
+	 * @throws IOException
+	 *             If serialization of anything fails.
+	 */
+	@WithinSingleTransaction
+	public void flushReadersToDisk(@Nonnull RemoteRunDelegate run)
+			throws IOException {
+		flush(run);
+		access.update(run.id, owner(run), run.getReaders(),
+				run.getCreationTimestamp());
+	}
+
+	private void flush(@Nonnull RemoteRunDelegate run) throws IOException {
+		RunConnection rc = getById(run.id);
+		if (rc != null)
+			rc.makeChanges(run);
+		else
+			archive.pick(run.id).makeChanges(run);
+	}
+
+	/**
+	 * Remove all workflow runs that have expired. This scans the whole table
+	 * (via the index on the expiry column), so it is only used as a fallback
+	 * when the expiry schedule is not available.
 	 * 
 	 * @return The ids of the deleted runs.
 	 */
@@ -251,21 +353,125 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 	public List<String> doClean() {
 		if (log.isDebugEnabled())
 			log.debug("deleting runs that timed out before " + new Date());
-		List<String> toDelete = expiredRuns();
+		List<String> toDelete = new ArrayList<>(expiredRuns());
+		toDelete.addAll(archive.expired());
 		if (log.isDebugEnabled())
 			log.debug("found " + toDelete.size() + " runs to delete");
-		for (String id : toDelete) {
+		return deleteExpired(toDelete, null);
+	}
+
+	/**
+	 * Remove the given workflow runs, provided they have actually expired.
+	 * 
+	 * @param candidates
+	 *            The ids of the runs that are believed to have expired.
+	 * @param deferred
+	 *            Where to put the ids and current expiry times of those runs
+	 *            whose expiry has been moved later, and which so have not
+	 *            been deleted.
+	 * @return The ids of the deleted runs.
+	 */
+	@Nonnull
+	@PerfLogged
+	@WithinSingleTransaction
+	public List<String> doClean(@Nonnull Collection<String> candidates,
+			@Nonnull Map<String, Date> deferred) {
+		if (log.isDebugEnabled())
+			log.debug("deleting " + candidates.size()
+					+ " runs scheduled to time out before " + new Date());
+		return deleteExpired(candidates, deferred);
+	}
+
+	private List<String> deleteExpired(Collection<String> ids,
+			@Nullable Map<String, Date> deferred) {
+		Date now = new Date();
+		List<String> deleted = new ArrayList<>();
+		for (String id : ids) {
 			RunConnection rc = getById(id);
+			ArchivedRunConnection arc = null;
+			RemoteRunDelegate rrd = null;
 			try {
-				rc.fromDBform(facade).run.destroy();
+				if (rc != null) {
+					if (rc.getExpiry().after(now)) {
+						if (deferred != null)
+							deferred.put(id, rc.getExpiry());
+						continue;
+					}
+					rrd = rc.fromDBform(facade);
+				} else {
+					arc = archive.pick(id);
+					if (arc == null)
+						continue;
+					if (arc.getExpiry().after(now)) {
+						if (deferred != null)
+							deferred.put(id, arc.getExpiry());
+						continue;
+					}
+					rrd = arc.fromDBform(facade);
+				}
+				rrd.remote().destroy();
 			} catch (Exception e) {
 				if (log.isDebugEnabled())
 					log.debug("failed to delete execution resource for " + id,
 							e);
 			}
-			delete(rc);
+			if (rc != null)
+				delete(rc);
+			else
+				archive.remove(arc);
+			access.remove(id);
+			deleted.add(id);
 		}
-		return toDelete;
+		return deleted;
+	}
+
+	/**
+	 * @return The expiry time of every workflow run, in order of expiry.
+	 */
+	@Nonnull
+	@PerfLogged
+	@WithinSingleTransaction
+	public Map<String, Date> listExpiries() {
+		Map<String, Date> result = new LinkedHashMap<>();
+		for (Object[] row : expiries())
+			if (row[0] != null && row[1] != null)
+				result.put((String) row[0], (Date) row[1]);
+		for (Object[] row : archive.expiries())
+			if (row[0] != null && row[1] != null)
+				result.put((String) row[0], (Date) row[1]);
+		return result;
+	}
+
+	/**
+	 * @return The owner of every workflow run, including those that have
+	 *         finished and been archived.
+	 */
+	@Nonnull
+	@PerfLogged
+	@WithinSingleTransaction
+	public Map<String, String> listOwners() {
+		Map<String, String> result = new HashMap<>();
+		for (Object[] row : owners())
+			if (row[0] != null && row[1] != null)
+				result.put((String) row[0], (String) row[1]);
+		for (Object[] row : archive.owners())
+			if (row[0] != null && row[1] != null)
+				result.put((String) row[0], (String) row[1]);
+		return result;
+	}
+
+	/**
+	 * @return The owner of every workflow run that is queued to start, in the
+	 *         order that they were queued.
+	 */
+	@Nonnull
+	@WithinSingleTransaction
+	public Map<String, String> listQueued() {
+		Map<String, String> result = new LinkedHashMap<>();
+		for (Object[] row : queuedRuns())
+			if (row[0] != null && row[1] != null)
+				result.put((String) row[0], (String) row[1]);
+		return result;
 	}
 
 	/**
@@ -288,6 +494,13 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 		return toNotify;
 	}
 
+	/**
+	 * Record that some workflow runs have finished, moving them into the
+	 * archive so that they no longer burden the queries on active runs.
+	 * 
+	 * @param terminated
+	 *            The IDs of the runs that have finished.
+	 */
 	@PerfLogged
 	@WithinSingleTransaction
 	public void markFinished(@Nonnull Set<String> terminated) {
@@ -296,11 +509,73 @@ public class RunDatabaseDAO extends JDOSupport<RunConnection> {
 			if (rc == null)
 				continue;
 			try {
-				rc.fromDBform(facade).doneTransitionToFinished = true;
-				rc.setFinished(true);
+				archiveRun(rc);
 			} catch (Exception e) {
 				log.warn("failed to note termination", e);
 			}
 		}
 	}
+
+	/**
+	 * Move any finished runs that are still in the table of active runs into
+	 * the archive. Only needed for databases that were populated before
+	 * finished runs were archived.
+	 * 
+	 * @return The number of runs archived.
+	 */
+	@PerfLogged
+	@WithinSingleTransaction
+	public int archiveFinishedRuns() {
+		int count = 0;
+		for (String id : finishedRuns()) {
+			RunConnection rc = getById(id);
+			if (rc == null)
+				continue;
+			try {
+				archiveRun(rc);
+				count++;
+			} catch (Exception e) {
+				log.warn("failed to archive finished run " + id, e);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Record who may see any runs that are not yet in the table used for
+	 * listing and counting runs. Only needed for databases that were populated
+	 * before that table existed.
+	 * 
+	 * @return The number of runs added to the table.
+	 */
+	@PerfLogged
+	@WithinSingleTransaction
+	public int indexUnindexedRuns() {
+		Set<String> indexed = access.indexed();
+		List<String> ids = new ArrayList<>(nameRuns());
+		ids.addAll(archive.names());
+		int count = 0;
+		for (String id : ids) {
+			if (id == null || indexed.contains(id))
+				continue;
+			try {
+				RemoteRunDelegate rrd = pickAnyRun(id);
+				if (rrd == null)
+					continue;
+				access.add(id, owner(rrd), rrd.getReaders(),
+						rrd.getCreationTimestamp());
+				count++;
+			} catch (Exception e) {
+				log.warn("failed to index run " + id, e);
+			}
+		}
+		return count;
+	}
+
+	private void archiveRun(@Nonnull RunConnection rc) throws Exception {
+		RemoteRunDelegate rrd = rc.fromDBform(facade);
+		rrd.doneTransitionToFinished = true;
+		archive.archive(rrd, rc.getSecurityToken());
+		delete(rc);
+	}
 }
@@ -18,6 +18,7 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.taverna.server.master.factories.ConfigurableRunFactory;
+import org.taverna.server.master.interfaces.TavernaRun;
 import org.taverna.server.master.localworker.LocalWorkerState;
 
 @ManagedResource(objectName = JMX_ROOT + "Factory", description = "The factory for runs.")
@@ -26,6 +27,9 @@ public abstract class RunFactoryConfiguration implements ConfigurableRunFactory
 	protected LocalWorkerState state;
 	protected RunDBSupport runDB;
 	private int totalRuns = 0;
+	private final OperatingRunGauge operatingGauge = new OperatingRunGauge();
+	private StartQueue startQueue;
+	private AdaptiveOperatingLimit adaptiveLimit;
 
 	@PreDestroy
 	void closeLog() {
@@ -44,6 +48,16 @@ public abstract class RunFactoryConfiguration implements ConfigurableRunFactory
 		this.runDB = runDB;
 	}
 
+	@Autowired(required = true)
+	void setStartQueue(StartQueue startQueue) {
+		this.startQueue = startQueue;
+	}
+
+	@Autowired(required = true)
+	void setAdaptiveLimit(AdaptiveOperatingLimit adaptiveLimit) {
+		this.adaptiveLimit = adaptiveLimit;
+	}
+
 	/**
 	 * Drop any current references to the registry of runs, and kill off that
 	 * process.
@@ -67,13 +81,29 @@ public abstract class RunFactoryConfiguration implements ConfigurableRunFactory
 	@ManagedAttribute(description = "Whether it is allowed to start a run executing.", currencyTimeLimit = 30)
 	public final boolean isAllowingRunsToStart() {
 		try {
-			return state.getOperatingLimit() > getOperatingCount();
+			return adaptiveLimit.getEffectiveLimit() > getOperatingCount();
 		} catch (Exception e) {
 			log.info("failed to get operating run count", e);
 			return false;
 		}
 	}
 
+	@Override
+	@ManagedAttribute(description = "Whether it is allowed to ask for a run to start executing.", currencyTimeLimit = 30)
+	public final boolean isAcceptingStartRequests() {
+		return startQueue.canAccept() || isAllowingRunsToStart();
+	}
+
+	@Override
+	public final int getStartQueuePosition(TavernaRun run) {
+		return startQueue.position(run.getId());
+	}
+
+	@Override
+	public final int getStartRetryDelay(int position) {
+		return startQueue.retryAfter(position);
+	}
+
 	@Override
 	@ManagedAttribute(description = "The host holding the RMI registry to communicate via.")
 	public final String getRegistryHost() {
@@ -368,6 +398,24 @@ public abstract class RunFactoryConfiguration implements ConfigurableRunFactory
 		return state.getOperatingLimit();
 	}
 
+	@Override
+	@ManagedAttribute(description = "The maximum number of simultaneous operating runs currently permitted, given how busy the host is.", currencyTimeLimit = 10)
+	public final int getEffectiveOperatingLimit() {
+		return adaptiveLimit.getEffectiveLimit();
+	}
+
+	@Override
+	@ManagedAttribute(description = "The lowest that the maximum number of simultaneous operating runs may be reduced to when the host is busy.")
+	public final void setMinimumOperatingLimit(int minimum) {
+		adaptiveLimit.setMinimum(minimum);
+	}
+
+	@Override
+	@ManagedAttribute(description = "The lowest that the maximum number of simultaneous operating runs may be reduced to when the host is busy.")
+	public final int getMinimumOperatingLimit() {
+		return adaptiveLimit.getMinimum();
+	}
+
 	/**
 	 * @return A count of the number of runs believed to actually be in the
 	 *         {@linkplain uk.org.taverna.server.master.common.Status#Operating
@@ -378,9 +426,27 @@ public abstract class RunFactoryConfiguration implements ConfigurableRunFactory
 	@Override
 	@ManagedMetric(description = "How many workflow runs are currently actually executing.", currencyTimeLimit = 10, metricType = GAUGE, category = "throughput")
 	public final int getOperatingCount() throws Exception {
+		if (operatingGauge.isSynchronized())
+			return operatingGauge.count();
 		return operatingCount();
 	}
 
+	/**
+	 * @return The tracker of which runs are operating. Used in preference to
+	 *         asking the workers once it has been synchronized with them.
+	 */
+	public final OperatingRunGauge getOperatingRunGauge() {
+		return operatingGauge;
+	}
+
+	/**
+	 * @return The queue of runs waiting for there to be capacity to start
+	 *         them.
+	 */
+	public final StartQueue getStartQueue() {
+		return startQueue;
+	}
+
 	@Override
 	@ManagedAttribute(description="Whether to tell a workflow to generate provenance bundles by default.")
 	public final void setGenerateProvenance(boolean genProv) {
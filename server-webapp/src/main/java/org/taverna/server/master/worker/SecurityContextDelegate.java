@@ -6,7 +6,9 @@
 package org.taverna.server.master.worker;
 
 import static java.lang.String.format;
+import static java.lang.System.currentTimeMillis;
 import static java.util.Arrays.fill;
+import static java.util.Collections.newSetFromMap;
 import static java.util.UUID.randomUUID;
 import static org.taverna.server.master.defaults.Default.CERTIFICATE_FIELD_NAMES;
 import static org.taverna.server.master.defaults.Default.CERTIFICATE_TYPE;
@@ -29,6 +31,8 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -66,10 +70,21 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	private final List<Trust> trusted = new ArrayList<>();
 	private final RemoteRunDelegate run;
 	private final Object lock = new Object();
+	/** Held while building and transferring keystores. */
+	private final Object conveyLock = new Object();
 	final SecurityContextFactory factory;
+	/** Count of changes to the credentials and trusts. */
+	private int version;
+	/** Which version the prepared stores hold. */
+	private int preparedVersion = -1;
+	private boolean preparationPending;
+	private boolean conveyed;
+	/** Guarded by the {@link #conveyLock}. */
+	private transient PreparedStores prepared;
 
 	private transient Keystore keystore;
 	private transient Map<URI, String> uriToAliasMap;
+	private transient Map<Credential, String> keyAliases;
 
 	/**
 	 * Initialise the context delegate.
@@ -132,7 +147,9 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 			else
 				credentials.add(toAdd);
 			flushToDB();
+			version++;
 		}
+		prepareSecurity();
 	}
 
 	@Override
@@ -140,7 +157,9 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 		synchronized (lock) {
 			credentials.remove(toDelete);
 			flushToDB();
+			version++;
 		}
+		prepareSecurity();
 	}
 
 	@Override
@@ -159,7 +178,9 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 			else
 				trusted.add(toAdd);
 			flushToDB();
+			version++;
 		}
+		prepareSecurity();
 	}
 
 	@Override
@@ -167,7 +188,9 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 		synchronized (lock) {
 			trusted.remove(toDelete);
 			flushToDB();
+			version++;
 		}
+		prepareSecurity();
 	}
 
 	@Override
@@ -262,8 +285,131 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	}
 
 	/**
-	 * Builds and transfers a keystore with suitable credentials to the back-end
-	 * workflow execution engine.
+	 * Arrange for the keystore and truststore of the run to be brought up to
+	 * date in the background, so that {@link #conveySecurity()} only has to
+	 * transfer them when the run is started. Called whenever the credentials or
+	 * trusts change; only the entries that changed are added to or removed from
+	 * the stores, and a burst of changes is coalesced into one update. Nothing
+	 * is sent to the worker until the run is started.
+	 */
+	public void prepareSecurity() {
+		synchronized (lock) {
+			if (preparationPending || conveyed)
+				return;
+			preparationPending = true;
+		}
+		try {
+			factory.submitPreparation(new Runnable() {
+				@Override
+				public void run() {
+					prepare();
+				}
+			});
+		} catch (RuntimeException e) {
+			// Pool shut down or full; conveySecurity() will do the work
+			synchronized (lock) {
+				preparationPending = false;
+			}
+		}
+	}
+
+	private void prepare() {
+		synchronized (conveyLock) {
+			try {
+				while (true) {
+					synchronized (lock) {
+						if (conveyed) {
+							preparationPending = false;
+							return;
+						}
+					}
+					long start = currentTimeMillis();
+					int v = updatePrepared();
+					synchronized (lock) {
+						if (version == v) {
+							preparationPending = false;
+							if (log.isDebugEnabled())
+								log.debug("prepared security for run " + run.id
+										+ " in " + (currentTimeMillis() - start)
+										+ "ms");
+							return;
+						}
+					}
+				}
+			} catch (Exception e) {
+				log.warn("failed to prepare security for run " + run.id
+						+ "; will retry when the run is started", e);
+				discardPrepared();
+				synchronized (lock) {
+					preparationPending = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the prepared stores hold the current credentials and
+	 *         trusts, so that starting the run will only have to transfer them.
+	 */
+	boolean isPrepared() {
+		synchronized (conveyLock) {
+			synchronized (lock) {
+				return prepared != null && preparedVersion == version;
+			}
+		}
+	}
+
+	/**
+	 * Bring the prepared stores up to date with the current credentials and
+	 * trusts, creating them if necessary. Must be called while holding the
+	 * {@link #conveyLock}.
+	 * 
+	 * @return The version of the credentials and trusts that the stores now
+	 *         hold.
+	 */
+	private int updatePrepared() throws GeneralSecurityException {
+		int v;
+		List<Credential> credentials;
+		List<Trust> trusted;
+		synchronized (lock) {
+			v = version;
+			if (prepared != null && preparedVersion == v)
+				return v;
+			credentials = new ArrayList<>(this.credentials);
+			trusted = new ArrayList<>(this.trusted);
+		}
+		try {
+			if (prepared == null)
+				prepared = new PreparedStores();
+			prepared.update(credentials, trusted);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			// Stores may be half-updated; start again from scratch next time
+			discardPrepared();
+			throw e;
+		}
+		synchronized (lock) {
+			preparedVersion = v;
+		}
+		return v;
+	}
+
+	/**
+	 * Throw away the prepared stores, wiping their contents. Must be called
+	 * while holding the {@link #conveyLock}.
+	 */
+	private void discardPrepared() {
+		if (prepared != null)
+			prepared.destroy();
+		prepared = null;
+	}
+
+	/**
+	 * Ensures that a keystore with suitable credentials has been transferred
+	 * to the back-end workflow execution engine. If the background preparation
+	 * triggered by {@link #prepareSecurity()} has already brought the stores
+	 * up to date with the current credentials and trusts, this only has to
+	 * transfer them. The credentials and trusts are only forgotten once the
+	 * transfer has succeeded, so a failed transfer can be retried.
 	 * 
 	 * @throws GeneralSecurityException
 	 *             If the manipulation of the keystore, keys or certificates
@@ -276,92 +422,200 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	@Override
 	public final void conveySecurity() throws GeneralSecurityException,
 			IOException, ImplementationException {
-		RemoteSecurityContext rc = run.run.getSecurityContext();
+		RemoteSecurityContext rc = run.remote().getSecurityContext();
 
-		List<Trust> trusted = new ArrayList<>(this.trusted);
-		this.trusted.clear();
-		List<Credential> credentials = new ArrayList<>(this.credentials);
-		this.credentials.clear();
+		synchronized (conveyLock) {
+			while (true) {
+				synchronized (lock) {
+					if (conveyed)
+						break;
+				}
+				int v = updatePrepared();
+				transfer(rc, prepared);
+				synchronized (lock) {
+					if (version != v)
+						// Changed while transferring; send the changes too
+						continue;
+					conveyed = true;
+					this.credentials.clear();
+					this.trusted.clear();
+					flushToDB();
+				}
+				discardPrepared();
+				break;
+			}
+		}
 
-		try {
-			installLocalPasswordCredential(credentials, trusted);
-		} catch (Exception e) {
-			log.warn("failed to construct local credential: "
-					+ "interaction service will fail", e);
+		synchronized (lock) {
+			conveyExtraSecuritySettings(rc);
 		}
+	}
 
-		char[] password = null;
-		try {
-			password = generateNewPassword();
+	/**
+	 * Transfers the prepared stores to the back-end workflow execution engine.
+	 */
+	private void transfer(RemoteSecurityContext rc, PreparedStores stores)
+			throws IOException, ImplementationException {
+		log.info("transfering merged truststore with "
+				+ stores.truststore.size() + " entries");
+		rc.setTruststore(stores.trustBytes);
+		log.info("transfering merged keystore with " + stores.keystore.size()
+				+ " entries");
+		rc.setKeystore(stores.keyBytes);
+		rc.setPassword(stores.password);
+		log.info("transferring serviceURL->alias map with "
+				+ stores.uriToAliasMap.size() + " entries");
+		rc.setUriToAliasMap(stores.uriToAliasMap);
+	}
 
+	/**
+	 * The truststore and keystore of a run that has not yet been started, kept
+	 * in step with its trusts and credentials one entry at a time, together
+	 * with their serialized forms.
+	 */
+	private class PreparedStores {
+		final char[] password = generateNewPassword();
+		final Truststore truststore;
+		final Keystore keystore;
+		final Map<URI, String> uriToAliasMap = new HashMap<>();
+		/** Which alias each credential in the keystore was stored under. */
+		final Map<Credential, String> keyAliases = new IdentityHashMap<>();
+		/** Which aliases each trust's certificates were stored under. */
+		final Map<Trust, List<String>> trustAliases = new IdentityHashMap<>();
+		/** The run's credential for calling back to this server, if any. */
+		final List<Credential> selfCredentials = new ArrayList<>();
+		final List<Trust> selfTrusts = new ArrayList<>();
+		byte[] trustBytes, keyBytes;
+
+		PreparedStores() throws GeneralSecurityException {
 			log.info("constructing merged keystore");
-			Truststore truststore = new Truststore(password);
-			Keystore keystore = new Keystore(password);
-			Map<URI, String> uriToAliasMap = new HashMap<>();
-			int trustedCount = 0, keyCount = 0;
-
-			synchronized (lock) {
-				try {
-					for (Trust t : trusted) {
-						if (t == null || t.loadedCertificates == null)
-							continue;
-						for (Certificate cert : t.loadedCertificates)
-							if (cert != null) {
-								truststore.addCertificate(cert);
-								trustedCount++;
-							}
-					}
-
-					this.uriToAliasMap = uriToAliasMap;
-					this.keystore = keystore;
-					for (Credential c : credentials) {
-						addCredentialToKeystore(c);
-						keyCount++;
-					}
-				} finally {
-					this.uriToAliasMap = null;
-					this.keystore = null;
-					credentials.clear();
-					trusted.clear();
-					flushToDB();
-				}
+			truststore = new Truststore(password);
+			keystore = new Keystore(password);
+			try {
+				installLocalPasswordCredential(selfCredentials, selfTrusts);
+			} catch (Exception e) {
+				log.warn("failed to construct local credential: "
+						+ "interaction service will fail", e);
 			}
+		}
 
-			byte[] trustbytes = null, keybytes = null;
-			try {
-				trustbytes = truststore.serialize();
-				keybytes = keystore.serialize();
+		/**
+		 * Make the stores hold exactly the given credentials and trusts (and
+		 * the run's own credential), adding and removing only the entries that
+		 * differ, and reserialize whichever stores changed.
+		 */
+		void update(List<Credential> credentials, List<Trust> trusted)
+				throws GeneralSecurityException {
+			credentials.addAll(selfCredentials);
+			trusted.addAll(selfTrusts);
+			boolean trustChanged = updateTrusts(trusted);
+			boolean keysChanged = updateKeys(credentials);
+			if (trustChanged || trustBytes == null) {
+				wipe(trustBytes);
+				trustBytes = truststore.serialize();
+			}
+			if (keysChanged || keyBytes == null) {
+				wipe(keyBytes);
+				keyBytes = keystore.serialize();
+			}
+		}
 
-				// Now we've built the security information, ship it off...
+		private boolean updateTrusts(List<Trust> trusted)
+				throws KeyStoreException {
+			boolean changed = false;
+			Set<Trust> wanted = newSetFromMap(new IdentityHashMap<Trust, Boolean>());
+			wanted.addAll(trusted);
+			Iterator<Map.Entry<Trust, List<String>>> it = trustAliases
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Trust, List<String>> e = it.next();
+				if (wanted.contains(e.getKey()))
+					continue;
+				it.remove();
+				for (String alias : e.getValue())
+					if (!trustAliasInUse(alias))
+						truststore.remove(alias);
+				changed = true;
+			}
+			for (Trust t : trusted) {
+				if (t == null || t.loadedCertificates == null
+						|| trustAliases.containsKey(t))
+					continue;
+				List<String> aliases = new ArrayList<>();
+				for (Certificate cert : t.loadedCertificates)
+					if (cert != null)
+						aliases.add(truststore.addCertificate(cert));
+				trustAliases.put(t, aliases);
+				changed = true;
+			}
+			return changed;
+		}
 
-				log.info("transfering merged truststore with " + trustedCount
-						+ " entries");
-				rc.setTruststore(trustbytes);
+		private boolean trustAliasInUse(String alias) {
+			for (List<String> aliases : trustAliases.values())
+				if (aliases.contains(alias))
+					return true;
+			return false;
+		}
 
-				log.info("transfering merged keystore with " + keyCount
-						+ " entries");
-				rc.setKeystore(keybytes);
+		private boolean updateKeys(List<Credential> credentials)
+				throws KeyStoreException {
+			boolean changed = false;
+			SecurityContextDelegate.this.keystore = keystore;
+			SecurityContextDelegate.this.uriToAliasMap = uriToAliasMap;
+			SecurityContextDelegate.this.keyAliases = keyAliases;
+			try {
+				Set<Credential> wanted = newSetFromMap(new IdentityHashMap<Credential, Boolean>());
+				wanted.addAll(credentials);
+				for (Credential c : new ArrayList<>(keyAliases.keySet()))
+					if (!wanted.contains(c)) {
+						removeKey(c, keyAliases.remove(c));
+						changed = true;
+					}
+				for (Credential c : credentials)
+					if (!keyAliases.containsKey(c)) {
+						addCredentialToKeystore(c);
+						changed = true;
+					}
 			} finally {
-				if (trustbytes != null)
-					fill(trustbytes, (byte) 0);
-				if (keybytes != null)
-					fill(keybytes, (byte) 0);
+				SecurityContextDelegate.this.keystore = null;
+				SecurityContextDelegate.this.uriToAliasMap = null;
+				SecurityContextDelegate.this.keyAliases = null;
 			}
-			rc.setPassword(password);
+			return changed;
+		}
 
-			log.info("transferring serviceURL->alias map with "
-					+ uriToAliasMap.size() + " entries");
-			rc.setUriToAliasMap(uriToAliasMap);
-		} finally {
-			if (password != null)
-				fill(password, ' ');
+		/**
+		 * Remove a credential from the keystore. If another credential was
+		 * stored under the same alias, that one is put back.
+		 */
+		private void removeKey(Credential c, String alias)
+				throws KeyStoreException {
+			if (alias.equals(uriToAliasMap.get(c.serviceURI)))
+				uriToAliasMap.remove(c.serviceURI);
+			for (Map.Entry<Credential, String> e : keyAliases.entrySet())
+				if (alias.equals(e.getValue())) {
+					uriToAliasMap.remove(e.getKey().serviceURI);
+					addCredentialToKeystore(e.getKey());
+					return;
+				}
+			keystore.remove(alias);
 		}
 
-		synchronized (lock) {
-			conveyExtraSecuritySettings(rc);
+		void destroy() {
+			truststore.destroy();
+			keystore.destroy();
+			wipe(trustBytes);
+			wipe(keyBytes);
+			fill(password, ' ');
 		}
 	}
 
+	private static void wipe(byte[] bytes) {
+		if (bytes != null)
+			fill(bytes, (byte) 0);
+	}
+
 	/**
 	 * Hook that allows additional information to be conveyed to the remote run.
 	 * 
@@ -399,6 +653,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 			log.warn("duplicate URI in alias mapping: " + c.serviceURI);
 		keystore.addKey(alias, c.loadedKey, c.loadedTrustChain);
 		uriToAliasMap.put(c.serviceURI, alias);
+		keyAliases.put(c, alias);
 	}
 
 	/**
@@ -496,6 +751,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 						log.warn("failed to revalidate trust assertion: " + t,
 								e);
 					}
+			version++;
 		}
 	}
 
@@ -517,21 +773,47 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 		final synchronized void setCertificate(String alias, Certificate c)
 				throws KeyStoreException {
 			if (ks == null)
-				throw new IllegalStateException("store already written");
+				throw new IllegalStateException("store already destroyed");
 			ks.setCertificateEntry(alias, c);
 		}
 
 		final synchronized void setKey(String alias, Key key, Certificate[] trustChain)
 				throws KeyStoreException {
 			if (ks == null)
-				throw new IllegalStateException("store already written");
+				throw new IllegalStateException("store already destroyed");
 			ks.setKeyEntry(alias, key, password, trustChain);
 		}
 
+		/**
+		 * Remove an entry from the store.
+		 * 
+		 * @param alias
+		 *            The alias of the entry.
+		 * @throws KeyStoreException
+		 *             If anything goes wrong.
+		 */
+		public final synchronized void remove(String alias)
+				throws KeyStoreException {
+			if (ks == null)
+				throw new IllegalStateException("store already destroyed");
+			ks.deleteEntry(alias);
+		}
+
+		/**
+		 * @return The number of entries in the store.
+		 */
+		public final synchronized int size() {
+			try {
+				return ks == null ? 0 : ks.size();
+			} catch (KeyStoreException e) {
+				return 0;
+			}
+		}
+
 		final synchronized byte[] serialize(boolean logIt)
 				throws GeneralSecurityException {
 			if (ks == null)
-				throw new IllegalStateException("store already written");
+				throw new IllegalStateException("store already destroyed");
 			try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
 				ks.store(stream, password);
 				if (logIt)
@@ -543,22 +825,27 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 			} catch (IOException e) {
 				throw new GeneralSecurityException(
 						"problem serializing keystore", e);
-			} finally {
-				ks = null;
-				fill(password, ' ');
 			}
 		}
 
-		@Override
-		protected final void finalize() {
+		/**
+		 * Forget the contents of the store and wipe its password. Nothing can
+		 * be done with the store afterwards.
+		 */
+		final synchronized void destroy() {
 			fill(password, ' ');
 			ks = null;
 		}
+
+		@Override
+		protected final void finalize() {
+			destroy();
+		}
 	}
 
 	/**
-	 * A trust store that can only be added to or serialized. Only trusted
-	 * certificates can be placed in it.
+	 * A trust store that can be added to, removed from and serialized. Only
+	 * trusted certificates can be placed in it.
 	 * 
 	 * @author Donal Fellows
 	 */
@@ -568,15 +855,15 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 		}
 
 		/**
-		 * Add a trusted certificate to the truststore. No certificates can be
-		 * added after the truststore is serialized.
+		 * Add a trusted certificate to the truststore.
 		 * 
 		 * @param cert
 		 *            The certificate (typically belonging to a root CA) to add.
+		 * @return The alias the certificate was stored under.
 		 * @throws KeyStoreException
 		 *             If anything goes wrong.
 		 */
-		public void addCertificate(Certificate cert) throws KeyStoreException {
+		public String addCertificate(Certificate cert) throws KeyStoreException {
 			X509Certificate c = (X509Certificate) cert;
 			String alias = format("trustedcert#%s#%s#%s",
 					getPrincipalName(c.getSubjectX500Principal()),
@@ -586,11 +873,11 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 			if (log.isDebugEnabled() && factory.logSecurityDetails)
 				log.debug("added cert with alias \"" + alias + "\" of type "
 						+ c.getClass().getCanonicalName());
+			return alias;
 		}
 
 		/**
-		 * Get the byte serialization of this truststore. This can only be
-		 * fetched exactly once.
+		 * Get the byte serialization of this truststore.
 		 * 
 		 * @return The serialization.
 		 * @throws GeneralSecurityException
@@ -602,8 +889,8 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 	}
 
 	/**
-	 * A key store that can only be added to or serialized. Only keys can be
-	 * placed in it.
+	 * A key store that can be added to, removed from and serialized. Only keys
+	 * can be placed in it.
 	 * 
 	 * @author Donal Fellows
 	 */
@@ -613,8 +900,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 		}
 
 		/**
-		 * Add a key to the keystore. No keys can be added after the keystore is
-		 * serialized.
+		 * Add a key to the keystore.
 		 * 
 		 * @param alias
 		 *            The alias of the key.
@@ -635,8 +921,7 @@ public abstract class SecurityContextDelegate implements TavernaSecurityContext
 		}
 
 		/**
-		 * Get the byte serialization of this keystore. This can only be fetched
-		 * exactly once.
+		 * Get the byte serialization of this keystore.
 		 * 
 		 * @return The serialization.
 		 * @throws GeneralSecurityException
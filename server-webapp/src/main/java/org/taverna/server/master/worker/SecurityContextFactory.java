@@ -8,10 +8,13 @@ package org.taverna.server.master.worker;
 import static java.security.Security.addProvider;
 import static java.security.Security.getProvider;
 import static java.security.Security.removeProvider;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 import static org.apache.commons.logging.LogFactory.getLog;
 import static org.bouncycastle.jce.provider.BouncyCastleProvider.PROVIDER_NAME;
 
 import java.io.Serializable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -47,6 +50,9 @@ public class SecurityContextFactory implements
 	transient String httpRealm;
 	private transient PasswordIssuer passwordIssuer;
 	private transient BouncyCastleProvider provider;
+	private transient int preparationThreads = 2;
+	private transient ExecutorService preparationPool;
+	private transient boolean shutdown;
 
 	/**
 	 * Whether to support HELIO CIS tokens.
@@ -71,6 +77,12 @@ public class SecurityContextFactory implements
 	@PreDestroy
 	void removeAsSingleton() {
 		installAsInstance(null);
+		synchronized (this) {
+			shutdown = true;
+			if (preparationPool != null)
+				preparationPool.shutdownNow();
+			preparationPool = null;
+		}
 		try {
 			if (provider != null)
 				removeProvider(provider.getName());
@@ -132,6 +144,31 @@ public class SecurityContextFactory implements
 		this.passwordIssuer = issuer;
 	}
 
+	/**
+	 * @param preparationThreads
+	 *            How many threads to use for building keystores and
+	 *            transferring them to workers ahead of runs being started.
+	 */
+	public void setPreparationThreads(int preparationThreads) {
+		this.preparationThreads = preparationThreads;
+	}
+
+	/**
+	 * Run a keystore preparation task in the background.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @throws RejectedExecutionException
+	 *             If the factory is shutting down.
+	 */
+	synchronized void submitPreparation(Runnable task) {
+		if (shutdown)
+			throw new RejectedExecutionException("factory shut down");
+		if (preparationPool == null)
+			preparationPool = newFixedThreadPool(preparationThreads);
+		preparationPool.execute(task);
+	}
+
 	@Override
 	public SecurityContextDelegate create(TavernaRun run,
 			UsernamePrincipal owner) throws Exception {
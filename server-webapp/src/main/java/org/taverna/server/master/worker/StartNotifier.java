@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+/**
+ * How to convert a notification about the start of a job into a message. Only
+ * the kinds of notification target that have such a notifier are told when a
+ * run starts; the others are only told when it finishes.
+ *
+ * @author Donal Fellows
+ */
+public interface StartNotifier extends CompletionNotifier {
+	/**
+	 * Called to get the content of a message that a workflow run has started.
+	 *
+	 * @param name
+	 *            The name of the run.
+	 * @param run
+	 *            What run are we talking about.
+	 * @return The content of the message.
+	 */
+	String makeStartMessage(String name, RemoteRunDelegate run);
+
+	/**
+	 * Called to get the subject of the message that a workflow run has
+	 * started.
+	 *
+	 * @param name
+	 *            The name of the run.
+	 * @param run
+	 *            What run are we talking about.
+	 * @return The plain-text subject of the message.
+	 */
+	String makeStartSubject(String name, RemoteRunDelegate run);
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static org.taverna.server.master.TavernaServer.JMX_ROOT;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * The queue of workflow runs that have been asked to start while the server
+ * was at its limit of operating runs. Runs are released in fair-share order:
+ * the users with queued runs take turns, so that one user queueing many runs
+ * does not hold up everyone else, and each user's runs are released in the
+ * order they were queued. Users may be given a priority; while a user with a
+ * higher priority has runs queued, they are released ahead of those of users
+ * with lower priority. If preemption is enabled, a queued run may also take
+ * the place of an operating run of a user with lower priority, which is
+ * suspended and put back at the front of its owner's queue.
+ * <p>
+ * This class only holds the order; the {@link RunDatabase} persists when each
+ * run was queued and actually starts the runs. After a restart the queue is
+ * rebuilt from those times, so each user's runs keep their order (suspended
+ * runs are recorded as queued just ahead of their owner's other runs) and the
+ * users take turns in order of their longest-waiting run. User priorities and
+ * the measured release rate are not persisted; priorities must be set again
+ * after a restart, and until runs have been released for a while the
+ * suggested retry delays are based on a default rate.
+ *
+ * @author Donal Fellows
+ */
+@ManagedResource(objectName = JMX_ROOT + "StartQueue", description = "The queue of workflow runs waiting to start.")
+public class StartQueue {
+	/** Per-user FIFOs of run IDs, in turn order. */
+	private final LinkedHashMap<String, ArrayDeque<String>> queues = new LinkedHashMap<>();
+	/** Map from run ID to owner. */
+	private final Map<String, String> owners = new HashMap<>();
+	private final Map<String, Integer> priorities = new HashMap<>();
+	private boolean enabled = true;
+	private boolean preemptive;
+	private int limit = 1000;
+	private long lastRelease;
+	/** Smoothed interval between runs being released, in milliseconds. */
+	private double releaseInterval = 10000;
+	private static final double SMOOTHING = 0.2;
+	private static final int MIN_RETRY = 5;
+	private static final int MAX_RETRY = 3600;
+
+	/**
+	 * @param enabled
+	 *            Whether runs may be queued at all. If not, requests to start
+	 *            runs when the server is busy are rejected.
+	 */
+	@ManagedAttribute(description = "Whether runs asked to start when the server is busy are queued.")
+	public synchronized void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@ManagedAttribute(description = "Whether runs asked to start when the server is busy are queued.")
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param preemptive
+	 *            Whether queued runs may cause operating runs of users with
+	 *            lower priority to be suspended to make way for them.
+	 */
+	@ManagedAttribute(description = "Whether operating runs of users with lower priority are suspended to make way for queued runs.")
+	public synchronized void setPreemptive(boolean preemptive) {
+		this.preemptive = preemptive;
+	}
+
+	@ManagedAttribute(description = "Whether operating runs of users with lower priority are suspended to make way for queued runs.")
+	public synchronized boolean isPreemptive() {
+		return preemptive;
+	}
+
+	/**
+	 * @param limit
+	 *            The maximum number of runs that may be queued.
+	 */
+	@ManagedAttribute(description = "The maximum number of runs that may be queued.")
+	public synchronized void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	@ManagedAttribute(description = "The maximum number of runs that may be queued.")
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return Whether a new run can be added to the queue.
+	 */
+	public synchronized boolean canAccept() {
+		return enabled && owners.size() < limit;
+	}
+
+	@ManagedAttribute(description = "The number of runs waiting to start.")
+	public synchronized int getSize() {
+		return owners.size();
+	}
+
+	/**
+	 * Set the priority of a user's runs.
+	 *
+	 * @param user
+	 *            The name of the user.
+	 * @param priority
+	 *            The priority; the default is zero, and larger numbers are
+	 *            served first.
+	 */
+	@ManagedOperation(description = "Set the priority of a user's queued runs; larger numbers are served first.")
+	@ManagedOperationParameters({
+			@ManagedOperationParameter(name = "user", description = "The name of the user."),
+			@ManagedOperationParameter(name = "priority", description = "The priority (default 0).") })
+	public synchronized void setPriority(String user, int priority) {
+		if (priority == 0)
+			priorities.remove(user);
+		else
+			priorities.put(user, priority);
+	}
+
+	private int priority(String user) {
+		Integer p = priorities.get(user);
+		return p == null ? 0 : p;
+	}
+
+	/**
+	 * @param user
+	 *            The name of the user.
+	 * @return The priority of the user's runs.
+	 */
+	public synchronized int getPriority(@Nonnull String user) {
+		return priority(user);
+	}
+
+	/**
+	 * Add a run to the end of its owner's queue. Does nothing if the run is
+	 * already queued.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @param owner
+	 *            The name of the owner of the run.
+	 * @return The position of the run in the queue, starting at 1.
+	 */
+	public synchronized int add(@Nonnull String id, @Nonnull String owner) {
+		if (!owners.containsKey(id)) {
+			ArrayDeque<String> q = queues.get(owner);
+			if (q == null) {
+				q = new ArrayDeque<>();
+				queues.put(owner, q);
+			}
+			q.addLast(id);
+			owners.put(id, owner);
+		}
+		return position(id);
+	}
+
+	/**
+	 * Add a run to the front of its owner's queue, so that it is the next of
+	 * their runs to be released. Used for runs that have been suspended to make
+	 * way for others, which should resume before their owner's later runs
+	 * start. Does nothing if the run is already queued.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @param owner
+	 *            The name of the owner of the run.
+	 * @return The position of the run in the queue, starting at 1.
+	 */
+	public synchronized int addFirst(@Nonnull String id, @Nonnull String owner) {
+		if (!owners.containsKey(id)) {
+			ArrayDeque<String> q = queues.get(owner);
+			if (q == null) {
+				q = new ArrayDeque<>();
+				queues.put(owner, q);
+			}
+			q.addFirst(id);
+			owners.put(id, owner);
+		}
+		return position(id);
+	}
+
+	/**
+	 * Remove a run from the queue.
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @return Whether the run was queued.
+	 */
+	public synchronized boolean remove(@Nonnull String id) {
+		String owner = owners.remove(id);
+		if (owner == null)
+			return false;
+		ArrayDeque<String> q = queues.get(owner);
+		q.remove(id);
+		if (q.isEmpty())
+			queues.remove(owner);
+		return true;
+	}
+
+	/**
+	 * @param id
+	 *            The ID of a run.
+	 * @return Whether the run is queued.
+	 */
+	public synchronized boolean contains(@Nonnull String id) {
+		return owners.containsKey(id);
+	}
+
+	/**
+	 * @param owner
+	 *            The name of a user.
+	 * @return The ID of the next of the user's runs to be released, or
+	 *         <tt>null</tt> if the user has no runs queued.
+	 */
+	@Nullable
+	public synchronized String peek(@Nonnull String owner) {
+		ArrayDeque<String> q = queues.get(owner);
+		return q == null ? null : q.peekFirst();
+	}
+
+	/**
+	 * @return The names of the users who have runs queued.
+	 */
+	@Nonnull
+	public synchronized List<String> getOwners() {
+		return new ArrayList<>(queues.keySet());
+	}
+
+	/**
+	 * Take the next run to start out of the queue.
+	 *
+	 * @return The ID of the run, or <tt>null</tt> if the queue is empty.
+	 */
+	@Nullable
+	public synchronized String next() {
+		return next(null);
+	}
+
+	/**
+	 * Take the next run to start out of the queue, passing over the runs of
+	 * users who may not start any more runs at the moment.
+	 *
+	 * @param filter
+	 *            Which users may have runs started, or <tt>null</tt> if all
+	 *            may.
+	 * @return The ID of the run, or <tt>null</tt> if there is no run that may
+	 *         be started.
+	 */
+	@Nullable
+	public synchronized String next(@Nullable OwnerFilter filter) {
+		String owner = nextOwner(queues, filter);
+		if (owner == null)
+			return null;
+		ArrayDeque<String> q = queues.remove(owner);
+		String id = q.removeFirst();
+		// Owner goes to the back of the line
+		if (!q.isEmpty())
+			queues.put(owner, q);
+		owners.remove(id);
+
+		long now = currentTimeMillis();
+		if (lastRelease > 0)
+			releaseInterval = (1 - SMOOTHING) * releaseInterval + SMOOTHING
+					* (now - lastRelease);
+		lastRelease = now;
+		return id;
+	}
+
+	/**
+	 * Decide whether an operating run should be suspended to make way for the
+	 * next queued run.
+	 *
+	 * @param operating
+	 *            The operating runs, as a map from run ID to owner.
+	 * @param filter
+	 *            Which users may have runs started, or <tt>null</tt> if all
+	 *            may.
+	 * @return The ID of the run to suspend: one of those of the users with the
+	 *         lowest priority, provided that is lower than the priority of the
+	 *         user whose run would be released next. <tt>null</tt> if
+	 *         preemption is disabled or no run should be suspended.
+	 */
+	@Nullable
+	public synchronized String chooseVictim(
+			@Nonnull Map<String, String> operating,
+			@Nullable OwnerFilter filter) {
+		if (!preemptive)
+			return null;
+		String next = nextOwner(queues, filter);
+		if (next == null)
+			return null;
+		String victim = null;
+		int lowest = priority(next);
+		for (Map.Entry<String, String> e : operating.entrySet()) {
+			int p = priority(e.getValue());
+			if (p < lowest) {
+				victim = e.getKey();
+				lowest = p;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * The owner whose run is to be released next: the first, in turn order,
+	 * of those with the highest priority.
+	 */
+	private String nextOwner(Map<String, ArrayDeque<String>> queues,
+			OwnerFilter filter) {
+		String best = null;
+		int bestPriority = 0;
+		for (String owner : queues.keySet()) {
+			if (filter != null && !filter.mayStart(owner))
+				continue;
+			int p = priority(owner);
+			if (best == null || p > bestPriority) {
+				best = owner;
+				bestPriority = p;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Work out where a run is in the queue, i.e., how many runs will be
+	 * released before it (plus one).
+	 *
+	 * @param id
+	 *            The ID of the run.
+	 * @return The position, starting at 1, or 0 if the run is not queued.
+	 */
+	public synchronized int position(@Nonnull String id) {
+		String owner = owners.get(id);
+		if (owner == null)
+			return 0;
+		int depth = 0;
+		for (String queued : queues.get(owner)) {
+			if (queued.equals(id))
+				break;
+			depth++;
+		}
+		/*
+		 * All runs of users with a higher priority go first. Users with the
+		 * same priority take turns, so each of them gets one run released
+		 * per round before this run's round, and those ahead in turn order
+		 * get one more in this run's round.
+		 */
+		int priority = priority(owner);
+		int ahead = 0;
+		boolean before = true;
+		for (Map.Entry<String, ArrayDeque<String>> e : queues.entrySet()) {
+			if (e.getKey().equals(owner)) {
+				before = false;
+				continue;
+			}
+			int p = priority(e.getKey());
+			int size = e.getValue().size();
+			if (p > priority)
+				ahead += size;
+			else if (p == priority)
+				ahead += min(size, depth) + (before && size > depth ? 1 : 0);
+		}
+		return ahead + depth + 1;
+	}
+
+	/**
+	 * Estimate how long a client should wait before asking about a queued run
+	 * again.
+	 *
+	 * @param position
+	 *            The position of the run in the queue.
+	 * @return The suggested delay, in seconds.
+	 */
+	public synchronized int retryAfter(int position) {
+		long delay = (long) (position * releaseInterval / 1000);
+		return (int) min(MAX_RETRY, max(MIN_RETRY, delay));
+	}
+
+	/**
+	 * @return The IDs of all queued runs, in the order they will be released.
+	 */
+	@Nonnull
+	@ManagedAttribute(description = "The IDs of the queued runs, in the order they will be started.")
+	public synchronized List<String> getOrder() {
+		LinkedHashMap<String, ArrayDeque<String>> copy = new LinkedHashMap<>();
+		for (Map.Entry<String, ArrayDeque<String>> e : queues.entrySet())
+			copy.put(e.getKey(), new ArrayDeque<>(e.getValue()));
+		List<String> order = new ArrayList<>(owners.size());
+		while (!copy.isEmpty()) {
+			String owner = nextOwner(copy, null);
+			ArrayDeque<String> q = copy.remove(owner);
+			order.add(q.removeFirst());
+			if (!q.isEmpty())
+				copy.put(owner, q);
+		}
+		return order;
+	}
+
+	/** Empty the queue. */
+	public synchronized void clear() {
+		owners.clear();
+		queues.clear();
+	}
+
+	/**
+	 * Decides whether a user may have another run started.
+	 */
+	public interface OwnerFilter {
+		/**
+		 * @param owner
+		 *            The name of the user.
+		 * @return Whether one of their runs may be started now.
+		 */
+		boolean mayStart(@Nonnull String owner);
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.joda.time.format.ISODateTimeFormat.dateTime;
+import static org.taverna.server.master.notification.WebhookDispatcher.quote;
+
+import java.util.Date;
+
+import javax.xml.bind.JAXBException;
+
+import org.apache.commons.logging.Log;
+import org.joda.time.DateTime;
+import org.ogf.usage.JobUsageRecord;
+import org.ogf.usage.v1_0.CpuDuration;
+import org.ogf.usage.v1_0.Disk;
+import org.ogf.usage.v1_0.WallDuration;
+import org.springframework.beans.factory.annotation.Required;
+import org.taverna.server.master.exceptions.NoListenerException;
+import org.taverna.server.master.interfaces.Listener;
+import org.taverna.server.master.interfaces.UriBuilderFactory;
+
+/**
+ * Describes the start and completion of workflow runs as JSON objects, for
+ * delivery to programs by webhook. Each object says what happened
+ * (<tt>event</tt>), to which run (<tt>run</tt>, <tt>link</tt>), and what the
+ * run's state, times, exit code and (when finished) resource usage are.
+ *
+ * @author Donal Fellows
+ */
+public class WebhookNotifier implements StartNotifier {
+	private Log log = getLog("Taverna.Server.Notification");
+	private String name = "webhook";
+	private UriBuilderFactory ubf;
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @param name
+	 *            The name of the notifier, which must match the name of the
+	 *            dispatcher.
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param uriBuilderFactory
+	 *            The configured URI builder factory.
+	 */
+	@Required
+	public void setUriBuilderFactory(UriBuilderFactory uriBuilderFactory) {
+		this.ubf = uriBuilderFactory;
+	}
+
+	@Override
+	public String makeStartMessage(String name, RemoteRunDelegate run) {
+		return describe("started", name, run, null).append('}').toString();
+	}
+
+	@Override
+	public String makeStartSubject(String name, RemoteRunDelegate run) {
+		return "Workflow run started";
+	}
+
+	@Override
+	public String makeCompletionMessage(String name, RemoteRunDelegate run,
+			int code) {
+		StringBuilder sb = describe("finished", name, run, code);
+		String ur = ioProperty(run, "usageRecord");
+		if (ur != null && !ur.isEmpty())
+			try {
+				usage(sb, JobUsageRecord.unmarshal(ur));
+			} catch (JAXBException | RuntimeException e) {
+				log.warn("failed to summarise usage record of run " + name, e);
+			}
+		return sb.append('}').toString();
+	}
+
+	@Override
+	public String makeMessageSubject(String name, RemoteRunDelegate run,
+			int code) {
+		return "Workflow run finished";
+	}
+
+	private StringBuilder describe(String event, String name,
+			RemoteRunDelegate run, Integer code) {
+		StringBuilder sb = new StringBuilder("{\"event\":").append(
+				quote(event));
+		sb.append(",\"run\":").append(quote(name));
+		sb.append(",\"link\":").append(
+				quote(ubf.getRunUriBuilder(run).build().toString()));
+		if (run.getName() != null)
+			sb.append(",\"name\":").append(quote(run.getName()));
+		sb.append(",\"owner\":").append(
+				quote(run.getSecurityContext().getOwner().getName()));
+		sb.append(",\"status\":").append(quote(run.getStatus().toString()));
+		if (code != null)
+			sb.append(",\"exitCode\":").append(code);
+		time(sb, "created", run.getCreationTimestamp());
+		time(sb, "started", run.getStartTimestamp());
+		time(sb, "finished", run.getFinishTimestamp());
+		time(sb, "expiry", run.getExpiry());
+		return sb;
+	}
+
+	private static void time(StringBuilder sb, String key, Date date) {
+		if (date != null)
+			sb.append(",\"").append(key).append("\":")
+					.append(quote(dateTime().print(new DateTime(date))));
+	}
+
+	/** Summarise the main resource figures of a usage record. */
+	private static void usage(StringBuilder sb, JobUsageRecord ur) {
+		Date epoch = new Date(0);
+		sb.append(",\"usage\":{");
+		String sep = "";
+		WallDuration wall = ur.getOfType(WallDuration.class);
+		if (wall != null && wall.getValue() != null) {
+			sb.append("\"wallDuration\":").append(
+					wall.getValue().getTimeInMillis(epoch));
+			sep = ",";
+		}
+		long cpu = 0;
+		boolean haveCpu = false;
+		for (Object o : ur.getWallDurationOrCpuDurationOrNodeCount())
+			if (o instanceof CpuDuration
+					&& ((CpuDuration) o).getValue() != null) {
+				cpu += ((CpuDuration) o).getValue().getTimeInMillis(epoch);
+				haveCpu = true;
+			}
+		if (haveCpu) {
+			sb.append(sep).append("\"cpuDuration\":").append(cpu);
+			sep = ",";
+		}
+		Disk disk = ur.getOfType(Disk.class);
+		if (disk != null && disk.getValue() != null)
+			sb.append(sep).append("\"disk\":").append(disk.getValue());
+		sb.append('}');
+	}
+
+	private static String ioProperty(RemoteRunDelegate run, String property) {
+		for (Listener l : run.getListeners())
+			if (l.getName().equals("io"))
+				try {
+					return l.getProperty(property);
+				} catch (NoListenerException e) {
+					return null;
+				}
+		return null;
+	}
+}
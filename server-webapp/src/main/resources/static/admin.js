@@ -126,13 +126,14 @@ var NodeAll;
 /** The IDs of boolean-coupled buttons. */
 var buttonlist = [ "allowNew", "logFaults", "logWorkflows", "generateProvenance" ];
 /** The IDs of values that track server variables without setting things. */
-var readonlies = [ "invokationCount", "lastExitCode", "runCount", "startupTime", "operatingCount" ];
+var readonlies = [ "invokationCount", "lastExitCode", "runCount", "startupTime", "operatingCount",
+		"effectiveOperatingLimit" ];
 /** The IDs of text/numeric-coupled entries. */
 var entries = [ "defaultLifetime", "executeWorkflowScript", "javaBinary",
 		"registrationPollMillis", "registrationWaitSeconds", "registryHost",
 		"registryPort", "runLimit", "runasPasswordFile", "serverForkerJar",
 		"serverWorkerJar", "usageRecordDumpFile", "operatingLimit",
-		"registryJar" ];
+		"minimumOperatingLimit", "registryJar" ];
 /** Cached information about users. */
 var userinfo = [];
 /** Extra arguments to pass to the runtime. */
@@ -376,6 +377,153 @@ function connectButtonsAndEntries() {
 	});
 }
 
+/** Jettison turns single-element lists into plain values; undo that. */
+function asArray(value) {
+	if (value == undefined)
+		return [];
+	return $.isArray(value) ? value : [ value ];
+}
+
+/** How to describe a quota limit for display; blank if there is none */
+function limitText(value) {
+	return value == undefined ? "" : value;
+}
+
+/**
+ * Generate a quota row with suitable indices, but no content (it will be
+ * pushed into the row later).
+ */
+function quotaRowHTML(idx) {
+	var content = "<td><span id='quotakind" + idx + "'></span></td>";
+	content += "<td><span id='quotaname" + idx + "'></span></td>";
+	content += "<td><input size=7 id='quotaruns" + idx
+			+ "' title='The maximum number of workflow runs; blank for no limit.' /></td>";
+	content += "<td><input size=7 id='quotaoperating" + idx
+			+ "' title='The maximum number of executing workflow runs; blank for no limit.' /></td>";
+	content += "<td><input size=14 id='quotadisk" + idx
+			+ "' title='The maximum disk space in bytes; blank for no limit.' /></td>";
+	content += "<td><span id='quotause" + idx
+			+ "' title='Runs, executing runs and disk bytes currently in use.'></span></td>";
+	content += "<td><button title='Remove this quota.' id='quotadel" + idx
+			+ "'>Delete</button></td>";
+	return "<tr id='quotarow" + idx + "' class='quotarows'>" + content
+			+ "</tr>";
+}
+
+/** Cached information about quotas. */
+var quotainfo = [];
+
+/** How to update the table of quotas; called on demand */
+function refreshQuotas() {
+	var quotatable = $("#quotaList");
+	getJSON(where("quotas"), function(data) {
+		$(".quotarows").remove();
+		quotainfo = [];
+		var urls = [];
+		$.each(asArray(data.quotaList.user), function(idx, url) {
+			urls.push({
+				kind : "user",
+				url : url
+			});
+		});
+		$.each(asArray(data.quotaList.group), function(idx, url) {
+			urls.push({
+				kind : "group",
+				url : url
+			});
+		});
+		$.each(urls, function(idx, item) {
+			quotatable.append(quotaRowHTML(idx));
+			var i = idx;
+			quotainfo[i] = item;
+			getJSON(item.url, function(data) {
+				var model = quotainfo[i].model = data.quotaDesc;
+				$("#quotakind" + i).html(item.kind);
+				$("#quotaname" + i).text(model.name);
+				$.each([ [ "runs", "maxRuns" ], [ "operating", "maxOperating" ],
+						[ "disk", "maxDiskBytes" ] ], function(n, pair) {
+					$("#quota" + pair[0] + i).val(limitText(model[pair[1]]))
+							.change(function() {
+								model[pair[1]] = $.trim($(this).val());
+								updateQuota(i);
+							});
+				});
+				if (item.kind == "user")
+					$("#quotause" + i).text(
+							limitText(model.currentRuns) + " / "
+									+ limitText(model.currentOperating) + " / "
+									+ limitText(model.currentDiskBytes));
+				$("#quotadel" + i).button({
+					icons : {
+						primary : "ui-icon-trash"
+					},
+					text : false
+				}).click(function() {
+					deleteQuota(i);
+				});
+			});
+			return true;
+		});
+	});
+}
+
+/** Make the XML description of a quota */
+function quotaXML(name, runs, operating, disk) {
+	function limit(elem, value) {
+		if (value == undefined || value === "")
+			return undefined;
+		return Node(elem, value);
+	}
+	return Node("quotaDesc", Node("name", name), limit("maxRuns", runs),
+			limit("maxOperating", operating), limit("maxDiskBytes", disk));
+}
+
+/** How to update a quota by index */
+function updateQuota(idx) {
+	var model = quotainfo[idx].model;
+	putXML(quotainfo[idx].url, quotaXML(model.name, model.maxRuns,
+			model.maxOperating, model.maxDiskBytes), function() {
+		refreshQuotas();
+	});
+}
+
+/** How to delete a quota by index (with dialog) */
+function deleteQuota(idx) {
+	$("#dialog-confirm-quota").dialog({
+		modal : true,
+		autoOpen : false,
+		buttons : {
+			"OK" : function() {
+				$(this).dialog("close");
+				deleteUrl(quotainfo[idx].url, function() {
+					refreshQuotas();
+				});
+			},
+			"Cancel" : function() {
+				$(this).dialog("close");
+			}
+		}
+	});
+	$("#dialog-confirm-quota").dialog("open");
+}
+
+/** What happens when the user tries to set a new quota */
+function setNewQuota() {
+	var kind = $("#newQuotaKind").val(), name = $.trim($("#newQuotaName")
+			.val());
+	if (name == "") {
+		alert("Won't set quota; need the name of a user or group!");
+		return;
+	}
+	var xml = quotaXML(name, $.trim($("#newQuotaRuns").val()), $.trim($(
+			"#newQuotaOperating").val()), $.trim($("#newQuotaDisk").val()));
+	putXML(where("quotas/" + kind + "/" + encodeURIComponent(name)), xml,
+			function() {
+				$("#newQuotaName").val("");
+				refreshQuotas();
+			});
+}
+
 /** What happens when the user tries to make a new user */
 function makeNewUser() {
 	var sysid = $("#newSysID").val();
@@ -536,6 +684,10 @@ $(function() {
 	$("#makeNewUser").button().click(function() {
 		makeNewUser();
 	});
+	refreshQuotas();
+	$("#setNewQuota").button().click(function() {
+		setNewQuota();
+	});
 	$("#extra-prop-add").button().click(function() {
 		addExtraArg("#dialog-property", "-D", "#prop-key", "#prop-value");
 	});
@@ -35,6 +35,7 @@ import org.taverna.server.master.common.Workflow;
 import org.taverna.server.master.rest.DirectoryContents;
 import org.taverna.server.master.rest.ListenerDefinition;
 import org.taverna.server.master.rest.MakeOrUpdateDirEntry;
+import org.taverna.server.master.rest.RunEventsREST.EventList;
 import org.taverna.server.master.rest.TavernaServerInputREST.InDesc;
 import org.taverna.server.master.rest.TavernaServerInputREST.InputsDescriptor;
 import org.taverna.server.master.rest.TavernaServerListenersREST.ListenerDescription;
@@ -259,6 +260,11 @@ public class JaxbSanityTest {
 		testJAXB(CapabilityList.class);
 	}
 
+	@Test
+	public void testJAXBForRunEvents() throws Exception {
+		testJAXB(EventList.class);
+	}
+
 	@Test
 	public void testJAXBForEverythingREST() throws Exception {
 		testJAXB(DirEntryReference.class, InputDescription.class,
@@ -276,7 +282,7 @@ public class JaxbSanityTest {
 				TavernaServerSecurityREST.Descriptor.class,
 				TavernaServerSecurityREST.PermissionDescription.class,
 				TavernaServerSecurityREST.PermissionsDescription.class,
-				Capability.class, CapabilityList.class);
+				Capability.class, CapabilityList.class, EventList.class);
 	}
 
 	@Test
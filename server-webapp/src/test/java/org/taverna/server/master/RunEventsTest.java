@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master;
+
+import static org.apache.cxf.transport.http.AbstractHTTPDestination.HTTP_RESPONSE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.taverna.server.master.common.Status.Finished;
+import static org.taverna.server.master.common.Status.Operating;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.Response;
+
+import org.apache.cxf.continuations.Continuation;
+import org.apache.cxf.continuations.ContinuationProvider;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.notification.RunEventBus;
+import org.taverna.server.master.utils.RateLimiter;
+import org.taverna.server.master.utils.RateLimiter.Permit;
+
+public class RunEventsTest {
+	RunEventBus bus;
+	RateLimiter limiter;
+	Message message;
+	RunEvents events;
+
+	@Before
+	public void setUp() {
+		bus = new RunEventBus();
+		limiter = new RateLimiter();
+		limiter.setEnabled(true);
+		limiter.setRate(0);
+		limiter.setMaxInFlight(1);
+		message = new MessageImpl();
+		Exchange exchange = new ExchangeImpl();
+		message.setExchange(exchange);
+		exchange.setInMessage(message);
+		// As in a container without continuations
+		events = new RunEvents() {
+			@Override
+			Message currentMessage() {
+				return message;
+			}
+		};
+		events.setRunEventBus(bus);
+		events.connect((TavernaRun) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { TavernaRun.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getId"))
+							return "run";
+						if (method.getName().equals("getStatus"))
+							return Operating;
+						return null;
+					}
+				}));
+	}
+
+	@After
+	public void tearDown() {
+		bus.expireWatches();
+	}
+
+	@Test
+	public void blockedWaitDoesNotHoldPermit() throws Exception {
+		Permit permit = limiter.acquire("alice");
+		assertTrue(permit.isGranted());
+		message.getExchange().put(Permit.class, permit);
+		// The only call allowed is in progress
+		assertFalse(limiter.acquire("alice").isGranted());
+
+		final String since = Long.toString(bus.getLatest());
+		final Response[] answer = new Response[1];
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				answer[0] = events.getEvents(since, 30);
+			}
+		};
+		waiter.start();
+		while (bus.getWatchCount() == 0 && waiter.isAlive())
+			Thread.sleep(10);
+		assertTrue("should be waiting", waiter.isAlive());
+
+		Permit other = limiter.acquire("alice");
+		assertTrue("waiting call still counted as in progress",
+				other.isGranted());
+		other.release();
+
+		bus.statusChanged("run", Finished);
+		waiter.join(10000);
+		assertFalse(waiter.isAlive());
+		assertEquals(200, answer[0].getStatus());
+		assertEquals(0, limiter.getInFlightCount());
+	}
+
+	@Test
+	public void refusedWaitAsksClientToComeBackLater() {
+		bus.setMaxBlocking(0);
+		Response answer = events.getEvents(Long.toString(bus.getLatest()), 30);
+		assertEquals(503, answer.getStatus());
+		assertNotNull(answer.getMetadata().getFirst("Retry-After"));
+	}
+
+	/** Returns the given result from the named method, and nothing else. */
+	private static <T> T stub(Class<T> type, final String name,
+			final Object result) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals(name))
+							return result;
+						return method.getReturnType() == boolean.class ? false
+								: null;
+					}
+				}));
+	}
+
+	@Test
+	public void streamStaysOpenAcrossBatches() throws Exception {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final boolean[] state = { true, false }; // isNew, resumed
+		message.put(HTTP_RESPONSE, stub(HttpServletResponse.class,
+				"getOutputStream", new ServletOutputStream() {
+					@Override
+					public void write(int b) {
+						synchronized (body) {
+							body.write(b);
+						}
+					}
+				}));
+		Continuation continuation = (Continuation) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { Continuation.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						switch (method.getName()) {
+						case "isNew":
+							return state[0];
+						case "suspend":
+							state[0] = false;
+							return true;
+						case "resume":
+							state[1] = true;
+							return null;
+						default:
+							return (method.getReturnType() == boolean.class ? false
+									: null);
+						}
+					}
+				});
+		message.put(ContinuationProvider.class.getName(), stub(
+				ContinuationProvider.class, "getContinuation", continuation));
+
+		String since = Long.toString(bus.getLatest());
+		assertNull(events.streamEvents(since, null, 1));
+		bus.publish("run", RunEventBus.INTERACTION, "entry_1");
+		bus.publish("run", RunEventBus.INTERACTION, "entry_2");
+		String text;
+		synchronized (body) {
+			text = body.toString("UTF-8");
+		}
+		assertTrue(text.contains("data: entry_1\n"));
+		assertTrue(text.contains("data: entry_2\n"));
+		assertFalse("stream ended after one batch", state[1]);
+
+		Thread.sleep(1300);
+		bus.expireWatches();
+		assertTrue("stream not ended at its timeout", state[1]);
+		assertEquals(200, message.getExchange().get(Response.class)
+				.getStatus());
+	}
+}
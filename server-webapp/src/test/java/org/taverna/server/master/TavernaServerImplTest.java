@@ -115,6 +115,11 @@ public class TavernaServerImplTest {
 					protected InteractionFeed makeInteractionFeed() {
 						return null; // TODO...
 					}
+
+					@Override
+					protected RunEvents makeEventsInterface() {
+						return new RunEvents();
+					}
 				};
 			}
 
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
+import javax.xml.bind.JAXBException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -53,4 +54,27 @@ public class WorkflowSerializationTest {
 		Assert.assertEquals(1, e.getChildNodes().getLength());
 		Assert.assertEquals("abc", e.getAttribute("xyz"));
 	}
+
+	@Test
+	public void testWorkflowStringRoundTrip()
+			throws ParserConfigurationException, JAXBException {
+		Workflow w = new Workflow();
+		w.content = new Element[1];
+		DocumentBuilder db = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder();
+		Document doc = db.getDOMImplementation().createDocument(null, null,
+				null);
+		w.content[0] = doc.createElementNS("http://example.com/", "foo");
+		w.content[0].setTextContent("bar");
+
+		String xml = w.marshal();
+		for (int i = 0; i < 3; i++) {
+			Workflow w2 = Workflow.unmarshal(xml);
+			Assert.assertNotNull(w2.content);
+			Assert.assertEquals(1, w2.content.length);
+			Assert.assertEquals("foo", w2.content[0].getLocalName());
+			Assert.assertEquals("bar", w2.content[0].getTextContent());
+			Assert.assertEquals(xml, w2.marshal());
+		}
+	}
 }
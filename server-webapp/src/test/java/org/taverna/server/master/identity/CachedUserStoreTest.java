@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.taverna.server.master.identity.UserStore.CachedUserStore;
+
+public class CachedUserStoreTest {
+	private CachedUserStore cache;
+	private int loads;
+	/** Something to do in the middle of loading a user, or <tt>null</tt>. */
+	private Runnable duringLoad;
+
+	@Before
+	public void setUp() {
+		loads = 0;
+		duringLoad = null;
+		cache = new CachedUserStore();
+		cache.setRealStore(new UserStore() {
+			@Override
+			public UserDetails loadUserByUsername(String username) {
+				loads++;
+				if (duringLoad != null)
+					duringLoad.run();
+				return new org.springframework.security.core.userdetails.User(
+						username, "pass" + loads,
+						Collections.<GrantedAuthority> emptyList());
+			}
+		});
+	}
+
+	@Test
+	public void detailsAreCached() {
+		UserDetails first = cache.loadUserByUsername("alice");
+		assertSame(first, cache.loadUserByUsername("alice"));
+		assertEquals(1, loads);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		cache.loadUserByUsername("bob");
+		assertEquals(2, loads);
+		assertEquals(2, cache.getSize());
+	}
+
+	@Test
+	public void entriesExpire() throws InterruptedException {
+		cache.setLifetime(0);
+		UserDetails first = cache.loadUserByUsername("alice");
+		Thread.sleep(10);
+		assertNotSame(first, cache.loadUserByUsername("alice"));
+		assertEquals(2, loads);
+		assertEquals(0, cache.getHits());
+	}
+
+	@Test
+	public void changesInvalidate() {
+		cache.loadUserByUsername("alice");
+		cache.loadUserByUsername("bob");
+		cache.userChanged("alice");
+		assertEquals(1, cache.getSize());
+		assertEquals("pass3", cache.loadUserByUsername("alice").getPassword());
+		assertEquals("pass2", cache.loadUserByUsername("bob").getPassword());
+		cache.allUsersChanged();
+		assertEquals(0, cache.getSize());
+		cache.loadUserByUsername("bob");
+		assertEquals(4, loads);
+	}
+
+	@Test
+	public void loadRacingWithChangeIsNotKept() {
+		duringLoad = new Runnable() {
+			@Override
+			public void run() {
+				// The user is altered while the old details are being read
+				cache.userChanged("alice");
+			}
+		};
+		cache.loadUserByUsername("alice");
+		assertEquals(0, cache.getSize());
+		duringLoad = null;
+		cache.loadUserByUsername("alice");
+		cache.loadUserByUsername("alice");
+		assertEquals(2, loads);
+		assertEquals(1, cache.getSize());
+	}
+}
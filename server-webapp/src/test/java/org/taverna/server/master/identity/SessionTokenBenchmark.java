@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.identity;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * Measures the cost of authenticating a request by checking a password with
+ * the bcrypt encoder that <tt>beans.xml</tt> configures, compared with
+ * checking a session token. A JMH benchmark; it needs the JMH annotation
+ * processor, so it is only built and run with the <tt>benchmark</tt> profile,
+ * which runs it through {@link #latency()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SessionTokenBenchmark {
+	private BCryptPasswordEncoder encoder;
+	private String hash;
+	private SessionTokenFilter filter;
+	private String token;
+
+	@Setup
+	public void setUp() {
+		encoder = new BCryptPasswordEncoder();
+		hash = encoder.encode("secret");
+		filter = new SessionTokenFilter();
+		filter.setUserStore(new UserStore());
+		filter.setLifetime(600);
+		filter.start();
+		token = filter.makeToken("alice", currentTimeMillis());
+	}
+
+	@TearDown
+	public void tearDown() {
+		filter.stop();
+	}
+
+	@Benchmark
+	public boolean passwordCheck() {
+		return encoder.matches("secret", hash);
+	}
+
+	@Benchmark
+	public String sessionTokenCheck() {
+		return filter.validate(token);
+	}
+
+	@Test
+	public void latency() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				SessionTokenBenchmark.class.getName()).build()).run();
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.identity;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.security.core.context.SecurityContextHolder.clearContext;
+import static org.springframework.security.core.context.SecurityContextHolder.getContext;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.servlet.GenericServlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.crypto.codec.Base64;
+import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
+
+public class SessionTokenFilterTest {
+	static class ClockedFilter extends SessionTokenFilter {
+		long time = currentTimeMillis();
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	private ClockedFilter filter;
+	private BasicAuthenticationFilter basicFilter;
+	/** Who the servlet behind the filters saw the request as being from. */
+	private Authentication seen;
+
+	@Before
+	public void setUp() {
+		UserDetailsService users = new UserDetailsService() {
+			@Override
+			public UserDetails loadUserByUsername(String username) {
+				if (!username.equals("alice"))
+					throw new UsernameNotFoundException(username);
+				return new org.springframework.security.core.userdetails.User(
+						"alice", "secret",
+						Collections.<GrantedAuthority> emptyList());
+			}
+		};
+		filter = new ClockedFilter();
+		filter.setUserStore(new UserStore());
+		filter.setUserDetailsService(users);
+		filter.setLifetime(60);
+		filter.start();
+
+		DaoAuthenticationProvider provider = new DaoAuthenticationProvider();
+		provider.setUserDetailsService(users);
+		ProviderManager manager = new ProviderManager(
+				singletonList((AuthenticationProvider) provider));
+		// As configured by the security namespace
+		manager.setEraseCredentialsAfterAuthentication(true);
+		basicFilter = new BasicAuthenticationFilter(manager);
+		clearContext();
+	}
+
+	@After
+	public void tearDown() {
+		filter.stop();
+		clearContext();
+	}
+
+	private MockHttpServletResponse request(MockHttpServletRequest request)
+			throws IOException, ServletException {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		seen = null;
+		new MockFilterChain(new GenericServlet() {
+			@Override
+			public void service(ServletRequest req, ServletResponse res) {
+				seen = getContext().getAuthentication();
+			}
+		}, basicFilter, filter).doFilter(request, response);
+		clearContext();
+		return response;
+	}
+
+	private static String basic(String user, String pass) throws Exception {
+		return "Basic "
+				+ new String(Base64.encode((user + ":" + pass)
+						.getBytes("UTF-8")), "UTF-8");
+	}
+
+	@Test
+	public void passwordLoginIssuesToken() throws Exception {
+		MockHttpServletRequest req = new MockHttpServletRequest("GET",
+				"/rest/runs");
+		req.addHeader("Authorization", basic("alice", "secret"));
+		MockHttpServletResponse res = request(req);
+		assertEquals("alice", seen.getName());
+		String token = res.getHeader(SessionTokenFilter.HEADER);
+		assertNotNull(token);
+		assertEquals("alice", filter.validate(token));
+		String cookie = res.getHeader("Set-Cookie");
+		assertTrue(cookie.startsWith(SessionTokenFilter.COOKIE + "=" + token
+				+ ";"));
+		assertTrue(cookie.contains("; HttpOnly"));
+		assertTrue(cookie.contains("; Secure"));
+		assertTrue(cookie.contains("; SameSite=Strict"));
+	}
+
+	@Test
+	public void tokenOnlyReissuedWhenNeeded() throws Exception {
+		MockHttpServletRequest req = new MockHttpServletRequest("GET",
+				"/rest/runs");
+		req.addHeader("Authorization", basic("alice", "secret"));
+		String token = request(req).getHeader(SessionTokenFilter.HEADER);
+
+		// Password and a fresh token: nothing new issued
+		filter.time += 10000;
+		req = new MockHttpServletRequest("GET", "/rest/runs");
+		req.addHeader("Authorization", basic("alice", "secret"));
+		req.setCookies(new Cookie(SessionTokenFilter.COOKIE, token));
+		MockHttpServletResponse res = request(req);
+		assertEquals("alice", seen.getName());
+		assertNull(res.getHeader(SessionTokenFilter.HEADER));
+		assertNull(res.getHeader("Set-Cookie"));
+
+		// Past half its lifetime: renewed
+		filter.time += 25000;
+		req = new MockHttpServletRequest("GET", "/rest/runs");
+		req.addHeader("Authorization", basic("alice", "secret"));
+		req.addHeader(SessionTokenFilter.HEADER, token);
+		String renewed = request(req).getHeader(SessionTokenFilter.HEADER);
+		assertNotNull(renewed);
+		assertFalse(token.equals(renewed));
+
+		// Someone else's token: replaced
+		req = new MockHttpServletRequest("GET", "/rest/runs");
+		req.addHeader("Authorization", basic("alice", "secret"));
+		req.addHeader(SessionTokenFilter.HEADER,
+				filter.makeToken("bob", filter.time));
+		assertNotNull(request(req).getHeader(SessionTokenFilter.HEADER));
+	}
+
+	@Test
+	public void tokenAuthenticatesLaterRequests() throws Exception {
+		MockHttpServletRequest req = new MockHttpServletRequest("GET",
+				"/rest/runs");
+		req.addHeader("Authorization", basic("alice", "secret"));
+		String token = request(req).getHeader(
+				SessionTokenFilter.HEADER);
+
+		req = new MockHttpServletRequest("GET", "/rest/runs");
+		req.setCookies(new Cookie(SessionTokenFilter.COOKIE, token));
+		MockHttpServletResponse res = request(req);
+		assertEquals("alice", seen.getName());
+		assertNull(res.getHeader(SessionTokenFilter.HEADER));
+
+		req = new MockHttpServletRequest("GET", "/rest/runs");
+		req.addHeader(SessionTokenFilter.HEADER, token + "x");
+		request(req);
+		assertNull(seen);
+	}
+
+	@Test
+	public void noTokenWithoutPassword() throws Exception {
+		request(new MockHttpServletRequest("GET", "/rest/runs"));
+		assertNull(seen);
+		MockHttpServletRequest req = new MockHttpServletRequest("GET",
+				"/rest/runs");
+		req.addHeader("Authorization", basic("alice", "wrong"));
+		assertNull(request(req).getHeader(SessionTokenFilter.HEADER));
+	}
+
+	@Test
+	public void roundTrip() {
+		String token = filter.makeToken("alice", currentTimeMillis() + 1);
+		assertEquals("alice", filter.validate(token));
+	}
+
+	@Test
+	public void tamperingDetected() {
+		String token = filter.makeToken("alice", currentTimeMillis() + 1);
+		String forged = filter.makeToken("bob", currentTimeMillis() + 1);
+		String[] a = token.split("\\."), b = forged.split("\\.");
+		assertNull(filter.validate(b[0] + "." + a[1] + "." + a[2]));
+		assertNull(filter.validate(token + "x"));
+		assertNull(filter.validate("garbage"));
+	}
+
+	@Test
+	public void expiredTokensRejected() {
+		assertNull(filter.validate(filter.makeToken("alice",
+				currentTimeMillis() - 61000)));
+	}
+
+	@Test
+	public void userChangeRevokesTokens() {
+		String alice = filter.makeToken("alice", currentTimeMillis() - 1);
+		String bob = filter.makeToken("bob", currentTimeMillis() - 1);
+		filter.userChanged("alice");
+		assertNull(filter.validate(alice));
+		assertEquals("bob", filter.validate(bob));
+		filter.allUsersChanged();
+		assertNull(filter.validate(bob));
+	}
+
+	@Test
+	public void oldRevocationsForgotten() {
+		String alice = filter.makeToken("alice", filter.time - 1);
+		filter.userChanged("alice");
+		filter.userChanged("bob");
+		assertEquals(2, filter.revocationCount());
+		filter.time += 61000;
+		assertNull(filter.validate(alice));
+		filter.userChanged("carol");
+		assertEquals(1, filter.revocationCount());
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.interaction;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FeedIndexTest {
+	FeedIndex index;
+	Map<String, Date> listing;
+
+	@Before
+	public void setUp() {
+		index = new FeedIndex();
+		listing = new HashMap<>();
+	}
+
+	private List<String> names(List<FeedIndex.Item> items) {
+		List<String> names = new ArrayList<>();
+		for (FeedIndex.Item item : items)
+			names.add(item.name);
+		return names;
+	}
+
+	@Test
+	public void onlyNewOrChangedFilesAreCounted() {
+		for (int i = 0; i < 100; i++)
+			listing.put("e" + i, new Date(i * 1000));
+		assertEquals(100, index.sync(listing));
+		assertEquals(0, index.sync(listing));
+		listing.put("e5", new Date(500000));
+		listing.put("e100", new Date(100000));
+		listing.remove("e7");
+		assertEquals(2, index.sync(listing));
+		assertEquals(100, index.size());
+		assertEquals("[e5, e100]", names(index.page(null, 2)).toString());
+	}
+
+	@Test
+	public void unreadableFilesAreSkippedUntilChanged() {
+		listing.put("a", new Date(1000));
+		listing.put("bad", new Date(2000));
+		index.sync(listing);
+		index.unreadable(index.page(null, 1).get(0));
+		index.sync(listing);
+		assertEquals("[a]", names(index.page(null, -1)).toString());
+		// The unreadable entry can still be used as a cursor
+		assertEquals("[a]", names(index.page("bad", -1)).toString());
+		listing.put("bad", new Date(3000));
+		index.sync(listing);
+		assertEquals("[bad, a]", names(index.page(null, -1)).toString());
+	}
+
+	@Test
+	public void addedEntriesAreNotCountedAsNew() {
+		listing.put("a", new Date(1000));
+		index.sync(listing);
+		index.add("b");
+		listing.put("b", new Date(2000));
+		assertEquals(0, index.sync(listing));
+		assertEquals("[b, a]", names(index.page(null, -1)).toString());
+		index.remove("b");
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void paging() {
+		for (int i = 0; i < 10; i++)
+			listing.put("e" + i, new Date(i * 1000));
+		index.sync(listing);
+		assertEquals("[e9, e8, e7]", names(index.page(null, 3)).toString());
+		assertEquals("[e6, e5, e4]", names(index.page("e7", 3)).toString());
+		assertEquals("[e1, e0]", names(index.page("e2", 3)).toString());
+		assertEquals("[]", names(index.page("e0", 3)).toString());
+		// An unknown cursor starts from the newest
+		assertEquals("[e9]", names(index.page("gone", 1)).toString());
+	}
+}
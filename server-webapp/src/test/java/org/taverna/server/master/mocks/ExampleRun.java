@@ -144,6 +144,21 @@ public class ExampleRun implements TavernaRun, TavernaSecurityContext {
 		public boolean isAllowingRunsToStart() {
 			return true;
 		}
+
+		@Override
+		public boolean isAcceptingStartRequests() {
+			return true;
+		}
+
+		@Override
+		public int getStartQueuePosition(TavernaRun run) {
+			return 0;
+		}
+
+		@Override
+		public int getStartRetryDelay(int position) {
+			return 0;
+		}
 	}
 
 	static final String[] emptyArray = new String[0];
@@ -76,6 +76,11 @@ public class SimpleServerPolicy implements Policy {
 		// Per-user run count enforcement would come here
 	}
 
+	@Override
+	public void createFailed(UsernamePrincipal p) {
+		// Nothing reserved, so nothing to give back
+	}
+
 	@Override
 	public void permitDestroy(UsernamePrincipal p, TavernaRun run)
 			throws NoDestroyException {
@@ -0,0 +1,543 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import static java.lang.System.currentTimeMillis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.interfaces.AsyncMessageDispatcher;
+import org.taverna.server.master.interfaces.MessageDispatcher;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.notification.NotificationEngine.Message;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class NotificationEngineTest {
+	NotificationEngine engine;
+	MemoryDAO dao;
+	Sink sink;
+	HttpServer server;
+	ExecutorService serverThreads;
+	WebhookDispatcher webhook;
+	final List<String> hookBodies = Collections
+			.synchronizedList(new ArrayList<String>());
+	final AtomicInteger hookRequests = new AtomicInteger();
+	final AtomicInteger hookFailures = new AtomicInteger();
+	final AtomicLong hookDelay = new AtomicLong();
+
+	/** Keeps the notifications in memory instead of a database. */
+	static class MemoryDAO extends NotificationDAO {
+		final Map<String, Notification> records = new LinkedHashMap<>();
+
+		@Override
+		public synchronized void save(Notification notification) {
+			records.put(notification.getId(), notification);
+		}
+
+		@Override
+		public synchronized void delivered(String id) {
+			records.remove(id);
+		}
+
+		@Override
+		public synchronized void failed(String id, int attempts,
+				Date nextAttempt, String error) {
+			Notification n = records.get(id);
+			if (n != null)
+				n.failed(attempts, nextAttempt, error);
+		}
+
+		@Override
+		public synchronized List<Notification> getPending() {
+			List<Notification> result = new ArrayList<>();
+			for (Notification n : records.values())
+				if (!n.isDead())
+					result.add(n);
+			return result;
+		}
+
+		@Override
+		public synchronized List<Notification> getDead() {
+			List<Notification> result = new ArrayList<>();
+			for (Notification n : records.values())
+				if (n.isDead())
+					result.add(n);
+			return result;
+		}
+	}
+
+	/** Stands in for a real message fabric. */
+	static class Sink implements MessageDispatcher {
+		final List<String> sent = new ArrayList<>();
+		final AtomicInteger calls = new AtomicInteger();
+		volatile int failures;
+		volatile int deferrals;
+		volatile CountDownLatch gate;
+		volatile boolean hang;
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public void dispatch(TavernaRun originator, String messageSubject,
+				String messageContent, String targetParameter)
+				throws Exception {
+			calls.incrementAndGet();
+			if (gate != null)
+				gate.await();
+			if (hang) {
+				hang = false;
+				Thread.sleep(60000);
+			}
+			if (failures > 0) {
+				failures--;
+				throw new Exception("failed");
+			}
+			if (deferrals > 0) {
+				deferrals--;
+				throw new DeliveryDeferredException(targetParameter, 20);
+			}
+			synchronized (sent) {
+				sent.add(targetParameter + ":" + messageSubject);
+			}
+		}
+
+		int sentCount() {
+			synchronized (sent) {
+				return sent.size();
+			}
+		}
+	}
+
+	/** Takes messages, and leaves the test to report how sending went. */
+	static class LaterSink implements AsyncMessageDispatcher {
+		final List<Completion> taken = Collections
+				.synchronizedList(new ArrayList<Completion>());
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+
+		@Override
+		public String getName() {
+			return "later";
+		}
+
+		@Override
+		public void dispatch(TavernaRun originator, String messageSubject,
+				String messageContent, String targetParameter) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void dispatch(TavernaRun originator, String messageSubject,
+				String messageContent, String targetParameter,
+				Completion completion) {
+			taken.add(completion);
+		}
+	}
+
+	static final Message MESSAGE = new Message() {
+		@Override
+		public String getContent(String type) {
+			return "content";
+		}
+
+		@Override
+		public String getTitle(String type) {
+			return "subject";
+		}
+	};
+
+	private NotificationEngine makeEngine(MessageDispatcher... dispatchers) {
+		NotificationEngine e = new NotificationEngine();
+		e.setDispatchers(dispatchers.length == 0 ? Arrays
+				.<MessageDispatcher> asList(sink) : Arrays.asList(dispatchers));
+		e.setUniversalDispatchers(Arrays.<MessageDispatcher> asList());
+		e.setDao(dao);
+		e.setInitialRetryDelay(10);
+		e.setMaxRetryDelay(40);
+		e.setTimeout(5000);
+		return e;
+	}
+
+	private static void waitFor(String what, Condition condition)
+			throws InterruptedException {
+		long deadline = currentTimeMillis() + 10000;
+		while (!condition.holds()) {
+			if (currentTimeMillis() > deadline)
+				throw new AssertionError("timed out waiting for " + what);
+			Thread.sleep(5);
+		}
+	}
+
+	interface Condition {
+		boolean holds();
+	}
+
+	@Before
+	public void setUp() {
+		dao = new MemoryDAO();
+		sink = new Sink();
+		engine = makeEngine();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		engine.stop();
+		if (webhook != null)
+			webhook.close();
+		if (server != null) {
+			server.stop(0);
+			serverThreads.shutdownNow();
+		}
+	}
+
+	/**
+	 * Start a local HTTP server to stand in for a webhook, and a real
+	 * dispatcher to talk to it, and use them in a fresh engine. The server
+	 * fails the first {@link #hookFailures} requests with a 500, and takes
+	 * {@link #hookDelay} milliseconds over the first request.
+	 *
+	 * @return The URL of the webhook.
+	 */
+	private String startWebhook() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// Slow requests mustn't hold up the retries
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.createContext("/hook", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				try (InputStream in = exchange.getRequestBody()) {
+					byte[] b = new byte[4096];
+					int n;
+					while ((n = in.read(b)) > 0)
+						buffer.write(b, 0, n);
+				}
+				hookRequests.incrementAndGet();
+				long delay = hookDelay.getAndSet(0);
+				if (delay > 0)
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						return;
+					}
+				int code = 204;
+				if (hookFailures.getAndDecrement() > 0)
+					code = 500;
+				else
+					hookBodies.add(buffer.toString("UTF-8"));
+				exchange.sendResponseHeaders(code, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		webhook = new WebhookDispatcher();
+		webhook.setTimeout(4000);
+		webhook.setPermittedPrivateHosts("127.0.0.1");
+		webhook.setLinger(10);
+		webhook.init();
+		engine.stop();
+		engine = makeEngine(sink, webhook);
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/hook";
+	}
+
+	private void waitForWebhook(final int bodies) throws InterruptedException {
+		waitFor("webhook delivery", new Condition() {
+			@Override
+			public boolean holds() {
+				return hookBodies.size() == bodies;
+			}
+		});
+		waitFor("record removal", new Condition() {
+			@Override
+			public boolean holds() {
+				return dao.getPending().isEmpty();
+			}
+		});
+	}
+
+	@Test
+	public void dispatchDoesNotWaitForSending() throws Exception {
+		sink.gate = new CountDownLatch(1);
+		engine.dispatchMessage(null, "test:someone", MESSAGE);
+		assertEquals(0, sink.sentCount());
+		assertEquals(1, dao.getPending().size());
+		sink.gate.countDown();
+		waitFor("delivery", new Condition() {
+			@Override
+			public boolean holds() {
+				return sink.sentCount() == 1;
+			}
+		});
+		assertEquals("someone:subject", sink.sent.get(0));
+		waitFor("record removal", new Condition() {
+			@Override
+			public boolean holds() {
+				return dao.getPending().isEmpty();
+			}
+		});
+		assertEquals(1, engine.getDeliveredCount());
+	}
+
+	@Test
+	public void failuresAreRetriedThenGivenUp() throws Exception {
+		engine.setMaxAttempts(3);
+		sink.failures = 100;
+		engine.dispatchMessage(null, "test:someone", MESSAGE);
+		waitFor("dead letter", new Condition() {
+			@Override
+			public boolean holds() {
+				return dao.getDead().size() == 1;
+			}
+		});
+		assertEquals(3, sink.calls.get());
+		assertEquals(3, dao.getDead().get(0).getAttempts());
+		assertEquals(3, engine.getFailedAttemptCount());
+		assertEquals(1, engine.getUndeliverableCount());
+		assertTrue(dao.getPending().isEmpty());
+	}
+
+	@Test
+	public void retriesBackOffExponentially() {
+		assertEquals(10, engine.retryDelay(1));
+		assertEquals(20, engine.retryDelay(2));
+		assertEquals(40, engine.retryDelay(3));
+		assertEquals(40, engine.retryDelay(10));
+	}
+
+	@Test
+	public void transientFailureIsRetried() throws Exception {
+		sink.failures = 2;
+		engine.dispatchMessage(null, "test:someone", MESSAGE);
+		waitFor("delivery", new Condition() {
+			@Override
+			public boolean holds() {
+				return sink.sentCount() == 1;
+			}
+		});
+		assertEquals(3, sink.calls.get());
+		assertEquals(0, engine.getUndeliverableCount());
+	}
+
+	@Test
+	public void deferralIsNotFailure() throws Exception {
+		engine.setMaxAttempts(2);
+		sink.deferrals = 3;
+		engine.dispatchMessage(null, "test:someone", MESSAGE);
+		waitFor("delivery", new Condition() {
+			@Override
+			public boolean holds() {
+				return sink.sentCount() == 1;
+			}
+		});
+		assertEquals(4, sink.calls.get());
+		assertEquals(0, engine.getFailedAttemptCount());
+		assertEquals(0, engine.getUndeliverableCount());
+	}
+
+	@Test
+	public void stuckSendIsInterrupted() throws Exception {
+		engine.setTimeout(50);
+		sink.hang = true;
+		engine.dispatchMessage(null, "test:someone", MESSAGE);
+		waitFor("delivery", new Condition() {
+			@Override
+			public boolean holds() {
+				return sink.sentCount() == 1;
+			}
+		});
+		assertEquals(2, sink.calls.get());
+		assertEquals(1, engine.getFailedAttemptCount());
+	}
+
+	@Test
+	public void fullQueueDefersInsteadOfDropping() throws Exception {
+		engine.setThreadsPerDispatcher(1);
+		engine.setQueueCapacity(1);
+		sink.gate = new CountDownLatch(1);
+		for (int i = 0; i < 5; i++)
+			engine.dispatchMessage(null, "test:someone" + i, MESSAGE);
+		assertEquals(0, sink.sentCount());
+		assertEquals(5, dao.getPending().size());
+		sink.gate.countDown();
+		waitFor("delivery", new Condition() {
+			@Override
+			public boolean holds() {
+				return sink.sentCount() == 5;
+			}
+		});
+		assertEquals(0, engine.getFailedAttemptCount());
+	}
+
+	@Test
+	public void pendingNotificationsSurviveRestart() throws Exception {
+		sink.gate = new CountDownLatch(1);
+		engine.dispatchMessage(null, "test:someone", MESSAGE);
+		engine.stop();
+		assertEquals(0, sink.sentCount());
+		assertFalse(dao.getPending().isEmpty());
+
+		sink = new Sink();
+		engine = makeEngine();
+		engine.resumePending();
+		waitFor("delivery", new Condition() {
+			@Override
+			public boolean holds() {
+				return sink.sentCount() == 1;
+			}
+		});
+		assertEquals("someone:subject", sink.sent.get(0));
+		waitFor("record removal", new Condition() {
+			@Override
+			public boolean holds() {
+				return dao.getPending().isEmpty();
+			}
+		});
+	}
+
+	@Test
+	public void asyncDispatcherDoesNotHoldThread() throws Exception {
+		final LaterSink later = new LaterSink();
+		engine.stop();
+		engine = makeEngine(later);
+		engine.setThreadsPerDispatcher(1);
+		for (int i = 0; i < 3; i++)
+			engine.dispatchMessage(null, "later:someone" + i, MESSAGE);
+		waitFor("all taken", new Condition() {
+			@Override
+			public boolean holds() {
+				return later.taken.size() == 3;
+			}
+		});
+		assertEquals(3, engine.getQueuedCount());
+		for (AsyncMessageDispatcher.Completion c : later.taken)
+			c.delivered();
+		waitFor("record removal", new Condition() {
+			@Override
+			public boolean holds() {
+				return dao.getPending().isEmpty();
+			}
+		});
+		assertEquals(3, engine.getDeliveredCount());
+		assertEquals(0, engine.getQueuedCount());
+	}
+
+	@Test
+	public void unreportedAsyncSendTimesOut() throws Exception {
+		final LaterSink later = new LaterSink();
+		engine.stop();
+		engine = makeEngine(later);
+		engine.setTimeout(50);
+		engine.dispatchMessage(null, "later:someone", MESSAGE);
+		waitFor("retry", new Condition() {
+			@Override
+			public boolean holds() {
+				return later.taken.size() == 2;
+			}
+		});
+		later.taken.get(1).delivered();
+		// Too late to count
+		later.taken.get(0).delivered();
+		waitFor("record removal", new Condition() {
+			@Override
+			public boolean holds() {
+				return dao.getPending().isEmpty();
+			}
+		});
+		assertEquals(1, engine.getFailedAttemptCount());
+		assertEquals(1, engine.getDeliveredCount());
+	}
+
+	@Test
+	public void webhookErrorsAreRetried() throws Exception {
+		String url = startWebhook();
+		hookFailures.set(2);
+		engine.dispatchMessage(null, "webhook:" + url, MESSAGE);
+		waitForWebhook(1);
+		assertEquals(3, hookRequests.get());
+		assertEquals(2, engine.getFailedAttemptCount());
+		assertEquals(1, engine.getDeliveredCount());
+		assertTrue(hookBodies.get(0).contains(
+				"{\"subject\":\"subject\",\"message\":\"content\"}"));
+	}
+
+	@Test
+	public void slowWebhookTimesOutAndIsRetried() throws Exception {
+		String url = startWebhook();
+		webhook.setTimeout(200);
+		webhook.close();
+		webhook.init();
+		hookDelay.set(2000);
+		long start = currentTimeMillis();
+		engine.dispatchMessage(null, "webhook:" + url, MESSAGE);
+		waitForWebhook(1);
+		assertTrue(currentTimeMillis() - start < 2000);
+		assertEquals(2, hookRequests.get());
+		assertEquals(1, engine.getFailedAttemptCount());
+	}
+
+	@Test
+	public void webhookDeliveryResumesWithoutOriginator() throws Exception {
+		String url = startWebhook();
+		// As reloaded after a restart: no run, and no message to re-render
+		dao.save(new Notification("webhook", url, null, "subject", "content"));
+		engine.resumePending();
+		waitForWebhook(1);
+		assertTrue(hookBodies.get(0).contains("\"message\":\"content\""));
+	}
+
+	@Test
+	public void misdirectedMessageFallsBackWithoutOriginator()
+			throws Exception {
+		startWebhook();
+		dao.save(new Notification("webhook", "ftp://example.com/", null,
+				"subject", "content"));
+		engine.resumePending();
+		waitFor("delivery", new Condition() {
+			@Override
+			public boolean holds() {
+				return sink.sentCount() == 1;
+			}
+		});
+		assertEquals("webhook:ftp://example.com/:subject", sink.sent.get(0));
+		assertEquals(0, hookRequests.get());
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how fast a {@link RateLimitedDispatcher} can decide whether a
+ * message may be sent when many threads ask at once, about a mix of a few
+ * busy targets and a great many distinct ones. A JMH benchmark; it needs the
+ * JMH annotation processor, so it is only built and run with the
+ * <tt>benchmark</tt> profile, which runs it through {@link #throughput()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Threads(8)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RateLimitedDispatcherBenchmark {
+	private RateLimitedDispatcher dispatcher;
+
+	/** Where each thread is in its sequence of checks. */
+	@State(Scope.Thread)
+	public static class Checks {
+		private static int threads;
+		private int seed;
+		private int i;
+
+		@Setup
+		public void setUp() {
+			synchronized (Checks.class) {
+				seed = threads++;
+			}
+		}
+
+		/** Every other check is for one of a few busy targets. */
+		String nextTarget() {
+			i++;
+			if (i % 2 == 0)
+				return "hot" + (i % 8);
+			return "cold" + seed + "." + i;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		dispatcher = new RateLimitedDispatcher() {
+			@Override
+			public boolean isAvailable() {
+				return true;
+			}
+
+			@Override
+			public String getName() {
+				return "bench";
+			}
+
+			@Override
+			public void dispatch(String messageSubject, String messageContent,
+					String target) {
+				// Nothing to send
+			}
+		};
+		dispatcher.setCooldownSeconds(3600);
+		dispatcher.setBurst(5);
+		dispatcher.setMaxTargets(10000);
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.printf("%d targets tracked%n",
+				dispatcher.getTrackedTargets());
+	}
+
+	@Benchmark
+	public boolean isSendAllowed(Checks checks) {
+		return dispatcher.isSendAllowed(checks.nextTarget());
+	}
+
+	@Test
+	public void throughput() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				RateLimitedDispatcherBenchmark.class.getName()).build()).run();
+	}
+}
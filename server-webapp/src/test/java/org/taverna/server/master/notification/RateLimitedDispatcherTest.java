@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import static java.lang.System.nanoTime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RateLimitedDispatcherTest {
+	private static final long SECOND = 1000000000L;
+	long time;
+	Dispatcher dispatcher;
+
+	/** Counts what it is asked to send. */
+	class Dispatcher extends RateLimitedDispatcher {
+		final AtomicLong sent = new AtomicLong();
+		boolean fail;
+
+		@Override
+		long now() {
+			return time;
+		}
+
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public void dispatch(String messageSubject, String messageContent,
+				String target) throws Exception {
+			if (fail)
+				throw new Exception("failed");
+			sent.incrementAndGet();
+		}
+	}
+
+	private void send(String target, int count) throws Exception {
+		for (int i = 0; i < count; i++)
+			dispatcher.dispatch(null, "subject", "content", target);
+	}
+
+	@Before
+	public void setUp() {
+		time = 0;
+		dispatcher = new Dispatcher();
+		dispatcher.setCooldownSeconds(10);
+	}
+
+	@Test
+	public void oneMessagePerCooldownByDefault() throws Exception {
+		send("alice", 3);
+		assertEquals(1, dispatcher.sent.get());
+		time += 9 * SECOND;
+		send("alice", 1);
+		assertEquals(1, dispatcher.sent.get());
+		time += SECOND;
+		send("alice", 1);
+		assertEquals(2, dispatcher.sent.get());
+		assertEquals(3, dispatcher.getDroppedCount());
+	}
+
+	@Test
+	public void burstThenCooldown() throws Exception {
+		dispatcher.setBurst(3);
+		send("alice", 5);
+		assertEquals(3, dispatcher.sent.get());
+		// Other targets are unaffected
+		send("bob", 3);
+		assertEquals(6, dispatcher.sent.get());
+		time += 20 * SECOND;
+		send("alice", 5);
+		assertEquals(8, dispatcher.sent.get());
+		// Refilling never exceeds the burst
+		time += 3600 * SECOND;
+		send("alice", 5);
+		assertEquals(11, dispatcher.sent.get());
+	}
+
+	@Test
+	public void failedSendGivesAllowanceBack() throws Exception {
+		dispatcher.fail = true;
+		try {
+			send("alice", 1);
+		} catch (Exception e) {
+			// Expected
+		}
+		dispatcher.fail = false;
+		send("alice", 1);
+		assertEquals(1, dispatcher.sent.get());
+		send("alice", 1);
+		assertEquals(1, dispatcher.sent.get());
+	}
+
+	@Test
+	public void noCooldownMeansNoLimit() throws Exception {
+		dispatcher.setCooldownSeconds(0);
+		send("alice", 100);
+		assertEquals(100, dispatcher.sent.get());
+		assertEquals(0, dispatcher.getTrackedTargets());
+	}
+
+	@Test
+	public void memoryIsBounded() throws Exception {
+		dispatcher.setMaxTargets(1024);
+		for (int i = 0; i < 100000; i++)
+			assertTrue(dispatcher.isSendAllowed("user" + i));
+		assertTrue(dispatcher.getTrackedTargets() <= 1024);
+		// A recently seen target is still limited
+		assertFalse(dispatcher.isSendAllowed("user99999"));
+	}
+
+	@Test
+	public void burstsWaitTheirTurn() throws Exception {
+		dispatcher.setMaxDeferred(2);
+		send("alice", 1);
+		assertEquals(10000, deferral("alice", "first"));
+		// Trying again early keeps the same turn, and takes no other
+		time += 5 * SECOND;
+		assertEquals(5000, deferral("alice", "first"));
+		assertEquals(15000, deferral("alice", "second"));
+		// Too many waiting; dropped
+		send("alice", 1);
+		assertEquals(1, dispatcher.sent.get());
+		assertEquals(1, dispatcher.getDroppedCount());
+		// Each waiting message gets through at its turn
+		time += 5 * SECOND;
+		send("alice", "first");
+		assertEquals(2, dispatcher.sent.get());
+		// New messages can't overtake those waiting
+		assertEquals(20000, deferral("alice", "third"));
+		time += 10 * SECOND;
+		send("alice", "second");
+		assertEquals(3, dispatcher.sent.get());
+		// Others are unaffected
+		send("bob", 1);
+		assertEquals(4, dispatcher.sent.get());
+	}
+
+	@Test
+	public void failedDeferredSendGivesSlotBack() throws Exception {
+		dispatcher.setMaxDeferred(1);
+		send("alice", 1);
+		assertEquals(10000, deferral("alice", "first"));
+		time += 10 * SECOND;
+		dispatcher.fail = true;
+		try {
+			send("alice", "first");
+			fail("send should have failed");
+		} catch (DeliveryDeferredException e) {
+			throw e;
+		} catch (Exception e) {
+			// Expected
+		}
+		dispatcher.fail = false;
+		send("alice", "first");
+		assertEquals(2, dispatcher.sent.get());
+	}
+
+	@Test
+	public void abandonedReservationsAreForgotten() throws Exception {
+		dispatcher.setMaxDeferred(1);
+		send("alice", 1);
+		assertEquals(10000, deferral("alice", "never retried"));
+		time += 3600 * SECOND;
+		send("alice", "later");
+		assertEquals(2, dispatcher.sent.get());
+		assertEquals(0, dispatcher.getDroppedCount());
+	}
+
+	private void send(String target, String content) throws Exception {
+		dispatcher.dispatch(null, "subject", content, target);
+	}
+
+	private long deferral(String target, String content) throws Exception {
+		try {
+			send(target, content);
+		} catch (DeliveryDeferredException e) {
+			return e.getDelay();
+		}
+		throw new AssertionError("message to " + target + " not deferred");
+	}
+
+	/**
+	 * Many threads asking about a mix of a few busy targets and a great many
+	 * distinct ones. Checks that no more is allowed than the buckets hold, and
+	 * that memory stays bounded.
+	 */
+	@Test
+	public void contention() throws Exception {
+		final RateLimitedDispatcher d = new Dispatcher() {
+			@Override
+			long now() {
+				return nanoTime();
+			}
+		};
+		d.setCooldownSeconds(3600);
+		d.setBurst(5);
+		d.setMaxTargets(10000);
+		final AtomicLong allowedHot = new AtomicLong();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 20000; i++)
+						if (i % 2 == 0) {
+							if (d.isSendAllowed("hot" + (i % 8)))
+								allowedHot.incrementAndGet();
+						} else
+							d.isSendAllowed("cold" + seed + "." + i);
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		// Four hot targets with a burst of five each; refill is negligible
+		assertEquals(20, allowedHot.get());
+		assertTrue(d.getTrackedTargets() <= 10000);
+	}
+}
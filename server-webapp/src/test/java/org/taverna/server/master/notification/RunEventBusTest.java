@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.taverna.server.master.common.Status.Finished;
+import static org.taverna.server.master.common.Status.Operating;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.notification.RunEventBus.RunEvent;
+
+public class RunEventBusTest {
+	long time;
+	RunEventBus bus;
+
+	/** Remembers what it was told. */
+	static class Recorder implements RunEventBus.Watcher {
+		List<RunEvent> events;
+		long latest;
+		int calls;
+
+		@Override
+		public void deliver(List<RunEvent> events, long latest) {
+			this.events = events;
+			this.latest = latest;
+			calls++;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		time = 1000000;
+		bus = new RunEventBus() {
+			@Override
+			long now() {
+				return time;
+			}
+		};
+	}
+
+	@Test
+	public void watcherIsToldOfNextEvent() {
+		long start = bus.getLatest();
+		Recorder r = new Recorder();
+		assertTrue(bus.watch("run", start, 30000, r));
+		assertEquals(0, r.calls);
+		assertEquals(1, bus.getWatchCount());
+		// Other runs' events don't wake the watcher
+		bus.statusChanged("other", Operating);
+		assertEquals(0, r.calls);
+		bus.statusChanged("run", Operating);
+		assertEquals(1, r.calls);
+		assertEquals("Operating", r.events.get(0).getData());
+		assertEquals(r.events.get(0).getId(), r.latest);
+		assertEquals(0, bus.getWatchCount());
+		// Told only once
+		bus.statusChanged("run", Finished);
+		assertEquals(1, r.calls);
+	}
+
+	@Test
+	public void missedEventsAreDeliveredAtOnce() {
+		long start = bus.getLatest();
+		bus.statusChanged("run", Operating);
+		bus.publish("run", RunEventBus.INTERACTION, "entry_1");
+		Recorder r = new Recorder();
+		assertTrue(bus.watch("run", start, 30000, r));
+		assertEquals(1, r.calls);
+		assertEquals(2, r.events.size());
+		assertEquals("entry_1", r.events.get(1).getData());
+		assertEquals(0, bus.getWatchCount());
+		assertEquals(1, bus.eventsSince("run", r.events.get(0).getId()).size());
+	}
+
+	@Test
+	public void watchersTimeOut() {
+		Recorder r = new Recorder();
+		bus.watch("run", bus.getLatest(), 5000, r);
+		time += 4000;
+		bus.expireWatches();
+		assertEquals(0, r.calls);
+		time += 2000;
+		bus.expireWatches();
+		assertEquals(1, r.calls);
+		assertTrue(r.events.isEmpty());
+		assertEquals(bus.getLatest(), r.latest);
+		assertEquals(1, bus.getTimedOutCount());
+		assertEquals(0, bus.getWatchCount());
+	}
+
+	@Test
+	public void watchersAreLimited() {
+		bus.setMaxWatches(2);
+		long start = bus.getLatest();
+		assertTrue(bus.watch("a", start, 5000, new Recorder()));
+		assertTrue(bus.watch("b", start, 5000, new Recorder()));
+		assertFalse(bus.watch("c", start, 5000, new Recorder()));
+		bus.statusChanged("a", Operating);
+		assertTrue(bus.watch("c", start, 5000, new Recorder()));
+	}
+
+	@Test
+	public void historyIsBoundedAndExpires() {
+		long start = bus.getLatest();
+		for (int i = 0; i < 100; i++)
+			bus.publish("run", RunEventBus.INTERACTION, "entry_" + i);
+		List<RunEvent> events = bus.eventsSince("run", start);
+		assertTrue(events.size() < 100);
+		assertEquals("entry_99", events.get(events.size() - 1).getData());
+		time += 60 * 60 * 1000;
+		bus.expireWatches();
+		assertTrue(bus.eventsSince("run", start).isEmpty());
+	}
+
+	@Test
+	public void blockingWaitIsLimited() throws Exception {
+		bus = new RunEventBus();
+		bus.setMaxBlocking(1);
+		final long start = bus.getLatest();
+		final List<List<RunEvent>> got = new ArrayList<>();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					got.add(bus.await("run", start, 10000));
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		t.start();
+		while (bus.getWatchCount() == 0)
+			Thread.sleep(1);
+		assertNull(bus.await("run", start, 10000));
+		bus.runDestroyed("run");
+		t.join(10000);
+		assertEquals(RunEventBus.DESTROYED, got.get(0).get(0).getType());
+	}
+}
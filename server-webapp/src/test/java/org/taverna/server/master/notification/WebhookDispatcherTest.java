@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.interfaces.AsyncMessageDispatcher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class WebhookDispatcherTest {
+	HttpServer server;
+	String url;
+	WebhookDispatcher dispatcher;
+	final List<String> bodies = Collections
+			.synchronizedList(new ArrayList<String>());
+	final List<String> signatures = Collections
+			.synchronizedList(new ArrayList<String>());
+	final AtomicInteger failuresToGive = new AtomicInteger();
+	volatile long delay;
+
+	/** Counts the outcomes reported for messages. */
+	static class Outcomes implements AsyncMessageDispatcher.Completion {
+		final CountDownLatch done;
+		final AtomicInteger delivered = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		Outcomes(int count) {
+			done = new CountDownLatch(count);
+		}
+
+		@Override
+		public void delivered() {
+			delivered.incrementAndGet();
+			done.countDown();
+		}
+
+		@Override
+		public void failed(Exception reason) {
+			failed.incrementAndGet();
+			done.countDown();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/hook", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				try (InputStream in = exchange.getRequestBody()) {
+					byte[] b = new byte[4096];
+					int n;
+					while ((n = in.read(b)) > 0)
+						buffer.write(b, 0, n);
+				}
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					// Just answer now
+				}
+				int code = 204;
+				if (failuresToGive.getAndDecrement() > 0)
+					code = 500;
+				else {
+					bodies.add(buffer.toString("UTF-8"));
+					signatures.add(exchange.getRequestHeaders().getFirst(
+							WebhookDispatcher.SIGNATURE_HEADER));
+				}
+				exchange.sendResponseHeaders(code, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/hook";
+		dispatcher = new WebhookDispatcher();
+		dispatcher.setTimeout(5000);
+		dispatcher.setLinger(100);
+		dispatcher.setPermittedPrivateHosts("127.0.0.1");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		dispatcher.close();
+		server.stop(0);
+	}
+
+	@Test
+	public void sendsOneMessage() throws Exception {
+		dispatcher.init();
+		assertTrue(dispatcher.isAvailable());
+		dispatcher.dispatch(null, "Done", "{\"event\":\"finished\"}", url);
+		assertEquals(1, bodies.size());
+		assertTrue(bodies.get(0).startsWith("{\"sent\":\""));
+		assertTrue(bodies.get(0).endsWith(
+				",\"events\":[{\"event\":\"finished\"}]}"));
+		assertEquals(null, signatures.get(0));
+	}
+
+	@Test
+	public void wrapsPlainText() throws Exception {
+		dispatcher.init();
+		dispatcher.dispatch(null, "Done", "line \"one\"\nline two", url);
+		assertTrue(bodies.get(0).endsWith(
+				"[{\"subject\":\"Done\",\"message\":\"line \\\"one\\\"\\nline two\"}]}"));
+	}
+
+	@Test
+	public void burstsAreBatched() throws Exception {
+		dispatcher.setLinger(500);
+		dispatcher.init();
+		final int count = 10;
+		final CountDownLatch go = new CountDownLatch(1);
+		final AtomicInteger failed = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			final int n = i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						go.await();
+						dispatcher.dispatch(null, "s", "{\"n\":" + n + "}", url);
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		go.countDown();
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, failed.get());
+		assertEquals(count, dispatcher.getEventCount());
+		assertTrue("no batching happened",
+				dispatcher.getRequestCount() < count);
+		int events = 0;
+		for (String body : bodies)
+			events += body.split("\\{\"n\":").length - 1;
+		assertEquals(count, events);
+	}
+
+	@Test
+	public void fullBatchesGoAtOnce() throws Exception {
+		dispatcher.setLinger(60000);
+		dispatcher.setMaxBatch(1);
+		dispatcher.init();
+		long start = System.currentTimeMillis();
+		dispatcher.dispatch(null, "s", "{}", url);
+		assertTrue(System.currentTimeMillis() - start < 30000);
+		assertEquals(1, bodies.size());
+	}
+
+	@Test
+	public void signsRequests() throws Exception {
+		dispatcher.setSecret("sesame");
+		dispatcher.init();
+		dispatcher.dispatch(null, "s", "{\"a\":1}", url);
+		assertEquals("sha256=" + WebhookDispatcher.sign("sesame", bodies.get(0)),
+				signatures.get(0));
+		// Known answer for HMAC-SHA256
+		assertEquals(
+				"f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8",
+				WebhookDispatcher.sign("key",
+						"The quick brown fox jumps over the lazy dog"));
+	}
+
+	@Test
+	public void unconfiguredSecretDoesNotSign() throws Exception {
+		dispatcher.setSecret("${webhook.secret}");
+		dispatcher.init();
+		dispatcher.dispatch(null, "s", "{}", url);
+		assertEquals(null, signatures.get(0));
+	}
+
+	@Test
+	public void errorResponsesFail() throws Exception {
+		dispatcher.init();
+		failuresToGive.set(1);
+		try {
+			dispatcher.dispatch(null, "s", "{}", url);
+			fail("should have failed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("500"));
+		}
+		assertEquals(1, dispatcher.getFailedRequestCount());
+		// The retry, on the same pooled client, works
+		dispatcher.dispatch(null, "s", "{}", url);
+		assertEquals(1, bodies.size());
+		assertEquals(2, dispatcher.getRequestCount());
+	}
+
+	@Test
+	public void rejectsNonHttpTargets() throws Exception {
+		dispatcher.init();
+		for (String target : new String[] { "ftp://example.com/x", "/hook",
+				"mailto:someone@example.com" })
+			try {
+				dispatcher.dispatch(null, "s", "{}", target);
+				fail("should have rejected " + target);
+			} catch (URISyntaxException e) {
+				// Expected
+			}
+		assertEquals(0, dispatcher.getRequestCount());
+	}
+
+	@Test
+	public void wrapsMalformedJson() throws Exception {
+		dispatcher.init();
+		dispatcher.dispatch(null, "Done", "{\"a\":1},{\"b\":2}", url);
+		assertTrue(bodies.get(0).endsWith(
+				"[{\"subject\":\"Done\",\"message\":\"{\\\"a\\\":1},{\\\"b\\\":2}\"}]}"));
+	}
+
+	@Test
+	public void jsonObjectsAreRecognised() {
+		for (String json : new String[] { "{}", "{\"a\":[1,-2.5,true]}",
+				" {\"a\":{\"b\":null}} " })
+			assertEquals(json, json.trim(), WebhookDispatcher.asJsonObject(json)
+					.replace(" ", ""));
+		for (String json : new String[] { "{", "{}}", "{},{}", "[1]",
+				"{\"a\" 1}", "plain text" })
+			assertNull(json, WebhookDispatcher.asJsonObject(json));
+	}
+
+	@Test
+	public void internalAddressesAreRefused() throws Exception {
+		dispatcher.setPermittedPrivateHosts("${webhook.permitPrivate}");
+		dispatcher.init();
+		try {
+			dispatcher.dispatch(null, "s", "{}", url);
+			fail("should have refused loopback webhook");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("not permitted"));
+		}
+		assertEquals(0, bodies.size());
+		assertTrue(WebhookDispatcher.isInternal(InetAddress
+				.getByName("192.168.1.1")));
+		assertTrue(WebhookDispatcher.isInternal(InetAddress
+				.getByName("169.254.169.254")));
+		assertTrue(WebhookDispatcher.isInternal(InetAddress
+				.getByName("fd00::1")));
+		assertFalse(WebhookDispatcher.isInternal(InetAddress
+				.getByName("192.0.2.1")));
+	}
+
+	@Test
+	public void allHostsMayBePermitted() throws Exception {
+		dispatcher.setPermittedPrivateHosts("*");
+		dispatcher.init();
+		dispatcher.dispatch(null, "s", "{}", url);
+		assertEquals(1, bodies.size());
+	}
+
+	@Test
+	public void slowWebhookFailsWithinTimeout() throws Exception {
+		delay = 3000;
+		dispatcher.setTimeout(500);
+		dispatcher.init();
+		long start = System.currentTimeMillis();
+		try {
+			dispatcher.dispatch(null, "s", "{}", url);
+			fail("should have timed out");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertTrue(System.currentTimeMillis() - start < 2000);
+	}
+
+	@Test
+	public void interruptedWaiterGetsBatchOutcome() throws Exception {
+		delay = 300;
+		dispatcher.setLinger(200);
+		dispatcher.init();
+		final List<Exception> failures = Collections
+				.synchronizedList(new ArrayList<Exception>());
+		final AtomicInteger interrupted = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						dispatcher.dispatch(null, "s", "{}", url);
+					} catch (Exception e) {
+						failures.add(e);
+					}
+					if (isInterrupted())
+						interrupted.incrementAndGet();
+				}
+			};
+			t.start();
+			threads.add(t);
+			Thread.sleep(50);
+		}
+		// The second thread has joined the first's batch and is waiting
+		Thread.sleep(100);
+		threads.get(1).interrupt();
+		for (Thread t : threads)
+			t.join();
+		assertEquals(Collections.emptyList(), failures);
+		assertEquals(1, interrupted.get());
+		assertEquals(1, dispatcher.getRequestCount());
+		assertEquals(1, bodies.size());
+	}
+
+	@Test
+	public void takingMessagesDoesNotWaitForSending() throws Exception {
+		delay = 300;
+		dispatcher.setMaxBatch(5);
+		dispatcher.init();
+		Outcomes outcomes = new Outcomes(10);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++)
+			dispatcher.dispatch(null, "s", "{\"n\":" + i + "}", url, outcomes);
+		assertTrue(System.currentTimeMillis() - start < delay);
+		assertTrue(outcomes.done.await(5, TimeUnit.SECONDS));
+		assertEquals(10, outcomes.delivered.get());
+		// One thread was enough to fill the batches
+		assertEquals(2, dispatcher.getRequestCount());
+	}
+
+	@Test
+	public void fullQueueIsDeferred() throws Exception {
+		dispatcher.setLinger(60000);
+		dispatcher.setMaxQueued(2);
+		dispatcher.init();
+		Outcomes outcomes = new Outcomes(2);
+		dispatcher.dispatch(null, "s", "{}", url, outcomes);
+		dispatcher.dispatch(null, "s", "{}", url, outcomes);
+		try {
+			dispatcher.dispatch(null, "s", "{}", url, outcomes);
+			fail("should have deferred");
+		} catch (DeliveryDeferredException e) {
+			// Expected
+		}
+		assertEquals(0, dispatcher.getRequestCount());
+	}
+
+	@Test
+	public void quoting() {
+		assertEquals("\"a\\\\b\\u0001\\t\u00e9\"",
+				WebhookDispatcher.quote("a\\b\u0001\t\u00e9"));
+	}
+}
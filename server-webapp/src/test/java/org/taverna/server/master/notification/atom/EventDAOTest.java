@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification.atom;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.UriBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.interfaces.TavernaSecurityContext;
+import org.taverna.server.master.interfaces.UriBuilderFactory;
+import org.taverna.server.master.utils.UsernamePrincipal;
+
+public class EventDAOTest {
+	static final URI LINK = URI.create("http://localhost/runs/test");
+	static final UsernamePrincipal OWNER = new UsernamePrincipal("test");
+	EventDAO dao;
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(Class<T> iface, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(iface.getClassLoader(),
+				new Class<?>[] { iface }, handler);
+	}
+
+	static UriBuilderFactory uriBuilderFactory() {
+		return proxy(UriBuilderFactory.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				return UriBuilder.fromUri(LINK);
+			}
+		});
+	}
+
+	static TavernaRun run() {
+		final TavernaSecurityContext context = proxy(
+				TavernaSecurityContext.class, new InvocationHandler() {
+					@Override
+					public Object invoke(Object p, Method m, Object[] args) {
+						return OWNER;
+					}
+				});
+		return proxy(TavernaRun.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				return context;
+			}
+		});
+	}
+
+	/** Keeps the events it is asked to store instead of using a database. */
+	static class ListEventDAO extends EventDAO {
+		final List<Event> stored = new ArrayList<>();
+		long lastStored = 41;
+
+		ListEventDAO() {
+			setSelf(this);
+		}
+
+		@Override
+		public long getLastSequence() {
+			return lastStored;
+		}
+
+		@Override
+		protected synchronized void storeEvents(List<Event> events) {
+			stored.addAll(events);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		dao = new ListEventDAO();
+		dao.setExpiryAgeDays(1);
+		dao.setUriBuilderFactory(uriBuilderFactory());
+	}
+
+	@Test
+	public void eventsAreStoredDirectlyWithoutBackgroundWriter() {
+		// Not started, so the events are stored by the thread raising them
+		dao.started(run(), "subject", "content");
+		dao.started(run(), "subject", "content");
+		assertEquals(2, ((ListEventDAO) dao).stored.size());
+		assertEquals(0, dao.getDiscardedEventCount());
+	}
+
+	@Test
+	public void eventsAreNumberedInStoreOrder() throws Exception {
+		ListEventDAO dao = (ListEventDAO) this.dao;
+		dao.setQueueCapacity(1);
+		dao.setOfferTimeout(0);
+		dao.startDaemon();
+		try {
+			for (int i = 0; i < 50; i++)
+				dao.started(run(), "subject", "content " + i);
+		} finally {
+			dao.stopDaemon();
+		}
+		assertEquals(50, dao.stored.size());
+		long last = dao.lastStored;
+		for (Event e : dao.stored) {
+			assertEquals(last + 1, e.getSequence());
+			last = e.getSequence();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.notification.atom;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+import javax.ws.rs.core.UriBuilder;
+
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.interfaces.TavernaSecurityContext;
+import org.taverna.server.master.interfaces.UriBuilderFactory;
+import org.taverna.server.master.utils.JDOSupport.PersistenceManagerBuilder;
+import org.taverna.server.master.utils.LoggingDerbyAdapter;
+import org.taverna.server.master.utils.UsernamePrincipal;
+
+/**
+ * Measures how fast several threads can record events in the event store,
+ * comparing storing each event in its own transaction with the batched path
+ * through {@link EventDAO}. The backlog of the batched path is kept small, so
+ * that what is measured is how fast events reach the database, not how fast
+ * they can be queued. Uses an in-memory embedded Derby database, configured
+ * as <tt>beans.xml</tt> configures the real one. A JMH benchmark; it needs
+ * the JMH annotation processor, so it is only built and run with the
+ * <tt>benchmark</tt> profile, which runs it through {@link #throughput()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Threads(4)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EventStoreBenchmark {
+	private static final URI LINK = URI.create("http://localhost/runs/bench");
+	private static final UsernamePrincipal OWNER = new UsernamePrincipal(
+			"bench");
+	private static int dbCounter;
+	private JDOPersistenceManagerFactory pmf;
+	private PersistenceManagerBuilder pmb;
+	private EventDAO dao;
+	private TavernaRun run;
+
+	@Setup
+	public void openDatabase() {
+		Map<String, Object> props = new HashMap<>();
+		props.put("javax.jdo.option.ConnectionDriverName",
+				"org.apache.derby.jdbc.EmbeddedDriver");
+		props.put("javax.jdo.option.ConnectionURL", "jdbc:derby:memory:events"
+				+ (++dbCounter) + ";create=true");
+		props.put("datanucleus.storeManagerType", "rdbms");
+		props.put("datanucleus.autoCreateSchema", "true");
+		props.put("datanucleus.autoCreateTables", "true");
+		props.put("datanucleus.autoCreateColumns", "true");
+		props.put("datanucleus.autoCreateConstraints", "true");
+		props.put("datanucleus.rdbms.datastoreAdapterClassName",
+				LoggingDerbyAdapter.class.getName());
+		pmf = new JDOPersistenceManagerFactory(props);
+		pmf.setNontransactionalRead(true);
+		pmb = new PersistenceManagerBuilder();
+		pmb.setPersistenceManagerFactory(pmf);
+		// Create the table before timing anything
+		countEvents();
+		dao = newDAO(1000, 100);
+		dao.startDaemon();
+		run = run();
+	}
+
+	@TearDown
+	public void closeDatabase() throws InterruptedException {
+		dao.stopDaemon();
+		pmf.close();
+	}
+
+	private long countEvents() {
+		Query q = pmb.getPersistenceManager().newQuery(Event.class);
+		q.setResult("count(this)");
+		return (Long) q.execute();
+	}
+
+	/** Wraps a transaction around a batch, as the Spring aspect would. */
+	private EventDAO newDAO(int queueCapacity, int batchSize) {
+		EventDAO dao = new EventDAO() {
+			@Override
+			protected void storeEvents(List<Event> events) {
+				Transaction tx = pmb.getPersistenceManager()
+						.currentTransaction();
+				tx.begin();
+				try {
+					super.storeEvents(events);
+					tx.commit();
+				} finally {
+					if (tx.isActive())
+						tx.rollback();
+				}
+			}
+		};
+		dao.setPersistenceManagerBuilder(pmb);
+		dao.setExpiryAgeDays(1);
+		dao.setQueueCapacity(queueCapacity);
+		dao.setBatchSize(batchSize);
+		dao.setSelf(dao);
+		dao.setUriBuilderFactory(proxy(UriBuilderFactory.class,
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object p, Method m, Object[] args) {
+						return UriBuilder.fromUri(LINK);
+					}
+				}));
+		return dao;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> iface, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(iface.getClassLoader(),
+				new Class<?>[] { iface }, handler);
+	}
+
+	private static TavernaRun run() {
+		final TavernaSecurityContext context = proxy(
+				TavernaSecurityContext.class, new InvocationHandler() {
+					@Override
+					public Object invoke(Object p, Method m, Object[] args) {
+						return OWNER;
+					}
+				});
+		return proxy(TavernaRun.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				return context;
+			}
+		});
+	}
+
+	@Benchmark
+	public void oneTransactionPerEvent() {
+		PersistenceManager pm = pmb.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+		try {
+			pm.makePersistent(new Event("start", LINK, OWNER, "subject",
+					"content"));
+			tx.commit();
+		} finally {
+			if (tx.isActive())
+				tx.rollback();
+		}
+	}
+
+	@Benchmark
+	public void batchedThroughEventDAO() {
+		dao.started(run, "subject", "content");
+	}
+
+	@Test
+	public void throughput() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				EventStoreBenchmark.class.getName()).build()).run();
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.usage;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ogf.usage.JobUsageRecord;
+import org.taverna.server.master.api.ManagementModel;
+import org.taverna.server.master.utils.Contextualizer;
+
+public class UsageRecordRecorderTest {
+	File dir;
+	File logFile;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("usage").toFile();
+		logFile = new File(dir, "usage.log");
+	}
+
+	@Test
+	public void unreadPartsOfRecordsAreSkipped() throws Exception {
+		try (OutputStream out = new FileOutputStream(logFile)) {
+			out.write("<?xml version=\"1.0\"?>\n<a>\n\nb</a>\n<?xml?><c/>\n\n<?xml?>\n<d/>\n"
+					.getBytes("UTF-8"));
+		}
+		try (UsageRecordRecorder.LogReader r = new UsageRecordRecorder.LogReader(
+				logFile, 0)) {
+			char[] buffer = new char[5];
+			assertEquals(5, r.nextRecord().read(buffer));
+			assertEquals("<?xml", new String(buffer));
+			Reader record = r.nextRecord();
+			assertEquals(5, record.read(buffer));
+			assertEquals("<?xml", new String(buffer));
+			record = r.nextRecord();
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = record.read()) >= 0)
+				sb.append((char) c);
+			assertEquals("<?xml?>\n<d/>", sb.toString());
+			assertEquals(-1, record.read());
+			assertEquals(null, r.nextRecord());
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	private UsageRecordRecorder recorder(int queueCapacity) {
+		UsageRecordRecorder r = new UsageRecordRecorder();
+		r.setDisableDB("yes");
+		return configure(r, queueCapacity);
+	}
+
+	private <T extends UsageRecordRecorder> T configure(T r, int queueCapacity) {
+		r.setState((ManagementModel) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { ManagementModel.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						// No log file set through the admin interface
+						return null;
+					}
+				}));
+		r.setContextualizer(new Contextualizer() {
+			@Override
+			public String contextualize(String input) {
+				return input;
+			}
+		});
+		r.setLogFile(logFile.getPath());
+		r.setQueueCapacity(queueCapacity);
+		r.setBatchSize(10);
+		r.start();
+		return r;
+	}
+
+	/** Read the records in the log, as recovery does. */
+	private List<String> readLog(File file, long offset) throws IOException {
+		List<String> records = new ArrayList<>();
+		try (UsageRecordRecorder.LogReader r = new UsageRecordRecorder.LogReader(
+				file, offset)) {
+			Reader record;
+			while ((record = r.nextRecord()) != null) {
+				StringBuilder sb = new StringBuilder();
+				int c;
+				while ((c = record.read()) >= 0)
+					sb.append((char) c);
+				records.add(sb.toString());
+			}
+		}
+		return records;
+	}
+
+	private long checkpoint() throws IOException {
+		File f = new File(logFile.getPath()
+				+ UsageRecordRecorder.CHECKPOINT_SUFFIX);
+		if (!f.exists())
+			return -1;
+		return Long.parseLong(new String(Files.readAllBytes(f.toPath()),
+				"UTF-8").trim());
+	}
+
+	/**
+	 * Saves records to a list instead of a database, and fails to while told
+	 * to.
+	 */
+	static class ListRecorder extends UsageRecordRecorder {
+		final List<String> saved = new ArrayList<>();
+		volatile boolean failing;
+
+		ListRecorder() {
+			setSelf(this);
+			setDisableDB("no");
+		}
+
+		@Override
+		public synchronized void saveURBatchToDB(List<UsageRecord> urs) {
+			if (failing)
+				throw new IllegalStateException("database down");
+			for (UsageRecord ur : urs)
+				saved.add(ur.getId());
+		}
+
+		@Override
+		public synchronized void saveURtoDB(UsageRecord ur) {
+			saveURBatchToDB(singletonList(ur));
+		}
+
+		@Override
+		public synchronized int saveMissingURsToDB(List<UsageRecord> urs) {
+			List<UsageRecord> missing = new ArrayList<>();
+			for (UsageRecord ur : urs)
+				if (!saved.contains(ur.getId()))
+					missing.add(ur);
+			saveURBatchToDB(missing);
+			return missing.size();
+		}
+	}
+
+	private static String realRecord(String name) throws Exception {
+		JobUsageRecord ur = new JobUsageRecord(name);
+		ur.setStatus("Completed");
+		ur.addUser("alice", "alice");
+		return ur.marshal();
+	}
+
+	@Test
+	public void missedRecordsAreCaughtUp() throws Exception {
+		ListRecorder r = configure(new ListRecorder(), 1000);
+		r.failing = true;
+		r.storeUsageRecord(realRecord("a"));
+		assertTrue(r.flush(10000));
+		assertEquals(0, r.saved.size());
+		// The record is logged, but not checkpointed as it is not saved
+		assertEquals(1, readLog(logFile, 0).size());
+		assertEquals(-1, checkpoint());
+
+		r.failing = false;
+		r.storeUsageRecord(realRecord("b"));
+		assertTrue(r.flush(10000));
+		assertEquals(2, r.saved.size());
+		assertEquals(logFile.length(), checkpoint());
+
+		// Checkpointing carries on as normal
+		r.storeUsageRecord(realRecord("c"));
+		assertTrue(r.flush(10000));
+		r.close();
+		assertEquals(3, r.saved.size());
+		assertEquals(logFile.length(), checkpoint());
+	}
+
+	@Test
+	public void restartReplaysOnlyPastCheckpoint() throws Exception {
+		ListRecorder r = configure(new ListRecorder(), 1000);
+		r.storeUsageRecord(realRecord("a"));
+		assertTrue(r.flush(10000));
+		r.close();
+		assertEquals(logFile.length(), checkpoint());
+		// A record logged but not saved when the server stopped
+		try (OutputStream out = new FileOutputStream(logFile, true)) {
+			out.write((realRecord("b") + "\n").getBytes("UTF-8"));
+		}
+
+		r = new ListRecorder();
+		configure(r, 1000);
+		r.recover();
+		assertEquals(1, r.saved.size());
+		assertEquals(logFile.length(), checkpoint());
+		r.close();
+	}
+
+	@Test
+	public void overflowReachesDatabaseFromLog() throws Exception {
+		final ListRecorder r = configure(new ListRecorder(), 1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t * 1000;
+			Thread th = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 25; i++)
+							r.storeUsageRecord(realRecord("r" + (seed + i)));
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			th.start();
+			threads.add(th);
+		}
+		for (Thread th : threads)
+			th.join();
+		assertTrue(r.flush(10000));
+		r.close();
+		assertEquals(100, new HashSet<>(r.saved).size());
+		assertEquals(100, readLog(logFile, 0).size());
+		assertEquals(logFile.length(), checkpoint());
+	}
+
+	@Test
+	public void committedLogIsMovedAside() throws Exception {
+		ListRecorder r = new ListRecorder();
+		r.setLogRotateSize(1);
+		configure(r, 1000);
+		r.storeUsageRecord(realRecord("a"));
+		assertTrue(r.flush(10000));
+		File old = new File(logFile.getPath()
+				+ UsageRecordRecorder.ROTATED_SUFFIX);
+		assertTrue(old.isFile());
+		assertFalse(logFile.exists());
+		assertEquals(0, checkpoint());
+
+		r.failing = true;
+		r.storeUsageRecord(realRecord("b"));
+		assertTrue(r.flush(10000));
+		// Not moved aside while the database is behind
+		r.close();
+		assertEquals(1, readLog(logFile, 0).size());
+		assertEquals(1, readLog(old, 0).size());
+		assertEquals(1, r.saved.size());
+	}
+
+	private static String record(int i) {
+		return "<?xml version=\"1.0\"?><UsageRecord n=\"" + i + "\"/>";
+	}
+
+	@Test
+	public void recordsAreLoggedInOrder() throws Exception {
+		UsageRecordRecorder r = recorder(1000);
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			r.storeUsageRecord(record(i));
+			expected.add(record(i));
+		}
+		assertTrue(r.flush(10000));
+		r.close();
+		assertEquals(expected, readLog(logFile, 0));
+	}
+
+	@Test
+	public void logIsAppendedTo() throws Exception {
+		UsageRecordRecorder r = recorder(1000);
+		r.storeUsageRecord(record(1));
+		r.close();
+		r = recorder(1000);
+		r.storeUsageRecord(record(2));
+		r.close();
+		List<String> records = readLog(logFile, 0);
+		assertEquals(2, records.size());
+		assertEquals(record(2), records.get(1));
+	}
+
+	@Test
+	public void backlogIsNotLost() throws Exception {
+		final UsageRecordRecorder r = recorder(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t * 1000;
+			Thread th = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 50; i++)
+						r.storeUsageRecord(record(seed + i));
+				}
+			};
+			th.start();
+			threads.add(th);
+		}
+		for (Thread th : threads)
+			th.join();
+		assertTrue(r.flush(10000));
+		r.close();
+		List<String> records = readLog(logFile, 0);
+		assertEquals(200, records.size());
+		assertEquals(200, new HashSet<>(records).size());
+	}
+
+	@Test
+	public void readingSplitsOnDocuments() throws Exception {
+		String first = "<?xml version=\"1.0\"?>\n<a>\nb</a>\n";
+		try (OutputStream out = new FileOutputStream(logFile)) {
+			out.write(first.getBytes("UTF-8"));
+			out.write("\n<?xml version=\"1.0\"?><c/>\n".getBytes("UTF-8"));
+		}
+		List<String> records = readLog(logFile, 0);
+		assertEquals(2, records.size());
+		assertEquals("<?xml version=\"1.0\"?>\n<a>\nb</a>", records.get(0));
+		records = readLog(logFile, first.length());
+		assertEquals(1, records.size());
+		assertEquals("<?xml version=\"1.0\"?><c/>", records.get(0));
+	}
+}
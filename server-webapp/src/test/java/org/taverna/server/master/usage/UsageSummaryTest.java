@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.usage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+public class UsageSummaryTest {
+	private static final long DAY = 24 * 60 * 60 * 1000;
+	/** 2014-03-15T00:00:00Z */
+	private static final long MIDNIGHT = 1394841600000L;
+
+	@Test
+	public void daysAreUtc() {
+		assertEquals(new Date(MIDNIGHT),
+				UsageSummary.startOfDay(new Date(MIDNIGHT)));
+		assertEquals(new Date(MIDNIGHT),
+				UsageSummary.startOfDay(new Date(MIDNIGHT + DAY - 1)));
+		assertEquals(new Date(MIDNIGHT - DAY),
+				UsageSummary.startOfDay(new Date(MIDNIGHT - 1)));
+		assertEquals(new Date(-DAY), UsageSummary.startOfDay(new Date(-1)));
+		assertEquals("alice/2014-03-15",
+				UsageSummary.key("alice", new Date(MIDNIGHT + DAY - 1)));
+	}
+
+	@Test
+	public void recordsAreCounted() {
+		UsageRecord ur = new UsageRecord();
+		ur.setUserid("alice");
+		ur.setCreateDate(new Date(MIDNIGHT + 1000));
+		UsageSummary summary = new UsageSummary("alice", ur.getCreateDate());
+		summary.add(ur);
+		summary.add(ur);
+		assertEquals(new Date(MIDNIGHT), summary.getDay());
+		assertEquals(2, summary.getJobs());
+		assertEquals(0, summary.getWallMillis());
+		assertEquals(0, summary.getMaxMemoryBytes());
+	}
+}
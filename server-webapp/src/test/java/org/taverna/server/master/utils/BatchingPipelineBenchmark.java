@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.taverna.server.master.utils.BatchingPipelineTest.SlowSink;
+
+/**
+ * Measures how fast a {@link BatchingPipeline} moves items into a sink that
+ * is slow per write. Several producers push items as fast as they can into a
+ * sink where each write costs a millisecond; writing one item at a time would
+ * manage at most a thousand items per second. Producers wait for room when
+ * the pipeline is full, so the rate measured is the rate items reach the
+ * sink. A JMH benchmark; it needs the JMH annotation processor, so it is only
+ * built and run with the <tt>benchmark</tt> profile, which runs it through
+ * {@link #throughput()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Threads(4)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BatchingPipelineBenchmark {
+	private SlowSink sink;
+	private BatchingPipeline<Integer> pipeline;
+
+	@Setup
+	public void setUp() {
+		sink = new SlowSink(new CountDownLatch(0));
+		pipeline = new BatchingPipeline<>("bench", 10000, 500, sink);
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		pipeline.awaitIdle(60000);
+		System.out.printf("%d items written in %d batches%n",
+				sink.count.get(), pipeline.getBatchCount());
+		pipeline.stop(1000);
+	}
+
+	@Benchmark
+	public void offer() {
+		while (!pipeline.offer(1))
+			Thread.yield();
+	}
+
+	@Test
+	public void throughput() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				BatchingPipelineBenchmark.class.getName()).build()).run();
+	}
+}
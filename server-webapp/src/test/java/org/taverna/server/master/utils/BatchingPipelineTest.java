@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.lang.System.nanoTime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BatchingPipelineTest {
+	/** A sink that costs a fixed amount per batch, like a database commit. */
+	static class SlowSink implements BatchingPipeline.Sink<Integer> {
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch gate;
+
+		SlowSink(CountDownLatch gate) {
+			this.gate = gate;
+		}
+
+		@Override
+		public void write(List<Integer> batch) throws Exception {
+			gate.await();
+			Thread.sleep(1);
+			count.addAndGet(batch.size());
+		}
+	}
+
+	@Test
+	public void neverBlocksWhenFull() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		SlowSink sink = new SlowSink(gate);
+		BatchingPipeline<Integer> p = new BatchingPipeline<>("test", 10, 5,
+				sink);
+		long start = nanoTime();
+		int accepted = 0;
+		for (int i = 0; i < 100; i++)
+			if (p.offer(i))
+				accepted++;
+		assertTrue("offering blocked", nanoTime() - start < 1000000000L);
+		assertTrue(accepted <= 15);
+		assertEquals(100 - accepted, p.getRefusedCount());
+		gate.countDown();
+		assertTrue(p.awaitIdle(10000));
+		assertEquals(accepted, sink.count.get());
+		assertEquals(accepted, p.getWrittenCount());
+		p.stop(1000);
+	}
+
+	@Test
+	public void stopWritesBacklog() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		SlowSink sink = new SlowSink(gate);
+		BatchingPipeline<Integer> p = new BatchingPipeline<>("test", 1000, 7,
+				sink);
+		for (int i = 0; i < 500; i++)
+			assertTrue(p.offer(i));
+		gate.countDown();
+		p.stop(10000);
+		assertEquals(500, sink.count.get());
+		assertFalse(p.offer(501));
+	}
+
+	@Test
+	public void failedBatchesAreCounted() throws Exception {
+		BatchingPipeline<Integer> p = new BatchingPipeline<>("test", 100, 10,
+				new BatchingPipeline.Sink<Integer>() {
+					@Override
+					public void write(List<Integer> batch) {
+						throw new IllegalStateException("database down");
+					}
+				});
+		for (int i = 0; i < 20; i++)
+			p.offer(i);
+		assertTrue(p.awaitIdle(10000));
+		assertEquals(20, p.getFailedCount());
+		assertEquals(0, p.getWrittenCount());
+		p.stop(1000);
+	}
+
+	@Test
+	public void failedBatchRetriedItemByItem() throws Exception {
+		final AtomicInteger count = new AtomicInteger();
+		BatchingPipeline<Integer> p = new BatchingPipeline<>("test", 100, 10,
+				new BatchingPipeline.Sink<Integer>() {
+					@Override
+					public void write(List<Integer> batch) {
+						if (batch.contains(13))
+							throw new IllegalStateException("bad item");
+						count.addAndGet(batch.size());
+					}
+				});
+		for (int i = 0; i < 20; i++)
+			assertTrue(p.offer(i));
+		assertTrue(p.awaitIdle(10000));
+		assertEquals(1, p.getFailedCount());
+		assertEquals(19, p.getWrittenCount());
+		assertEquals(19, count.get());
+		p.stop(1000);
+	}
+
+	@Test
+	public void submitWritesDirectlyWhenFull() throws Exception {
+		final CountDownLatch gate = new CountDownLatch(1);
+		final AtomicInteger count = new AtomicInteger();
+		final AtomicInteger direct = new AtomicInteger();
+		BatchingPipeline<Integer> p = new BatchingPipeline<>("test", 2, 5,
+				new BatchingPipeline.Sink<Integer>() {
+					@Override
+					public void write(List<Integer> batch) throws Exception {
+						// Only the pipeline's own thread is held up
+						if (Thread.currentThread().getName().equals("test"))
+							gate.await();
+						else
+							direct.addAndGet(batch.size());
+						count.addAndGet(batch.size());
+					}
+				});
+		for (int i = 0; i < 10; i++)
+			p.submit(i, 20);
+		assertEquals(0, p.getRefusedCount());
+		assertTrue(p.getDirectWriteCount() > 0);
+		assertEquals(p.getDirectWriteCount(), direct.get());
+		gate.countDown();
+		assertTrue(p.awaitIdle(10000));
+		assertEquals(10, count.get());
+		assertEquals(10, p.getWrittenCount());
+		p.stop(1000);
+	}
+
+	@Test
+	public void backlogIsWrittenInBatches() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		SlowSink sink = new SlowSink(gate);
+		BatchingPipeline<Integer> p = new BatchingPipeline<>("test", 1000,
+				100, sink);
+		for (int i = 0; i < 500; i++)
+			assertTrue(p.offer(i));
+		gate.countDown();
+		assertTrue(p.awaitIdle(10000));
+		assertEquals(500, sink.count.get());
+		// At most one short batch taken before the backlog built up
+		assertTrue(p.getBatchCount() >= 5);
+		assertTrue(p.getBatchCount() <= 6);
+		p.stop(1000);
+	}
+}
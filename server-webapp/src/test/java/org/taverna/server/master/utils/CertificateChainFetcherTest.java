@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks the certificate chain cache against local stand-in services: a TLS
+ * server with a freshly-generated self-signed certificate, and a server that
+ * accepts connections but never says anything.
+ */
+public class CertificateChainFetcherTest {
+	private static final char[] PASSWORD = "changeit".toCharArray();
+	private final AtomicInteger connections = new AtomicInteger();
+	private ServerSocket server;
+	private File keystore;
+
+	@After
+	public void tearDown() throws IOException {
+		if (server != null)
+			server.close();
+		if (keystore != null)
+			keystore.delete();
+	}
+
+	private void serve(final boolean tls) throws Exception {
+		final SSLContext ctx;
+		if (tls) {
+			keystore = File.createTempFile("tstest", ".jks");
+			keystore.delete();
+			Process p = new ProcessBuilder(System.getProperty("java.home")
+					+ File.separator + "bin" + File.separator + "keytool",
+					"-genkeypair", "-alias", "test", "-keyalg", "RSA",
+					"-dname", "CN=localhost", "-validity", "1", "-keystore",
+					keystore.getPath(), "-storepass", new String(PASSWORD),
+					"-keypass", new String(PASSWORD)).redirectErrorStream(true)
+					.start();
+			assertEquals("keytool failed", 0, p.waitFor());
+			KeyStore ks = KeyStore.getInstance("JKS");
+			try (InputStream in = new FileInputStream(keystore)) {
+				ks.load(in, PASSWORD);
+			}
+			KeyManagerFactory kmf = KeyManagerFactory
+					.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(ks, PASSWORD);
+			ctx = SSLContext.getInstance("TLS");
+			ctx.init(kmf.getKeyManagers(), null, null);
+		} else
+			ctx = null;
+		server = new ServerSocket(0);
+		new OneShotThread("test server", new Runnable() {
+			@Override
+			public void run() {
+				List<Socket> held = new ArrayList<>();
+				try {
+					while (true) {
+						Socket s = server.accept();
+						connections.incrementAndGet();
+						if (ctx == null) {
+							held.add(s);
+							continue;
+						}
+						try (SSLSocket ss = (SSLSocket) ctx.getSocketFactory()
+								.createSocket(s, "localhost", s.getPort(),
+										true)) {
+							ss.setUseClientMode(false);
+							ss.startHandshake();
+						} catch (IOException e) {
+							// Client rejected our certificate; expected
+						}
+					}
+				} catch (IOException e) {
+					// Server closed
+				} finally {
+					for (Socket s : held)
+						try {
+							s.close();
+						} catch (IOException e) {
+						}
+				}
+			}
+		});
+	}
+
+	/** A server that speaks plain HTTP, so presents no certificates. */
+	private void servePlain() throws IOException {
+		server = new ServerSocket(0);
+		new OneShotThread("test server", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						try (Socket s = server.accept()) {
+							connections.incrementAndGet();
+							s.getOutputStream().write(
+									"HTTP/1.0 400 Bad Request\r\n\r\n"
+											.getBytes("US-ASCII"));
+						}
+					}
+				} catch (IOException e) {
+					// Server closed
+				}
+			}
+		});
+	}
+
+	private URI uri() {
+		return URI.create("https://localhost:" + server.getLocalPort() + "/x");
+	}
+
+	@Test
+	public void fetchesAndCachesChain() throws Exception {
+		serve(true);
+		CertificateChainFetcher fetcher = new CertificateChainFetcher();
+		List<X509Certificate> chain = fetcher.getTrustsForURI(uri());
+		assertNotNull(chain);
+		assertEquals(1, chain.size());
+		assertTrue(chain.get(0).getSubjectX500Principal().getName()
+				.contains("CN=localhost"));
+		assertSame(chain, fetcher.getTrustsForURI(URI.create("https://localhost:"
+				+ server.getLocalPort() + "/other/path")));
+		assertEquals(1, connections.get());
+	}
+
+	@Test
+	public void silentServerTimesOutOnceForAllCallers() throws Exception {
+		serve(false);
+		final CertificateChainFetcher fetcher = new CertificateChainFetcher();
+		fetcher.setTimeout(300);
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						fetcher.getTrustsForURI(uri());
+					} catch (IOException e) {
+						failures.incrementAndGet();
+					} catch (Exception e) {
+						// Wrong kind of failure
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads)
+			t.join(5000);
+		assertEquals(5, failures.get());
+		assertEquals(1, connections.get());
+
+		long start = System.currentTimeMillis();
+		try {
+			fetcher.getTrustsForURI(uri());
+			fail("failure was not remembered");
+		} catch (IOException e) {
+			assertTrue(System.currentTimeMillis() - start < 300);
+		}
+		assertEquals(1, connections.get());
+	}
+
+	@Test
+	public void missingChainRememberedAsFailure() throws Exception {
+		servePlain();
+		CertificateChainFetcher fetcher = new CertificateChainFetcher();
+		fetcher.setFailureLifetime(0);
+		assertNull(fetcher.getTrustsForURI(uri()));
+		Thread.sleep(5);
+		assertNull(fetcher.getTrustsForURI(uri()));
+		assertEquals(2, connections.get());
+	}
+
+	@Test
+	public void expiredEntriesForgotten() throws Exception {
+		servePlain();
+		CertificateChainFetcher fetcher = new CertificateChainFetcher();
+		fetcher.setFailureLifetime(0);
+		fetcher.getTrustsForURI(uri());
+		assertEquals(1, fetcher.cacheSize());
+		Thread.sleep(5);
+		fetcher.getTrustsForURI(URI.create("https://127.0.0.1:"
+				+ server.getLocalPort() + "/x"));
+		assertEquals(1, fetcher.cacheSize());
+	}
+}
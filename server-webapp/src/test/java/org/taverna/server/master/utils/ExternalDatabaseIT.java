@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jdo.PersistenceManager;
+
+import org.apache.commons.dbcp.DelegatingPreparedStatement;
+import org.apache.derby.drda.NetworkServerControl;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.taverna.server.master.notification.atom.Event;
+import org.taverna.server.master.usage.UsageRecord;
+import org.taverna.server.master.worker.RunConnection;
+
+/**
+ * Checks the persistence configuration against a standalone database server.
+ * A Derby network server is launched on a free local port for the duration of
+ * each test, and the webapp's data source is configured to talk to it in the
+ * same way that <tt>beans.xml</tt> does when the <tt>db.*</tt> properties
+ * point to an external database. The server's databases are kept in a
+ * temporary directory that is deleted afterwards. Run with the
+ * <tt>external-db</tt> profile.
+ *
+ * @author Donal Fellows
+ */
+public class ExternalDatabaseIT {
+	private static final int POOL_SIZE = 4;
+	private static final String DERBY_HOME = "derby.system.home";
+	private static Path home;
+	private static String previousHome;
+	private NetworkServerControl server;
+	private WebappAwareDataSource ds;
+
+	@BeforeClass
+	public static void makeHome() throws IOException {
+		home = Files.createTempDirectory("tsit");
+		previousHome = System.setProperty(DERBY_HOME, home.toString());
+	}
+
+	@AfterClass
+	public static void removeHome() throws IOException {
+		try {
+			// Close the databases so that their files can be deleted
+			DriverManager.getConnection("jdbc:derby:;shutdown=true").close();
+		} catch (SQLException e) {
+			// Expected: Derby reports a successful shutdown as an exception
+		}
+		if (previousHome == null)
+			System.clearProperty(DERBY_HOME);
+		else
+			System.setProperty(DERBY_HOME, previousHome);
+		Files.walkFileTree(home, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e)
+					throws IOException {
+				if (e != null)
+					throw e;
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Before
+	public void startServer() throws Exception {
+		int port;
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		server = new NetworkServerControl(InetAddress.getByName("localhost"),
+				port);
+		server.start(new PrintWriter(new StringWriter()));
+		for (int i = 0; i < 50; i++)
+			try {
+				server.ping();
+				break;
+			} catch (Exception e) {
+				sleep(100);
+			}
+
+		ds = new WebappAwareDataSource();
+		ds.setDriverClassName("org.apache.derby.jdbc.ClientDriver");
+		ds.setUrl("jdbc:derby://localhost:" + port + "/tsit" + port
+				+ ";create=true");
+		ds.setShutdownUrl("none");
+		ds.setUsername("taverna");
+		ds.setPassword("taverna");
+		ds.setMaxActive(POOL_SIZE);
+		ds.setMaxIdle(POOL_SIZE);
+		ds.setMaxWait(500);
+		ds.setPoolPreparedStatements(true);
+		ds.setMaxOpenPreparedStatements(10);
+		ds.setValidationQuery("VALUES 1");
+		ds.setAccessToUnderlyingConnectionAllowed(true);
+	}
+
+	@After
+	public void stopServer() throws Exception {
+		ds.realClose();
+		server.shutdown();
+	}
+
+	@Test
+	public void poolIsBounded() throws SQLException {
+		List<Connection> held = new ArrayList<>();
+		try {
+			for (int i = 0; i < POOL_SIZE; i++)
+				held.add(ds.getConnection());
+			try {
+				held.add(ds.getConnection());
+				fail("pool handed out more connections than configured");
+			} catch (SQLException e) {
+				// Expected: pool exhausted
+			}
+		} finally {
+			for (Connection c : held)
+				c.close();
+		}
+		assertEquals(POOL_SIZE, ds.getNumIdle());
+	}
+
+	@Test
+	public void preparedStatementsAreCached() throws SQLException {
+		String sql = "VALUES CURRENT_TIMESTAMP";
+		Object first, second;
+		try (Connection c = ds.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement(sql)) {
+				first = ((DelegatingPreparedStatement) ps)
+						.getInnermostDelegate();
+			}
+			try (PreparedStatement ps = c.prepareStatement(sql)) {
+				second = ((DelegatingPreparedStatement) ps)
+						.getInnermostDelegate();
+			}
+		}
+		assertSame(first, second);
+	}
+
+	@Test
+	public void schemaCreatedWithIndexes() throws SQLException {
+		Map<String, Object> props = new HashMap<>();
+		props.put("datanucleus.ConnectionFactory", ds);
+		props.put("datanucleus.storeManagerType", "rdbms");
+		props.put("datanucleus.autoCreateSchema", "true");
+		props.put("datanucleus.autoCreateTables", "true");
+		props.put("datanucleus.autoCreateColumns", "true");
+		props.put("datanucleus.autoCreateConstraints", "true");
+		props.put("datanucleus.rdbms.datastoreAdapterClassName",
+				LoggingDerbyAdapter.class.getName());
+		JDOPersistenceManagerFactory pmf = new JDOPersistenceManagerFactory(
+				props);
+		try {
+			PersistenceManager pm = pmf.getPersistenceManager();
+			try {
+				for (Class<?> c : new Class<?>[] { RunConnection.class,
+						Event.class, UsageRecord.class })
+					pm.getExtent(c).iterator().hasNext();
+			} finally {
+				pm.close();
+			}
+		} finally {
+			pmf.close();
+		}
+
+		assertIndexes("TAVERNA", "RUN_CONNECTION", "RUN_CONNECTION_EXPIRY",
+				"RUN_CONNECTION_OWNER", "RUN_CONNECTION_FINISHED");
+		assertIndexes("ATOM", "EVENTS", "EVENTS_OWNER_PUBLISHED");
+		assertIndexes("UR", "USAGE_RECORD_LOG", "USERID_IDX", "CREATE_IDX");
+	}
+
+	private void assertIndexes(String schema, String table, String... names)
+			throws SQLException {
+		Set<String> found = new HashSet<>();
+		try (Connection c = ds.getConnection()) {
+			DatabaseMetaData md = c.getMetaData();
+			try (ResultSet rs = md.getIndexInfo(null, schema, table, false,
+					false)) {
+				while (rs.next())
+					found.add(rs.getString("INDEX_NAME"));
+			}
+		}
+		for (String name : names)
+			assertTrue("no index " + name + " on " + schema + "." + table,
+					found.contains(name));
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.utils.RateLimiter.Permit;
+
+public class RateLimiterTest {
+	private static final long SECOND = 1000000000L;
+	long time;
+	RateLimiter limiter;
+
+	@Before
+	public void setUp() {
+		time = 0;
+		limiter = new RateLimiter() {
+			@Override
+			long now() {
+				return time;
+			}
+		};
+		limiter.setRate(2);
+		limiter.setBurst(4);
+		limiter.setMaxInFlight(0);
+	}
+
+	private void take(String who, int count) {
+		for (int i = 0; i < count; i++) {
+			Permit p = limiter.acquire(who);
+			assertTrue(who + " refused call " + i, p.isGranted());
+			p.release();
+		}
+	}
+
+	@Test
+	public void burstThenRate() {
+		take("alice", 4);
+		Permit p = limiter.acquire("alice");
+		assertFalse(p.isGranted());
+		assertEquals(1, p.getRetryAfter());
+		// Other users are unaffected
+		take("bob", 4);
+		time += SECOND;
+		take("alice", 2);
+		assertFalse(limiter.acquire("alice").isGranted());
+		// Refilling never exceeds the burst size
+		time += 60 * SECOND;
+		take("alice", 4);
+		assertFalse(limiter.acquire("alice").isGranted());
+		assertEquals(14, limiter.getGrantedCount());
+		assertEquals(3, limiter.getRateRefusedCount());
+	}
+
+	@Test
+	public void retryAfterReflectsRate() {
+		limiter.setRate(0.1);
+		limiter.setBurst(1);
+		take("alice", 1);
+		assertEquals(10, limiter.acquire("alice").getRetryAfter());
+		time += 4 * SECOND;
+		assertEquals(6, limiter.acquire("alice").getRetryAfter());
+	}
+
+	@Test
+	public void inFlightCap() {
+		limiter.setRate(0);
+		limiter.setMaxInFlight(2);
+		Permit a = limiter.acquire("alice");
+		Permit b = limiter.acquire("alice");
+		assertTrue(a.isGranted() && b.isGranted());
+		assertFalse(limiter.acquire("alice").isGranted());
+		assertEquals(1, limiter.getConcurrencyRefusedCount());
+		assertEquals(2, limiter.getInFlightCount());
+		a.release();
+		a.release();
+		assertEquals(1, limiter.getInFlightCount());
+		Permit c = limiter.acquire("alice");
+		assertTrue(c.isGranted());
+		assertFalse(limiter.acquire("alice").isGranted());
+		b.release();
+		c.release();
+		assertEquals(0, limiter.getInFlightCount());
+	}
+
+	@Test
+	public void boundedMemory() {
+		limiter.setMaxPrincipals(64);
+		limiter.setMaxInFlight(1);
+		Permit busy = limiter.acquire("busy");
+		take("alice", 4);
+		for (int i = 0; i < 1000; i++)
+			take("user" + i, 1);
+		// Busy principals are kept; idle ones are forgotten
+		assertEquals(64, limiter.getTrackedPrincipals());
+		assertFalse(limiter.acquire("busy").isGranted());
+		take("alice", 4);
+		busy.release();
+		take("user" + 2000, 1);
+		assertEquals(64, limiter.getTrackedPrincipals());
+	}
+
+	@Test
+	public void concurrentCallsRespectCap() throws InterruptedException {
+		limiter.setRate(0);
+		limiter.setMaxPrincipals(1);
+		limiter.setMaxInFlight(1);
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t;
+			Thread th = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 20000; i++) {
+						// Churn the table so that idle principals get forgotten
+						limiter.acquire("other" + seed + "-" + i).release();
+						Permit p = limiter.acquire("alice");
+						if (!p.isGranted())
+							continue;
+						if (inside.incrementAndGet() > 1)
+							overlaps.incrementAndGet();
+						inside.decrementAndGet();
+						p.release();
+					}
+				}
+			};
+			th.start();
+			threads.add(th);
+		}
+		for (Thread th : threads)
+			th.join();
+		assertEquals(0, overlaps.get());
+		assertEquals(0, limiter.getInFlightCount());
+	}
+
+	@Test
+	public void disabled() {
+		limiter.setEnabled(false);
+		take("alice", 100);
+		assertEquals(0, limiter.getTrackedPrincipals());
+	}
+}
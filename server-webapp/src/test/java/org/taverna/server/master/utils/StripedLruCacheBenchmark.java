@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures lookups of run security tokens from many threads at once, as when
+ * many runs call back into the server, comparing the {@link StripedLruCache}
+ * with the single synchronized map it replaced. A JMH benchmark; it needs the
+ * JMH annotation processor, so it is only built and run with the
+ * <tt>benchmark</tt> profile, which runs it through {@link #throughput()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Threads(8)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StripedLruCacheBenchmark {
+	private static final int RUNS = 5000;
+	private static final int BOUND = 2000;
+
+	private String[] keys;
+	private Map<String, String> map;
+	private StripedLruCache<String, String> striped;
+
+	/** Where each thread is in its sequence of lookups. */
+	@State(Scope.Thread)
+	public static class Lookups {
+		private static int threads;
+		private int seed;
+		private int i;
+
+		@Setup
+		public void setUp() {
+			synchronized (Lookups.class) {
+				seed = (threads++) * 7919;
+			}
+		}
+
+		/** Most lookups are for a small set of busy runs. */
+		int next() {
+			i++;
+			return (i * 31 + seed) % (i % 10 == 0 ? RUNS : 200);
+		}
+	}
+
+	@Setup
+	@SuppressWarnings("serial")
+	public void setUp() {
+		keys = new String[RUNS];
+		for (int i = 0; i < RUNS; i++)
+			keys[i] = "run" + i;
+		map = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> e) {
+				return size() > BOUND;
+			}
+		};
+		striped = new StripedLruCache<>(BOUND, 600000, 16);
+	}
+
+	@Benchmark
+	public String singleSynchronizedMap(Lookups lookups) {
+		String key = keys[lookups.next()];
+		synchronized (map) {
+			String token = map.get(key);
+			if (token == null)
+				map.put(key, token = "token");
+			return token;
+		}
+	}
+
+	@Benchmark
+	public String stripedLruCache(Lookups lookups) {
+		String key = keys[lookups.next()];
+		String token = striped.get(key);
+		if (token == null)
+			striped.put(key, token = "token");
+		return token;
+	}
+
+	@Test
+	public void throughput() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				StripedLruCacheBenchmark.class.getName()).build()).run();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StripedLruCacheTest {
+	/** A cache whose clock only moves when told to. */
+	static class ClockedCache<K, V> extends StripedLruCache<K, V> {
+		long time = 1000000;
+
+		ClockedCache(int bound, long lifetime, int concurrency) {
+			super(bound, lifetime, concurrency);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		StripedLruCache<String, String> cache = new StripedLruCache<>(3,
+				60000, 1);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");
+		assertEquals("A", cache.get("a"));
+		cache.put("d", "D");
+		assertEquals("A", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(3, cache.size());
+	}
+
+	@Test
+	public void entriesExpire() {
+		ClockedCache<String, String> cache = new ClockedCache<>(10, 20, 4);
+		cache.put("a", "A");
+		cache.time += 20;
+		assertEquals("A", cache.get("a"));
+		cache.time++;
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void putIfAbsentKeepsExisting() {
+		ClockedCache<String, String> cache = new ClockedCache<>(10, 20, 1);
+		assertNull(cache.putIfAbsent("a", "A"));
+		assertEquals("A", cache.putIfAbsent("a", "B"));
+		assertEquals("A", cache.get("a"));
+		cache.time += 21;
+		// An expired value does not count
+		assertNull(cache.putIfAbsent("a", "C"));
+		assertEquals("C", cache.get("a"));
+	}
+
+	@Test
+	public void boundHoldsAcrossSegments() {
+		StripedLruCache<Integer, Integer> cache = new StripedLruCache<>(64,
+				60000, 8);
+		for (int i = 0; i < 10000; i++)
+			cache.put(i, i);
+		assertTrue(cache.size() <= 64);
+		cache.remove(9999);
+		assertNull(cache.get(9999));
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void pinnedEntriesAreKept() {
+		final Set<String> pinned = new HashSet<>();
+		ClockedCache<String, String> cache = new ClockedCache<String, String>(
+				2, 20, 1) {
+			@Override
+			protected boolean isPinned(String value) {
+				return pinned.contains(value);
+			}
+		};
+		pinned.add("A");
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");
+		assertEquals("A", cache.get("a"));
+		assertNull(cache.get("b"));
+		cache.time += 21;
+		assertEquals("A", cache.get("a"));
+		assertNull(cache.get("c"));
+	}
+
+	@Test
+	public void applyCreatesOnce() {
+		StripedLruCache<String, AtomicInteger> cache = new StripedLruCache<>(
+				10, 60000, 4);
+		StripedLruCache.Action<AtomicInteger, Integer> increment = new StripedLruCache.Action<AtomicInteger, Integer>() {
+			@Override
+			public AtomicInteger create() {
+				return new AtomicInteger();
+			}
+
+			@Override
+			public Integer apply(AtomicInteger value) {
+				return value.incrementAndGet();
+			}
+		};
+		assertEquals(1, (int) cache.apply("a", increment));
+		assertEquals(2, (int) cache.apply("a", increment));
+		assertEquals(1, (int) cache.apply("b", increment));
+		assertEquals(2, cache.get("a").get());
+	}
+
+	@Test
+	public void concurrentUse() throws InterruptedException {
+		final StripedLruCache<Integer, Integer> cache = new StripedLruCache<>(
+				100, 60000, 16);
+		final AtomicInteger wrong = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			final int seed = t;
+			Thread th = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 20000; i++) {
+						int k = (i * 31 + seed) % 150;
+						Integer v = cache.get(k);
+						if (v == null)
+							cache.put(k, k);
+						else if (v != k)
+							wrong.incrementAndGet();
+					}
+				}
+			};
+			th.start();
+			threads.add(th);
+		}
+		for (Thread th : threads)
+			th.join();
+		assertEquals(0, wrong.get());
+		assertTrue(cache.size() <= 112);
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+	private static final long START = 1000000;
+	private TimerWheel<String> wheel;
+
+	@Before
+	public void setUp() {
+		wheel = new TimerWheel<>(1, START);
+	}
+
+	@Test
+	public void nothingDueBeforeDeadline() {
+		wheel.schedule("a", START + 10);
+		assertTrue(wheel.advance(START + 9).isEmpty());
+		assertEquals(asList("a"), wheel.advance(START + 10));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void pastDeadlinesFireImmediately() {
+		wheel.schedule("a", START - 10);
+		assertEquals(asList("a"), wheel.advance(START));
+	}
+
+	@Test
+	public void cascadesThroughLevels() {
+		long[] offsets = { 63, 64, 65, 4095, 4096, 4097, 300000, 20000000 };
+		for (long o : offsets)
+			wheel.schedule("k" + o, START + o);
+		int count = 0;
+		for (long now = START; now < START + 20000037; now += 37)
+			for (String key : wheel.advance(now)) {
+				long deadline = START + Long.parseLong(key.substring(1));
+				assertTrue("fired early", deadline <= now);
+				assertTrue("fired late", deadline > now - 37);
+				count++;
+			}
+		assertEquals(offsets.length, count);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void rescheduleAndCancel() {
+		wheel.schedule("a", START + 100);
+		wheel.schedule("b", START + 100);
+		wheel.schedule("a", START + 5000);
+		wheel.cancel("b");
+		assertTrue(wheel.advance(START + 4999).isEmpty());
+		assertEquals(asList("a"), wheel.advance(START + 5000));
+	}
+
+	@Test
+	public void longJumpCollectsEverythingDue() {
+		for (int i = 0; i < 1000; i++)
+			wheel.schedule("k" + i, START + i * 1000L);
+		List<String> fired = wheel.advance(START + 499999);
+		assertEquals(500, new HashSet<>(fired).size());
+		assertEquals(500, wheel.size());
+	}
+
+	@Test
+	public void jumpsOfEverySizeFireOnTime() {
+		Random r = new Random(1);
+		Map<String, Long> deadlines = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			long deadline = START + (long) Math.pow(10, r.nextDouble() * 7.5);
+			deadlines.put("k" + i, deadline);
+			wheel.schedule("k" + i, deadline);
+		}
+		long now = START;
+		int fired = 0;
+		while (fired < deadlines.size()) {
+			long step = (long) Math.pow(10, r.nextDouble() * 6);
+			now += step;
+			for (String key : wheel.advance(now)) {
+				long deadline = deadlines.get(key);
+				assertTrue("fired early", deadline <= now);
+				assertTrue("fired late", deadline > now - step);
+				fired++;
+			}
+		}
+		assertEquals(0, wheel.size());
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class WeightedLruCacheTest {
+	@Test
+	public void evictsLeastRecentlyUsedByWeight() {
+		WeightedLruCache<String, String> cache = new WeightedLruCache<>(10);
+		cache.put("a", "A", 4);
+		cache.put("b", "B", 4);
+		assertEquals("A", cache.get("a"));
+		cache.put("c", "C", 4);
+		assertEquals("A", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(8, cache.weight());
+		cache.put("d", "D", 10);
+		assertEquals(1, cache.size());
+		assertEquals(10, cache.weight());
+	}
+
+	@Test
+	public void reweighingCanEvict() {
+		WeightedLruCache<String, String> cache = new WeightedLruCache<>(10);
+		cache.put("a", "A", 3);
+		cache.put("b", "B", 3);
+		cache.put("b", "B", 8);
+		assertNull(cache.get("a"));
+		assertEquals("B", cache.get("b"));
+		assertEquals(8, cache.weight());
+	}
+
+	@Test
+	public void overweightValuesAreNotKept() {
+		WeightedLruCache<String, String> cache = new WeightedLruCache<>(10);
+		cache.put("a", "A", 3);
+		cache.put("a", "A", 11);
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.weight());
+		cache.put("b", "B", 2);
+		cache.remove("b");
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.weight());
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.Files.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class AdaptiveOperatingLimitTest {
+	private static void put(File dir, String name, String content)
+			throws IOException {
+		File f = new File(dir, name);
+		f.getParentFile().mkdirs();
+		write(f.toPath(), content.getBytes(US_ASCII));
+	}
+
+	private static HostMetrics metrics(Double load, Double free,
+			Double pressure) {
+		return new HostMetrics(4, load, free, pressure, pressure, pressure);
+	}
+
+	@Test
+	public void readsProc() throws IOException {
+		File proc = createTempDirectory("proc").toFile();
+		put(proc, "loadavg", "6.00 3.10 2.05 3/412 9876\n");
+		put(proc, "meminfo", "MemTotal:       16000000 kB\n"
+				+ "MemFree:         1000000 kB\n"
+				+ "MemAvailable:    4000000 kB\n");
+		put(proc, "pressure/io", "some avg10=12.50 avg60=3.00 avg300=1.00 "
+				+ "total=12345\nfull avg10=5.00 avg60=1.00 avg300=0.50 "
+				+ "total=678\n");
+		HostMetrics m = HostMetrics.read(proc, 4);
+		assertEquals(6.0, m.loadAverage, 0.001);
+		assertEquals(1.5, m.getLoadPerCpu(), 0.001);
+		assertEquals(0.25, m.freeMemory, 0.001);
+		assertEquals(12.5, m.ioPressure, 0.001);
+		assertNull(m.cpuPressure);
+		assertNull(m.memoryPressure);
+
+		HostMetrics none = HostMetrics.read(new File(proc, "nonesuch"), 4);
+		assertTrue(none.isUnknown());
+	}
+
+	@Test
+	public void backsOffWhenOverloaded() {
+		AdaptiveOperatingLimit a = new AdaptiveOperatingLimit();
+		// Load of 2 per CPU
+		assertEquals(15, a.decide(metrics(8.0, 0.5, null), 20, 20, 2, 20));
+		// Little memory left
+		assertEquals(15, a.decide(metrics(1.0, 0.05, null), 20, 20, 2, 20));
+		// Stalling on I/O
+		assertEquals(15, a.decide(metrics(1.0, 0.5, 40.0), 20, 20, 2, 20));
+		// Never below the floor
+		assertEquals(2, a.decide(metrics(8.0, 0.5, null), 2, 2, 2, 20));
+		assertEquals(2, a.decide(metrics(8.0, 0.5, null), 3, 3, 2, 20));
+	}
+
+	@Test
+	public void growsOnlyWhenComfortableAndBusy() {
+		AdaptiveOperatingLimit a = new AdaptiveOperatingLimit();
+		HostMetrics idle = metrics(0.4, 0.8, 0.0);
+		assertEquals(11, a.decide(idle, 10, 10, 1, 20));
+		// Limit is not holding anything back
+		assertEquals(10, a.decide(idle, 10, 3, 1, 20));
+		// Operating count not known yet
+		assertEquals(10, a.decide(idle, 10, -1, 1, 20));
+		// Never above the ceiling
+		assertEquals(20, a.decide(idle, 20, 20, 1, 20));
+		// Between comfortable and overloaded: hold steady
+		assertEquals(10, a.decide(metrics(3.6, 0.8, 0.0), 10, 10, 1, 20));
+		// Nothing known about the host: use the configured limit
+		assertEquals(20, a.decide(metrics(null, null, null), 10, 10, 1, 20));
+	}
+}
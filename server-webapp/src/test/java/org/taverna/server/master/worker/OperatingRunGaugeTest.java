@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.lang.System.currentTimeMillis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class OperatingRunGaugeTest {
+	@Test
+	public void tracksTransitions() {
+		OperatingRunGauge gauge = new OperatingRunGauge();
+		gauge.started("a");
+		gauge.started("b");
+		gauge.started("a");
+		assertEquals(2, gauge.count());
+		gauge.stopped("a");
+		gauge.stopped("c");
+		assertEquals(1, gauge.count());
+	}
+
+	@Test
+	public void operatingRunsAreACopy() {
+		OperatingRunGauge gauge = new OperatingRunGauge();
+		gauge.started("a");
+		Set<String> runs = gauge.getOperatingRuns();
+		gauge.started("b");
+		runs.add("c");
+		assertEquals(2, runs.size());
+		assertEquals(2, gauge.count());
+		assertFalse(gauge.getOperatingRuns().contains("c"));
+	}
+
+	@Test
+	public void reconcileCorrectsDrift() {
+		OperatingRunGauge gauge = new OperatingRunGauge();
+		Map<String, Boolean> seen = new HashMap<>();
+		seen.put("a", true);
+		seen.put("b", false);
+		gauge.reconcile(seen, false, currentTimeMillis());
+		assertFalse(gauge.isSynchronized());
+		assertEquals(1, gauge.count());
+
+		seen.clear();
+		seen.put("b", true);
+		gauge.reconcile(seen, true, currentTimeMillis());
+		assertTrue(gauge.isSynchronized());
+		assertEquals(1, gauge.count());
+	}
+
+	@Test
+	public void reconcileRespectsLaterChanges() throws InterruptedException {
+		OperatingRunGauge gauge = new OperatingRunGauge();
+		long checkStart = currentTimeMillis();
+		gauge.started("a");
+		Map<String, Boolean> seen = new HashMap<>();
+		seen.put("a", false);
+		gauge.reconcile(seen, true, checkStart);
+		assertEquals(1, gauge.count());
+
+		Thread.sleep(5);
+		gauge.reconcile(seen, true, currentTimeMillis());
+		assertEquals(0, gauge.count());
+	}
+}
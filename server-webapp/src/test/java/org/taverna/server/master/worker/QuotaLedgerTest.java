@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.taverna.server.master.exceptions.NoCreateException;
+
+public class QuotaLedgerTest {
+	private static final QuotaLimits FIVE_RUNS = new QuotaLimits(5, null, null);
+	private static final int GREEDY_USERS = 8;
+
+	@Test
+	public void limitsCombine() {
+		QuotaLimits a = new QuotaLimits(3, null, 100L);
+		QuotaLimits b = new QuotaLimits(5, 1, 50L);
+		QuotaLimits both = a.mostGenerous(b);
+		assertEquals(Integer.valueOf(5), both.getRuns());
+		assertEquals(Integer.valueOf(1), both.getOperating());
+		assertEquals(Long.valueOf(100), both.getDiskBytes());
+		QuotaLimits mine = both.overriddenBy(new QuotaLimits(null, 2, null));
+		assertEquals(Integer.valueOf(5), mine.getRuns());
+		assertEquals(Integer.valueOf(2), mine.getOperating());
+		assertTrue(QuotaLimits.NONE.isEmpty());
+	}
+
+	@Test
+	public void runLimitAndRelease() throws NoCreateException {
+		QuotaLedger l = new QuotaLedger(60000);
+		QuotaLimits two = new QuotaLimits(2, null, null);
+		l.reserve("alice", two, 100);
+		l.created("a1", "alice");
+		l.reserve("alice", two, 100);
+		l.created("a2", "alice");
+		l.created("a2", "alice");
+		assertEquals(2, l.getRunCount("alice"));
+		try {
+			l.reserve("alice", two, 100);
+			fail("reserved a third run");
+		} catch (NoCreateException e) {
+			// expected
+		}
+		l.reserve("bob", two, 100);
+		l.destroyed("a1");
+		l.reserve("alice", two, 100);
+		assertEquals(1, l.getRunCount("alice"));
+		assertEquals(1, l.countOwned("alice", asList("a1", "a2", "b1")));
+	}
+
+	@Test
+	public void diskLimit() throws NoCreateException {
+		QuotaLedger l = new QuotaLedger(60000);
+		QuotaLimits disk = new QuotaLimits(null, null, 1000L);
+		l.reserve("alice", disk, 100);
+		l.created("a1", "alice");
+		l.setDiskUsage("a1", 600);
+		l.reserve("alice", disk, 100);
+		l.created("a2", "alice");
+		l.setDiskUsage("a2", 500);
+		assertEquals(1100, l.getDiskUsage("alice"));
+		try {
+			l.reserve("alice", disk, 100);
+			fail("reserved a run while over disk quota");
+		} catch (NoCreateException e) {
+			// expected
+		}
+		l.setDiskUsage("a2", 300);
+		assertEquals(900, l.getDiskUsage("alice"));
+		l.reserve("alice", disk, 100);
+		l.destroyed("a1");
+		assertEquals(300, l.getDiskUsage("alice"));
+	}
+
+	@Test
+	public void reservationsLapse() throws Exception {
+		QuotaLedger l = new QuotaLedger(10);
+		QuotaLimits one = new QuotaLimits(1, null, null);
+		l.reserve("alice", one, 100);
+		try {
+			l.reserve("alice", one, 100);
+			fail("reserved a second run");
+		} catch (NoCreateException e) {
+			// expected
+		}
+		Thread.sleep(50);
+		l.reserve("alice", one, 100);
+	}
+
+	@Test
+	public void failedCreateReleasesReservation() throws NoCreateException {
+		QuotaLedger l = new QuotaLedger(60000);
+		QuotaLimits one = new QuotaLimits(1, null, null);
+		l.reserve("alice", one, 1);
+		l.release("alice");
+		l.release("alice");
+		l.reserve("alice", one, 1);
+		l.created("a1", "alice");
+		assertEquals(1, l.getRunCount("alice"));
+	}
+
+	@Test
+	public void globalLimit() throws NoCreateException {
+		QuotaLedger l = new QuotaLedger(60000);
+		l.reserve("alice", FIVE_RUNS, 3);
+		l.reserve("bob", FIVE_RUNS, 3);
+		l.created("b1", "bob");
+		l.reserve("carol", FIVE_RUNS, 3);
+		try {
+			l.reserve("dave", FIVE_RUNS, 3);
+			fail("exceeded the global limit");
+		} catch (NoCreateException e) {
+			// expected
+		}
+		l.destroyed("b1");
+		l.reserve("dave", FIVE_RUNS, 3);
+	}
+
+	/**
+	 * Many users hammer the ledger concurrently. Nobody may exceed their own
+	 * quota, the server as a whole may not exceed its limit, and a user who
+	 * asks for little must get it even while others are greedy.
+	 */
+	@Test
+	public void fairSharingUnderContention() throws Exception {
+		final int globalLimit = GREEDY_USERS * 5 + 5;
+		final QuotaLedger l = new QuotaLedger(60000);
+		final int attempts = 200;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger ids = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+		final List<Throwable> problems = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+
+		// The light user gets in first; the greedy ones then compete
+		l.reserve("light", FIVE_RUNS, globalLimit);
+		l.created("light0", "light");
+		for (int i = 0; i < GREEDY_USERS; i++) {
+			final String user = "greedy" + i;
+			for (int t = 0; t < 2; t++)
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for (int j = 0; j < attempts; j++) {
+								try {
+									l.reserve(user, FIVE_RUNS, globalLimit);
+								} catch (NoCreateException e) {
+									continue;
+								}
+								String id = "r" + ids.incrementAndGet();
+								l.created(id, user);
+								int n = l.getRunCount(user);
+								if (n > 5)
+									throw new AssertionError(user + " has "
+											+ n + " runs");
+								int total = l.getRunCount();
+								if (total > peak.get())
+									peak.set(total);
+								if (j % 3 == 0)
+									l.destroyed(id);
+							}
+						} catch (Throwable e) {
+							synchronized (problems) {
+								problems.add(e);
+							}
+						}
+					}
+				});
+		}
+		for (Thread t : threads)
+			t.start();
+		start.countDown();
+		for (Thread t : threads)
+			t.join();
+		assertEquals("[]", problems.toString());
+		assertTrue("global limit exceeded: " + peak.get(),
+				peak.get() <= globalLimit);
+		for (int i = 0; i < GREEDY_USERS; i++)
+			assertEquals(5, l.getRunCount("greedy" + i));
+		assertEquals(GREEDY_USERS * 5 + 1, l.getRunCount());
+
+		// Even though the greedy users hold most of the server, the light
+		// user still gets the rest of their share
+		for (int i = 1; i < 5; i++) {
+			l.reserve("light", FIVE_RUNS, globalLimit);
+			l.created("light" + i, "light");
+		}
+		assertEquals(5, l.getRunCount("light"));
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.taverna.server.master.common.Namespaces.T2FLOW;
+import static org.taverna.server.master.worker.RunAccessDAOTest.inTransaction;
+import static org.taverna.server.master.worker.RunAccessDAOTest.openDatabase;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.common.Workflow;
+import org.taverna.server.master.exceptions.UnknownRunException;
+import org.taverna.server.master.interfaces.TavernaRun;
+import org.taverna.server.master.utils.JDOSupport.PersistenceManagerBuilder;
+import org.taverna.server.master.utils.JDOSupport.TransactionAspect;
+import org.taverna.server.master.utils.UsernamePrincipal;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Measures how long the webapp takes to answer requests after a restart with
+ * many runs in the database, and how long it takes to reconnect to all of
+ * them. The runs are stored in an in-memory embedded Derby database the way
+ * the webapp stores them, so listing them, loading them and deserialising
+ * their workflows and worker handles are all included; only the workers are
+ * replaced by handles that answer at once. Each measurement starts from a
+ * fresh {@link RunDatabase} with nothing cached. A JMH benchmark; it needs the
+ * JMH annotation processor, so it is only built and run with the
+ * <tt>benchmark</tt> profile, which runs it through {@link #startup()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReconnectionBenchmark {
+	private static final int USERS = 500;
+	private static final int PROCESSORS = 50;
+	private static final int LIFETIME = 60 * 24 * 7;
+	private static int dbCounter;
+
+	/** How many runs survived the restart. */
+	@Param({ "10000", "30000" })
+	public int runs;
+	/** How many threads reconnect to them. */
+	@Param({ "1", "8" })
+	public int threads;
+
+	private JDOPersistenceManagerFactory pmf;
+	private SecurityContextFactory factory;
+	private RunDatabaseDAO dao;
+	private RunArchiveDAO archive;
+	private RunAccessDAO access;
+	private RunDatabaseDAO transactionalDao;
+	private String newestRun;
+	private UsernamePrincipal owner;
+	private RunDatabase db;
+
+	/** A worker's handle to a run, which answers everything at once. */
+	private static class IdleRun implements InvocationHandler, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Object invoke(Object proxy, Method m, Object[] args) {
+			return null;
+		}
+	}
+
+	private static RemoteSingleRun idleRun() {
+		return (RemoteSingleRun) Proxy.newProxyInstance(
+				RemoteSingleRun.class.getClassLoader(),
+				new Class<?>[] { RemoteSingleRun.class }, new IdleRun());
+	}
+
+	/** A workflow of about the size of a typical real one. */
+	private static Workflow workflow() throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder().getDOMImplementation()
+				.createDocument(null, null, null);
+		Element root = doc.createElementNS(T2FLOW, "workflow");
+		Element dataflow = doc.createElementNS(T2FLOW, "dataflow");
+		root.appendChild(dataflow);
+		Element name = doc.createElementNS(T2FLOW, "name");
+		name.setTextContent("benchmark");
+		dataflow.appendChild(name);
+		Element processors = doc.createElementNS(T2FLOW, "processors");
+		dataflow.appendChild(processors);
+		for (int i = 0; i < PROCESSORS; i++) {
+			Element p = doc.createElementNS(T2FLOW, "processor");
+			p.setAttribute("name", "step" + i);
+			p.setTextContent("http://service" + i + ".example.com/operation");
+			processors.appendChild(p);
+		}
+		Workflow w = new Workflow();
+		w.content = new Element[] { root };
+		return w;
+	}
+
+	/** Applies the transactions as the webapp's Spring aspect does. */
+	private static <T> T transactional(T target) {
+		AspectJProxyFactory proxyFactory = new AspectJProxyFactory(target);
+		proxyFactory.setProxyTargetClass(true);
+		proxyFactory.addAspect(new TransactionAspect());
+		return proxyFactory.getProxy();
+	}
+
+	private PersistenceManagerBuilder useNewPersistenceManagers() {
+		PersistenceManagerBuilder pmb = new PersistenceManagerBuilder();
+		pmb.setPersistenceManagerFactory(pmf);
+		dao.setPersistenceManagerBuilder(pmb);
+		archive.setPersistenceManagerBuilder(pmb);
+		access.setPersistenceManagerBuilder(pmb);
+		return pmb;
+	}
+
+	@Setup(Level.Trial)
+	public void populate() throws Exception {
+		factory = new SecurityContextFactory();
+		factory.setAsSingleton();
+		factory.setPasswordIssuer(new PasswordIssuer());
+		pmf = openDatabase("reconnect" + (++dbCounter));
+		dao = new RunDatabaseDAO();
+		archive = new RunArchiveDAO();
+		access = new RunAccessDAO();
+		dao.setArchive(archive);
+		dao.setAccess(access);
+		PersistenceManagerBuilder pmb = useNewPersistenceManagers();
+		transactionalDao = transactional(dao);
+
+		final Workflow workflow = workflow();
+		final RemoteSingleRun remote = idleRun();
+		final long created = System.currentTimeMillis() - runs;
+		for (int i = 0; i < runs;) {
+			final int from = i;
+			i = Math.min(runs, i + 1000);
+			final int to = i;
+			inTransaction(pmb, new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int j = from; j < to; j++) {
+						RemoteRunDelegate run = new RemoteRunDelegate(
+								new Date(created + j), workflow, remote,
+								LIFETIME, null, randomUUID(), false, null);
+						run.secContext = new SecurityContextDelegateImpl(run,
+								new UsernamePrincipal("user" + (j % USERS)),
+								factory);
+						dao.persistRun(run);
+						newestRun = run.id;
+					}
+					return null;
+				}
+			});
+		}
+		owner = new UsernamePrincipal("user" + ((runs - 1) % USERS));
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		pmf.close();
+		factory.removeAsSingleton();
+	}
+
+	/**
+	 * Stands in for a restart: nothing cached by the run database, the
+	 * persistence managers or the persistence manager factory's shared cache.
+	 */
+	@Setup(Level.Invocation)
+	public void restart() {
+		pmf.getDataStoreCache().evictAll();
+		useNewPersistenceManagers();
+		db = new RunDatabase();
+		db.setReconnectThreads(threads);
+		db.setDao(transactionalDao);
+		QuotaManager quotas = new QuotaManager();
+		quotas.setRunDB(db);
+		db.setQuotas(quotas);
+		dao.setFacade(db);
+	}
+
+	/**
+	 * Lets the reconnection finish, so that it does not compete with the
+	 * next measurement.
+	 */
+	@TearDown(Level.Invocation)
+	public void shutdown() throws InterruptedException {
+		while (!db.isReconnected())
+			Thread.sleep(1);
+		db.shutdownStatusCheckPool();
+	}
+
+	/** From start-up until the owner of the newest run can fetch it. */
+	@Benchmark
+	public TavernaRun getRun() throws UnknownRunException {
+		db.startReconnecting();
+		return db.getRun(owner, new PolicyImpl(), newestRun);
+	}
+
+	/** From start-up until a user's runs can be listed. */
+	@Benchmark
+	public Map<String, TavernaRun> listRuns() {
+		db.startReconnecting();
+		return db.listRuns(owner, new PolicyImpl());
+	}
+
+	/** From start-up until every run has been reconnected. */
+	@Benchmark
+	public boolean reconnectAll() throws InterruptedException {
+		db.startReconnecting();
+		while (!db.isReconnected())
+			Thread.sleep(1);
+		return true;
+	}
+
+	@Test
+	public void startup() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				ReconnectionBenchmark.class.getName()).build()).run();
+	}
+}
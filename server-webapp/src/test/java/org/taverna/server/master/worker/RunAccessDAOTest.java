@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.jdo.Transaction;
+
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.master.utils.JDOSupport.PersistenceManagerBuilder;
+import org.taverna.server.master.utils.LoggingDerbyAdapter;
+
+/**
+ * Checks the table of who may see which runs against a real (in-memory,
+ * embedded) Derby database, configured as <tt>beans.xml</tt> configures the
+ * real one, so that the queries are known to filter in the database itself.
+ */
+public class RunAccessDAOTest {
+	private static int dbCounter;
+	private JDOPersistenceManagerFactory pmf;
+	private PersistenceManagerBuilder pmb;
+	private RunAccessDAO dao;
+
+	static JDOPersistenceManagerFactory openDatabase(String name) {
+		Map<String, Object> props = new HashMap<>();
+		props.put("javax.jdo.option.ConnectionDriverName",
+				"org.apache.derby.jdbc.EmbeddedDriver");
+		props.put("javax.jdo.option.ConnectionURL", "jdbc:derby:memory:"
+				+ name + ";create=true");
+		props.put("datanucleus.storeManagerType", "rdbms");
+		props.put("datanucleus.autoCreateSchema", "true");
+		props.put("datanucleus.autoCreateTables", "true");
+		props.put("datanucleus.autoCreateColumns", "true");
+		props.put("datanucleus.autoCreateConstraints", "true");
+		props.put("datanucleus.rdbms.datastoreAdapterClassName",
+				LoggingDerbyAdapter.class.getName());
+		JDOPersistenceManagerFactory pmf = new JDOPersistenceManagerFactory(
+				props);
+		pmf.setNontransactionalRead(true);
+		return pmf;
+	}
+
+	/** Runs something in a transaction, as the Spring aspect would. */
+	static <T> T inTransaction(PersistenceManagerBuilder pmb, Callable<T> body)
+			throws Exception {
+		Transaction tx = pmb.getPersistenceManager().currentTransaction();
+		tx.begin();
+		try {
+			T result = body.call();
+			tx.commit();
+			return result;
+		} finally {
+			if (tx.isActive())
+				tx.rollback();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		pmf = openDatabase("access" + (++dbCounter));
+		pmb = new PersistenceManagerBuilder();
+		pmb.setPersistenceManagerFactory(pmf);
+		dao = new RunAccessDAO();
+		dao.setPersistenceManagerBuilder(pmb);
+	}
+
+	@After
+	public void tearDown() {
+		pmf.close();
+	}
+
+	private void add(final String id, final String owner, final long created,
+			final String... readers) throws Exception {
+		inTransaction(pmb, new Callable<Void>() {
+			@Override
+			public Void call() {
+				dao.add(id, owner, asList(readers), new Date(created));
+				return null;
+			}
+		});
+	}
+
+	private List<String> visible(final String user, final int first,
+			final int limit) throws Exception {
+		return inTransaction(pmb, new Callable<List<String>>() {
+			@Override
+			public List<String> call() {
+				return dao.visibleTo(user, first, limit);
+			}
+		});
+	}
+
+	private int count() throws Exception {
+		return inTransaction(pmb, new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return dao.count();
+			}
+		});
+	}
+
+	@Test
+	public void listsOnlyOwnedAndReadableRuns() throws Exception {
+		add("r1", "alice", 1000);
+		add("r2", "bob", 2000, "alice", "carol");
+		add("r3", "bob", 3000);
+		add("r4", "carol", 4000, "bob");
+		assertEquals(asList("r1", "r2"), visible("alice", 0, 10));
+		assertEquals(asList("r2", "r3", "r4"), visible("bob", 0, 10));
+		assertEquals(asList("r2", "r4"), visible("carol", 0, 10));
+		assertEquals(emptyList(), visible("dave", 0, 10));
+		assertEquals(asList("r1", "r2", "r3", "r4"), visible(null, 0, 10));
+		assertEquals(4, count());
+	}
+
+	@Test
+	public void pages() throws Exception {
+		for (int i = 0; i < 25; i++)
+			add(String.format("r%02d", i), "alice", 1000 + i);
+		assertEquals(10, visible("alice", 0, 10).size());
+		assertEquals(asList("r20", "r21", "r22", "r23", "r24"),
+				visible("alice", 20, 10));
+		assertEquals(25, new HashSet<>(visible("alice", 0, 100)).size());
+	}
+
+	@Test
+	public void followsChangesToReaders() throws Exception {
+		add("r1", "alice", 1000, "bob");
+		inTransaction(pmb, new Callable<Void>() {
+			@Override
+			public Void call() {
+				dao.update("r1", "alice", asList("carol"), new Date(1000));
+				return null;
+			}
+		});
+		assertEquals(emptyList(), visible("bob", 0, 10));
+		assertEquals(asList("r1"), visible("carol", 0, 10));
+		assertEquals(asList("r1"), visible("alice", 0, 10));
+		assertEquals(1, count());
+
+		inTransaction(pmb, new Callable<Void>() {
+			@Override
+			public Void call() {
+				dao.remove("r1");
+				return null;
+			}
+		});
+		assertEquals(emptyList(), visible("carol", 0, 10));
+		assertEquals(emptyList(), visible(null, 0, 10));
+		assertEquals(0, count());
+	}
+}
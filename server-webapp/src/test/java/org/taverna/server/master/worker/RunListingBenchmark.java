@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.taverna.server.master.worker.RunAccessDAOTest.inTransaction;
+import static org.taverna.server.master.worker.RunAccessDAOTest.openDatabase;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.taverna.server.master.utils.JDOSupport.PersistenceManagerBuilder;
+
+/**
+ * Measures how long it takes to list the runs a user can see and to count all
+ * runs, as the number of runs retained in the database grows. Most of those
+ * runs belong to other users, as on a busy server where finished runs are
+ * kept for a week. Uses an in-memory embedded Derby database. A JMH
+ * benchmark; it needs the JMH annotation processor, so it is only built and
+ * run with the <tt>benchmark</tt> profile, which runs it through
+ * {@link #latency()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RunListingBenchmark {
+	private static final int USERS = 500;
+	private static final int PAGE = 100;
+	private static int dbCounter;
+
+	/** How many runs are retained in the database. */
+	@Param({ "1000", "10000", "50000" })
+	public int retained;
+
+	private JDOPersistenceManagerFactory pmf;
+	private PersistenceManagerBuilder pmb;
+	private RunAccessDAO dao;
+	private int query;
+
+	@Setup(Level.Trial)
+	public void populate() throws Exception {
+		pmf = openDatabase("listing" + (++dbCounter));
+		pmb = new PersistenceManagerBuilder();
+		pmb.setPersistenceManagerFactory(pmf);
+		dao = new RunAccessDAO();
+		dao.setPersistenceManagerBuilder(pmb);
+		for (int i = 0; i < retained;) {
+			final int from = i;
+			i = Math.min(retained, i + 1000);
+			final int to = i;
+			inTransaction(pmb, new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int j = from; j < to; j++)
+						dao.add("run" + j, "user" + (j % USERS),
+								asList("user" + ((j + 1) % USERS)),
+								new Date(j));
+					return null;
+				}
+			});
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		pmf.close();
+	}
+
+	/** List the first page of one user's runs; a different user each time. */
+	@Benchmark
+	public List<String> listUserRuns() throws Exception {
+		final String user = "user" + (query++ % USERS);
+		return inTransaction(pmb, new Callable<List<String>>() {
+			@Override
+			public List<String> call() {
+				return dao.visibleTo(user, 0, PAGE);
+			}
+		});
+	}
+
+	@Benchmark
+	public int countAllRuns() throws Exception {
+		return inTransaction(pmb, new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return dao.count();
+			}
+		});
+	}
+
+	@Test
+	public void latency() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				RunListingBenchmark.class.getName()).build()).run();
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.taverna.server.localworker.remote.RemoteSecurityContext;
+import org.taverna.server.localworker.remote.RemoteSingleRun;
+import org.taverna.server.master.common.Credential;
+import org.taverna.server.master.common.Trust;
+import org.taverna.server.master.utils.UsernamePrincipal;
+
+/**
+ * Measures how long conveying a run's credentials to its worker takes when
+ * the run is started, as the number of credentials grows, with the keystores
+ * prepared in the background as the credentials were added compared with
+ * building them at start time (as after a restart). A JMH benchmark; it needs
+ * the JMH annotation processor, so it is only built and run with the
+ * <tt>benchmark</tt> profile, which runs it through {@link #latency()}.
+ *
+ * @author Donal Fellows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RunStartSecurityBenchmark {
+	/** How many credentials the run has. */
+	@Param({ "1", "10", "50" })
+	public int credentials;
+	/**
+	 * Whether the credentials were added through the API while the run was
+	 * being set up, rather than restored from the database.
+	 */
+	@Param({ "false", "true" })
+	public boolean prepared;
+
+	private SecurityContextFactory factory;
+	private RunDBSupport db;
+	private RemoteSingleRun remote;
+	private SecurityContextDelegate context;
+
+	/** Does nothing for every call on an interface, except as given. */
+	private static <T> T stub(Class<T> type, final Object result) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if (result != null
+								&& m.getReturnType().isInstance(result))
+							return result;
+						return null;
+					}
+				}));
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		factory = new SecurityContextFactory();
+		factory.setAsSingleton();
+		factory.setPreparationThreads(2);
+		db = stub(RunDBSupport.class, null);
+		remote = stub(RemoteSingleRun.class,
+				stub(RemoteSecurityContext.class, null));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		factory.removeAsSingleton();
+	}
+
+	private List<Credential> credentials(SecurityContextDelegate ctx)
+			throws Exception {
+		List<Credential> result = new ArrayList<>();
+		for (int i = 0; i < credentials; i++) {
+			Credential.Password pw = new Credential.Password();
+			pw.id = "cred" + i;
+			pw.serviceURI = new URI("https://service" + i + ".example.com/");
+			pw.username = "alice";
+			pw.password = "secret" + i;
+			ctx.validateCredential(pw);
+			result.add(pw);
+		}
+		return result;
+	}
+
+	/** A new run with its credentials, ready to be started. */
+	@Setup(Level.Invocation)
+	public void newRun() throws Exception {
+		RemoteRunDelegate run = new RemoteRunDelegate(new Date(), null, remote,
+				10, db, randomUUID(), false, null);
+		context = new SecurityContextDelegateImpl(run, new UsernamePrincipal(
+				"alice"), factory);
+		List<Credential> creds = credentials(context);
+		if (prepared) {
+			for (Credential c : creds)
+				context.addCredential(c);
+			while (!context.isPrepared())
+				Thread.sleep(1);
+		} else
+			context.setCredentialsAndTrust(
+					creds.toArray(new Credential[creds.size()]), new Trust[0]);
+	}
+
+	@Benchmark
+	public void conveySecurity() throws Exception {
+		context.conveySecurity();
+	}
+
+	@Test
+	public void latency() throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				RunStartSecurityBenchmark.class.getName()).build()).run();
+	}
+}
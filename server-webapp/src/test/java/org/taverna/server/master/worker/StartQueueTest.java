@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.master.worker;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class StartQueueTest {
+	@Test
+	public void roundRobinBetweenUsers() {
+		StartQueue q = new StartQueue();
+		for (int i = 1; i <= 3; i++)
+			q.add("a" + i, "alice");
+		q.add("b1", "bob");
+		q.add("b2", "bob");
+		q.add("c1", "carol");
+		assertEquals(asList("a1", "b1", "c1", "a2", "b2", "a3"), q.getOrder());
+		assertEquals(4, q.position("a2"));
+		assertEquals(0, q.position("nonesuch"));
+		for (String id : asList("a1", "b1", "c1", "a2", "b2", "a3"))
+			assertEquals(id, q.next());
+		assertNull(q.next());
+	}
+
+	@Test
+	public void priorityUsersFirst() {
+		StartQueue q = new StartQueue();
+		q.add("a1", "alice");
+		q.add("a2", "alice");
+		q.add("b1", "bob");
+		q.add("b2", "bob");
+		q.setPriority("bob", 1);
+		assertEquals(asList("b1", "b2", "a1", "a2"), q.getOrder());
+		q.setPriority("bob", 0);
+		assertEquals(asList("a1", "b1", "a2", "b2"), q.getOrder());
+	}
+
+	@Test
+	public void removalAndLimit() {
+		StartQueue q = new StartQueue();
+		q.setLimit(2);
+		assertEquals(1, q.add("a1", "alice"));
+		assertEquals(1, q.add("a1", "alice"));
+		assertEquals(2, q.add("b1", "bob"));
+		assertFalse(q.canAccept());
+		assertTrue(q.remove("a1"));
+		assertFalse(q.remove("a1"));
+		assertFalse(q.contains("a1"));
+		assertEquals(1, q.position("b1"));
+		assertTrue(q.canAccept());
+		q.setEnabled(false);
+		assertFalse(q.canAccept());
+	}
+
+	@Test
+	public void preemptLowerPriority() {
+		StartQueue q = new StartQueue();
+		q.setPriority("urgent", 2);
+		q.setPriority("batch", -1);
+		Map<String, String> operating = new HashMap<>();
+		operating.put("b1", "batch");
+		operating.put("n1", "normal");
+		q.add("u1", "urgent");
+		assertNull("preemption is off by default",
+				q.chooseVictim(operating, null));
+		q.setPreemptive(true);
+		assertEquals("b1", q.chooseVictim(operating, null));
+
+		// The suspended run resumes before its owner's later runs
+		q.add("b2", "batch");
+		assertEquals("b2", q.peek("batch"));
+		q.addFirst("b1", "batch");
+		assertEquals("b1", q.peek("batch"));
+		assertNull(q.peek("normal"));
+		assertEquals(asList("u1", "b1", "b2"), q.getOrder());
+		assertEquals("u1", q.next());
+		operating.remove("b1");
+		operating.put("u1", "urgent");
+		assertNull("nothing queued outranks what is running",
+				q.chooseVictim(operating, null));
+
+		// Users of equal priority never preempt each other
+		q.clear();
+		q.add("n2", "normal");
+		operating.remove("u1");
+		assertNull(q.chooseVictim(operating, null));
+
+		// Users who may not start more runs do not preempt anyone
+		q.add("u2", "urgent");
+		operating.put("b3", "batch");
+		StartQueue.OwnerFilter notUrgent = new StartQueue.OwnerFilter() {
+			@Override
+			public boolean mayStart(String owner) {
+				return !owner.equals("urgent");
+			}
+		};
+		assertEquals("b3", q.chooseVictim(operating, notUrgent));
+		q.remove("n2");
+		assertNull(q.chooseVictim(operating, notUrgent));
+	}
+
+	/**
+	 * Many users submit bursts of runs to a stand-in worker with a small
+	 * operating limit; runs are dispatched from the queue as slots free up.
+	 * Every run must eventually start, each user's runs must start in the order
+	 * they were queued, and no user may be starved by a heavier one.
+	 */
+	@Test
+	public void positionsMatchOrder() {
+		Random random = new Random(4321);
+		StartQueue q = new StartQueue();
+		q.setPriority("user1", 2);
+		q.setPriority("user2", -1);
+		q.setPriority("user3", 2);
+		for (int i = 0; i < 300; i++) {
+			String user = "user" + random.nextInt(8);
+			if (random.nextInt(10) == 0)
+				q.addFirst("run" + i, user);
+			else
+				q.add("run" + i, user);
+			if (random.nextInt(5) == 0)
+				q.next();
+			List<String> order = q.getOrder();
+			for (int j = 0; j < order.size(); j++)
+				assertEquals(j + 1, q.position(order.get(j)));
+		}
+	}
+
+	@Test
+	public void simulatedLoad() {
+		final int users = 25;
+		final int limit = 4;
+		Random random = new Random(1234);
+		StartQueue q = new StartQueue();
+		Map<String, List<String>> submitted = new HashMap<>();
+		int total = 0;
+		for (int u = 0; u < users; u++) {
+			String user = "user" + u;
+			// One heavy user, the rest light
+			int runs = (u == 0 ? 200 : 1 + random.nextInt(5));
+			List<String> ids = new ArrayList<>();
+			for (int r = 0; r < runs; r++) {
+				String id = user + "/" + r;
+				ids.add(id);
+				q.add(id, user);
+			}
+			submitted.put(user, ids);
+			total += runs;
+		}
+		assertEquals(total, q.getSize());
+
+		// The stand-in worker: each operating run finishes after some ticks
+		Map<String, Integer> operating = new HashMap<>();
+		List<String> started = new ArrayList<>();
+		while (q.getSize() > 0 || !operating.isEmpty()) {
+			Iterator<Map.Entry<String, Integer>> it = operating.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Integer> e = it.next();
+				if (e.getValue() <= 1)
+					it.remove();
+				else
+					e.setValue(e.getValue() - 1);
+			}
+			while (operating.size() < limit) {
+				String id = q.next();
+				if (id == null)
+					break;
+				operating.put(id, 1 + random.nextInt(3));
+				started.add(id);
+			}
+			assertTrue(operating.size() <= limit);
+		}
+
+		assertEquals(total, started.size());
+		assertEquals(total, new HashSet<>(started).size());
+		Map<String, Integer> next = new HashMap<>();
+		Set<String> seen = new HashSet<>();
+		for (int i = 0; i < started.size(); i++) {
+			String id = started.get(i);
+			String user = id.substring(0, id.indexOf('/'));
+			Integer n = next.get(user);
+			n = (n == null ? 0 : n);
+			assertEquals(submitted.get(user).get(n), id);
+			next.put(user, n + 1);
+			// Every user gets their first run started in the first round
+			if (seen.add(user))
+				assertTrue("user " + user + " starved", i < users);
+		}
+	}
+}
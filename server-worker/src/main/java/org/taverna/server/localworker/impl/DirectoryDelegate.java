@@ -5,6 +5,8 @@
  */
 package org.taverna.server.localworker.impl;
 
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.Files.walkFileTree;
 import static org.apache.commons.io.FileUtils.forceDelete;
 import static org.apache.commons.io.FileUtils.forceMkdir;
 import static org.apache.commons.io.FileUtils.touch;
@@ -12,12 +14,18 @@ import static org.taverna.server.localworker.impl.utils.FilenameVerifier.getVali
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 
@@ -86,6 +94,39 @@ public class DirectoryDelegate extends UnicastRemoteObject implements
 		return result;
 	}
 
+	@Override
+	public Map<String, Date> getFileModificationDates() throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("failed to list directory " + dir);
+		Map<String, Date> result = new HashMap<>();
+		for (File f : files)
+			if (f.isFile())
+				result.put(f.getName(), new Date(f.lastModified()));
+		return result;
+	}
+
+	@Override
+	public long getTotalSize() throws IOException {
+		final long[] total = new long[1];
+		walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (attrs.isRegularFile())
+					total[0] += attrs.size();
+				return CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// Deleted while we were looking, or unreadable; skip it
+				return CONTINUE;
+			}
+		});
+		return total[0];
+	}
+
 	@Override
 	public RemoteFile makeEmptyFile(String name) throws IOException {
 		File f = getValidatedNewFile(dir, name);
@@ -58,12 +58,15 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -148,6 +151,11 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	@Nullable
 	private File workflowFile;
 	private boolean stopped;
+	/** When the run was last suspended, if it is suspended. */
+	@Nullable
+	private Date suspendedAt;
+	/** How long the run has spent suspended, in milliseconds. */
+	long suspendedTime;
 
 	/**
 	 * @param accounting
@@ -236,7 +244,7 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 		return subprocess != null;
 	}
 
-	private void startExecutorSubprocess(@Nonnull ProcessBuilder pb,
+	void startExecutorSubprocess(@Nonnull ProcessBuilder pb,
 			@Nullable char[] password) throws IOException {
 		// Start the subprocess
 		out.println("starting " + pb.command() + " in directory "
@@ -507,13 +515,26 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	@Override
 	public void killWorker() {
 		if (!finished && subprocess != null) {
+			if (stopped)
+				try {
+					// A stopped process will not act on signals to terminate
+					startWorker();
+				} catch (Exception e) {
+					out.println("failed to resume suspended run: " + e);
+				}
+			/*
+			 * If the run could not be resumed, it is still stopped and so
+			 * has already stopped being counted as operating.
+			 */
+			final AtomicBoolean ceased = new AtomicBoolean(stopped);
 			final Holder<Integer> code = new Holder<>();
 			for (TimingOutTask tot : new TimingOutTask[] { new TimingOutTask() {
 				/** Check if the workflow terminated of its own accord */
 				@Override
 				public void doIt() throws IOException {
 					code.value = subprocess.exitValue();
-					accounting.runCeased();
+					if (!ceased.getAndSet(true))
+						accounting.runCeased();
 					buildUR(code.value == 0 ? Completed : Failed, code.value);
 				}
 			}, new TimingOutTask() {
@@ -521,7 +542,8 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 				@Override
 				public void doIt() throws IOException {
 					code.value = killNicely();
-					accounting.runCeased();
+					if (!ceased.getAndSet(true))
+						accounting.runCeased();
 					buildUR(code.value == 0 ? Completed : Aborted, code.value);
 				}
 			}, new TimingOutTask() {
@@ -529,7 +551,8 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 				@Override
 				public void doIt() throws IOException {
 					code.value = killHard();
-					accounting.runCeased();
+					if (!ceased.getAndSet(true))
+						accounting.runCeased();
 					buildUR(code.value == 0 ? Completed : Aborted, code.value);
 				}
 			} }) {
@@ -601,14 +624,17 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 				ur.addCpuDuration(sys).setUsageType("system");
 			ur.addUser(System.getProperty("user.name"), null);
 			ur.addStartAndEnd(start, now);
-			if (real != -1)
-				ur.addWallDuration(real);
-			else
-				ur.addWallDuration(now.getTime() - start.getTime());
+			if (real == -1)
+				real = now.getTime() - start.getTime();
+			// Time spent suspended is not time spent executing
+			ur.addWallDuration(real - suspendedTime);
+			if (suspendedTime > 0)
+				ur.addDuration(suspendedTime, "suspended");
 			ur.setStatus(status.toString());
 			ur.addHost(getLocalHost().getHostName());
 			ur.addResource("exitcode", Integer.toString(exitCode));
-			ur.addDisk(sizeOfDirectory(wd)).setStorageUnit("B");
+			if (wd != null)
+				ur.addDisk(sizeOfDirectory(wd)).setStorageUnit("B");
 			if (urreceiver != null)
 				urreceiver.acceptUsageRecord(ur.marshal());
 		} catch (Exception e) {
@@ -633,15 +659,59 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 		return dur * 1000;
 	}
 
+	private static boolean kill(@Nonnull String signal, int pid)
+			throws IOException, InterruptedException {
+		return getRuntime().exec("kill -" + signal + " " + pid).waitFor() == 0;
+	}
+
 	private void signal(@Nonnull String signal) throws Exception {
 		int pid = getPID();
-		if (pid > 0
-				&& getRuntime().exec("kill -" + signal + " " + pid).waitFor() == 0)
+		if (pid > 0 && kill(signal, pid))
 			return;
 		throw new Exception("failed to send signal " + signal + " to process "
 				+ pid);
 	}
 
+	/**
+	 * Send a signal to the workflow engine and to all the processes it has
+	 * started (e.g., to run tools), so that suspending the run suspends all of
+	 * its work. The engine is signalled first so that, when stopping, it cannot
+	 * start any more processes while its descendants are being found.
+	 */
+	private void signalTree(@Nonnull String signal) throws Exception {
+		signal(signal);
+		for (int child : descendants(getPID()))
+			kill(signal, child);
+	}
+
+	@Nonnull
+	private static List<Integer> descendants(int pid) {
+		List<Integer> result = new ArrayList<>();
+		ArrayDeque<Integer> todo = new ArrayDeque<>();
+		todo.add(pid);
+		while (!todo.isEmpty()) {
+			int parent = todo.poll();
+			try {
+				Process p = getRuntime().exec("pgrep -P " + parent);
+				BufferedReader r = new BufferedReader(new InputStreamReader(
+						p.getInputStream(), SYSTEM_ENCODING));
+				String line;
+				while ((line = r.readLine()) != null)
+					try {
+						int child = parseInt(line.trim());
+						result.add(child);
+						todo.add(child);
+					} catch (NumberFormatException e) {
+						// Ignore the line
+					}
+				p.waitFor();
+			} catch (IOException | InterruptedException e) {
+				// Can't find the children; do what we can
+			}
+		}
+		return result;
+	}
+
 	@Nullable
 	private Integer killNicely() {
 		try {
@@ -669,21 +739,33 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 	 *             if it fails.
 	 */
 	@Override
-	public void startWorker() throws Exception {
-		signal("CONT");
+	public synchronized void startWorker() throws Exception {
+		if (!stopped)
+			return;
+		signalTree("CONT");
 		stopped = false;
+		if (suspendedAt != null)
+			suspendedTime += new Date().getTime() - suspendedAt.getTime();
+		suspendedAt = null;
+		accounting.runStarted();
 	}
 
 	/**
-	 * Move the worker into the stopped state from the operating state.
+	 * Move the worker into the stopped state from the operating state by
+	 * suspending the workflow engine and the processes it has started. A
+	 * stopped run does not count as operating.
 	 * 
 	 * @throws Exception
 	 *             if it fails.
 	 */
 	@Override
-	public void stopWorker() throws Exception {
-		signal("STOP");
+	public synchronized void stopWorker() throws Exception {
+		if (stopped)
+			return;
+		signalTree("STOP");
 		stopped = true;
+		suspendedAt = new Date();
+		accounting.runCeased();
 	}
 
 	/**
@@ -705,7 +787,12 @@ public class WorkerCore extends UnicastRemoteObject implements Worker,
 		}
 		finished = true;
 		readyToSendEmail = true;
-		accounting.runCeased();
+		if (stopped) {
+			// Killed by something else while suspended; already not counted
+			stopped = false;
+			suspendedTime += new Date().getTime() - suspendedAt.getTime();
+		} else
+			accounting.runCeased();
 		buildUR(exitCode.intValue() == 0 ? Completed : Failed, exitCode);
 		return Finished;
 	}
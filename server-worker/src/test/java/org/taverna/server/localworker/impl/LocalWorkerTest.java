@@ -18,6 +18,7 @@ import java.io.File;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -344,6 +345,26 @@ public class LocalWorkerTest {
 		assertEquals("", rd.getName());
 	}
 
+	@Test
+	public void testWorkingDirectorySize() throws Exception {
+		RemoteDirectory rd = lw.getWorkingDirectory();
+		long before = rd.getTotalSize();
+		rd.makeEmptyFile("sizeTest").setContents(new byte[100]);
+		rd.makeSubdirectory("sizeTestDir").makeEmptyFile("inner")
+				.setContents(new byte[23]);
+		assertEquals(before + 123, rd.getTotalSize());
+	}
+
+	@Test
+	public void testFileModificationDates() throws Exception {
+		RemoteDirectory rd = lw.getWorkingDirectory();
+		rd.makeEmptyFile("datedFile");
+		rd.makeSubdirectory("datedDir");
+		Map<String, Date> dates = rd.getFileModificationDates();
+		assertNotNull(dates.get("datedFile"));
+		assertFalse(dates.containsKey("datedDir"));
+	}
+
 	@Test
 	public void testValidateFilename() throws Exception {
 		lw.validateFilename("foobar");
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The University of Manchester
+ *
+ * See the file "LICENSE" for license terms.
+ */
+package org.taverna.server.localworker.impl;
+
+import static java.lang.Runtime.getRuntime;
+import static java.rmi.server.UnicastRemoteObject.unexportObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.taverna.server.localworker.api.RunAccounting;
+import org.taverna.server.localworker.remote.RemoteStatus;
+import org.taverna.server.localworker.server.UsageRecordReceiver;
+
+/**
+ * Tests of suspending and resuming runs, using a shell script that sleeps as a
+ * stand-in for the workflow engine.
+ */
+public class WorkerCoreTest {
+	int operating;
+	String usageRecord;
+	WorkerCore core;
+	String childPid;
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue(File.separatorChar == '/');
+		core = new WorkerCore(new RunAccounting() {
+			@Override
+			public synchronized void runStarted() {
+				operating++;
+			}
+
+			@Override
+			public synchronized void runCeased() {
+				operating--;
+			}
+		});
+		core.setURReceiver(new UsageRecordReceiver() {
+			@Override
+			public void acceptUsageRecord(String record) {
+				usageRecord = record;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (core == null)
+			return;
+		core.killWorker();
+		if (childPid != null)
+			getRuntime().exec("kill -KILL " + childPid).waitFor();
+		unexportObject(core, true);
+	}
+
+	private void launch(String script) throws Exception {
+		core.startExecutorSubprocess(new ProcessBuilder("/bin/sh", "-c",
+				"echo pid:$$; " + script), null);
+		for (int i = 0; i < 100 && core.pid.value == null; i++)
+			Thread.sleep(50);
+		assertNotNull("stand-in engine did not report its PID", core.pid.value);
+	}
+
+	private static String run(String command) throws IOException,
+			InterruptedException {
+		Process p = getRuntime().exec(command);
+		BufferedReader r = new BufferedReader(new InputStreamReader(
+				p.getInputStream()));
+		String line = r.readLine();
+		p.waitFor();
+		return line == null ? null : line.trim();
+	}
+
+	/** @return Whether the process is stopped by job control. */
+	private static boolean isStopped(Object pid) throws Exception {
+		// Give the signal a moment to be delivered
+		Thread.sleep(100);
+		return run("ps -o stat= -p " + pid).startsWith("T");
+	}
+
+	@Test
+	public void suspendAndResumeProcessTree() throws Exception {
+		launch("sleep 60 & wait");
+		childPid = run("pgrep -P " + core.pid.value);
+		assertNotNull("stand-in engine did not start a child", childPid);
+		assertEquals(1, operating);
+
+		core.stopWorker();
+		assertTrue(isStopped(core.pid.value));
+		assertTrue(isStopped(childPid));
+		assertEquals(RemoteStatus.Stopped, core.getWorkerStatus());
+		assertEquals("suspended runs are not operating", 0, operating);
+		core.stopWorker();
+		assertEquals(0, operating);
+
+		core.startWorker();
+		assertFalse(isStopped(core.pid.value));
+		assertFalse(isStopped(childPid));
+		assertEquals(RemoteStatus.Operating, core.getWorkerStatus());
+		assertEquals(1, operating);
+		core.startWorker();
+		assertEquals(1, operating);
+	}
+
+	@Test
+	public void killWhileSuspended() throws Exception {
+		launch("exec sleep 60");
+		core.stopWorker();
+		Thread.sleep(300);
+		core.killWorker();
+		assertEquals(RemoteStatus.Finished, core.getWorkerStatus());
+		assertEquals(0, operating);
+		assertNotNull("no usage record", usageRecord);
+		assertTrue("suspension not recorded in " + usageRecord,
+				usageRecord.contains("suspended"));
+		assertTrue(core.suspendedTime >= 300);
+	}
+}